@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.Context;
+import android.content.Intent;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v7.widget.RecyclerView;
+
+import com.example.android.sunshine.data.ForecastRepository;
+import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.sync.FakeForecastServer;
+import com.example.android.sunshine.sync.SunshineSyncTask;
+import com.example.android.sunshine.utilities.NetworkUtils;
+import com.example.android.sunshine.utilities.StartupTracer;
+import com.example.android.sunshine.utils.LatencyStats;
+import com.example.android.sunshine.utils.PollingCheck;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.Callable;
+
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Measures the time from a click on a day in the forecast list to the first frame of
+ * DetailActivity showing its weather, when the row is handed over in memory by the
+ * ForecastRepository and when DetailActivity has to query it.
+ * <p>
+ * Results are written to logcat under the SunshineBenchmark tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestDetailBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 2;
+    private static final int MEASURED_ITERATIONS = 10;
+
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private final Instrumentation mInstrumentation = InstrumentationRegistry.getInstrumentation();
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private FakeForecastServer mServer;
+    private Activity mMainActivity;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new FakeForecastServer();
+        NetworkUtils.setForecastBaseUrl(mServer.getBaseUrl());
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        assertTrue("Could not sync the forecast to start from",
+                SunshineSyncTask.syncWeather(mContext).isSuccessful());
+
+        final long launchNanos = System.nanoTime();
+        Intent intent = new Intent(mContext, MainActivity.class);
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        mMainActivity = mInstrumentation.startActivitySync(intent);
+        PollingCheck.check("MainActivity never drew a forecast row", TIMEOUT_MILLIS,
+                new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return StartupTracer.getStartNanos() >= launchNanos
+                                && StartupTracer.getFirstForecastRowNanos() != 0;
+                    }
+                });
+    }
+
+    @After
+    public void tearDown() {
+        finish(mMainActivity);
+        NetworkUtils.setForecastBaseUrl(null);
+        mServer.shutdown();
+    }
+
+    @Test
+    public void benchmarkOpenDetailFromMemory() throws Exception {
+        openDetails("detail from memory", false);
+    }
+
+    @Test
+    public void benchmarkOpenDetailFromProvider() throws Exception {
+        openDetails("detail from provider", true);
+    }
+
+    private void openDetails(String label, boolean dropRows) throws Exception {
+        LatencyStats stats = new LatencyStats(label + ", click to first frame");
+
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASURED_ITERATIONS; i++) {
+            if (dropRows) ForecastRepository.getInstance().invalidate();
+
+            Instrumentation.ActivityMonitor monitor =
+                    mInstrumentation.addMonitor(DetailActivity.class.getName(), null, false);
+            clickFirstDay();
+            Activity detail = mInstrumentation.waitForMonitorWithTimeout(monitor, TIMEOUT_MILLIS);
+            mInstrumentation.removeMonitor(monitor);
+            assertNotNull("DetailActivity was not started", detail);
+
+            PollingCheck.check("DetailActivity never drew the weather", TIMEOUT_MILLIS,
+                    new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() {
+                            return StartupTracer.getDetailFrameNanos() != 0;
+                        }
+                    });
+
+            if (i >= WARMUP_ITERATIONS) {
+                stats.add(StartupTracer.getDetailFrameNanos() - StartupTracer.getDetailRequestNanos());
+            }
+
+            finish(detail);
+        }
+
+        stats.report();
+    }
+
+    private void clickFirstDay() {
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                RecyclerView recyclerView =
+                        (RecyclerView) mMainActivity.findViewById(R.id.recyclerview_forecast);
+                recyclerView.findViewHolderForAdapterPosition(0).itemView.performClick();
+            }
+        });
+    }
+
+    private void finish(final Activity activity) {
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                activity.finish();
+            }
+        });
+        mInstrumentation.waitForIdleSync();
+    }
+}
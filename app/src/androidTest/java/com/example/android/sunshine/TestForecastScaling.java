@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import android.view.ContextThemeWrapper;
+import android.widget.FrameLayout;
+
+import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.utils.LatencyStats;
+import com.example.android.sunshine.utils.SyntheticWeatherGenerator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Measures how the provider, the cursor window and {@link ForecastAdapter} behave as the amount
+ * of stored weather grows from a couple of weeks to decades of history. Datasets come from
+ * {@link SyntheticWeatherGenerator} with a fixed seed so runs are comparable.
+ * <p>
+ * Results are written to logcat under the SunshineBenchmark tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestForecastScaling {
+
+    private static final String TAG = "SunshineBenchmark";
+
+    private static final long SEED = 20161001L;
+
+    /* Dataset sizes in days: two weeks, one year, five years and twenty years */
+    private static final int[] DATASET_DAYS = {14, 365, 5 * 365, 20 * 365};
+
+    private static final int QUERY_ITERATIONS = 20;
+    private static final int MAX_BOUND_POSITIONS = 200;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+    private final ContentResolver mResolver = mContext.getContentResolver();
+
+    @Before
+    public void setUp() {
+        mResolver.delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+    }
+
+    @After
+    public void tearDown() {
+        mResolver.delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+    }
+
+    @Test
+    public void benchmarkIngestAndQueryScaling() {
+        SyntheticWeatherGenerator generator = new SyntheticWeatherGenerator(SEED);
+
+        for (int days : DATASET_DAYS) {
+            mResolver.delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+
+            /* The dataset ends two weeks from today, so most of it is history */
+            long startDate = SunshineDateUtils.getNormalizedUtcDateForToday()
+                    - SunshineDateUtils.DAY_IN_MILLIS * (days - 14);
+            ContentValues[] rows = generator.generateDaily(0, startDate, days);
+
+            long ingestStart = System.nanoTime();
+            int inserted = mResolver.bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, rows);
+            long ingestNanos = System.nanoTime() - ingestStart;
+            assertEquals(days, inserted);
+
+            Log.i(TAG, "days=" + days + " ingest " + TimeUnit.NANOSECONDS.toMillis(ingestNanos)
+                    + "ms (" + (ingestNanos / days / 1000) + "us/row)");
+
+            LatencyStats queryStats = new LatencyStats("days=" + days + " query");
+            LatencyStats fillStats = new LatencyStats("days=" + days + " window fill");
+
+            for (int i = 0; i < QUERY_ITERATIONS; i++) {
+                long queryStart = System.nanoTime();
+                Cursor cursor = queryMainForecast();
+                long queryEnd = System.nanoTime();
+
+                /* getCount forces the first cursor window to be filled */
+                cursor.getCount();
+                long fillEnd = System.nanoTime();
+
+                queryStats.add(queryEnd - queryStart);
+                fillStats.add(fillEnd - queryEnd);
+                cursor.close();
+            }
+
+            queryStats.report();
+            fillStats.report();
+        }
+    }
+
+    @Test
+    public void benchmarkAdapterBindScaling() {
+        SyntheticWeatherGenerator generator = new SyntheticWeatherGenerator(SEED);
+
+        for (int days : DATASET_DAYS) {
+            mResolver.delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+            long startDate = SunshineDateUtils.getNormalizedUtcDateForToday();
+            mResolver.bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI,
+                    generator.generateDaily(0, startDate, days));
+
+            final Cursor cursor = queryMainForecast();
+            final LatencyStats bindStats = new LatencyStats("days=" + days + " adapter bind");
+
+            InstrumentationRegistry.getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    Context themedContext = new ContextThemeWrapper(mContext, R.style.AppTheme);
+                    ForecastAdapter adapter = new ForecastAdapter(themedContext,
+                            new ForecastAdapter.ForecastAdapterOnClickHandler() {
+                                @Override
+                                public void onClick(long date) {
+                                }
+                            });
+                    adapter.swapCursor(cursor);
+
+                    FrameLayout parent = new FrameLayout(themedContext);
+                    int positions = Math.min(adapter.getItemCount(), MAX_BOUND_POSITIONS);
+                    for (int position = 0; position < positions; position++) {
+                        ForecastAdapter.ForecastAdapterViewHolder holder = adapter
+                                .onCreateViewHolder(parent, adapter.getItemViewType(position));
+                        long bindStart = System.nanoTime();
+                        adapter.onBindViewHolder(holder, position);
+                        bindStats.add(System.nanoTime() - bindStart);
+                    }
+                }
+            });
+
+            bindStats.report();
+            cursor.close();
+        }
+    }
+
+    /**
+     * Runs the same query MainActivity's loader runs.
+     */
+    private Cursor queryMainForecast() {
+        return mResolver.query(
+                WeatherContract.WeatherEntry.buildWeatherTodayOnwardsUri(),
+                MainActivity.MAIN_FORECAST_PROJECTION,
+                null,
+                null,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.Context;
+import android.content.Intent;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.data.ForecastSnapshot;
+import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.sync.FakeForecastServer;
+import com.example.android.sunshine.sync.SunshineSyncTask;
+import com.example.android.sunshine.utilities.NetworkUtils;
+import com.example.android.sunshine.utilities.StartupTracer;
+import com.example.android.sunshine.utils.LatencyStats;
+import com.example.android.sunshine.utils.PollingCheck;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.Callable;
+
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Measures how long MainActivity takes to draw its first frame and its first forecast row.
+ * <p>
+ * A cold start launches a new MainActivity, so it covers onCreate, inflating the layout and the
+ * first query. A warm start brings a stopped MainActivity back to the front by finishing an
+ * activity on top of it. Both run in the test process; a process cold start, which adds
+ * application startup, needs `adb shell am start -W` from outside.
+ * <p>
+ * Cold starts are measured with and without the forecast snapshot. With it, the first forecast
+ * row is part of the first frame; without it, it waits for the loader's query.
+ * <p>
+ * The forecast is synced from a local fake server once up front, so the freshness check doesn't
+ * start a sync during the runs. Results are written to logcat under the SunshineBenchmark tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestStartupBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 2;
+    private static final int MEASURED_ITERATIONS = 10;
+
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private final Instrumentation mInstrumentation = InstrumentationRegistry.getInstrumentation();
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private FakeForecastServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new FakeForecastServer();
+        NetworkUtils.setForecastBaseUrl(mServer.getBaseUrl());
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        assertTrue("Could not sync the forecast to start from",
+                SunshineSyncTask.syncWeather(mContext).isSuccessful());
+    }
+
+    @After
+    public void tearDown() {
+        NetworkUtils.setForecastBaseUrl(null);
+        mServer.shutdown();
+    }
+
+    @Test
+    public void benchmarkColdStart() throws Exception {
+        runColdStarts("cold start", false);
+    }
+
+    /**
+     * The same cold start with the forecast snapshot deleted before every launch, so the first
+     * forecast row has to wait for the loader. Compare its first forecast row with the one of
+     * {@link #benchmarkColdStart()}.
+     */
+    @Test
+    public void benchmarkColdStartWithoutSnapshot() throws Exception {
+        runColdStarts("cold start without snapshot", true);
+    }
+
+    private void runColdStarts(String label, boolean deleteSnapshot) throws Exception {
+        LatencyStats firstFrame = new LatencyStats(label + ", first frame");
+        LatencyStats firstRow = new LatencyStats(label + ", first forecast row");
+
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASURED_ITERATIONS; i++) {
+            if (deleteSnapshot) ForecastSnapshot.delete(mContext);
+
+            long launchNanos = System.nanoTime();
+            Activity activity = mInstrumentation.startActivitySync(newTaskIntent(MainActivity.class));
+            awaitFirstForecastRow(launchNanos);
+
+            if (i >= WARMUP_ITERATIONS) {
+                firstFrame.add(StartupTracer.getFirstFrameNanos() - launchNanos);
+                firstRow.add(StartupTracer.getFirstForecastRowNanos() - launchNanos);
+            }
+
+            finish(activity);
+        }
+
+        firstFrame.report();
+        firstRow.report();
+    }
+
+    @Test
+    public void benchmarkWarmStart() throws Exception {
+        LatencyStats firstFrame = new LatencyStats("warm start, first frame");
+        LatencyStats firstRow = new LatencyStats("warm start, first forecast row");
+
+        long launchNanos = System.nanoTime();
+        Activity mainActivity = mInstrumentation.startActivitySync(newTaskIntent(MainActivity.class));
+        awaitFirstForecastRow(launchNanos);
+
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASURED_ITERATIONS; i++) {
+            /* Cover MainActivity so it gets stopped, then uncover it */
+            Activity settings = mInstrumentation.startActivitySync(
+                    newTaskIntent(SettingsActivity.class));
+            mInstrumentation.waitForIdleSync();
+
+            long returnNanos = System.nanoTime();
+            finish(settings);
+            awaitFirstForecastRow(returnNanos);
+
+            if (i >= WARMUP_ITERATIONS) {
+                firstFrame.add(StartupTracer.getFirstFrameNanos() - returnNanos);
+                firstRow.add(StartupTracer.getFirstForecastRowNanos() - returnNanos);
+            }
+        }
+
+        finish(mainActivity);
+
+        firstFrame.report();
+        firstRow.report();
+    }
+
+    private Intent newTaskIntent(Class<? extends Activity> activityClass) {
+        Intent intent = new Intent(mContext, activityClass);
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        return intent;
+    }
+
+    /**
+     * Waits until a start that began after the given time has drawn its first forecast row.
+     */
+    private void awaitFirstForecastRow(final long afterNanos) throws Exception {
+        PollingCheck.check("MainActivity never drew a forecast row", TIMEOUT_MILLIS,
+                new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return StartupTracer.getStartNanos() >= afterNanos
+                                && StartupTracer.getFirstForecastRowNanos() != 0;
+                    }
+                });
+    }
+
+    private void finish(final Activity activity) {
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                activity.finish();
+            }
+        });
+        mInstrumentation.waitForIdleSync();
+    }
+}
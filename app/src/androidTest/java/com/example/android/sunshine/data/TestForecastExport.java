@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.data.WeatherContract.ExportEntry;
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.utils.LatencyStats;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Verifies that the forecast export holds the forecast from today on and that a mapping of it
+ * follows changes to the forecast without being opened again, and measures reading it against
+ * querying the same days.
+ * <p>
+ * Results are written to logcat under the SunshineBenchmark tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestForecastExport {
+
+    private static final long DAY = SunshineDateUtils.DAY_IN_MILLIS;
+
+    private static final int FORECAST_DAYS = 14;
+
+    private static final int WARMUP_ITERATIONS = 50;
+    private static final int MEASURED_ITERATIONS = 1000;
+
+    private static final String[] FORECAST_PROJECTION = {
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP
+    };
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+    private final ContentResolver mResolver = mContext.getContentResolver();
+
+    private long mToday;
+
+    @Before
+    public void setUp() {
+        mResolver.delete(WeatherEntry.CONTENT_URI, null, null);
+        ForecastExport.getFile(mContext).delete();
+        mToday = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+    }
+
+    @After
+    public void tearDown() {
+        mResolver.delete(WeatherEntry.CONTENT_URI, null, null);
+        ForecastExport.getFile(mContext).delete();
+    }
+
+    @Test
+    public void testExportHoldsForecastFromToday() throws IOException {
+        ContentValues[] forecast = insertForecast(mToday - DAY, FORECAST_DAYS);
+
+        ForecastExport.Days days = read(ForecastExport.Reader.open(mResolver));
+        assertEquals("The days before today should be left out",
+                FORECAST_DAYS - 1, days.getCount());
+        for (int i = 0; i < days.getCount(); i++) {
+            ContentValues day = forecast[i + 1];
+            assertEquals(mToday + i * DAY, days.getDate(i));
+            assertEquals((int) day.getAsInteger(WeatherEntry.COLUMN_WEATHER_ID),
+                    days.getWeatherId(i));
+            assertEquals(day.getAsDouble(WeatherEntry.COLUMN_MAX_TEMP), days.getMaxTemp(i), 0);
+            assertEquals(day.getAsDouble(WeatherEntry.COLUMN_MIN_TEMP), days.getMinTemp(i), 0);
+            assertEquals(day.getAsDouble(WeatherEntry.COLUMN_HUMIDITY), days.getHumidity(i), 0);
+            assertEquals(day.getAsDouble(WeatherEntry.COLUMN_PRESSURE), days.getPressure(i), 0);
+            assertEquals(day.getAsDouble(WeatherEntry.COLUMN_WIND_SPEED),
+                    days.getWindSpeed(i), 0);
+            assertEquals(day.getAsDouble(WeatherEntry.COLUMN_DEGREES), days.getDegrees(i), 0);
+        }
+    }
+
+    @Test
+    public void testExportIsCutOff() throws IOException {
+        insertForecast(mToday, ExportEntry.MAX_DAYS + 4);
+
+        assertEquals(ExportEntry.MAX_DAYS,
+                read(ForecastExport.Reader.open(mResolver)).getCount());
+    }
+
+    @Test
+    public void testMappingFollowsForecastChanges() throws IOException {
+        insertForecast(mToday, FORECAST_DAYS);
+        ForecastExport.Reader reader = ForecastExport.Reader.open(mResolver);
+        ForecastExport.Days before = read(reader);
+
+        ContentValues today = TestUtilities.createTestHistoryValues(mToday);
+        today.put(WeatherEntry.COLUMN_MAX_TEMP, before.getMaxTemp(0) + 10);
+        mResolver.bulkInsert(WeatherEntry.CONTENT_URI, new ContentValues[]{today});
+
+        long generation = reader.getGeneration();
+        assertTrue("The generation should move on", generation > before.getGeneration());
+        assertEquals("The generation is even once the rows are written", 0, generation & 1);
+        assertEquals(before.getMaxTemp(0) + 10, read(reader).getMaxTemp(0), 0);
+
+        mResolver.delete(WeatherEntry.CONTENT_URI, null, null);
+        assertEquals(0, read(reader).getCount());
+    }
+
+    /*
+     * Rows changed under an even generation look to a consumer just like rows whose writes it
+     * saw out of order, and must not be taken for whole
+     */
+    @Test
+    public void testTornRowsAreNotRead() throws IOException {
+        insertForecast(mToday, FORECAST_DAYS);
+        ForecastExport.Reader reader = ForecastExport.Reader.open(mResolver);
+        double high = read(reader).getMaxTemp(0);
+
+        RandomAccessFile file = new RandomAccessFile(ForecastExport.getFile(mContext), "rw");
+        try {
+            MappedByteBuffer buffer = file.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, 0, ExportEntry.FILE_BYTES);
+            buffer.putDouble(ExportEntry.HEADER_BYTES + ExportEntry.ROW_MAX_TEMP, high + 10);
+        } finally {
+            file.close();
+        }
+        assertNull("Rows that don't match their checksum should be read again", reader.read());
+
+        /* The next rewrite makes the rows whole again */
+        ContentValues today = TestUtilities.createTestHistoryValues(mToday);
+        today.put(WeatherEntry.COLUMN_MAX_TEMP, high + 1);
+        mResolver.bulkInsert(WeatherEntry.CONTENT_URI, new ContentValues[]{today});
+        assertEquals(high + 1, read(reader).getMaxTemp(0), 0);
+    }
+
+    @Test
+    public void testExportIsOnlyWrittenOnceOpened() {
+        insertForecast(mToday, FORECAST_DAYS);
+
+        assertFalse(ForecastExport.getFile(mContext).exists());
+    }
+
+    /**
+     * Reads the forecast from today on MEASURED_ITERATIONS times, through a query and its
+     * cursor, through the export, and by only checking the export's generation, which is what a
+     * consumer does until the forecast changes.
+     */
+    @Test
+    public void benchmarkForecastRead() throws IOException {
+        insertForecast(mToday, FORECAST_DAYS);
+        ForecastExport.Reader reader = ForecastExport.Reader.open(mResolver);
+
+        LatencyStats queryStats = new LatencyStats(
+                "forecast read, query and cursor, " + FORECAST_DAYS + " days");
+        LatencyStats exportStats = new LatencyStats(
+                "forecast read, mapped export, " + FORECAST_DAYS + " days");
+        LatencyStats generationStats = new LatencyStats("forecast export generation check");
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASURED_ITERATIONS; i++) {
+            long startNanos = System.nanoTime();
+            int queried = query();
+            long queryNanos = System.nanoTime() - startNanos;
+
+            startNanos = System.nanoTime();
+            int exported = read(reader).getCount();
+            long exportNanos = System.nanoTime() - startNanos;
+
+            startNanos = System.nanoTime();
+            long generation = reader.getGeneration();
+            long generationNanos = System.nanoTime() - startNanos;
+
+            assertEquals(FORECAST_DAYS, queried);
+            assertEquals(FORECAST_DAYS, exported);
+            assertEquals(0, generation & 1);
+            if (i >= WARMUP_ITERATIONS) {
+                queryStats.add(queryNanos);
+                exportStats.add(exportNanos);
+                generationStats.add(generationNanos);
+            }
+        }
+        queryStats.report();
+        exportStats.report();
+        generationStats.report();
+    }
+
+    private static ForecastExport.Days read(ForecastExport.Reader reader) {
+        ForecastExport.Days days = reader.read();
+        assertNotNull(days);
+        return days;
+    }
+
+    /**
+     * Runs the query a consumer without the export would, and reads every row of it.
+     *
+     * @return The number of rows
+     */
+    private int query() {
+        Cursor cursor = mResolver.query(WeatherEntry.buildWeatherTodayOnwardsUri(),
+                FORECAST_PROJECTION, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertNotNull(cursor);
+        try {
+            int count = 0;
+            while (cursor.moveToNext()) {
+                cursor.getLong(0);
+                cursor.getInt(1);
+                cursor.getDouble(2);
+                cursor.getDouble(3);
+                count++;
+            }
+            return count;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private ContentValues[] insertForecast(long first, int days) {
+        ContentValues[] forecast = new ContentValues[days];
+        for (int i = 0; i < days; i++) {
+            forecast[i] = TestUtilities.createTestHistoryValues(first + i * DAY);
+        }
+        assertEquals(days, mResolver.bulkInsert(WeatherEntry.CONTENT_URI, forecast));
+        return forecast;
+    }
+}
@@ -0,0 +1,432 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.app.Instrumentation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.data.WeatherContract.ChangeNotification;
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.utils.LatencyStats;
+import com.example.android.sunshine.utils.PollingCheck;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Verifies that {@link ForecastRepository} serves the rows it was given, that it follows the
+ * provider's writes, and that subscribers are sent the days that changed. Also measures the time
+ * from a write to the list having the new rows, through a subscription and through a
+ * ContentObserver and a new query, which is what MainActivity's CursorLoader did before.
+ * <p>
+ * Results are written to logcat under the SunshineBenchmark tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestForecastRepository {
+
+    private static final String[] COLUMNS = {
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES
+    };
+
+    private static final long DAY = SunshineDateUtils.DAY_IN_MILLIS;
+
+    private static final int FORECAST_DAYS = 14;
+
+    private static final int WARMUP_ITERATIONS = 10;
+    private static final int MEASURED_ITERATIONS = 100;
+
+    /* Long enough for any change still held to have been sent */
+    private static final long SETTLE_MILLIS = 4 * NotificationBatcher.DEBOUNCE_MILLIS;
+
+    private final Instrumentation mInstrumentation = InstrumentationRegistry.getInstrumentation();
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+    private final ContentResolver mResolver = mContext.getContentResolver();
+
+    private final ForecastRepository mRepository = ForecastRepository.getInstance();
+
+    private RecordingListener mListener;
+    private long mToday;
+
+    /* Records what it is sent; called on the main thread and read from the test's */
+    private static final class RecordingListener implements ForecastRepository.Listener {
+
+        private final List<ForecastRepository.Days> mDays = new ArrayList<>();
+        private final List<ForecastChangeSet> mChanges = new ArrayList<>();
+        private int mInvalidations;
+        private long mLastChangeNanos;
+
+        @Override
+        public synchronized void onForecastChanged(ForecastRepository.Days days,
+                                                   ForecastChangeSet changes) {
+            mLastChangeNanos = System.nanoTime();
+            mDays.add(days);
+            mChanges.add(changes);
+        }
+
+        @Override
+        public synchronized void onForecastInvalidated() {
+            mInvalidations++;
+        }
+
+        synchronized int getChangeCount() {
+            return mChanges.size();
+        }
+
+        synchronized ForecastRepository.Days getDays(int index) {
+            return mDays.get(index);
+        }
+
+        synchronized ForecastChangeSet getChanges(int index) {
+            return mChanges.get(index);
+        }
+
+        synchronized int getInvalidations() {
+            return mInvalidations;
+        }
+
+        synchronized long getLastChangeNanos() {
+            return mLastChangeNanos;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mResolver.delete(WeatherEntry.CONTENT_URI, null, null);
+        mRepository.invalidate();
+        mToday = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+        mListener = new RecordingListener();
+
+        /* Let the delete and the invalidation above be sent before anything is recorded */
+        SystemClock.sleep(SETTLE_MILLIS);
+    }
+
+    @After
+    public void tearDown() {
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mRepository.unsubscribe(mListener);
+            }
+        });
+        mResolver.delete(WeatherEntry.CONTENT_URI, null, null);
+    }
+
+    @Test
+    public void testPublishedRowsAreServed() {
+        long ticket = mRepository.beginLoad();
+        assertTrue(mRepository.publish(ticket, createCursor()));
+
+        ForecastRow row = mRepository.get(TestUtilities.DATE_NORMALIZED);
+        assertNotNull(row);
+        assertEquals(321, row.getWeatherId());
+        assertEquals(75.0, row.getMaxTemp());
+        assertEquals(5.5f, row.getWindSpeed());
+
+        assertNull(mRepository.get(TestUtilities.DATE_NORMALIZED + 1));
+    }
+
+    @Test
+    public void testLoadOlderThanInvalidationIsDropped() {
+        long ticket = mRepository.beginLoad();
+        mRepository.invalidate();
+
+        assertFalse(mRepository.publish(ticket, createCursor()));
+        assertNull(mRepository.get(TestUtilities.DATE_NORMALIZED));
+    }
+
+    @Test
+    public void testWritesUpdateRows() {
+        assertTrue(mRepository.publish(mRepository.beginLoad(), createCursor()));
+
+        ContentValues[] forecast = TestUtilities.createBulkInsertTestWeatherValues();
+        mResolver.bulkInsert(WeatherEntry.CONTENT_URI, forecast);
+        ForecastRow row = mRepository.get(TestUtilities.DATE_NORMALIZED + DAY);
+        assertNotNull("Inserted rows should be served without a load", row);
+        assertEquals(forecast[0].getAsDouble(WeatherEntry.COLUMN_MAX_TEMP), row.getMaxTemp());
+        assertEquals(forecast[0].getAsDouble(WeatherEntry.COLUMN_WIND_SPEED).floatValue(),
+                row.getWindSpeed());
+
+        mResolver.delete(WeatherEntry.CONTENT_URI, null, null);
+        assertNull("Deleted rows must not be served",
+                mRepository.get(TestUtilities.DATE_NORMALIZED + DAY));
+    }
+
+    @Test
+    public void testWritesAreSentAsChanges() {
+        insertForecast(mToday - DAY, FORECAST_DAYS);
+        load();
+        subscribe(mToday, Long.MAX_VALUE);
+
+        ContentValues today = TestUtilities.createTestHistoryValues(mToday);
+        today.put(WeatherEntry.COLUMN_MAX_TEMP, 100.0);
+        long newDay = mToday + (FORECAST_DAYS - 1) * DAY;
+        mResolver.bulkInsert(WeatherEntry.CONTENT_URI, new ContentValues[]{
+                today, TestUtilities.createTestHistoryValues(newDay)});
+        mResolver.delete(WeatherEntry.CONTENT_URI, WeatherEntry.COLUMN_DATE + " = ?",
+                new String[]{Long.toString(mToday + DAY)});
+
+        /* The insert and the delete fall within one debounce window, so they are sent once */
+        awaitChanges(1);
+        ForecastChangeSet changes = mListener.getChanges(0);
+        assertFalse(changes.isReset());
+        assertTrue(Arrays.equals(new long[]{newDay}, changes.getInserted()));
+        assertTrue(Arrays.equals(new long[]{mToday}, changes.getUpdated()));
+        assertTrue(Arrays.equals(new long[]{mToday + DAY}, changes.getRemoved()));
+
+        ForecastRepository.Days days = mListener.getDays(0);
+        assertEquals("The day before today is out of the range", FORECAST_DAYS - 1,
+                days.getCount());
+        assertEquals(100.0, days.getRow(days.indexOf(mToday)).getMaxTemp());
+        assertEquals(-1, days.indexOf(mToday + DAY));
+    }
+
+    @Test
+    public void testRewritingSameRowsSendsNothing() {
+        insertForecast(mToday, FORECAST_DAYS);
+        load();
+        subscribe(mToday, Long.MAX_VALUE);
+
+        /* What a sync that found no new weather does */
+        ChangeNotification.beginBatch(mResolver);
+        try {
+            mResolver.delete(WeatherEntry.CONTENT_URI, null, null);
+            insertForecast(mToday, FORECAST_DAYS);
+        } finally {
+            ChangeNotification.endBatch(mResolver);
+        }
+
+        SystemClock.sleep(SETTLE_MILLIS);
+        assertEquals(0, mListener.getChangeCount());
+    }
+
+    @Test
+    public void testChangesOutsideRangeAreNotSent() {
+        insertForecast(mToday, FORECAST_DAYS);
+        load();
+        subscribe(mToday + 2 * DAY, mToday + 3 * DAY);
+
+        mResolver.bulkInsert(WeatherEntry.CONTENT_URI, new ContentValues[]{
+                TestUtilities.createTestHistoryValues(mToday + FORECAST_DAYS * DAY)});
+        SystemClock.sleep(SETTLE_MILLIS);
+        assertEquals(0, mListener.getChangeCount());
+
+        ContentValues day = TestUtilities.createTestHistoryValues(mToday + 2 * DAY);
+        day.put(WeatherEntry.COLUMN_WEATHER_ID, 200);
+        mResolver.bulkInsert(WeatherEntry.CONTENT_URI, new ContentValues[]{day});
+        awaitChanges(1);
+        assertEquals(1, mListener.getDays(0).getCount());
+        assertEquals(200, mListener.getDays(0).getRow(0).getWeatherId());
+    }
+
+    @Test
+    public void testLoadIsSentAsReset() {
+        insertForecast(mToday, FORECAST_DAYS);
+        assertNull("Nothing is loaded yet", subscribe(mToday, Long.MAX_VALUE));
+
+        load();
+        awaitChanges(1);
+        assertTrue(mListener.getChanges(0).isReset());
+        assertEquals(FORECAST_DAYS, mListener.getDays(0).getCount());
+
+        mRepository.invalidate();
+        new PollingCheck(5000) {
+            @Override
+            protected boolean check() {
+                return mListener.getInvalidations() == 1;
+            }
+        }.run();
+    }
+
+    /**
+     * Changes the high of today MEASURED_ITERATIONS times, and measures the time until the list
+     * has the new rows: through a subscription, which is sent the changed day, and through a
+     * ContentObserver, which queries the forecast again. The write is made in a batch, so that
+     * the debounce window doesn't count towards either.
+     */
+    @Test
+    public void benchmarkUpdateToList() {
+        insertForecast(mToday, FORECAST_DAYS);
+        load();
+        subscribe(mToday, Long.MAX_VALUE);
+
+        /* The times the observer had queried the forecast again, and the cursors it queried */
+        final List<Long> queriedNanos = new ArrayList<>();
+        final List<Cursor> queried = new ArrayList<>();
+        ContentObserver observer = new ContentObserver(new Handler(Looper.getMainLooper())) {
+            @Override
+            public void onChange(boolean selfChange) {
+                Cursor cursor = mResolver.query(WeatherEntry.buildWeatherTodayOnwardsUri(),
+                        COLUMNS, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+                if (cursor != null) cursor.getCount();
+                synchronized (queried) {
+                    queriedNanos.add(System.nanoTime());
+                    queried.add(cursor);
+                }
+            }
+        };
+
+        LatencyStats subscriptionStats = new LatencyStats(
+                "update to list, subscription, " + FORECAST_DAYS + " days");
+        LatencyStats requeryStats = new LatencyStats(
+                "update to list, observer and query, " + FORECAST_DAYS + " days");
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASURED_ITERATIONS; i++) {
+            ContentValues today = TestUtilities.createTestHistoryValues(mToday);
+            today.put(WeatherEntry.COLUMN_MAX_TEMP, 50.0 + i);
+
+            final int changes = mListener.getChangeCount() + 1;
+            long startNanos = System.nanoTime();
+            writeInBatch(today);
+            new PollingCheck(5000) {
+                @Override
+                protected boolean check() {
+                    return mListener.getChangeCount() == changes;
+                }
+            }.run();
+            long subscriptionNanos = mListener.getLastChangeNanos() - startNanos;
+
+            mResolver.registerContentObserver(WeatherEntry.CONTENT_URI, true, observer);
+            today.put(WeatherEntry.COLUMN_MAX_TEMP, 150.0 + i);
+            startNanos = System.nanoTime();
+            writeInBatch(today);
+            new PollingCheck(5000) {
+                @Override
+                protected boolean check() {
+                    synchronized (queried) {
+                        return !queried.isEmpty();
+                    }
+                }
+            }.run();
+            mResolver.unregisterContentObserver(observer);
+            long requeryNanos;
+            synchronized (queried) {
+                requeryNanos = queriedNanos.get(0) - startNanos;
+                queriedNanos.clear();
+                for (Cursor cursor : queried) {
+                    if (cursor != null) cursor.close();
+                }
+                queried.clear();
+            }
+
+            /* Let the subscription take the second write, so that it counts one per iteration */
+            new PollingCheck(5000) {
+                @Override
+                protected boolean check() {
+                    return mListener.getChangeCount() == changes + 1;
+                }
+            }.run();
+
+            if (i >= WARMUP_ITERATIONS) {
+                subscriptionStats.add(subscriptionNanos);
+                requeryStats.add(requeryNanos);
+            }
+        }
+        subscriptionStats.report();
+        requeryStats.report();
+    }
+
+    private void writeInBatch(ContentValues day) {
+        ChangeNotification.beginBatch(mResolver);
+        try {
+            mResolver.bulkInsert(WeatherEntry.CONTENT_URI, new ContentValues[]{day});
+        } finally {
+            ChangeNotification.endBatch(mResolver);
+        }
+    }
+
+    /* Loads the forecast from today on, the way MainActivity does */
+    private void load() {
+        long ticket = mRepository.beginLoad();
+        Cursor cursor = mResolver.query(WeatherEntry.buildWeatherTodayOnwardsUri(), COLUMNS,
+                null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertNotNull(cursor);
+        try {
+            assertTrue(mRepository.publish(ticket, cursor));
+        } finally {
+            cursor.close();
+        }
+
+        /* The load is sent as a reset; only what comes after it is recorded */
+        SystemClock.sleep(SETTLE_MILLIS);
+    }
+
+    private ForecastRepository.Days subscribe(final long start, final long end) {
+        final ForecastRepository.Days[] days = new ForecastRepository.Days[1];
+        mInstrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                days[0] = mRepository.subscribe(start, end, mListener);
+            }
+        });
+        return days[0];
+    }
+
+    /* Waits for a number of changes to be sent, then makes sure no other follows them */
+    private void awaitChanges(final int count) {
+        new PollingCheck(5000) {
+            @Override
+            protected boolean check() {
+                return mListener.getChangeCount() >= count;
+            }
+        }.run();
+        SystemClock.sleep(SETTLE_MILLIS);
+        assertEquals(count, mListener.getChangeCount());
+    }
+
+    private void insertForecast(long first, int days) {
+        ContentValues[] forecast = new ContentValues[days];
+        for (int i = 0; i < days; i++) {
+            forecast[i] = TestUtilities.createTestHistoryValues(first + i * DAY);
+        }
+        assertEquals(days, mResolver.bulkInsert(WeatherEntry.CONTENT_URI, forecast));
+    }
+
+    private Cursor createCursor() {
+        MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        cursor.addRow(new Object[]{TestUtilities.DATE_NORMALIZED, 321, 75.0, 65.0, 1.2f, 1.3f,
+                5.5f, 1.1f});
+        return cursor;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.R;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.utilities.SunshineWeatherUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+
+/**
+ * Verifies that {@link ForecastSnapshot} reads back what it wrote, drops the days that have
+ * passed and refuses a snapshot formatted for other units.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestForecastSnapshot {
+
+    private static final int DAYS = 14;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private String mUnitsKey;
+    private String mSavedUnits;
+
+    @Before
+    public void setUp() {
+        mUnitsKey = mContext.getString(R.string.pref_units_key);
+        mSavedUnits = TestUtilities.getSharedPreferences(mContext).getString(mUnitsKey, null);
+        setUnits(R.string.pref_units_metric);
+        ForecastSnapshot.delete(mContext);
+    }
+
+    @After
+    public void tearDown() {
+        SharedPreferences.Editor editor = TestUtilities.getSharedPreferences(mContext).edit();
+        if (mSavedUnits == null) {
+            editor.remove(mUnitsKey);
+        } else {
+            editor.putString(mUnitsKey, mSavedUnits);
+        }
+        editor.commit();
+        ForecastSnapshot.delete(mContext);
+    }
+
+    @Test
+    public void testReadsBackWhatWasWritten() {
+        long today = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+        ContentValues[] forecast = createForecast(today);
+        ForecastSnapshot.write(mContext, forecast);
+
+        ForecastSnapshot snapshot = ForecastSnapshot.read(mContext);
+        assertNotNull("Snapshot could not be read back", snapshot);
+        assertEquals(DAYS, snapshot.getCount());
+
+        for (int i = 0; i < DAYS; i++) {
+            ContentValues values = forecast[i];
+            int weatherId = values.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID);
+            assertEquals((long) values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE),
+                    snapshot.getDate(i));
+            assertEquals(weatherId, snapshot.getWeatherId(i));
+            assertEquals(SunshineWeatherUtils.getStringForWeatherCondition(mContext, weatherId),
+                    snapshot.getDescription(i));
+            assertEquals(SunshineWeatherUtils.formatTemperature(mContext,
+                    values.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP)),
+                    snapshot.getHigh(i));
+            assertEquals(SunshineWeatherUtils.formatTemperature(mContext,
+                    values.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP)),
+                    snapshot.getLow(i));
+        }
+    }
+
+    @Test
+    public void testPastDaysAreDropped() {
+        long today = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+        int pastDays = 3;
+        ForecastSnapshot.write(mContext,
+                createForecast(today - pastDays * SunshineDateUtils.DAY_IN_MILLIS));
+
+        ForecastSnapshot snapshot = ForecastSnapshot.read(mContext);
+        assertNotNull(snapshot);
+        assertEquals(DAYS - pastDays, snapshot.getCount());
+        assertEquals(today, snapshot.getDate(0));
+    }
+
+    @Test
+    public void testOtherUnitsAreIgnored() {
+        ForecastSnapshot.write(mContext,
+                createForecast(SunshineDateUtils.normalizeDate(System.currentTimeMillis())));
+
+        setUnits(R.string.pref_units_imperial);
+        assertNull("A snapshot in other units must not be displayed",
+                ForecastSnapshot.read(mContext));
+    }
+
+    @Test
+    public void testDeletingWeatherDeletesSnapshot() {
+        ForecastSnapshot.write(mContext,
+                createForecast(SunshineDateUtils.normalizeDate(System.currentTimeMillis())));
+        mContext.getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI,
+                createForecast(SunshineDateUtils.normalizeDate(System.currentTimeMillis())));
+
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        assertNull(ForecastSnapshot.read(mContext));
+    }
+
+    private ContentValues[] createForecast(long firstDate) {
+        ContentValues[] forecast = new ContentValues[DAYS];
+        for (int i = 0; i < DAYS; i++) {
+            ContentValues values = TestUtilities.createTestWeatherContentValues();
+            values.put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                    firstDate + i * SunshineDateUtils.DAY_IN_MILLIS);
+            values.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, 20.5 + i);
+            forecast[i] = values;
+        }
+        return forecast;
+    }
+
+    private void setUnits(int unitsResId) {
+        TestUtilities.getSharedPreferences(mContext).edit()
+                .putString(mUnitsKey, mContext.getString(unitsResId)).commit();
+    }
+}
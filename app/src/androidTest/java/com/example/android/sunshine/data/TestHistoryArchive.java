@@ -0,0 +1,392 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.data.WeatherContract.ArchiveEntry;
+import com.example.android.sunshine.data.WeatherContract.HistoryEntry;
+import com.example.android.sunshine.data.WeatherContract.RollupEntry;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.utils.LatencyStats;
+import com.example.android.sunshine.utils.SyntheticWeatherGenerator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * Verifies that compaction packs past days into archived months without losing a value, and
+ * that history range URIs read them back along with the daily rows. Also measures the space
+ * the archive takes and how fast ranges of it are read, against the same days kept as rows.
+ * <p>
+ * Results are written to logcat under the SunshineBenchmark tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestHistoryArchive {
+
+    private static final String TAG = "SunshineBenchmark";
+
+    private static final long DAY = SunshineDateUtils.DAY_IN_MILLIS;
+
+    private static final int BENCHMARK_YEARS = 5;
+    private static final int[] RANGE_DAYS = {30, 365};
+
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASURED_ITERATIONS = 50;
+
+    private static final String ROWS_DATABASE = "test_history_rows.db";
+    private static final String PACKED_DATABASE = "test_history_packed.db";
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+    private final ContentResolver mResolver = mContext.getContentResolver();
+
+    private SQLiteDatabase mDatabase;
+    private long mToday;
+
+    @Before
+    public void setUp() {
+        mDatabase = new WeatherDbHelper(mContext).getWritableDatabase();
+        mToday = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+        clearHistory();
+    }
+
+    @After
+    public void tearDown() {
+        clearHistory();
+        mDatabase.close();
+        mContext.deleteDatabase(ROWS_DATABASE);
+        mContext.deleteDatabase(PACKED_DATABASE);
+    }
+
+    @Test
+    public void testCodecRoundTrip() {
+        long first = 16000 * DAY;
+        long[] dates = {first, first + DAY, first + 2 * DAY, first + 5 * DAY, first + 6 * DAY};
+        int[] weatherIds = {800, 800, 800, 501, 212};
+        double[][] values = {
+                {-12.75, -3.5, 40, 990.25, 0, 0},
+                {-11.5, 2.25, 41.5, 1001, 3.6, 359},
+                {0.01, 30.99, 100, 1045.5, 12.5, 180},
+                {-40, -20, 0, 870, 45.25, 90.5},
+                {5, 5, 55, 1013, 0.5, 1}
+        };
+
+        HistoryArchiveCodec.Days days = new HistoryArchiveCodec.Days(dates.length);
+        for (int i = 0; i < dates.length; i++) {
+            days.add(dates[i], weatherIds[i], values[i]);
+        }
+
+        HistoryArchiveCodec.Days decoded =
+                HistoryArchiveCodec.decode(HistoryArchiveCodec.encode(days));
+
+        assertEquals(dates.length, decoded.mCount);
+        assertTrue(Arrays.equals(dates, Arrays.copyOf(decoded.mDates, decoded.mCount)));
+        assertTrue(Arrays.equals(weatherIds,
+                Arrays.copyOf(decoded.mWeatherIds, decoded.mCount)));
+        for (int i = 0; i < dates.length; i++) {
+            for (int column = 0; column < HistoryArchiveCodec.VALUE_COLUMNS.length; column++) {
+                assertEquals("Day " + i + ", " + HistoryArchiveCodec.VALUE_COLUMNS[column],
+                        values[i][column], decoded.mValues[column][i], 0);
+            }
+        }
+
+        assertEquals(3, decoded.indexOf(first + 3 * DAY));
+        assertEquals(decoded.mCount, decoded.indexOf(first + 7 * DAY));
+    }
+
+    @Test
+    public void testCorruptBlobIsRejected() {
+        HistoryArchiveCodec.Days days = new HistoryArchiveCodec.Days(1);
+        days.add(mToday, 800, new double[]{1, 2, 3, 4, 5, 6});
+        byte[] blob = HistoryArchiveCodec.encode(days);
+
+        assertDecodeFails(new byte[0]);
+        assertDecodeFails(Arrays.copyOf(blob, blob.length / 2));
+
+        byte[] unknownVersion = blob.clone();
+        unknownVersion[0] = 99;
+        assertDecodeFails(unknownVersion);
+    }
+
+    @Test
+    public void testRangeReadsArchivedAndDailyDays() {
+        long first = mToday - 200 * DAY;
+        TestUtilities.insertTestHistory(mDatabase, first, 200);
+
+        WeatherArchive.compact(mDatabase, mToday, 0);
+
+        long dailyCutoff = WeatherArchive.getDailyCutoff(mToday);
+        assertEquals((dailyCutoff - first) / DAY, sumArchivedDays());
+        assertEquals((mToday - dailyCutoff) / DAY, DatabaseUtils.queryNumEntries(
+                mDatabase, HistoryEntry.TABLE_NAME));
+
+        /* Starting and ending mid month, so both edge months are trimmed */
+        assertRange(first + 10 * DAY, mToday - 3 * DAY);
+        assertRange(first + 40 * DAY, first + 100 * DAY);
+        assertRange(first, mToday);
+    }
+
+    @Test
+    public void testRangeKeepsProjection() {
+        long first = mToday - 200 * DAY;
+        TestUtilities.insertTestHistory(mDatabase, first, 200);
+        WeatherArchive.compact(mDatabase, mToday, 0);
+
+        Cursor range = mResolver.query(
+                HistoryEntry.buildHistoryRangeUri(first, mToday),
+                new String[]{HistoryEntry.COLUMN_MAX_TEMP, HistoryEntry.COLUMN_DATE},
+                null,
+                null,
+                null);
+        assertNotNull(range);
+        try {
+            assertEquals(200, range.getCount());
+            for (int i = 0; range.moveToNext(); i++) {
+                ContentValues expected = TestUtilities.createTestHistoryValues(first + i * DAY);
+                assertEquals(first + i * DAY, range.getLong(1));
+                assertEquals(expected.getAsDouble(HistoryEntry.COLUMN_MAX_TEMP),
+                        range.getDouble(0), 0);
+            }
+        } finally {
+            range.close();
+        }
+    }
+
+    @Test
+    public void testRepeatedCompactionMergesMonths() {
+        long first = mToday - 200 * DAY;
+        TestUtilities.insertTestHistory(mDatabase, first, 200);
+
+        /* Compacting two weeks apart splits at least one month between the two passes */
+        WeatherArchive.compact(mDatabase, mToday - 14 * DAY, 0);
+        WeatherArchive.compact(mDatabase, mToday, 0);
+
+        assertEquals((WeatherArchive.getDailyCutoff(mToday) - first) / DAY, sumArchivedDays());
+        assertRange(first, mToday);
+    }
+
+    @Test
+    public void testRetentionDropsArchivedMonths() {
+        TestUtilities.insertTestHistory(mDatabase, mToday - 800 * DAY, 800);
+
+        WeatherArchive.compact(mDatabase, mToday, 365);
+
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDatabase, ArchiveEntry.TABLE_NAME,
+                ArchiveEntry.COLUMN_MONTH_END + " <= ?",
+                new String[]{Long.toString(mToday - 365 * DAY)}));
+        assertTrue("Months within the retention should be kept",
+                DatabaseUtils.queryNumEntries(mDatabase, ArchiveEntry.TABLE_NAME) > 0);
+    }
+
+    @Test
+    public void testRangeSortsByDate() {
+        long first = mToday - 200 * DAY;
+        TestUtilities.insertTestHistory(mDatabase, first, 200);
+        WeatherArchive.compact(mDatabase, mToday, 0);
+
+        Cursor range = mResolver.query(
+                HistoryEntry.buildHistoryRangeUri(first, mToday),
+                new String[]{"*"},
+                null,
+                null,
+                HistoryEntry.COLUMN_DATE + " DESC");
+        assertNotNull(range);
+        try {
+            assertEquals(200, range.getCount());
+            for (int i = 0; range.moveToNext(); i++) {
+                TestUtilities.validateCurrentRecord("Day " + i + " from the end differs", range,
+                        TestUtilities.createTestHistoryValues(mToday - (i + 1) * DAY));
+            }
+        } finally {
+            range.close();
+        }
+    }
+
+    @Test
+    public void testRangeWithArchivedDaysRejectsWhatTheArchiveCantServe() {
+        long first = mToday - 200 * DAY;
+        TestUtilities.insertTestHistory(mDatabase, first, 200);
+        WeatherArchive.compact(mDatabase, mToday, 0);
+        Uri uri = HistoryEntry.buildHistoryRangeUri(first, mToday);
+
+        try {
+            mResolver.query(uri, null, HistoryEntry.COLUMN_WEATHER_ID + " >= ?",
+                    new String[]{"0"}, null);
+            fail("A selection can't filter archived days");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        try {
+            mResolver.query(uri, null, null, null, HistoryEntry.COLUMN_MAX_TEMP + " DESC");
+            fail("Archived days can only be sorted by date");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        /* A range the archive has no days of still takes both */
+        Cursor daily = mResolver.query(
+                HistoryEntry.buildHistoryRangeUri(WeatherArchive.getDailyCutoff(mToday), mToday),
+                null,
+                HistoryEntry.COLUMN_WEATHER_ID + " >= ?",
+                new String[]{"0"},
+                HistoryEntry.COLUMN_MAX_TEMP + " DESC");
+        assertNotNull(daily);
+        try {
+            assertEquals((mToday - WeatherArchive.getDailyCutoff(mToday)) / DAY,
+                    daily.getCount());
+        } finally {
+            daily.close();
+        }
+    }
+
+    /**
+     * Stores BENCHMARK_YEARS of realistic days twice, once as rows and once compacted, each in a
+     * database of its own, and compares the size of the two files. Both are vacuumed first so
+     * that neither counts free pages.
+     */
+    @Test
+    public void benchmarkStorageSize() {
+        int days = BENCHMARK_YEARS * 365;
+        long first = mToday - days * DAY;
+        ContentValues[] history = new SyntheticWeatherGenerator(42).generateDaily(0, first, days);
+
+        long rowsBytes = storeHistory(ROWS_DATABASE, history, false);
+        long packedBytes = storeHistory(PACKED_DATABASE, history, true);
+
+        Log.i(TAG, "history storage, " + BENCHMARK_YEARS + " years: rows=" + rowsBytes
+                + " bytes, packed=" + packedBytes + " bytes ("
+                + (100 * packedBytes / rowsBytes) + "%)");
+        assertTrue("Packed history should take less space than rows",
+                packedBytes < rowsBytes);
+    }
+
+    /**
+     * Reads ranges of RANGE_DAYS days, older than the daily tier, out of BENCHMARK_YEARS of
+     * history kept as rows, then again once the same history has been packed.
+     */
+    @Test
+    public void benchmarkRangeScan() {
+        int days = BENCHMARK_YEARS * 365;
+        long first = mToday - days * DAY;
+        TestUtilities.insertTestHistory(mDatabase, first, days);
+
+        LatencyStats[] rows = measureRanges(first, "rows");
+        WeatherArchive.compact(mDatabase, mToday, 0);
+        LatencyStats[] packed = measureRanges(first, "packed");
+
+        for (int i = 0; i < RANGE_DAYS.length; i++) {
+            rows[i].report();
+            packed[i].report();
+        }
+    }
+
+    /* Times a range of each of RANGE_DAYS in the middle of the history */
+    private LatencyStats[] measureRanges(long first, String storage) {
+        LatencyStats[] stats = new LatencyStats[RANGE_DAYS.length];
+        for (int r = 0; r < RANGE_DAYS.length; r++) {
+            long start = first + (BENCHMARK_YEARS * 365 / 2) * DAY;
+            Uri uri = HistoryEntry.buildHistoryRangeUri(start, start + RANGE_DAYS[r] * DAY);
+
+            stats[r] = new LatencyStats("history range of " + RANGE_DAYS[r] + " days, "
+                    + BENCHMARK_YEARS + " years, " + storage);
+            for (int i = 0; i < WARMUP_ITERATIONS + MEASURED_ITERATIONS; i++) {
+                long startNanos = System.nanoTime();
+                int count = TestUtilities.load(mResolver, uri, null, null, null);
+                long nanos = System.nanoTime() - startNanos;
+
+                assertEquals(RANGE_DAYS[r], count);
+                if (i >= WARMUP_ITERATIONS) stats[r].add(nanos);
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * @return The size of the database file once the history is stored and the file vacuumed
+     */
+    private long storeHistory(String name, ContentValues[] history, boolean compact) {
+        mContext.deleteDatabase(name);
+        SQLiteDatabase database = new WeatherDbHelper(mContext, name).getWritableDatabase();
+        try {
+            database.beginTransaction();
+            try {
+                for (ContentValues day : history) {
+                    database.insert(HistoryEntry.TABLE_NAME, null, day);
+                }
+                if (compact) WeatherArchive.compact(database, mToday, 0);
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+            database.execSQL("VACUUM");
+        } finally {
+            database.close();
+        }
+        return mContext.getDatabasePath(name).length();
+    }
+
+    /* Checks every day of the range, in date order, against the values it was written with */
+    private void assertRange(long start, long end) {
+        Cursor range = mResolver.query(HistoryEntry.buildHistoryRangeUri(start, end),
+                null, null, null, null);
+        assertNotNull(range);
+        try {
+            assertEquals((end - start) / DAY, range.getCount());
+            for (int i = 0; range.moveToNext(); i++) {
+                TestUtilities.validateCurrentRecord("Day " + i + " of the range differs",
+                        range, TestUtilities.createTestHistoryValues(start + i * DAY));
+            }
+        } finally {
+            range.close();
+        }
+    }
+
+    private static void assertDecodeFails(byte[] blob) {
+        try {
+            HistoryArchiveCodec.decode(blob);
+            fail("A corrupt blob should be rejected");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    private long sumArchivedDays() {
+        return DatabaseUtils.longForQuery(mDatabase, "SELECT SUM("
+                + ArchiveEntry.COLUMN_DAY_COUNT + ") FROM " + ArchiveEntry.TABLE_NAME, null);
+    }
+
+    private void clearHistory() {
+        mDatabase.delete(HistoryEntry.TABLE_NAME, null, null);
+        mDatabase.delete(RollupEntry.TABLE_NAME, null, null);
+        mDatabase.delete(ArchiveEntry.TABLE_NAME, null, null);
+    }
+}
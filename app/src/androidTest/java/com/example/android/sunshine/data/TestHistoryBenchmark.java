@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.data.WeatherContract.ArchiveEntry;
+import com.example.android.sunshine.data.WeatherContract.HistoryEntry;
+import com.example.android.sunshine.data.WeatherContract.RollupEntry;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.utils.LatencyStats;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+
+/**
+ * Measures how long a 30 day range of history takes to read as the archive grows to several
+ * years of daily rows, through the range URI, which uses the index on the date column, and
+ * through a selection that defeats the index, as a full scan baseline. Also measures reading a
+ * year of monthly roll-ups once the same history has been compacted.
+ * <p>
+ * Results are written to logcat under the SunshineBenchmark tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestHistoryBenchmark {
+
+    private static final long DAY = SunshineDateUtils.DAY_IN_MILLIS;
+
+    private static final int[] YEARS = {1, 3, 5, 10};
+    private static final int RANGE_DAYS = 30;
+
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASURED_ITERATIONS = 50;
+
+    /*
+     * Adding 0 to the column keeps SQLite from using its index. It also strips the column's
+     * affinity, so the arguments are cast explicitly to still compare as integers.
+     */
+    private static final String SCAN_SELECTION =
+            HistoryEntry.COLUMN_DATE + " + 0 >= CAST(? AS INTEGER) AND "
+            + HistoryEntry.COLUMN_DATE + " + 0 < CAST(? AS INTEGER)";
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+    private final ContentResolver mResolver = mContext.getContentResolver();
+
+    private SQLiteDatabase mDatabase;
+    private long mToday;
+
+    @Before
+    public void setUp() {
+        mDatabase = new WeatherDbHelper(mContext).getWritableDatabase();
+        mToday = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+        clearHistory();
+    }
+
+    @After
+    public void tearDown() {
+        clearHistory();
+        mDatabase.close();
+    }
+
+    @Test
+    public void benchmarkDailyRangeQuery() {
+        for (int years : YEARS) {
+            clearHistory();
+            int days = years * 365;
+            long first = mToday - days * DAY;
+            TestUtilities.insertTestHistory(mDatabase, first, days);
+
+            /* A range in the middle of the archive, so neither end of the table is favoured */
+            final long start = first + (days / 2) * DAY;
+            final long end = start + RANGE_DAYS * DAY;
+
+            LatencyStats indexed = new LatencyStats(
+                    "history range, " + years + " years, indexed");
+            LatencyStats scanned = new LatencyStats(
+                    "history range, " + years + " years, full scan");
+
+            for (int i = 0; i < WARMUP_ITERATIONS + MEASURED_ITERATIONS; i++) {
+                long indexedNanos = timeQuery(HistoryEntry.buildHistoryRangeUri(start, end),
+                        null, null, RANGE_DAYS);
+                long scannedNanos = timeQuery(HistoryEntry.CONTENT_URI, SCAN_SELECTION,
+                        new String[]{Long.toString(start), Long.toString(end)}, RANGE_DAYS);
+                if (i >= WARMUP_ITERATIONS) {
+                    indexed.add(indexedNanos);
+                    scanned.add(scannedNanos);
+                }
+            }
+
+            indexed.report();
+            scanned.report();
+        }
+    }
+
+    @Test
+    public void benchmarkRollupRangeQuery() {
+        for (int years : YEARS) {
+            clearHistory();
+            int days = years * 365;
+            TestUtilities.insertTestHistory(mDatabase, mToday - days * DAY, days);
+            WeatherArchive.compact(mDatabase, mToday, 0);
+
+            /* The twelve months before the daily tier, which every archive here covers */
+            long end = WeatherArchive.getDailyCutoff(mToday);
+            long start = end - 365 * DAY;
+            Uri uri = RollupEntry.buildRollupRangeUri(RollupEntry.PERIOD_MONTH, start, end);
+
+            LatencyStats stats = new LatencyStats(
+                    "monthly roll-ups, " + years + " years archived");
+            for (int i = 0; i < WARMUP_ITERATIONS + MEASURED_ITERATIONS; i++) {
+                long nanos = timeQuery(uri, null, null, -1);
+                if (i >= WARMUP_ITERATIONS) stats.add(nanos);
+            }
+            stats.report();
+        }
+    }
+
+    /**
+     * Runs a query and reads every row of it, as a list would.
+     *
+     * @param expectedCount Number of rows the query must return, or -1 to not check
+     * @return How long the query and reading its rows took, in nanoseconds
+     */
+    private long timeQuery(Uri uri, String selection, String[] selectionArgs, int expectedCount) {
+        long startNanos = System.nanoTime();
+        Cursor cursor = mResolver.query(uri, null, selection, selectionArgs, null);
+        assertNotNull(cursor);
+        try {
+            int count = 0;
+            while (cursor.moveToNext()) {
+                cursor.getLong(cursor.getColumnIndex(HistoryEntry._ID));
+                count++;
+            }
+            long nanos = System.nanoTime() - startNanos;
+            if (expectedCount >= 0) assertEquals(expectedCount, count);
+            return nanos;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void clearHistory() {
+        mDatabase.delete(HistoryEntry.TABLE_NAME, null, null);
+        mDatabase.delete(RollupEntry.TABLE_NAME, null, null);
+        mDatabase.delete(ArchiveEntry.TABLE_NAME, null, null);
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.data.WeatherContract.HourlyEntry;
+import com.example.android.sunshine.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.utilities.OpenWeatherJsonUtils;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.utils.ForecastJsonFactory;
+import com.example.android.sunshine.utils.LatencyStats;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.fail;
+
+/**
+ * Verifies that the hourly forecast is parsed, stored and read back in windows, and measures
+ * ingesting and querying it at the size of a long hourly forecast.
+ * <p>
+ * Results are written to logcat under the SunshineBenchmark tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestHourlyForecast {
+
+    private static final long HOUR = SunshineDateUtils.HOUR_IN_MILLIS;
+
+    /* Rows ingested and queried by the benchmarks */
+    private static final int LARGE_HOURS = 10000;
+
+    /* The window the UI and the watch ask for */
+    private static final int WINDOW_HOURS = 24;
+
+    private static final int INGEST_ITERATIONS = 5;
+    private static final int WARMUP_ITERATIONS = 20;
+    private static final int MEASURED_ITERATIONS = 500;
+
+    private static final String SORT_ORDER = HourlyEntry.COLUMN_TIME + " ASC";
+
+    private static final String[] WINDOW_PROJECTION = {
+            HourlyEntry.COLUMN_TIME,
+            HourlyEntry.COLUMN_WEATHER_ID,
+            HourlyEntry.COLUMN_TEMP
+    };
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+    private final ContentResolver mResolver = mContext.getContentResolver();
+
+    private long mCurrentHour;
+
+    @Before
+    public void setUp() {
+        mResolver.delete(HourlyEntry.CONTENT_URI, null, null);
+        mCurrentHour = SunshineDateUtils.normalizeHour(System.currentTimeMillis());
+    }
+
+    @After
+    public void tearDown() {
+        mResolver.delete(HourlyEntry.CONTENT_URI, null, null);
+    }
+
+    @Test
+    public void testStreamingParseNormalizesHours() throws IOException {
+        /* Half past the hour, as a server that stamps hours by their middle would */
+        long firstHourSeconds = (mCurrentHour + HOUR / 2) / 1000;
+        ContentValues[] hours = parse(
+                ForecastJsonFactory.buildHourlyForecast(firstHourSeconds, 48, 1));
+
+        assertEquals(48, hours.length);
+        for (int i = 0; i < hours.length; i++) {
+            assertEquals(mCurrentHour + i * HOUR,
+                    (long) hours[i].getAsLong(HourlyEntry.COLUMN_TIME));
+            assertNotNull(hours[i].getAsDouble(HourlyEntry.COLUMN_TEMP));
+        }
+
+        assertEquals(null, OpenWeatherJsonUtils.readHourlyContentValues(
+                new StringReader(ForecastJsonFactory.buildError(404))));
+    }
+
+    @Test
+    public void testHoursMissingValuesAreLeftOut() throws IOException {
+        long firstHourSeconds = mCurrentHour / 1000;
+        String json = "{\"cod\":\"200\",\"list\":["
+                + "{\"dt\":" + firstHourSeconds
+                + ",\"main\":{\"temp\":12.5,\"pressure\":1012,\"humidity\":60}"
+                + ",\"weather\":[{\"id\":800}],\"wind\":{\"speed\":3.5,\"deg\":90}},"
+                /* No temperature */
+                + "{\"dt\":" + (firstHourSeconds + 3600)
+                + ",\"main\":{\"pressure\":1012,\"humidity\":60}"
+                + ",\"weather\":[{\"id\":800}],\"wind\":{\"speed\":3.5,\"deg\":90}},"
+                /* No wind */
+                + "{\"dt\":" + (firstHourSeconds + 7200)
+                + ",\"main\":{\"temp\":11.5,\"pressure\":1011,\"humidity\":65}"
+                + ",\"weather\":[{\"id\":801}]}"
+                + "]}";
+
+        ContentValues[] hours = parse(json);
+        assertEquals("Only the hour without a temperature should be left out", 2, hours.length);
+        assertEquals(mCurrentHour, (long) hours[0].getAsLong(HourlyEntry.COLUMN_TIME));
+        assertEquals(mCurrentHour + 2 * HOUR, (long) hours[1].getAsLong(HourlyEntry.COLUMN_TIME));
+        assertEquals(0.0, hours[1].getAsDouble(HourlyEntry.COLUMN_WIND_SPEED));
+        assertEquals(0.0, hours[1].getAsDouble(HourlyEntry.COLUMN_DEGREES));
+    }
+
+    @Test
+    public void testWindowsSelectTheirHours() {
+        assertEquals(72, mResolver.bulkInsert(HourlyEntry.CONTENT_URI,
+                createHours(mCurrentHour, 72)));
+
+        assertEquals(72, TestUtilities.count(mResolver, HourlyEntry.CONTENT_URI));
+        assertEquals(WINDOW_HOURS,
+                TestUtilities.count(mResolver, HourlyEntry.buildHourlyNextUri(WINDOW_HOURS)));
+        assertEquals(12, TestUtilities.count(mResolver, HourlyEntry.buildHourlyRangeUri(
+                mCurrentHour + 30 * HOUR, mCurrentHour + 42 * HOUR)));
+        assertEquals("The window is cut off at the last hour forecast",
+                72, TestUtilities.count(mResolver, HourlyEntry.buildHourlyNextUri(100)));
+    }
+
+    @Test
+    public void testNewerForecastReplacesHours() {
+        mResolver.bulkInsert(HourlyEntry.CONTENT_URI, createHours(mCurrentHour, 24));
+        mResolver.bulkInsert(HourlyEntry.CONTENT_URI, createHours(mCurrentHour + 12 * HOUR, 24));
+
+        assertEquals(36, TestUtilities.count(mResolver, HourlyEntry.CONTENT_URI));
+    }
+
+    @Test
+    public void testPastHoursAreDropped() {
+        assertEquals(24, mResolver.bulkInsert(HourlyEntry.CONTENT_URI,
+                createHours(mCurrentHour - 6 * HOUR, 24)));
+
+        assertEquals(18, TestUtilities.count(mResolver, HourlyEntry.CONTENT_URI));
+    }
+
+    @Test
+    public void testUnnormalizedHourIsRejected() {
+        ContentValues[] hours = createHours(mCurrentHour, 4);
+        hours[2].put(HourlyEntry.COLUMN_TIME, mCurrentHour + 2 * HOUR + 1);
+
+        try {
+            mResolver.bulkInsert(HourlyEntry.CONTENT_URI, hours);
+            fail("An hour that isn't normalized should be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals("The whole forecast should be rejected",
+                0, TestUtilities.count(mResolver, HourlyEntry.CONTENT_URI));
+    }
+
+    @Test
+    public void testSwitchingLocationDropsHours() {
+        SQLiteDatabase database = new WeatherDbHelper(mContext).getWritableDatabase();
+        try {
+            TestUtilities.clearLocations(database, mResolver);
+            switchTo("test-hourly-location-a");
+            mResolver.bulkInsert(HourlyEntry.CONTENT_URI, createHours(mCurrentHour, 24));
+
+            switchTo("test-hourly-location-a");
+            assertEquals(24, TestUtilities.count(mResolver, HourlyEntry.CONTENT_URI));
+
+            switchTo("test-hourly-location-b");
+            assertEquals(0, TestUtilities.count(mResolver, HourlyEntry.CONTENT_URI));
+        } finally {
+            TestUtilities.clearLocations(database, mResolver);
+            database.close();
+        }
+    }
+
+    /**
+     * Parses and stores a forecast of LARGE_HOURS hours, over the hours the previous iteration
+     * stored, as every sync after the first does. Parsing and inserting are timed apart.
+     */
+    @Test
+    public void benchmarkIngest() throws IOException {
+        String json = ForecastJsonFactory.buildHourlyForecast(
+                mCurrentHour / 1000, LARGE_HOURS, 42);
+
+        LatencyStats parseStats = new LatencyStats(
+                "hourly streaming parse, " + LARGE_HOURS + " hours");
+        LatencyStats insertStats = new LatencyStats(
+                "hourly bulk insert, " + LARGE_HOURS + " hours");
+        for (int i = 0; i < INGEST_ITERATIONS; i++) {
+            long startNanos = System.nanoTime();
+            ContentValues[] hours = parse(json);
+            long parsedNanos = System.nanoTime();
+            int inserted = mResolver.bulkInsert(HourlyEntry.CONTENT_URI, hours);
+            long insertedNanos = System.nanoTime();
+
+            assertEquals(LARGE_HOURS, inserted);
+            parseStats.add(parsedNanos - startNanos);
+            insertStats.add(insertedNanos - parsedNanos);
+        }
+        parseStats.report();
+        insertStats.report();
+
+        assertEquals(LARGE_HOURS, TestUtilities.count(mResolver, HourlyEntry.CONTENT_URI));
+    }
+
+    /**
+     * Reads windows of WINDOW_HOURS hours out of LARGE_HOURS stored, both the next hours, as the
+     * UI and the watch do, and windows anywhere in the forecast.
+     */
+    @Test
+    public void benchmarkWindowQuery() {
+        mResolver.bulkInsert(HourlyEntry.CONTENT_URI, createHours(mCurrentHour, LARGE_HOURS));
+        Random random = new Random(7);
+
+        LatencyStats nextStats = new LatencyStats("hourly next " + WINDOW_HOURS + " hours, "
+                + LARGE_HOURS + " stored");
+        LatencyStats rangeStats = new LatencyStats("hourly range of " + WINDOW_HOURS
+                + " hours, " + LARGE_HOURS + " stored");
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASURED_ITERATIONS; i++) {
+            long startNanos = System.nanoTime();
+            int next = TestUtilities.load(mResolver, HourlyEntry.buildHourlyNextUri(WINDOW_HOURS),
+                    WINDOW_PROJECTION, null, SORT_ORDER);
+            long nextNanos = System.nanoTime() - startNanos;
+
+            long start = mCurrentHour
+                    + random.nextInt(LARGE_HOURS - WINDOW_HOURS) * HOUR;
+            startNanos = System.nanoTime();
+            int range = TestUtilities.load(mResolver,
+                    HourlyEntry.buildHourlyRangeUri(start, start + WINDOW_HOURS * HOUR),
+                    WINDOW_PROJECTION, null, SORT_ORDER);
+            long rangeNanos = System.nanoTime() - startNanos;
+
+            assertEquals(WINDOW_HOURS, next);
+            assertEquals(WINDOW_HOURS, range);
+            if (i >= WARMUP_ITERATIONS) {
+                nextStats.add(nextNanos);
+                rangeStats.add(rangeNanos);
+            }
+        }
+        nextStats.report();
+        rangeStats.report();
+    }
+
+    private static ContentValues[] parse(String json) throws IOException {
+        ContentValues[] hours = OpenWeatherJsonUtils.readHourlyContentValues(
+                new StringReader(json));
+        assertNotNull(hours);
+        return hours;
+    }
+
+    private static ContentValues[] createHours(long firstHour, int hours) {
+        ContentValues[] values = new ContentValues[hours];
+        for (int i = 0; i < hours; i++) {
+            long time = firstHour + i * HOUR;
+            ContentValues hour = new ContentValues();
+            hour.put(HourlyEntry.COLUMN_TIME, time);
+            hour.put(HourlyEntry.COLUMN_WEATHER_ID, 800 + i % 5);
+            hour.put(HourlyEntry.COLUMN_TEMP, 5.0 + i % 17);
+            hour.put(HourlyEntry.COLUMN_HUMIDITY, 40.0 + i % 50);
+            hour.put(HourlyEntry.COLUMN_PRESSURE, 990.0 + i % 40);
+            hour.put(HourlyEntry.COLUMN_WIND_SPEED, 0.5 * (i % 11));
+            hour.put(HourlyEntry.COLUMN_DEGREES, (double) (i % 360));
+            values[i] = hour;
+        }
+        return values;
+    }
+
+    private void switchTo(String locationSetting) {
+        ContentValues values = new ContentValues();
+        values.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        assertNotNull(mResolver.insert(LocationEntry.CONTENT_URI, values));
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.MainActivity;
+import com.example.android.sunshine.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.data.WeatherContract.LocationWeatherEntry;
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.utils.LatencyStats;
+import com.example.android.sunshine.utils.SyntheticWeatherGenerator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Measures reading one location's forecast, and switching locations, with many locations saved.
+ * <p>
+ * The provider never keeps more than MAX_LOCATIONS, so the partitions for the read benchmark are
+ * written straight into the database; reading them is what a larger limit would cost. The switch
+ * benchmark goes through the provider and cycles through more locations than are kept, so every
+ * switch also evicts one. The size benchmark compares the partitions in fixed point with the
+ * same forecasts stored as floats, as they were before version 12.
+ * <p>
+ * Results are written to logcat under the SunshineBenchmark tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestLocationBenchmark {
+
+    private static final String TAG = "SunshineBenchmark";
+
+    private static final long DAY = SunshineDateUtils.DAY_IN_MILLIS;
+
+    private static final int LOCATIONS = 60;
+    private static final int FORECAST_DAYS = 14;
+
+    private static final int WARMUP_ITERATIONS = 20;
+    private static final int MEASURED_ITERATIONS = 300;
+
+    private static final String SORT_ORDER = WeatherEntry.COLUMN_DATE + " ASC";
+
+    private static final String FLOAT_DATABASE = "test_partitions_float.db";
+    private static final String FIXED_DATABASE = "test_partitions_fixed.db";
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+    private final ContentResolver mResolver = mContext.getContentResolver();
+
+    private SQLiteDatabase mDatabase;
+    private long mToday;
+
+    @Before
+    public void setUp() {
+        mDatabase = new WeatherDbHelper(mContext).getWritableDatabase();
+        TestUtilities.clearLocations(mDatabase, mResolver);
+        mToday = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+    }
+
+    @After
+    public void tearDown() {
+        TestUtilities.clearLocations(mDatabase, mResolver);
+        mDatabase.close();
+        mContext.deleteDatabase(FLOAT_DATABASE);
+        mContext.deleteDatabase(FIXED_DATABASE);
+    }
+
+    /**
+     * Loads a parked location's forecast, which converts its values back from fixed point, and
+     * the active location's forecast over as many days, which reads the floats as stored.
+     */
+    @Test
+    public void benchmarkLocationForecastQuery() {
+        long[] ids = insertParkedLocations(LOCATIONS);
+        insertForecast();
+
+        LatencyStats stats = new LatencyStats(
+                "location forecast load, " + LOCATIONS + " locations");
+        LatencyStats activeStats = new LatencyStats("active forecast load, baseline");
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASURED_ITERATIONS; i++) {
+            Uri uri = LocationEntry.buildLocationTodayOnwardsUri(ids[i % ids.length]);
+
+            long startNanos = System.nanoTime();
+            int count = TestUtilities.load(mResolver, uri,
+                    MainActivity.MAIN_FORECAST_PROJECTION, null, SORT_ORDER);
+            long nanos = System.nanoTime() - startNanos;
+
+            startNanos = System.nanoTime();
+            int activeCount = TestUtilities.load(mResolver,
+                    WeatherEntry.buildWeatherTodayOnwardsUri(),
+                    MainActivity.MAIN_FORECAST_PROJECTION, null, SORT_ORDER);
+            long activeNanos = System.nanoTime() - startNanos;
+
+            assertEquals(FORECAST_DAYS, count);
+            assertEquals(FORECAST_DAYS, activeCount);
+            if (i >= WARMUP_ITERATIONS) {
+                stats.add(nanos);
+                activeStats.add(activeNanos);
+            }
+        }
+        stats.report();
+        activeStats.report();
+    }
+
+    /**
+     * Parks LOCATIONS forecasts in a database whose partitions store floats, as version 11 did,
+     * and in one whose partitions store fixed point, and compares the two files once vacuumed.
+     * Nothing else differs between the two databases.
+     */
+    @Test
+    public void benchmarkPartitionSize() {
+        long floatBytes = storePartitions(FLOAT_DATABASE, false);
+        long fixedBytes = storePartitions(FIXED_DATABASE, true);
+
+        Log.i(TAG, "partition storage, " + LOCATIONS + " locations: float=" + floatBytes
+                + " bytes, fixed=" + fixedBytes + " bytes ("
+                + (100 * fixedBytes / floatBytes) + "%)");
+        assertTrue("Fixed point partitions should take less space than floats",
+                fixedBytes < floatBytes);
+    }
+
+    @Test
+    public void benchmarkLocationSwitch() {
+        LatencyStats stats = new LatencyStats(
+                "location switch, " + LOCATIONS + " locations cycled");
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASURED_ITERATIONS; i++) {
+            ContentValues location = new ContentValues();
+            location.put(LocationEntry.COLUMN_LOCATION_SETTING,
+                    "benchmark-location-" + (i % LOCATIONS));
+
+            long startNanos = System.nanoTime();
+            Uri uri = mResolver.insert(LocationEntry.CONTENT_URI, location);
+            long nanos = System.nanoTime() - startNanos;
+
+            assertNotNull(uri);
+            if (TestUtilities.count(mResolver, WeatherEntry.buildWeatherTodayOnwardsUri()) == 0) {
+                insertForecast();
+            }
+            if (i >= WARMUP_ITERATIONS) stats.add(nanos);
+        }
+        stats.report();
+    }
+
+    /**
+     * Saves inactive locations, each with a forecast parked in its partition.
+     *
+     * @return The _IDs of the locations
+     */
+    private long[] insertParkedLocations(int locations) {
+        long[] ids = new long[locations];
+        mDatabase.beginTransaction();
+        try {
+            for (int i = 0; i < locations; i++) {
+                ContentValues location = new ContentValues();
+                location.put(LocationEntry.COLUMN_LOCATION_SETTING, "benchmark-location-" + i);
+                location.put(LocationEntry.COLUMN_ACTIVE, 0);
+                location.put(LocationEntry.COLUMN_LAST_USED, i);
+                location.put(LocationEntry.COLUMN_LAST_SYNC_TIME, 0);
+                location.put(LocationEntry.COLUMN_LAST_COVERED_DATE, 0);
+                ids[i] = mDatabase.insertOrThrow(LocationEntry.TABLE_NAME, null, location);
+
+                /* A couple of days that have already passed, as a parked forecast would have */
+                for (int day = -2; day < FORECAST_DAYS; day++) {
+                    ContentValues values = TestUtilities.createTestHistoryValues(
+                            mToday + day * DAY);
+                    mDatabase.insertOrThrow(LocationWeatherEntry.TABLE_NAME, null,
+                            WeatherLocations.toPartitionValues(values, ids[i]));
+                }
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+        return ids;
+    }
+
+    /**
+     * @param fixed Whether to keep the partitions of the current schema, or to replace them with
+     *              the float partitions of version 11
+     * @return The size of the database file once the forecasts are parked and the file vacuumed
+     */
+    private long storePartitions(String name, boolean fixed) {
+        mContext.deleteDatabase(name);
+        SQLiteDatabase database = new WeatherDbHelper(mContext, name).getWritableDatabase();
+        try {
+            if (!fixed) {
+                database.execSQL("DROP TABLE " + LocationWeatherEntry.TABLE_NAME);
+                database.execSQL(TestWeatherMigrations.SQL_CREATE_LOCATION_WEATHER_V9);
+            }
+
+            SyntheticWeatherGenerator generator = new SyntheticWeatherGenerator(42);
+            database.beginTransaction();
+            try {
+                for (int i = 0; i < LOCATIONS; i++) {
+                    for (ContentValues day : generator.generateDaily(i, mToday, FORECAST_DAYS)) {
+                        ContentValues values;
+                        if (fixed) {
+                            values = WeatherLocations.toPartitionValues(day, i + 1);
+                        } else {
+                            values = new ContentValues(day);
+                            values.put(LocationWeatherEntry.COLUMN_LOCATION_ID, i + 1);
+                        }
+                        database.insertOrThrow(LocationWeatherEntry.TABLE_NAME, null, values);
+                    }
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+            database.execSQL("VACUUM");
+        } finally {
+            database.close();
+        }
+        return mContext.getDatabasePath(name).length();
+    }
+
+    private void insertForecast() {
+        ContentValues[] values = new ContentValues[FORECAST_DAYS];
+        for (int i = 0; i < FORECAST_DAYS; i++) {
+            values[i] = TestUtilities.createTestHistoryValues(mToday + i * DAY);
+        }
+        mResolver.bulkInsert(WeatherEntry.CONTENT_URI, values);
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.ContentObserver;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.data.WeatherContract.ChangeNotification;
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.utils.PollingCheck;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Verifies that a change to the forecast made of several deletes and inserts is announced once,
+ * whether it is made in a batch or within the debounce window, and that the announcement carries
+ * the dates the change affected.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestNotificationBatcher {
+
+    private static final long DAY = SunshineDateUtils.DAY_IN_MILLIS;
+
+    /* Long enough for any notification still held to have been sent */
+    private static final long SETTLE_MILLIS = 4 * NotificationBatcher.DEBOUNCE_MILLIS;
+
+    private final ContentResolver mResolver =
+            InstrumentationRegistry.getTargetContext().getContentResolver();
+
+    private HandlerThread mObserverThread;
+    private RecordingObserver mObserver;
+    private long mToday;
+
+    /* Records the URIs it is notified with */
+    private static final class RecordingObserver extends ContentObserver {
+
+        private final List<Uri> mUris = new ArrayList<>();
+
+        RecordingObserver(Handler handler) {
+            super(handler);
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            synchronized (mUris) {
+                mUris.add(uri);
+            }
+        }
+
+        List<Uri> getUris() {
+            synchronized (mUris) {
+                return new ArrayList<>(mUris);
+            }
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mResolver.delete(WeatherEntry.CONTENT_URI, null, null);
+        mToday = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+
+        /* Let the delete above be announced before anything is recorded */
+        SystemClock.sleep(SETTLE_MILLIS);
+        mObserverThread = new HandlerThread("NotificationObserverThread");
+        mObserverThread.start();
+        mObserver = new RecordingObserver(new Handler(mObserverThread.getLooper()));
+        mResolver.registerContentObserver(WeatherEntry.CONTENT_URI, true, mObserver);
+    }
+
+    @After
+    public void tearDown() {
+        mResolver.unregisterContentObserver(mObserver);
+        mObserverThread.quit();
+        mResolver.delete(WeatherEntry.CONTENT_URI, null, null);
+    }
+
+    @Test
+    public void testInsertCarriesItsDates() {
+        mResolver.bulkInsert(WeatherEntry.CONTENT_URI,
+                TestUtilities.createTestHistoryDays(mToday + 2 * DAY, 3));
+
+        Uri uri = awaitSingleNotification();
+        assertEquals(mToday + 2 * DAY, ChangeNotification.getChangedStart(uri));
+        assertEquals(mToday + 5 * DAY, ChangeNotification.getChangedEnd(uri));
+    }
+
+    @Test
+    public void testBatchIsAnnouncedOnce() {
+        mResolver.bulkInsert(WeatherEntry.CONTENT_URI,
+                TestUtilities.createTestHistoryDays(mToday - 3 * DAY, 7));
+        awaitSingleNotification();
+
+        ChangeNotification.beginBatch(mResolver);
+        try {
+            mResolver.delete(WeatherEntry.CONTENT_URI, null, null);
+            mResolver.bulkInsert(WeatherEntry.CONTENT_URI,
+                    TestUtilities.createTestHistoryDays(mToday, 14));
+
+            /* Well past the debounce window; nothing is announced until the batch ends */
+            SystemClock.sleep(SETTLE_MILLIS);
+            assertEquals(1, mObserver.getUris().size());
+        } finally {
+            ChangeNotification.endBatch(mResolver);
+        }
+
+        List<Uri> uris = awaitNotifications(2);
+        Uri uri = uris.get(1);
+        assertTrue("The range should cover the deleted days",
+                ChangeNotification.getChangedStart(uri) <= mToday - 3 * DAY);
+        assertTrue("The range should cover the inserted days",
+                ChangeNotification.getChangedEnd(uri) >= mToday + 14 * DAY);
+    }
+
+    @Test
+    public void testChangesWithinDebounceWindowAreAnnouncedOnce() {
+        mResolver.bulkInsert(WeatherEntry.CONTENT_URI,
+                TestUtilities.createTestHistoryDays(mToday, 7));
+        mResolver.delete(WeatherEntry.CONTENT_URI, null, null);
+        mResolver.bulkInsert(WeatherEntry.CONTENT_URI,
+                TestUtilities.createTestHistoryDays(mToday, 14));
+
+        Uri uri = awaitSingleNotification();
+        assertTrue(ChangeNotification.getChangedStart(uri) <= mToday);
+        assertEquals(mToday + 14 * DAY, ChangeNotification.getChangedEnd(uri));
+    }
+
+    /* Switching locations replaces the whole forecast, without saying which dates */
+    @Test
+    public void testChangeWithoutDates() {
+        ContentValues location = new ContentValues();
+        location.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+                "test-notification-location-" + SystemClock.elapsedRealtime());
+        mResolver.insert(WeatherContract.LocationEntry.CONTENT_URI, location);
+
+        SQLiteDatabase database = new WeatherDbHelper(
+                InstrumentationRegistry.getTargetContext()).getWritableDatabase();
+        try {
+            Uri uri = awaitSingleNotification();
+            assertEquals(ChangeNotification.NO_DATES, ChangeNotification.getChangedStart(uri));
+            assertEquals(ChangeNotification.NO_DATES, ChangeNotification.getChangedEnd(uri));
+        } finally {
+            database.delete(WeatherContract.LocationEntry.TABLE_NAME, null, null);
+            database.delete(WeatherContract.LocationWeatherEntry.TABLE_NAME, null, null);
+            database.close();
+        }
+    }
+
+    /* Waits for the first notification, then makes sure no other follows it */
+    private Uri awaitSingleNotification() {
+        List<Uri> uris = awaitNotifications(1);
+        return uris.get(0);
+    }
+
+    private List<Uri> awaitNotifications(final int count) {
+        new PollingCheck(5000) {
+            @Override
+            protected boolean check() {
+                return mObserver.getUris().size() >= count;
+            }
+        }.run();
+        SystemClock.sleep(SETTLE_MILLIS);
+
+        List<Uri> uris = mObserver.getUris();
+        assertEquals("Each change should be announced once: " + uris, count, uris.size());
+        return uris;
+    }
+}
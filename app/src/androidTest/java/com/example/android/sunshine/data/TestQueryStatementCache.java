@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.MainActivity;
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.utils.LatencyStats;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Checks that the today onwards URI selects what the old literal selection did while running the
+ * same SQL every time, and measures repeated loads of the forecast list both ways.
+ * <p>
+ * The literal selection is varied by a millisecond on every load. It still selects the same days,
+ * as dates are normalized, but it is new SQL each time, as it was every time the date the list
+ * was loaded at changed.
+ * <p>
+ * Results are written to logcat under the SunshineBenchmark tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestQueryStatementCache {
+
+    private static final String TAG = "SunshineBenchmark";
+
+    private static final long DAY = SunshineDateUtils.DAY_IN_MILLIS;
+
+    private static final int FORECAST_DAYS = 14;
+
+    private static final int WARMUP_ITERATIONS = 10;
+    private static final int MEASURED_ITERATIONS = 200;
+
+    private static final String SORT_ORDER = WeatherEntry.COLUMN_DATE + " ASC";
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+    private final ContentResolver mResolver = mContext.getContentResolver();
+
+    private long mToday;
+
+    @Before
+    public void setUp() {
+        mResolver.delete(WeatherEntry.CONTENT_URI, null, null);
+        mToday = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+
+        /* Two past days, which neither query must return, and the forecast from today */
+        ContentValues[] days = new ContentValues[FORECAST_DAYS + 2];
+        for (int i = 0; i < days.length; i++) {
+            days[i] = TestUtilities.createTestHistoryValues(mToday + (i - 2) * DAY);
+        }
+        mResolver.bulkInsert(WeatherEntry.CONTENT_URI, days);
+
+        StatementCacheStats.getInstance().takeCounts();
+    }
+
+    @After
+    public void tearDown() {
+        mResolver.delete(WeatherEntry.CONTENT_URI, null, null);
+    }
+
+    @Test
+    public void testTodayOnwardsMatchesLiteralSelection() {
+        assertEquals(FORECAST_DAYS, load(WeatherEntry.buildWeatherTodayOnwardsUri(), null));
+        assertEquals(FORECAST_DAYS, load(WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_DATE + " >= " + mToday));
+    }
+
+    @Test
+    public void testTodayOnwardsReusesStatement() {
+        int loads = 10;
+        for (int i = 0; i < loads; i++) {
+            load(WeatherEntry.buildWeatherTodayOnwardsUri(), null);
+        }
+
+        /* At most the first load compiles the statement, if nothing ran it before */
+        long[] counts = StatementCacheStats.getInstance().takeCounts();
+        assertEquals(loads, counts[StatementCacheStats.INDEX_HITS]
+                + counts[StatementCacheStats.INDEX_MISSES]);
+        assertTrue(counts[StatementCacheStats.INDEX_MISSES] <= 1);
+    }
+
+    @Test
+    public void benchmarkRepeatedLoaderQueries() {
+        LatencyStats literal = new LatencyStats("forecast list load, literal selection");
+        long[] literalCounts = measureLoads(literal, true);
+
+        LatencyStats bound = new LatencyStats("forecast list load, today onwards uri");
+        long[] boundCounts = measureLoads(bound, false);
+
+        literal.report();
+        logCounts(literal, literalCounts);
+        bound.report();
+        logCounts(bound, boundCounts);
+
+        assertEquals(0, boundCounts[StatementCacheStats.INDEX_MISSES]);
+    }
+
+    /**
+     * Loads the forecast list repeatedly, timing the measured loads.
+     *
+     * @param stats   Receives the time of each measured load
+     * @param literal Whether to select with a literal date rather than through the URI
+     * @return The statement cache hits and misses of the measured loads
+     */
+    private long[] measureLoads(LatencyStats stats, boolean literal) {
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASURED_ITERATIONS; i++) {
+            if (i == WARMUP_ITERATIONS) StatementCacheStats.getInstance().takeCounts();
+
+            long startNanos = System.nanoTime();
+            int count = literal
+                    ? load(WeatherEntry.CONTENT_URI,
+                            WeatherEntry.COLUMN_DATE + " >= " + (mToday - i))
+                    : load(WeatherEntry.buildWeatherTodayOnwardsUri(), null);
+            long nanos = System.nanoTime() - startNanos;
+
+            assertEquals(FORECAST_DAYS, count);
+            if (i >= WARMUP_ITERATIONS) stats.add(nanos);
+        }
+        return StatementCacheStats.getInstance().takeCounts();
+    }
+
+    /* Runs the query MainActivity's loader runs and reads every row of it, as the list would */
+    private int load(Uri uri, String selection) {
+        return TestUtilities.load(mResolver, uri, MainActivity.MAIN_FORECAST_PROJECTION,
+                selection, SORT_ORDER);
+    }
+
+    private static void logCounts(LatencyStats stats, long[] counts) {
+        long hits = counts[StatementCacheStats.INDEX_HITS];
+        long misses = counts[StatementCacheStats.INDEX_MISSES];
+        Log.i(TAG, stats.count() + " loads: " + hits + " statement cache hits, "
+                + misses + " misses, hit rate " + (hits * 100 / Math.max(1, hits + misses)) + "%");
+    }
+}
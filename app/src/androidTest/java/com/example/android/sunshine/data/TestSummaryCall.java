@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.data.WeatherContract.SummaryCall;
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.utils.LatencyStats;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * Verifies that the provider's summary call returns the coming days of the forecast and follows
+ * changes to it, and measures it against querying today's row, which is what the notification
+ * did before.
+ * <p>
+ * Results are written to logcat under the SunshineBenchmark tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestSummaryCall {
+
+    private static final long DAY = SunshineDateUtils.DAY_IN_MILLIS;
+
+    private static final int FORECAST_DAYS = 14;
+
+    private static final int WARMUP_ITERATIONS = 50;
+    private static final int MEASURED_ITERATIONS = 1000;
+
+    private static final String[] TODAY_PROJECTION = {
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP
+    };
+
+    private final ContentResolver mResolver =
+            InstrumentationRegistry.getTargetContext().getContentResolver();
+
+    private long mToday;
+
+    @Before
+    public void setUp() {
+        mResolver.delete(WeatherEntry.CONTENT_URI, null, null);
+        mToday = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+    }
+
+    @After
+    public void tearDown() {
+        mResolver.delete(WeatherEntry.CONTENT_URI, null, null);
+    }
+
+    @Test
+    public void testSummaryMatchesForecast() {
+        ContentValues[] forecast = insertForecast(mToday - 2 * DAY, FORECAST_DAYS);
+
+        Bundle summary = SummaryCall.getSummary(mResolver, 3);
+        long[] dates = summary.getLongArray(SummaryCall.KEY_DATES);
+        assertEquals("The days before today should be left out", 3, dates.length);
+        for (int i = 0; i < dates.length; i++) {
+            ContentValues day = forecast[i + 2];
+            assertEquals(mToday + i * DAY, dates[i]);
+            assertEquals((int) day.getAsInteger(WeatherEntry.COLUMN_WEATHER_ID),
+                    summary.getIntArray(SummaryCall.KEY_WEATHER_IDS)[i]);
+            assertEquals(day.getAsDouble(WeatherEntry.COLUMN_MAX_TEMP),
+                    summary.getDoubleArray(SummaryCall.KEY_MAX_TEMPS)[i], 0);
+            assertEquals(day.getAsDouble(WeatherEntry.COLUMN_MIN_TEMP),
+                    summary.getDoubleArray(SummaryCall.KEY_MIN_TEMPS)[i], 0);
+        }
+
+        assertEquals("The summary is cut off at the last day forecast", FORECAST_DAYS - 2,
+                SummaryCall.getSummary(mResolver, 100).getLongArray(SummaryCall.KEY_DATES).length);
+    }
+
+    @Test
+    public void testSummaryFollowsForecastChanges() {
+        insertForecast(mToday, FORECAST_DAYS);
+        double high = SummaryCall.getSummary(mResolver, 1)
+                .getDoubleArray(SummaryCall.KEY_MAX_TEMPS)[0];
+
+        ContentValues today = TestUtilities.createTestHistoryValues(mToday);
+        today.put(WeatherEntry.COLUMN_MAX_TEMP, high + 10);
+        mResolver.bulkInsert(WeatherEntry.CONTENT_URI, new ContentValues[]{today});
+        assertEquals(high + 10, SummaryCall.getSummary(mResolver, 1)
+                .getDoubleArray(SummaryCall.KEY_MAX_TEMPS)[0], 0);
+
+        mResolver.delete(WeatherEntry.CONTENT_URI, null, null);
+        assertEquals(0, SummaryCall.getSummary(mResolver, 1)
+                .getLongArray(SummaryCall.KEY_DATES).length);
+    }
+
+    @Test
+    public void testSummaryWithoutToday() {
+        insertForecast(mToday + DAY, 2);
+
+        long[] dates = SummaryCall.getSummary(mResolver, 1).getLongArray(SummaryCall.KEY_DATES);
+        assertEquals(1, dates.length);
+        assertEquals("The first day is tomorrow's", mToday + DAY, dates[0]);
+    }
+
+    /* Callers that skip SummaryCall#getSummary are held to the same number of days */
+    @Test
+    public void testSummaryRejectsBadDays() {
+        insertForecast(mToday, FORECAST_DAYS);
+
+        for (String days : new String[]{"0", "-1", "seven", ""}) {
+            try {
+                mResolver.call(WeatherEntry.CONTENT_URI, SummaryCall.METHOD_GET_SUMMARY, days,
+                        null);
+                fail("A summary of \"" + days + "\" days should be rejected");
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    /**
+     * Reads today's weather id, high and low MEASURED_ITERATIONS times, through a query of today's
+     * row, and through the summary call.
+     */
+    @Test
+    public void benchmarkTodaySummary() {
+        insertForecast(mToday, FORECAST_DAYS);
+        Uri todayUri = WeatherEntry.buildWeatherUriWithDate(mToday);
+
+        LatencyStats queryStats = new LatencyStats("today summary, query and cursor");
+        LatencyStats callStats = new LatencyStats("today summary, provider call");
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASURED_ITERATIONS; i++) {
+            long startNanos = System.nanoTime();
+            double queried = queryTodayHigh(todayUri);
+            long queryNanos = System.nanoTime() - startNanos;
+
+            startNanos = System.nanoTime();
+            double called = SummaryCall.getSummary(mResolver, 1)
+                    .getDoubleArray(SummaryCall.KEY_MAX_TEMPS)[0];
+            long callNanos = System.nanoTime() - startNanos;
+
+            assertEquals(queried, called, 0);
+            if (i >= WARMUP_ITERATIONS) {
+                queryStats.add(queryNanos);
+                callStats.add(callNanos);
+            }
+        }
+        queryStats.report();
+        callStats.report();
+    }
+
+    private double queryTodayHigh(Uri todayUri) {
+        Cursor cursor = mResolver.query(todayUri, TODAY_PROJECTION, null, null, null);
+        assertNotNull(cursor);
+        try {
+            assertTrue(cursor.moveToFirst());
+            cursor.getInt(0);
+            cursor.getDouble(2);
+            return cursor.getDouble(1);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private ContentValues[] insertForecast(long first, int days) {
+        ContentValues[] forecast = new ContentValues[days];
+        for (int i = 0; i < days; i++) {
+            forecast[i] = TestUtilities.createTestHistoryValues(first + i * DAY);
+        }
+        assertEquals(days, mResolver.bulkInsert(WeatherEntry.CONTENT_URI, forecast));
+        return forecast;
+    }
+}
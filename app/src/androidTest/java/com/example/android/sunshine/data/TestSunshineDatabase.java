@@ -193,7 +193,7 @@ public class TestSunshineDatabase {
 
     @Test
     public void testDatabaseVersionWasIncremented() {
-        int expectedDatabaseVersion = 3;
+        int expectedDatabaseVersion = 12;
         String databaseVersionShouldBe1 = "Database version should be "
                 + expectedDatabaseVersion + " but isn't."
                 + "\n Database version: ";
@@ -382,9 +382,10 @@ public class TestSunshineDatabase {
     }
 
     /**
-     * This method tests the {@link WeatherDbHelper#onUpgrade(SQLiteDatabase, int, int)}. The proper
-     * behavior for this method in our case is to simply DROP (or delete) the weather table from
-     * the database and then have the table recreated.
+     * This method tests the {@link WeatherDbHelper#onUpgrade(SQLiteDatabase, int, int)} from a
+     * version it has no migration steps for. The proper behavior in that case is to DROP (or
+     * delete) the weather table from the database and then have the table recreated. Upgrades
+     * along the migration steps are covered by TestWeatherMigrations.
      */
     @Test
     public void testOnUpgradeBehavesCorrectly() {
@@ -456,6 +457,15 @@ public class TestSunshineDatabase {
 
         /* Here, we add the name of our only table in this particular database */
         tableNameHashSet.add(REFLECTED_TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.SyncMetricsEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.HistoryEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.RollupEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.StatsEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.MigrationEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.LocationEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.LocationWeatherEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.HourlyEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.ArchiveEntry.TABLE_NAME);
         /* Students, here is where you would add any other table names if you had them */
 //        tableNameHashSet.add(MyAwesomeSuperCoolTableName);
 //        tableNameHashSet.add(MyOtherCoolTableNameThatContainsOtherCoolData);
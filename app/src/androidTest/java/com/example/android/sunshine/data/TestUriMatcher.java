@@ -19,6 +19,8 @@ import android.content.UriMatcher;
 import android.net.Uri;
 import android.support.test.runner.AndroidJUnit4;
 
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -101,5 +103,52 @@ public class TestUriMatcher {
         assertEquals(weatherWithDateUriCodeDoesNotMatch,
                 expectedWeatherWithDateCode,
                 actualWeatherWithDateCode);
+
+        /* The range URIs match their own codes, and nothing else */
+        long start = TestUtilities.DATE_NORMALIZED;
+        long end = start + 7 * SunshineDateUtils.DAY_IN_MILLIS;
+        assertEquals(WeatherProvider.CODE_WEATHER_TODAY_ONWARDS, testMatcher.match(
+                WeatherContract.WeatherEntry.buildWeatherTodayOnwardsUri()));
+        assertEquals(WeatherProvider.CODE_WEATHER_RANGE, testMatcher.match(
+                WeatherContract.WeatherEntry.buildWeatherRangeUri(start, end)));
+        assertEquals(WeatherProvider.CODE_HISTORY, testMatcher.match(
+                WeatherContract.HistoryEntry.CONTENT_URI));
+        assertEquals(WeatherProvider.CODE_HISTORY_RANGE, testMatcher.match(
+                WeatherContract.HistoryEntry.buildHistoryRangeUri(start, end)));
+        assertEquals(WeatherProvider.CODE_HISTORY_ROLLUP, testMatcher.match(
+                WeatherContract.RollupEntry.CONTENT_URI));
+        assertEquals(WeatherProvider.CODE_HISTORY_ROLLUP_RANGE, testMatcher.match(
+                WeatherContract.RollupEntry.buildRollupRangeUri(
+                        WeatherContract.RollupEntry.PERIOD_MONTH, start, end)));
+
+        assertEquals(WeatherProvider.CODE_STATS, testMatcher.match(
+                WeatherContract.StatsEntry.CONTENT_URI));
+        assertEquals(WeatherProvider.CODE_STATS_SUMMARY, testMatcher.match(
+                WeatherContract.StatsEntry.buildSummaryUri(
+                        WeatherContract.StatsEntry.SOURCE_FORECAST)));
+        assertEquals(WeatherProvider.CODE_STATS_WEEK, testMatcher.match(
+                WeatherContract.StatsEntry.buildWeekUri(
+                        WeatherContract.StatsEntry.SOURCE_HISTORY,
+                        SunshineDateUtils.getWeekStart(start))));
+
+        assertEquals(WeatherProvider.CODE_SCHEMA_MIGRATIONS, testMatcher.match(
+                WeatherContract.MigrationEntry.CONTENT_URI));
+
+        assertEquals(WeatherProvider.CODE_LOCATION, testMatcher.match(
+                WeatherContract.LocationEntry.CONTENT_URI));
+        assertEquals(WeatherProvider.CODE_LOCATION_WITH_ID, testMatcher.match(
+                WeatherContract.LocationEntry.buildLocationUri(1)));
+        assertEquals(WeatherProvider.CODE_LOCATION_WEATHER, testMatcher.match(
+                WeatherContract.LocationEntry.buildLocationWeatherUri(1)));
+        assertEquals(WeatherProvider.CODE_LOCATION_WEATHER_TODAY_ONWARDS, testMatcher.match(
+                WeatherContract.LocationEntry.buildLocationTodayOnwardsUri(1)));
+
+        assertEquals(WeatherProvider.CODE_HOURLY, testMatcher.match(
+                WeatherContract.HourlyEntry.CONTENT_URI));
+        assertEquals(WeatherProvider.CODE_HOURLY_RANGE, testMatcher.match(
+                WeatherContract.HourlyEntry.buildHourlyRangeUri(start,
+                        start + SunshineDateUtils.DAY_IN_MILLIS)));
+        assertEquals(WeatherProvider.CODE_HOURLY_NEXT, testMatcher.match(
+                WeatherContract.HourlyEntry.buildHourlyNextUri(24)));
     }
 }
@@ -15,13 +15,23 @@
  */
 package com.example.android.sunshine.data;
 
+import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
 import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.preference.PreferenceManager;
 
+import com.example.android.sunshine.R;
+import com.example.android.sunshine.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.data.WeatherContract.LocationWeatherEntry;
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
 import com.example.android.sunshine.utilities.SunshineDateUtils;
 import com.example.android.sunshine.utils.PollingCheck;
 
@@ -52,7 +62,7 @@ import static junit.framework.Assert.assertTrue;
  * NOTE: If your WeatherContract class doesn't exactly match ours, THIS WILL NOT WORK as we've
  * provided and you will need to make changes to this code to use it to pass your tests.
  */
-class TestUtilities {
+public class TestUtilities {
 
     /* October 1st, 2016 at midnight, GMT time */
     static final long DATE_NORMALIZED = 1475280000000L;
@@ -172,6 +182,139 @@ class TestUtilities {
         return bulkTestWeatherValues;
     }
 
+    /**
+     * Creates a day of weather whose values vary from day to day but only depend on the date,
+     * so that aggregates over any range of such days can be recomputed independently.
+     *
+     * @param date Normalized date of the day
+     * @return ContentValues that can be inserted into the weather or history table
+     */
+    static ContentValues createTestHistoryValues(long date) {
+        long day = date / SunshineDateUtils.DAY_IN_MILLIS;
+        double min = -5 + day % 23;
+
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_DATE, date);
+        values.put(COLUMN_WEATHER_ID, 800 + (int) (day % 5));
+        values.put(COLUMN_MIN_TEMP, min);
+        values.put(COLUMN_MAX_TEMP, min + 3 + day % 7);
+        values.put(COLUMN_HUMIDITY, 40.0 + day % 50);
+        values.put(COLUMN_PRESSURE, 990.0 + day % 40);
+        values.put(COLUMN_WIND_SPEED, 0.5 * (day % 11));
+        values.put(COLUMN_DEGREES, (double) (day % 360));
+        return values;
+    }
+
+    /**
+     * Writes one row per day straight into the history table, bypassing the provider.
+     *
+     * @param database  The database to write to
+     * @param firstDate Normalized date of the first day
+     * @param days      Number of consecutive days to write
+     */
+    static void insertTestHistory(SQLiteDatabase database, long firstDate, int days) {
+        database.beginTransaction();
+        try {
+            for (int i = 0; i < days; i++) {
+                database.insert(WeatherContract.HistoryEntry.TABLE_NAME, null,
+                        createTestHistoryValues(firstDate + i * SunshineDateUtils.DAY_IN_MILLIS));
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * @param firstDate Normalized date of the first day
+     * @param days      Number of consecutive days
+     * @return One {@link #createTestHistoryValues(long)} day per date, in order
+     */
+    static ContentValues[] createTestHistoryDays(long firstDate, int days) {
+        ContentValues[] values = new ContentValues[days];
+        for (int i = 0; i < days; i++) {
+            values[i] = createTestHistoryValues(firstDate + i * SunshineDateUtils.DAY_IN_MILLIS);
+        }
+        return values;
+    }
+
+    /**
+     * @return The number of rows a query of the whole URI returns
+     */
+    static int count(ContentResolver resolver, Uri uri) {
+        return count(resolver, uri, null);
+    }
+
+    /**
+     * @return The number of rows a query of the URI returns, with the selection given
+     */
+    static int count(ContentResolver resolver, Uri uri, String selection,
+            String... selectionArgs) {
+        Cursor cursor = resolver.query(uri, null, selection,
+                selection == null ? null : selectionArgs, null);
+        assertNotNull(cursor);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return The number of rows in a table, counted straight from the database
+     */
+    static int count(SQLiteDatabase database, String table) {
+        return (int) DatabaseUtils.queryNumEntries(database, table);
+    }
+
+    /**
+     * Runs a query and reads every row of it, as a list would. The first column is read from
+     * each row, so the projection should start with what the list reads first.
+     *
+     * @return The number of rows
+     */
+    static int load(ContentResolver resolver, Uri uri, String[] projection, String selection,
+            String sortOrder) {
+        Cursor cursor = resolver.query(uri, projection, selection, null, sortOrder);
+        assertNotNull(cursor);
+        try {
+            int count = 0;
+            while (cursor.moveToNext()) {
+                cursor.getLong(0);
+                count++;
+            }
+            return count;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public static SharedPreferences getSharedPreferences(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context);
+    }
+
+    /**
+     * Turns archiving of past forecast days into the history on or off. Tests that call this
+     * should put back the setting they found.
+     */
+    static void setArchiveEnabled(Context context, boolean enabled) {
+        getSharedPreferences(context).edit()
+                .putBoolean(context.getString(R.string.pref_archive_history_key), enabled)
+                .commit();
+    }
+
+    /**
+     * Deletes every saved location with its parked forecast, and the active forecast through
+     * the provider.
+     *
+     * @param database The database to delete the locations from
+     * @param resolver Used to delete the active forecast
+     */
+    public static void clearLocations(SQLiteDatabase database, ContentResolver resolver) {
+        database.delete(LocationEntry.TABLE_NAME, null, null);
+        database.delete(LocationWeatherEntry.TABLE_NAME, null, null);
+        resolver.delete(WeatherEntry.CONTENT_URI, null, null);
+    }
 
     static TestContentObserver getTestContentObserver() {
         return TestContentObserver.getTestContentObserver();
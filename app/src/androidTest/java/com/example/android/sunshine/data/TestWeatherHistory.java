@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.R;
+import com.example.android.sunshine.data.WeatherContract.ArchiveEntry;
+import com.example.android.sunshine.data.WeatherContract.HistoryEntry;
+import com.example.android.sunshine.data.WeatherContract.RollupEntry;
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Calendar;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Verifies that past days are archived instead of deleted, that range URIs select exactly their
+ * range, and that compaction rolls old days up into weekly and monthly rows that match a
+ * recomputation from the original days.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestWeatherHistory {
+
+    private static final long DAY = SunshineDateUtils.DAY_IN_MILLIS;
+
+    private static final double DELTA = 1e-6;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+    private final ContentResolver mResolver = mContext.getContentResolver();
+
+    private SQLiteDatabase mDatabase;
+    private long mToday;
+
+    private String mArchiveKey;
+    private Boolean mSavedArchive;
+
+    @Before
+    public void setUp() {
+        mDatabase = new WeatherDbHelper(mContext).getWritableDatabase();
+        mDatabase.delete(WeatherEntry.TABLE_NAME, null, null);
+        mDatabase.delete(HistoryEntry.TABLE_NAME, null, null);
+        mDatabase.delete(RollupEntry.TABLE_NAME, null, null);
+        mDatabase.delete(ArchiveEntry.TABLE_NAME, null, null);
+        mToday = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+
+        mArchiveKey = mContext.getString(R.string.pref_archive_history_key);
+        SharedPreferences sp = TestUtilities.getSharedPreferences(mContext);
+        mSavedArchive = sp.contains(mArchiveKey) ? sp.getBoolean(mArchiveKey, true) : null;
+    }
+
+    @After
+    public void tearDown() {
+        SharedPreferences.Editor editor = TestUtilities.getSharedPreferences(mContext).edit();
+        if (mSavedArchive == null) {
+            editor.remove(mArchiveKey);
+        } else {
+            editor.putBoolean(mArchiveKey, mSavedArchive);
+        }
+        editor.commit();
+
+        mDatabase.delete(HistoryEntry.TABLE_NAME, null, null);
+        mDatabase.delete(RollupEntry.TABLE_NAME, null, null);
+        mDatabase.delete(ArchiveEntry.TABLE_NAME, null, null);
+        mDatabase.close();
+    }
+
+    @Test
+    public void testDeleteArchivesPastDays() {
+        TestUtilities.setArchiveEnabled(mContext, true);
+        mResolver.bulkInsert(WeatherEntry.CONTENT_URI,
+                TestUtilities.createTestHistoryDays(mToday - 3 * DAY, 7));
+
+        int deleted = mResolver.delete(WeatherEntry.CONTENT_URI, null, null);
+        assertEquals(7, deleted);
+
+        Cursor history = mResolver.query(HistoryEntry.CONTENT_URI, null, null, null,
+                HistoryEntry.COLUMN_DATE);
+        assertNotNull(history);
+        try {
+            assertEquals("Only the days before today should be archived", 3, history.getCount());
+            for (int i = 0; history.moveToNext(); i++) {
+                TestUtilities.validateCurrentRecord("Archived day differs from the forecast",
+                        history, TestUtilities.createTestHistoryValues(mToday - (3 - i) * DAY));
+            }
+        } finally {
+            history.close();
+        }
+    }
+
+    @Test
+    public void testDeleteWithoutArchiveDiscardsPastDays() {
+        TestUtilities.setArchiveEnabled(mContext, false);
+        mResolver.bulkInsert(WeatherEntry.CONTENT_URI,
+                TestUtilities.createTestHistoryDays(mToday - 3 * DAY, 7));
+
+        mResolver.delete(WeatherEntry.CONTENT_URI, null, null);
+
+        assertEquals(0, TestUtilities.count(mResolver, HistoryEntry.CONTENT_URI));
+    }
+
+    @Test
+    public void testRangeSelectsHalfOpenRange() {
+        long first = mToday - 30 * DAY;
+        TestUtilities.insertTestHistory(mDatabase, first, 30);
+
+        Cursor range = mResolver.query(
+                HistoryEntry.buildHistoryRangeUri(first + 5 * DAY, first + 15 * DAY),
+                new String[]{HistoryEntry.COLUMN_DATE},
+                null,
+                null,
+                HistoryEntry.COLUMN_DATE);
+        assertNotNull(range);
+        try {
+            assertEquals(10, range.getCount());
+            for (int i = 0; range.moveToNext(); i++) {
+                assertEquals(first + (5 + i) * DAY, range.getLong(0));
+            }
+        } finally {
+            range.close();
+        }
+
+        /* The caller's own selection still applies within the range */
+        int weatherId = TestUtilities.createTestHistoryValues(first + 5 * DAY)
+                .getAsInteger(HistoryEntry.COLUMN_WEATHER_ID);
+        Cursor filtered = mResolver.query(
+                HistoryEntry.buildHistoryRangeUri(first + 5 * DAY, first + 15 * DAY),
+                null,
+                HistoryEntry.COLUMN_WEATHER_ID + " = ?",
+                new String[]{Integer.toString(weatherId)},
+                null);
+        assertNotNull(filtered);
+        try {
+            assertEquals("Every fifth day has the same weather id", 2, filtered.getCount());
+        } finally {
+            filtered.close();
+        }
+    }
+
+    @Test
+    public void testRangeIsServedByIndex() {
+        Cursor plan = mDatabase.rawQuery("EXPLAIN QUERY PLAN SELECT * FROM "
+                + HistoryEntry.TABLE_NAME + " WHERE " + HistoryEntry.COLUMN_DATE + " >= ? AND "
+                + HistoryEntry.COLUMN_DATE + " < ?", new String[]{"0", "1"});
+        try {
+            StringBuilder detail = new StringBuilder();
+            while (plan.moveToNext()) {
+                detail.append(plan.getString(plan.getColumnCount() - 1));
+            }
+            assertTrue("Range query scans the table: " + detail,
+                    detail.toString().contains("INDEX"));
+        } finally {
+            plan.close();
+        }
+    }
+
+    @Test
+    public void testCompactionMatchesRecomputation() {
+        long first = mToday - 400 * DAY;
+        TestUtilities.insertTestHistory(mDatabase, first, 400);
+
+        WeatherArchive.compact(mDatabase, mToday, 0);
+
+        long dailyCutoff = WeatherArchive.getDailyCutoff(mToday);
+        assertEquals("Days after the cutoff should stay daily",
+                (mToday - dailyCutoff) / DAY, TestUtilities.count(mResolver,
+                        HistoryEntry.CONTENT_URI));
+
+        Map<Long, double[]> months = recompute(first, dailyCutoff, false);
+        assertRollups(RollupEntry.PERIOD_MONTH, months);
+
+        /* Weekly roll-ups that ended more than WEEKLY_DAYS ago were dropped */
+        Map<Long, double[]> weeks = recompute(first, dailyCutoff, true);
+        long weeklyCutoff = mToday - RollupEntry.WEEKLY_DAYS * DAY;
+        for (Long start : weeks.keySet().toArray(new Long[weeks.size()])) {
+            if (start + 7 * DAY <= weeklyCutoff) weeks.remove(start);
+        }
+        assertRollups(RollupEntry.PERIOD_WEEK, weeks);
+    }
+
+    @Test
+    public void testRepeatedCompactionMergesRollups() {
+        long first = mToday - 200 * DAY;
+        TestUtilities.insertTestHistory(mDatabase, first, 200);
+
+        /* Compacting two weeks apart splits at least one month between the two passes */
+        WeatherArchive.compact(mDatabase, mToday - 14 * DAY, 0);
+        WeatherArchive.compact(mDatabase, mToday, 0);
+
+        long dailyCutoff = WeatherArchive.getDailyCutoff(mToday);
+        assertRollups(RollupEntry.PERIOD_MONTH, recompute(first, dailyCutoff, false));
+        assertRollups(RollupEntry.PERIOD_WEEK, recompute(first, dailyCutoff, true));
+    }
+
+    @Test
+    public void testRetentionDropsOldHistory() {
+        TestUtilities.insertTestHistory(mDatabase, mToday - 800 * DAY, 800);
+
+        WeatherArchive.compact(mDatabase, mToday, 365);
+
+        String retentionCutoff = Long.toString(mToday - 365 * DAY);
+        assertEquals(0, TestUtilities.count(mResolver, HistoryEntry.CONTENT_URI,
+                HistoryEntry.COLUMN_DATE + " < ?", retentionCutoff));
+        assertEquals(0, TestUtilities.count(mResolver, RollupEntry.CONTENT_URI,
+                RollupEntry.COLUMN_PERIOD_END + " <= ?", retentionCutoff));
+        assertFalse("Monthly roll-ups within the retention should be kept",
+                TestUtilities.count(mResolver, RollupEntry.CONTENT_URI,
+                        RollupEntry.COLUMN_PERIOD + " = ?",
+                        RollupEntry.PERIOD_MONTH) == 0);
+    }
+
+    /**
+     * Recomputes the roll-ups of the days from first up to the cutoff from the generated values.
+     *
+     * @return For each period start, the day count, min, max and average humidity, pressure and
+     * wind speed
+     */
+    private static Map<Long, double[]> recompute(long first, long cutoff, boolean weekly) {
+        Map<Long, double[]> rollups = new TreeMap<>();
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+
+        for (long date = first; date < cutoff; date += DAY) {
+            long start;
+            if (weekly) {
+                start = SunshineDateUtils.getWeekStart(date);
+            } else {
+                calendar.setTimeInMillis(date);
+                calendar.set(Calendar.DAY_OF_MONTH, 1);
+                start = calendar.getTimeInMillis();
+            }
+
+            ContentValues day = TestUtilities.createTestHistoryValues(date);
+            double[] rollup = rollups.get(start);
+            if (rollup == null) {
+                rollup = new double[]{0, Double.MAX_VALUE, -Double.MAX_VALUE, 0, 0, 0};
+                rollups.put(start, rollup);
+            }
+            rollup[0]++;
+            rollup[1] = Math.min(rollup[1], day.getAsDouble(HistoryEntry.COLUMN_MIN_TEMP));
+            rollup[2] = Math.max(rollup[2], day.getAsDouble(HistoryEntry.COLUMN_MAX_TEMP));
+            rollup[3] += day.getAsDouble(HistoryEntry.COLUMN_HUMIDITY);
+            rollup[4] += day.getAsDouble(HistoryEntry.COLUMN_PRESSURE);
+            rollup[5] += day.getAsDouble(HistoryEntry.COLUMN_WIND_SPEED);
+        }
+
+        for (double[] rollup : rollups.values()) {
+            rollup[3] /= rollup[0];
+            rollup[4] /= rollup[0];
+            rollup[5] /= rollup[0];
+        }
+        return rollups;
+    }
+
+    private void assertRollups(String period, Map<Long, double[]> expected) {
+        Cursor cursor = mResolver.query(
+                RollupEntry.CONTENT_URI,
+                new String[]{
+                        RollupEntry.COLUMN_PERIOD_START,
+                        RollupEntry.COLUMN_DAY_COUNT,
+                        RollupEntry.COLUMN_MIN_TEMP,
+                        RollupEntry.COLUMN_MAX_TEMP,
+                        RollupEntry.COLUMN_HUMIDITY,
+                        RollupEntry.COLUMN_PRESSURE,
+                        RollupEntry.COLUMN_WIND_SPEED},
+                RollupEntry.COLUMN_PERIOD + " = ?",
+                new String[]{period},
+                RollupEntry.COLUMN_PERIOD_START);
+        assertNotNull(cursor);
+        try {
+            assertEquals("Wrong number of " + period + " roll-ups", expected.size(),
+                    cursor.getCount());
+            while (cursor.moveToNext()) {
+                double[] rollup = expected.get(cursor.getLong(0));
+                assertNotNull("Unexpected " + period + " starting " + cursor.getLong(0), rollup);
+                assertEquals((int) rollup[0], cursor.getInt(1));
+                for (int i = 1; i < rollup.length; i++) {
+                    assertEquals(rollup[i], cursor.getDouble(i + 1), DELTA);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.data.WeatherContract.LocationWeatherEntry;
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Verifies that switching between saved locations parks and restores each location's forecast,
+ * that the location scoped URIs read the right partition, and that only the most recently used
+ * locations are kept.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestWeatherLocations {
+
+    private static final long DAY = SunshineDateUtils.DAY_IN_MILLIS;
+
+    private static final String LOCATION_A = "test-location-a";
+    private static final String LOCATION_B = "test-location-b";
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+    private final ContentResolver mResolver = mContext.getContentResolver();
+
+    private SQLiteDatabase mDatabase;
+    private long mToday;
+
+    @Before
+    public void setUp() {
+        mDatabase = new WeatherDbHelper(mContext).getWritableDatabase();
+        TestUtilities.clearLocations(mDatabase, mResolver);
+        mToday = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+    }
+
+    @After
+    public void tearDown() {
+        TestUtilities.clearLocations(mDatabase, mResolver);
+        mDatabase.close();
+    }
+
+    @Test
+    public void testSwitchParksAndRestoresForecast() {
+        long a = switchTo(LOCATION_A);
+        insertForecast(mToday, 10);
+
+        long b = switchTo(LOCATION_B);
+        assertTrue(a != b);
+        assertEquals("A new location starts without a forecast",
+                0, TestUtilities.count(mResolver, WeatherEntry.CONTENT_URI));
+        insertForecast(mToday, 5);
+
+        assertEquals(a, switchTo(LOCATION_A));
+        assertEquals(10, TestUtilities.count(mResolver, WeatherEntry.CONTENT_URI));
+        assertEquals("The restored partition should be emptied",
+                0, countPartition(a));
+        assertEquals(5, countPartition(b));
+    }
+
+    @Test
+    public void testSwitchingToActiveLocationKeepsForecast() {
+        long a = switchTo(LOCATION_A);
+        insertForecast(mToday, 10);
+
+        assertEquals(a, switchTo(LOCATION_A));
+        assertEquals(10, TestUtilities.count(mResolver, WeatherEntry.CONTENT_URI));
+        assertEquals(0, countPartition(a));
+    }
+
+    @Test
+    public void testRestoreDropsPastDays() {
+        long a = switchTo(LOCATION_A);
+        insertForecast(mToday - 2 * DAY, 12);
+        switchTo(LOCATION_B);
+
+        assertEquals(12, countPartition(a));
+        switchTo(LOCATION_A);
+        assertEquals(10, TestUtilities.count(mResolver, WeatherEntry.CONTENT_URI));
+    }
+
+    @Test
+    public void testLocationUrisReadEachPartition() {
+        long a = switchTo(LOCATION_A);
+        insertForecast(mToday - 2 * DAY, 12);
+        long b = switchTo(LOCATION_B);
+        insertForecast(mToday, 5);
+
+        /* B is active and read from the weather table, A is parked */
+        assertEquals(5, TestUtilities.count(mResolver, LocationEntry.buildLocationWeatherUri(b)));
+        assertEquals(5,
+                TestUtilities.count(mResolver, LocationEntry.buildLocationTodayOnwardsUri(b)));
+        assertEquals(12, TestUtilities.count(mResolver, LocationEntry.buildLocationWeatherUri(a)));
+        assertEquals(10,
+                TestUtilities.count(mResolver, LocationEntry.buildLocationTodayOnwardsUri(a)));
+    }
+
+    @Test
+    public void testParkedForecastIsKeptInFixedPoint() {
+        long a = switchTo(LOCATION_A);
+        ContentValues[] days = new ContentValues[5];
+        for (int i = 0; i < days.length; i++) {
+            days[i] = TestUtilities.createTestHistoryValues(mToday + i * DAY);
+        }
+        days[0].put(WeatherEntry.COLUMN_MIN_TEMP, 12.34);
+        days[0].put(WeatherEntry.COLUMN_HUMIDITY, 55.5);
+        days[0].put(WeatherEntry.COLUMN_PRESSURE, 1013.25);
+        mResolver.bulkInsert(WeatherEntry.CONTENT_URI, days);
+        switchTo(LOCATION_B);
+
+        /* Parking keeps every value as it was synced, as does writing through the URI */
+        ContentValues added = TestUtilities.createTestHistoryValues(mToday + 5 * DAY);
+        added.put(WeatherEntry.COLUMN_WIND_SPEED, 3.66);
+        added.put(WeatherEntry.COLUMN_DEGREES, 247.5);
+        assertNotNull(mResolver.insert(LocationEntry.buildLocationWeatherUri(a), added));
+
+        ContentValues[] expected = new ContentValues[days.length + 1];
+        System.arraycopy(days, 0, expected, 0, days.length);
+        expected[days.length] = added;
+
+        assertForecast(LocationEntry.buildLocationWeatherUri(a), expected);
+        switchTo(LOCATION_A);
+        assertForecast(WeatherEntry.CONTENT_URI, expected);
+    }
+
+    /* Parked forecasts are selected and sorted by the same names as the active one */
+    @Test
+    public void testParkedForecastSelectsByValue() {
+        long a = switchTo(LOCATION_A);
+        insertForecast(mToday, 10);
+        switchTo(LOCATION_B);
+        Uri uri = LocationEntry.buildLocationWeatherUri(a);
+
+        ContentValues[] days = new ContentValues[10];
+        for (int i = 0; i < days.length; i++) {
+            days[i] = TestUtilities.createTestHistoryValues(mToday + i * DAY);
+        }
+        double threshold = days[0].getAsDouble(WeatherEntry.COLUMN_MAX_TEMP);
+        int warmer = 0;
+        for (ContentValues day : days) {
+            if (day.getAsDouble(WeatherEntry.COLUMN_MAX_TEMP) > threshold) warmer++;
+        }
+
+        String selection = WeatherEntry.COLUMN_MAX_TEMP + " > ?";
+        String[] selectionArgs = {Double.toString(threshold)};
+        Cursor cursor = mResolver.query(uri, new String[]{WeatherEntry.COLUMN_DATE},
+                selection, selectionArgs, WeatherEntry.COLUMN_MIN_TEMP + " DESC, "
+                        + WeatherEntry.COLUMN_DATE);
+        assertNotNull(cursor);
+        try {
+            assertEquals(warmer, cursor.getCount());
+            double previousMin = Double.MAX_VALUE;
+            while (cursor.moveToNext()) {
+                int i = (int) ((cursor.getLong(0) - mToday) / DAY);
+                double min = days[i].getAsDouble(WeatherEntry.COLUMN_MIN_TEMP);
+                assertTrue(days[i].getAsDouble(WeatherEntry.COLUMN_MAX_TEMP) > threshold);
+                assertTrue(min <= previousMin);
+                previousMin = min;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        assertEquals(warmer, mResolver.delete(uri, selection, selectionArgs));
+        assertEquals(days.length - warmer, countPartition(a));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedLocationsEvicted() {
+        int extra = 2;
+        long[] ids = new long[LocationEntry.MAX_LOCATIONS + extra];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = switchTo("test-location-" + i);
+            insertForecast(mToday, 3);
+        }
+
+        assertEquals(LocationEntry.MAX_LOCATIONS,
+                TestUtilities.count(mResolver, LocationEntry.CONTENT_URI));
+        for (int i = 0; i < ids.length; i++) {
+            boolean kept = TestUtilities.count(mResolver,
+                    LocationEntry.buildLocationUri(ids[i])) == 1;
+            assertEquals("Location " + i, i >= extra, kept);
+            if (!kept) {
+                assertEquals("An evicted location's forecast should be deleted",
+                        0, countPartition(ids[i]));
+            }
+        }
+
+        /* Using a location again moves it to the front */
+        switchTo("test-location-" + extra);
+        switchTo("test-location-new");
+        assertEquals(1, TestUtilities.count(mResolver, LocationEntry.buildLocationUri(ids[extra])));
+        assertEquals(0,
+                TestUtilities.count(mResolver, LocationEntry.buildLocationUri(ids[extra + 1])));
+    }
+
+    @Test
+    public void testActiveLocationIsNotDeleted() {
+        long a = switchTo(LOCATION_A);
+        insertForecast(mToday, 4);
+        long b = switchTo(LOCATION_B);
+
+        assertEquals(0, mResolver.delete(LocationEntry.buildLocationUri(b), null, null));
+        assertEquals(1, mResolver.delete(LocationEntry.buildLocationUri(a), null, null));
+        assertEquals(0, countPartition(a));
+        assertEquals(1, TestUtilities.count(mResolver, LocationEntry.CONTENT_URI));
+    }
+
+    @Test
+    public void testActiveFlagFollowsSwitch() {
+        long a = switchTo(LOCATION_A);
+        long b = switchTo(LOCATION_B);
+
+        assertFalse(isActive(a));
+        assertTrue(isActive(b));
+        assertEquals(b, WeatherLocations.getActiveId(mDatabase));
+    }
+
+    private long switchTo(String locationSetting) {
+        ContentValues values = new ContentValues();
+        values.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        Uri uri = mResolver.insert(LocationEntry.CONTENT_URI, values);
+        assertNotNull(uri);
+        return ContentUris.parseId(uri);
+    }
+
+    private void insertForecast(long firstDate, int days) {
+        assertEquals(days, mResolver.bulkInsert(WeatherEntry.CONTENT_URI,
+                TestUtilities.createTestHistoryDays(firstDate, days)));
+    }
+
+    private void assertForecast(Uri uri, ContentValues[] expected) {
+        Cursor cursor = mResolver.query(uri, null, null, null, WeatherEntry.COLUMN_DATE);
+        assertNotNull(cursor);
+        try {
+            assertEquals(expected.length, cursor.getCount());
+            for (int i = 0; cursor.moveToNext(); i++) {
+                TestUtilities.validateCurrentRecord("Day " + i + " of " + uri, cursor,
+                        expected[i]);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long countPartition(long id) {
+        return DatabaseUtils.queryNumEntries(mDatabase, LocationWeatherEntry.TABLE_NAME,
+                LocationWeatherEntry.COLUMN_LOCATION_ID + " = ?",
+                new String[]{Long.toString(id)});
+    }
+
+    private boolean isActive(long id) {
+        return DatabaseUtils.longForQuery(mDatabase,
+                "SELECT " + LocationEntry.COLUMN_ACTIVE + " FROM " + LocationEntry.TABLE_NAME
+                        + " WHERE " + LocationEntry._ID + " = ?",
+                new String[]{Long.toString(id)}) == 1;
+    }
+}
@@ -0,0 +1,585 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.data.WeatherContract.ArchiveEntry;
+import com.example.android.sunshine.data.WeatherContract.FixedPoint;
+import com.example.android.sunshine.data.WeatherContract.HistoryEntry;
+import com.example.android.sunshine.data.WeatherContract.HourlyEntry;
+import com.example.android.sunshine.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.data.WeatherContract.LocationWeatherEntry;
+import com.example.android.sunshine.data.WeatherContract.MigrationEntry;
+import com.example.android.sunshine.data.WeatherContract.RollupEntry;
+import com.example.android.sunshine.data.WeatherContract.StatsEntry;
+import com.example.android.sunshine.data.WeatherContract.SyncMetricsEntry;
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.utils.LatencyStats;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Upgrades populated databases of every schema version Sunshine has shipped to the current one,
+ * and checks that the data survives, the new tables are backfilled and each step is recorded.
+ * <p>
+ * The schemas below are frozen copies of what each version of WeatherDbHelper created. They must
+ * never be changed to follow WeatherDbHelper: they are what is on users' devices.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestWeatherMigrations {
+
+    private static final String DATABASE_NAME = "migration_test.db";
+
+    private static final int CURRENT_VERSION = 13;
+
+    private static final long DAY = SunshineDateUtils.DAY_IN_MILLIS;
+
+    private static final int FORECAST_DAYS = 14;
+    private static final int HISTORY_DAYS = 60;
+
+    /* Rows in each of the weather and history tables for the large dataset */
+    private static final int LARGE_DAYS = 20000;
+
+    /* Upper bound on upgrading the large dataset, well above what a device takes */
+    private static final long LARGE_MIGRATION_BUDGET_MILLIS = 10000;
+
+    private static final String SQL_CREATE_WEATHER_V3 =
+            "CREATE TABLE weather (_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + "date INTEGER NOT NULL, weather_id INTEGER NOT NULL,"
+            + "min REAL NOT NULL, max REAL NOT NULL, "
+            + "humidity REAL NOT NULL, pressure REAL NOT NULL, "
+            + "wind REAL NOT NULL, degrees REAL NOT NULL, "
+            + " UNIQUE (date) ON CONFLICT REPLACE);";
+
+    private static final String SQL_CREATE_SYNC_METRICS_V4 =
+            "CREATE TABLE sync_metrics (_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + "started_at INTEGER NOT NULL, trigger TEXT NOT NULL, "
+            + "url_build_nanos INTEGER NOT NULL, fetch_nanos INTEGER NOT NULL, "
+            + "parse_nanos INTEGER NOT NULL, delete_nanos INTEGER NOT NULL, "
+            + "insert_nanos INTEGER NOT NULL, notify_nanos INTEGER NOT NULL, "
+            + "wear_nanos INTEGER NOT NULL, total_nanos INTEGER NOT NULL, "
+            + "bytes_fetched INTEGER NOT NULL, rows_deleted INTEGER NOT NULL, "
+            + "rows_inserted INTEGER NOT NULL, failure TEXT);";
+
+    private static final String SQL_CREATE_SYNC_METRICS_TRIGGER_V4 =
+            "CREATE TRIGGER sync_metrics_ring_buffer AFTER INSERT ON sync_metrics BEGIN"
+            + " DELETE FROM sync_metrics WHERE _id <= NEW._id - 500; END;";
+
+    private static final String SQL_CREATE_HISTORY_V5 =
+            "CREATE TABLE history (_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + "date INTEGER NOT NULL, weather_id INTEGER NOT NULL,"
+            + "min REAL NOT NULL, max REAL NOT NULL, "
+            + "humidity REAL NOT NULL, pressure REAL NOT NULL, "
+            + "wind REAL NOT NULL, degrees REAL NOT NULL, "
+            + " UNIQUE (date) ON CONFLICT REPLACE);";
+
+    private static final String SQL_CREATE_ROLLUP_V5 =
+            "CREATE TABLE history_rollup (_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + "period TEXT NOT NULL, period_start INTEGER NOT NULL, "
+            + "period_end INTEGER NOT NULL, day_count INTEGER NOT NULL, "
+            + "min REAL NOT NULL, max REAL NOT NULL, "
+            + "humidity REAL NOT NULL, pressure REAL NOT NULL, wind REAL NOT NULL, "
+            + " UNIQUE (period, period_start) ON CONFLICT REPLACE);";
+
+    private static final String SQL_CREATE_STATS_V6 =
+            "CREATE TABLE weather_stats (_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + "source TEXT NOT NULL, period TEXT NOT NULL, period_start INTEGER NOT NULL, "
+            + "day_count INTEGER NOT NULL, min REAL NOT NULL, max REAL NOT NULL, "
+            + "humidity REAL NOT NULL, pressure REAL NOT NULL, wind REAL NOT NULL, "
+            + "warmest_date INTEGER NOT NULL, "
+            + " UNIQUE (source, period, period_start) ON CONFLICT REPLACE);";
+
+    private static final String SQL_CREATE_MIGRATIONS_V7 =
+            "CREATE TABLE schema_migrations (_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + "from_version INTEGER NOT NULL, to_version INTEGER NOT NULL, "
+            + "started_at INTEGER NOT NULL, duration_nanos INTEGER NOT NULL, "
+            + "outcome TEXT NOT NULL);";
+
+    private static final String SQL_ADD_STATEMENT_CACHE_HITS_V8 =
+            "ALTER TABLE sync_metrics ADD COLUMN statement_cache_hits INTEGER NOT NULL DEFAULT 0;";
+
+    private static final String SQL_ADD_STATEMENT_CACHE_MISSES_V8 =
+            "ALTER TABLE sync_metrics ADD COLUMN statement_cache_misses "
+            + "INTEGER NOT NULL DEFAULT 0;";
+
+    private static final String SQL_CREATE_LOCATION_V9 =
+            "CREATE TABLE location (_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + "location_setting TEXT NOT NULL, active INTEGER NOT NULL, "
+            + "last_used INTEGER NOT NULL, "
+            + "last_sync_time INTEGER NOT NULL, last_covered_date INTEGER NOT NULL, "
+            + " UNIQUE (location_setting));";
+
+    /* Also used by TestLocationBenchmark to measure the partitions as they were stored */
+    static final String SQL_CREATE_LOCATION_WEATHER_V9 =
+            "CREATE TABLE location_weather (_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + "location_id INTEGER NOT NULL, date INTEGER NOT NULL, "
+            + "weather_id INTEGER NOT NULL,"
+            + "min REAL NOT NULL, max REAL NOT NULL, "
+            + "humidity REAL NOT NULL, pressure REAL NOT NULL, "
+            + "wind REAL NOT NULL, degrees REAL NOT NULL, "
+            + " UNIQUE (location_id, date) ON CONFLICT REPLACE);";
+
+    private static final String SQL_CREATE_HOURLY_V10 =
+            "CREATE TABLE hourly_weather (_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + "time INTEGER NOT NULL, "
+            + "weather_id INTEGER NOT NULL, temp REAL NOT NULL, "
+            + "humidity REAL NOT NULL, pressure REAL NOT NULL, "
+            + "wind REAL NOT NULL, degrees REAL NOT NULL, "
+            + " UNIQUE (time) ON CONFLICT REPLACE);";
+
+    private static final String SQL_CREATE_ARCHIVE_V11 =
+            "CREATE TABLE history_archive (_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + "month_start INTEGER NOT NULL, month_end INTEGER NOT NULL, "
+            + "day_count INTEGER NOT NULL, days BLOB NOT NULL, "
+            + " UNIQUE (month_start) ON CONFLICT REPLACE);";
+
+    private static final String SQL_CREATE_LOCATION_WEATHER_V12 =
+            "CREATE TABLE location_weather (_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + "location_id INTEGER NOT NULL, date INTEGER NOT NULL, "
+            + "weather_id INTEGER NOT NULL, "
+            + "min_fixed INTEGER NOT NULL, max_fixed INTEGER NOT NULL, "
+            + "humidity_fixed INTEGER NOT NULL, pressure_fixed INTEGER NOT NULL, "
+            + "wind_fixed INTEGER NOT NULL, degrees_fixed INTEGER NOT NULL, "
+            + " UNIQUE (location_id, date) ON CONFLICT REPLACE);";
+
+    private static final String SQL_CREATE_LOCATION_WEATHER_VIEW_V12 =
+            "CREATE VIEW location_weather_values AS SELECT _id, location_id, date, weather_id, "
+            + "CAST(min_fixed / 100.0 AS REAL) AS min, "
+            + "CAST(max_fixed / 100.0 AS REAL) AS max, "
+            + "CAST(humidity_fixed / 100.0 AS REAL) AS humidity, "
+            + "CAST(pressure_fixed / 100.0 AS REAL) AS pressure, "
+            + "CAST(wind_fixed / 100.0 AS REAL) AS wind, "
+            + "CAST(degrees_fixed / 100.0 AS REAL) AS degrees "
+            + "FROM location_weather";
+
+    private static final String SQL_ADD_STALE_READS_V13 =
+            "ALTER TABLE sync_metrics ADD COLUMN stale_reads INTEGER NOT NULL DEFAULT 0;";
+
+    private static final String SQL_ADD_REVALIDATION_NANOS_V13 =
+            "ALTER TABLE sync_metrics ADD COLUMN revalidation_nanos INTEGER NOT NULL DEFAULT 0;";
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private long mToday;
+
+    @Before
+    public void setUp() {
+        mContext.deleteDatabase(DATABASE_NAME);
+        mToday = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+    }
+
+    @After
+    public void tearDown() {
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void testMigrateFromVersion3() {
+        assertMigratesFrom(3);
+    }
+
+    @Test
+    public void testMigrateFromVersion4() {
+        assertMigratesFrom(4);
+    }
+
+    @Test
+    public void testMigrateFromVersion5() {
+        assertMigratesFrom(5);
+    }
+
+    @Test
+    public void testMigrateFromVersion6() {
+        assertMigratesFrom(6);
+    }
+
+    @Test
+    public void testMigrateFromVersion7() {
+        assertMigratesFrom(7);
+    }
+
+    @Test
+    public void testMigrateFromVersion8() {
+        assertMigratesFrom(8);
+    }
+
+    @Test
+    public void testMigrateFromVersion9() {
+        assertMigratesFrom(9);
+    }
+
+    @Test
+    public void testMigrateFromVersion10() {
+        assertMigratesFrom(10);
+    }
+
+    @Test
+    public void testMigrateFromVersion11() {
+        assertMigratesFrom(11);
+    }
+
+    @Test
+    public void testMigrateFromVersion12() {
+        assertMigratesFrom(12);
+    }
+
+    /*
+     * Parked forecasts stored as floats are converted to fixed point in hundredths, and read
+     * back through the view under the weather table's names
+     */
+    @Test
+    public void testPartitionsConvertToFixedPoint() {
+        SQLiteDatabase fixture = createFixture(11);
+        long locationId = insertParkedLocation(fixture);
+
+        ContentValues[] days = new ContentValues[FORECAST_DAYS];
+        for (int i = 0; i < days.length; i++) {
+            days[i] = TestUtilities.createTestHistoryValues(mToday + i * DAY);
+            days[i].put(LocationWeatherEntry.COLUMN_MIN_TEMP, -3.25 - i);
+            days[i].put(LocationWeatherEntry.COLUMN_PRESSURE, 1013.25 + i);
+            days[i].put(LocationWeatherEntry.COLUMN_LOCATION_ID, locationId);
+            fixture.insertOrThrow(LocationWeatherEntry.TABLE_NAME, null, days[i]);
+        }
+        fixture.close();
+
+        SQLiteDatabase database = new WeatherDbHelper(mContext, DATABASE_NAME)
+                .getWritableDatabase();
+        Cursor cursor = database.query(LocationWeatherEntry.TABLE_NAME,
+                new String[]{
+                        LocationWeatherEntry.COLUMN_DATE,
+                        LocationWeatherEntry.COLUMN_MIN_TEMP_FIXED,
+                        LocationWeatherEntry.COLUMN_MAX_TEMP_FIXED,
+                        LocationWeatherEntry.COLUMN_PRESSURE_FIXED,
+                        LocationWeatherEntry.COLUMN_WIND_SPEED_FIXED},
+                LocationWeatherEntry.COLUMN_LOCATION_ID + " = ?",
+                new String[]{Long.toString(locationId)},
+                null, null, LocationWeatherEntry.COLUMN_DATE);
+        Cursor view = database.query(LocationWeatherEntry.VIEW_NAME,
+                new String[]{
+                        LocationWeatherEntry.COLUMN_MIN_TEMP,
+                        LocationWeatherEntry.COLUMN_PRESSURE},
+                LocationWeatherEntry.COLUMN_LOCATION_ID + " = ?",
+                new String[]{Long.toString(locationId)},
+                null, null, LocationWeatherEntry.COLUMN_DATE);
+        try {
+            assertEquals(FORECAST_DAYS, cursor.getCount());
+            assertEquals(FORECAST_DAYS, view.getCount());
+            for (int i = 0; cursor.moveToNext() && view.moveToNext(); i++) {
+                ContentValues day = days[i];
+                assertEquals(mToday + i * DAY, cursor.getLong(0));
+                assertEquals(Cursor.FIELD_TYPE_INTEGER, cursor.getType(1));
+                /* Hundredths keep the values as they were stored */
+                assertEquals(-325 - 100 * i, cursor.getLong(1));
+                assertEquals(FixedPoint.toFixed(
+                        day.getAsDouble(LocationWeatherEntry.COLUMN_MAX_TEMP),
+                        FixedPoint.TEMPERATURE_SCALE), cursor.getLong(2));
+                assertEquals(101325 + 100 * i, cursor.getLong(3));
+                assertEquals(FixedPoint.toFixed(
+                        day.getAsDouble(LocationWeatherEntry.COLUMN_WIND_SPEED),
+                        FixedPoint.WIND_SPEED_SCALE), cursor.getLong(4));
+
+                assertEquals(-3.25 - i, view.getDouble(0), 1e-9);
+                assertEquals(1013.25 + i, view.getDouble(1), 1e-9);
+            }
+        } finally {
+            cursor.close();
+            view.close();
+            database.close();
+        }
+    }
+
+    @Test
+    public void testLargeMigrationIsBounded() {
+        SQLiteDatabase fixture = createFixture(5);
+        insertDays(fixture, WeatherEntry.TABLE_NAME, mToday - (LARGE_DAYS - 1) * DAY, LARGE_DAYS);
+        insertDays(fixture, HistoryEntry.TABLE_NAME, mToday - LARGE_DAYS * DAY, LARGE_DAYS);
+        fixture.close();
+
+        long startNanos = System.nanoTime();
+        SQLiteDatabase database = new WeatherDbHelper(mContext, DATABASE_NAME)
+                .getWritableDatabase();
+        long nanos = System.nanoTime() - startNanos;
+
+        LatencyStats stats = new LatencyStats(
+                "upgrade from version 5, " + LARGE_DAYS + " forecast and history days");
+        stats.add(nanos);
+        stats.report();
+
+        try {
+            assertEquals(LARGE_DAYS, TestUtilities.count(database, WeatherEntry.TABLE_NAME));
+            assertEquals(LARGE_DAYS, TestUtilities.count(database, HistoryEntry.TABLE_NAME));
+            assertEquals(LARGE_DAYS, getSummaryDayCount(database, StatsEntry.SOURCE_FORECAST));
+            assertEquals(LARGE_DAYS, getSummaryDayCount(database, StatsEntry.SOURCE_HISTORY));
+            assertTrue("Upgrade took " + nanos / 1000000 + " ms",
+                    nanos / 1000000 < LARGE_MIGRATION_BUDGET_MILLIS);
+        } finally {
+            database.close();
+        }
+    }
+
+    /**
+     * A version 4 database that somehow already has a table the next step creates can't be
+     * migrated, so it must be recreated rather than left half upgraded.
+     */
+    @Test
+    public void testConflictingSchemaIsRecreated() {
+        SQLiteDatabase fixture = createFixture(4);
+        insertDays(fixture, WeatherEntry.TABLE_NAME, mToday, FORECAST_DAYS);
+        fixture.execSQL("CREATE TABLE history (date INTEGER)");
+        fixture.close();
+
+        assertRecreatedFrom(4);
+    }
+
+    /* Versions before 3 have no migration steps, so they are recreated as well */
+    @Test
+    public void testUnknownVersionIsRecreated() {
+        SQLiteDatabase fixture = createFixture(3);
+        insertDays(fixture, WeatherEntry.TABLE_NAME, mToday, FORECAST_DAYS);
+        fixture.setVersion(2);
+        fixture.close();
+
+        assertRecreatedFrom(2);
+    }
+
+    /**
+     * Populates a database of the given version, upgrades it and checks that nothing stored was
+     * lost, that the statistics were backfilled and that there is one record per step.
+     */
+    private void assertMigratesFrom(int version) {
+        SQLiteDatabase fixture = createFixture(version);
+        insertDays(fixture, WeatherEntry.TABLE_NAME, mToday, FORECAST_DAYS);
+        if (version >= 4) {
+            fixture.insert(SyncMetricsEntry.TABLE_NAME, null, createSyncMetricsValues());
+        }
+        if (version >= 5) {
+            insertDays(fixture, HistoryEntry.TABLE_NAME, mToday - HISTORY_DAYS * DAY, HISTORY_DAYS);
+        }
+        fixture.close();
+
+        SQLiteDatabase database = new WeatherDbHelper(mContext, DATABASE_NAME)
+                .getWritableDatabase();
+        try {
+            assertEquals(CURRENT_VERSION, database.getVersion());
+
+            assertEquals(FORECAST_DAYS, TestUtilities.count(database, WeatherEntry.TABLE_NAME));
+            assertEquals(version >= 4 ? 1 : 0,
+                    TestUtilities.count(database, SyncMetricsEntry.TABLE_NAME));
+            if (version >= 4) {
+                /* Syncs recorded before the statement cache counts were added count none */
+                assertEquals(0, DatabaseUtils.longForQuery(database,
+                        "SELECT " + SyncMetricsEntry.COLUMN_STATEMENT_CACHE_HITS + " + "
+                                + SyncMetricsEntry.COLUMN_STATEMENT_CACHE_MISSES
+                                + " FROM " + SyncMetricsEntry.TABLE_NAME, null));
+
+                /* Nor did they find any stale reads */
+                assertEquals(0, DatabaseUtils.longForQuery(database,
+                        "SELECT " + SyncMetricsEntry.COLUMN_STALE_READS + " + "
+                                + SyncMetricsEntry.COLUMN_REVALIDATION_NANOS
+                                + " FROM " + SyncMetricsEntry.TABLE_NAME, null));
+            }
+            assertEquals(version >= 5 ? HISTORY_DAYS : 0,
+                    TestUtilities.count(database, HistoryEntry.TABLE_NAME));
+            assertEquals(0, TestUtilities.count(database, RollupEntry.TABLE_NAME));
+
+            /* No location has been switched to yet, the first switch adopts the forecast */
+            assertEquals(0, TestUtilities.count(database, LocationEntry.TABLE_NAME));
+            assertEquals(0, TestUtilities.count(database, LocationWeatherEntry.TABLE_NAME));
+
+            /* The hourly forecast is only fetched by syncs after the upgrade */
+            assertEquals(0, TestUtilities.count(database, HourlyEntry.TABLE_NAME));
+
+            /* Days compacted before the archive existed only live on in the roll-ups */
+            assertEquals(0, TestUtilities.count(database, ArchiveEntry.TABLE_NAME));
+
+            /* From version 6 on statistics were kept up to date, these fixtures just have none */
+            if (version < 6) {
+                assertEquals(FORECAST_DAYS,
+                        getSummaryDayCount(database, StatsEntry.SOURCE_FORECAST));
+                assertEquals(version >= 5 ? HISTORY_DAYS : 0,
+                        getSummaryDayCount(database, StatsEntry.SOURCE_HISTORY));
+            }
+
+            Cursor steps = database.query(MigrationEntry.TABLE_NAME,
+                    new String[]{
+                            MigrationEntry.COLUMN_FROM_VERSION,
+                            MigrationEntry.COLUMN_TO_VERSION,
+                            MigrationEntry.COLUMN_OUTCOME},
+                    null, null, null, null, MigrationEntry._ID);
+            try {
+                assertEquals(CURRENT_VERSION - version, steps.getCount());
+                for (int from = version; steps.moveToNext(); from++) {
+                    assertEquals(from, steps.getInt(0));
+                    assertEquals(from + 1, steps.getInt(1));
+                    assertEquals(MigrationEntry.OUTCOME_MIGRATED, steps.getString(2));
+                }
+            } finally {
+                steps.close();
+            }
+        } finally {
+            database.close();
+        }
+    }
+
+    private void assertRecreatedFrom(int version) {
+        SQLiteDatabase database = new WeatherDbHelper(mContext, DATABASE_NAME)
+                .getWritableDatabase();
+        try {
+            assertEquals(CURRENT_VERSION, database.getVersion());
+            assertEquals(0, TestUtilities.count(database, WeatherEntry.TABLE_NAME));
+            assertEquals(0, TestUtilities.count(database, HistoryEntry.TABLE_NAME));
+
+            Cursor steps = database.query(MigrationEntry.TABLE_NAME,
+                    new String[]{
+                            MigrationEntry.COLUMN_FROM_VERSION,
+                            MigrationEntry.COLUMN_TO_VERSION,
+                            MigrationEntry.COLUMN_OUTCOME},
+                    null, null, null, null, null);
+            try {
+                assertEquals(1, steps.getCount());
+                assertTrue(steps.moveToFirst());
+                assertEquals(version, steps.getInt(0));
+                assertEquals(CURRENT_VERSION, steps.getInt(1));
+                assertEquals(MigrationEntry.OUTCOME_RECREATED, steps.getString(2));
+            } finally {
+                steps.close();
+            }
+        } finally {
+            database.close();
+        }
+    }
+
+    /**
+     * Creates the test database with the schema a given version of WeatherDbHelper created.
+     *
+     * @param version Schema version, from 3 to 13
+     * @return The open, empty database
+     */
+    private SQLiteDatabase createFixture(int version) {
+        SQLiteDatabase fixture = mContext.openOrCreateDatabase(DATABASE_NAME, 0, null);
+        fixture.execSQL(SQL_CREATE_WEATHER_V3);
+        if (version >= 4) {
+            fixture.execSQL(SQL_CREATE_SYNC_METRICS_V4);
+            fixture.execSQL(SQL_CREATE_SYNC_METRICS_TRIGGER_V4);
+        }
+        if (version >= 5) {
+            fixture.execSQL(SQL_CREATE_HISTORY_V5);
+            fixture.execSQL(SQL_CREATE_ROLLUP_V5);
+        }
+        if (version >= 6) {
+            fixture.execSQL(SQL_CREATE_STATS_V6);
+        }
+        if (version >= 7) {
+            fixture.execSQL(SQL_CREATE_MIGRATIONS_V7);
+        }
+        if (version >= 8) {
+            fixture.execSQL(SQL_ADD_STATEMENT_CACHE_HITS_V8);
+            fixture.execSQL(SQL_ADD_STATEMENT_CACHE_MISSES_V8);
+        }
+        if (version >= 9) {
+            fixture.execSQL(SQL_CREATE_LOCATION_V9);
+            fixture.execSQL(version >= 12
+                    ? SQL_CREATE_LOCATION_WEATHER_V12
+                    : SQL_CREATE_LOCATION_WEATHER_V9);
+        }
+        if (version >= 10) {
+            fixture.execSQL(SQL_CREATE_HOURLY_V10);
+        }
+        if (version >= 11) {
+            fixture.execSQL(SQL_CREATE_ARCHIVE_V11);
+        }
+        if (version >= 12) {
+            fixture.execSQL(SQL_CREATE_LOCATION_WEATHER_VIEW_V12);
+        }
+        if (version >= 13) {
+            fixture.execSQL(SQL_ADD_STALE_READS_V13);
+            fixture.execSQL(SQL_ADD_REVALIDATION_NANOS_V13);
+        }
+        fixture.setVersion(version);
+        return fixture;
+    }
+
+    /* Saves a location that isn't active, straight into the location table of a fixture */
+    private static long insertParkedLocation(SQLiteDatabase fixture) {
+        ContentValues location = new ContentValues();
+        location.put(LocationEntry.COLUMN_LOCATION_SETTING, "migration-location");
+        location.put(LocationEntry.COLUMN_ACTIVE, 0);
+        location.put(LocationEntry.COLUMN_LAST_USED, 0);
+        location.put(LocationEntry.COLUMN_LAST_SYNC_TIME, 0);
+        location.put(LocationEntry.COLUMN_LAST_COVERED_DATE, 0);
+        return fixture.insertOrThrow(LocationEntry.TABLE_NAME, null, location);
+    }
+
+    private static void insertDays(SQLiteDatabase database, String table, long firstDate,
+                                   int days) {
+        database.beginTransaction();
+        try {
+            for (int i = 0; i < days; i++) {
+                database.insert(table, null,
+                        TestUtilities.createTestHistoryValues(firstDate + i * DAY));
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    private ContentValues createSyncMetricsValues() {
+        ContentValues values = new ContentValues();
+        values.put(SyncMetricsEntry.COLUMN_STARTED_AT, System.currentTimeMillis());
+        values.put(SyncMetricsEntry.COLUMN_TRIGGER, SyncMetricsEntry.TRIGGER_IMMEDIATE);
+        values.put(SyncMetricsEntry.COLUMN_URL_BUILD_NANOS, 1000L);
+        values.put(SyncMetricsEntry.COLUMN_FETCH_NANOS, 2000L);
+        values.put(SyncMetricsEntry.COLUMN_PARSE_NANOS, 3000L);
+        values.put(SyncMetricsEntry.COLUMN_DELETE_NANOS, 4000L);
+        values.put(SyncMetricsEntry.COLUMN_INSERT_NANOS, 5000L);
+        values.put(SyncMetricsEntry.COLUMN_NOTIFY_NANOS, 6000L);
+        values.put(SyncMetricsEntry.COLUMN_WEAR_NANOS, 7000L);
+        values.put(SyncMetricsEntry.COLUMN_TOTAL_NANOS, 28000L);
+        values.put(SyncMetricsEntry.COLUMN_BYTES_FETCHED, 4096L);
+        values.put(SyncMetricsEntry.COLUMN_ROWS_DELETED, 0);
+        values.put(SyncMetricsEntry.COLUMN_ROWS_INSERTED, FORECAST_DAYS);
+        return values;
+    }
+
+    /* Number of days in a source's summary statistics, or 0 if there is no summary */
+    private static int getSummaryDayCount(SQLiteDatabase database, String source) {
+        Cursor cursor = database.query(StatsEntry.TABLE_NAME,
+                new String[]{StatsEntry.COLUMN_DAY_COUNT},
+                StatsEntry.COLUMN_SOURCE + " = ? AND " + StatsEntry.COLUMN_PERIOD + " = ?",
+                new String[]{source, StatsEntry.PERIOD_ALL},
+                null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -326,6 +326,30 @@ public class TestWeatherProvider {
         cursor.close();
     }
 
+    /**
+     * A row with a value for a column the weather table doesn't have must fail the whole bulk
+     * insert, as SQLiteDatabase#insert did, rather than have the value dropped.
+     */
+    @Test
+    public void testBulkInsertRejectsUnknownColumn() {
+        ContentValues[] bulkInsertTestContentValues = createBulkInsertTestWeatherValues();
+        bulkInsertTestContentValues[1].put("no_such_column", 1);
+
+        ContentResolver contentResolver = mContext.getContentResolver();
+        try {
+            contentResolver.bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI,
+                    bulkInsertTestContentValues);
+            fail("A row with an unknown column should be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        Cursor cursor = contentResolver.query(WeatherContract.WeatherEntry.CONTENT_URI,
+                null, null, null, null);
+        assertNotNull(cursor);
+        assertEquals("The whole insert should be rolled back", 0, cursor.getCount());
+        cursor.close();
+    }
+
     /**
      * This test deletes all records from the weather table using the ContentProvider. It also
      * verifies that registered ContentObservers receive onChange callbacks when data is deleted.
@@ -423,6 +447,63 @@ public class TestWeatherProvider {
         shouldBeEmptyCursor.close();
     }
 
+    /**
+     * Records more syncs than the sync metrics ring buffer can hold and verifies that only the
+     * newest {@link WeatherContract.SyncMetricsEntry#MAX_ROWS} are kept.
+     */
+    @Test
+    public void testSyncMetricsRingBuffer() {
+        ContentResolver contentResolver = mContext.getContentResolver();
+        contentResolver.delete(WeatherContract.SyncMetricsEntry.CONTENT_URI, null, null);
+
+        int recordsToInsert = WeatherContract.SyncMetricsEntry.MAX_ROWS + 10;
+        for (int i = 0; i < recordsToInsert; i++) {
+            Uri inserted = contentResolver.insert(
+                    WeatherContract.SyncMetricsEntry.CONTENT_URI,
+                    createTestSyncMetricsValues(i));
+            assertNotNull("Sync metrics insert " + i + " failed", inserted);
+        }
+
+        Cursor cursor = contentResolver.query(
+                WeatherContract.SyncMetricsEntry.CONTENT_URI,
+                new String[]{WeatherContract.SyncMetricsEntry.COLUMN_STARTED_AT},
+                null,
+                null,
+                WeatherContract.SyncMetricsEntry.COLUMN_STARTED_AT + " ASC");
+
+        assertEquals("The ring buffer should hold exactly MAX_ROWS records",
+                WeatherContract.SyncMetricsEntry.MAX_ROWS,
+                cursor.getCount());
+
+        assertTrue(cursor.moveToFirst());
+        assertEquals("The oldest records should have been dropped",
+                recordsToInsert - WeatherContract.SyncMetricsEntry.MAX_ROWS,
+                cursor.getLong(0));
+
+        cursor.close();
+        contentResolver.delete(WeatherContract.SyncMetricsEntry.CONTENT_URI, null, null);
+    }
+
+    private static ContentValues createTestSyncMetricsValues(long startedAt) {
+        ContentValues values = new ContentValues();
+        values.put(WeatherContract.SyncMetricsEntry.COLUMN_STARTED_AT, startedAt);
+        values.put(WeatherContract.SyncMetricsEntry.COLUMN_TRIGGER,
+                WeatherContract.SyncMetricsEntry.TRIGGER_IMMEDIATE);
+        values.put(WeatherContract.SyncMetricsEntry.COLUMN_URL_BUILD_NANOS, 1);
+        values.put(WeatherContract.SyncMetricsEntry.COLUMN_FETCH_NANOS, 2);
+        values.put(WeatherContract.SyncMetricsEntry.COLUMN_PARSE_NANOS, 3);
+        values.put(WeatherContract.SyncMetricsEntry.COLUMN_DELETE_NANOS, 4);
+        values.put(WeatherContract.SyncMetricsEntry.COLUMN_INSERT_NANOS, 5);
+        values.put(WeatherContract.SyncMetricsEntry.COLUMN_NOTIFY_NANOS, 6);
+        values.put(WeatherContract.SyncMetricsEntry.COLUMN_WEAR_NANOS, 7);
+        values.put(WeatherContract.SyncMetricsEntry.COLUMN_TOTAL_NANOS, 28);
+        values.put(WeatherContract.SyncMetricsEntry.COLUMN_BYTES_FETCHED, 4096);
+        values.put(WeatherContract.SyncMetricsEntry.COLUMN_ROWS_DELETED, 14);
+        values.put(WeatherContract.SyncMetricsEntry.COLUMN_ROWS_INSERTED, 14);
+        values.putNull(WeatherContract.SyncMetricsEntry.COLUMN_FAILURE);
+        return values;
+    }
+
     /**
      * This method will clear all rows from the weather table in our database.
      * <p>
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.R;
+import com.example.android.sunshine.data.WeatherContract.HistoryEntry;
+import com.example.android.sunshine.data.WeatherContract.StatsEntry;
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Verifies that the statistics the provider maintains on every insert and delete always equal
+ * the statistics recomputed from scratch from the weather and history tables.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestWeatherStats {
+
+    private static final long DAY = SunshineDateUtils.DAY_IN_MILLIS;
+
+    private static final double DELTA = 1e-6;
+
+    private static final String[] STATS_PROJECTION = {
+            StatsEntry.COLUMN_DAY_COUNT,
+            StatsEntry.COLUMN_MIN_TEMP,
+            StatsEntry.COLUMN_MAX_TEMP,
+            StatsEntry.COLUMN_HUMIDITY,
+            StatsEntry.COLUMN_PRESSURE,
+            StatsEntry.COLUMN_WIND_SPEED,
+            StatsEntry.COLUMN_WARMEST_DATE
+    };
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+    private final ContentResolver mResolver = mContext.getContentResolver();
+
+    private SQLiteDatabase mDatabase;
+    private long mToday;
+
+    private String mArchiveKey;
+    private Boolean mSavedArchive;
+
+    @Before
+    public void setUp() {
+        mDatabase = new WeatherDbHelper(mContext).getWritableDatabase();
+        mDatabase.delete(WeatherEntry.TABLE_NAME, null, null);
+        mDatabase.delete(HistoryEntry.TABLE_NAME, null, null);
+        mDatabase.delete(StatsEntry.TABLE_NAME, null, null);
+        mToday = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+
+        mArchiveKey = mContext.getString(R.string.pref_archive_history_key);
+        SharedPreferences sp = TestUtilities.getSharedPreferences(mContext);
+        mSavedArchive = sp.contains(mArchiveKey) ? sp.getBoolean(mArchiveKey, true) : null;
+    }
+
+    @After
+    public void tearDown() {
+        SharedPreferences.Editor editor = TestUtilities.getSharedPreferences(mContext).edit();
+        if (mSavedArchive == null) {
+            editor.remove(mArchiveKey);
+        } else {
+            editor.putBoolean(mArchiveKey, mSavedArchive);
+        }
+        editor.commit();
+
+        mDatabase.delete(HistoryEntry.TABLE_NAME, null, null);
+        mDatabase.delete(StatsEntry.TABLE_NAME, null, null);
+        mDatabase.close();
+    }
+
+    @Test
+    public void testForecastStatsFollowInsert() {
+        TestUtilities.setArchiveEnabled(mContext, false);
+        mResolver.bulkInsert(WeatherEntry.CONTENT_URI,
+                TestUtilities.createTestHistoryDays(mToday - 2 * DAY, 20));
+
+        assertStatsMatchRecomputation(StatsEntry.SOURCE_FORECAST, WeatherEntry.TABLE_NAME);
+    }
+
+    @Test
+    public void testForecastStatsFollowReplaceAndDelete() {
+        TestUtilities.setArchiveEnabled(mContext, false);
+        mResolver.bulkInsert(WeatherEntry.CONTENT_URI,
+                TestUtilities.createTestHistoryDays(mToday, 20));
+
+        /* Replacing days with warmer ones moves the maximum and the warmest day */
+        ContentValues[] warmer = TestUtilities.createTestHistoryDays(mToday + 5 * DAY, 3);
+        for (ContentValues day : warmer) {
+            day.put(WeatherEntry.COLUMN_MAX_TEMP, day.getAsDouble(WeatherEntry.COLUMN_MAX_TEMP) + 30);
+        }
+        mResolver.bulkInsert(WeatherEntry.CONTENT_URI, warmer);
+        assertStatsMatchRecomputation(StatsEntry.SOURCE_FORECAST, WeatherEntry.TABLE_NAME);
+
+        /* Deleting the warmest day has to bring back the next warmest */
+        mResolver.delete(WeatherEntry.CONTENT_URI, WeatherEntry.COLUMN_DATE + " = ?",
+                new String[]{Long.toString(mToday + 5 * DAY)});
+        assertStatsMatchRecomputation(StatsEntry.SOURCE_FORECAST, WeatherEntry.TABLE_NAME);
+
+        mResolver.delete(WeatherEntry.CONTENT_URI, null, null);
+        assertStatsMatchRecomputation(StatsEntry.SOURCE_FORECAST, WeatherEntry.TABLE_NAME);
+    }
+
+    @Test
+    public void testHistoryStatsFollowArchiveAndDelete() {
+        TestUtilities.setArchiveEnabled(mContext, true);
+        mResolver.bulkInsert(WeatherEntry.CONTENT_URI,
+                TestUtilities.createTestHistoryDays(mToday - 14 * DAY, 20));
+
+        mResolver.delete(WeatherEntry.CONTENT_URI, null, null);
+        assertStatsMatchRecomputation(StatsEntry.SOURCE_HISTORY, HistoryEntry.TABLE_NAME);
+        assertStatsMatchRecomputation(StatsEntry.SOURCE_FORECAST, WeatherEntry.TABLE_NAME);
+
+        mResolver.delete(HistoryEntry.CONTENT_URI, HistoryEntry.COLUMN_DATE + " < ?",
+                new String[]{Long.toString(mToday - 4 * DAY)});
+        assertStatsMatchRecomputation(StatsEntry.SOURCE_HISTORY, HistoryEntry.TABLE_NAME);
+    }
+
+    /**
+     * Recomputes the weekly and summary statistics of a table from all of its rows and checks
+     * them against those read through the statistics URIs.
+     */
+    private void assertStatsMatchRecomputation(String source, String table) {
+        Map<Long, double[]> weeks = new TreeMap<>();
+        double[] summary = null;
+
+        Cursor rows = mDatabase.query(table, new String[]{
+                        WeatherEntry.COLUMN_DATE,
+                        WeatherEntry.COLUMN_MIN_TEMP,
+                        WeatherEntry.COLUMN_MAX_TEMP,
+                        WeatherEntry.COLUMN_HUMIDITY,
+                        WeatherEntry.COLUMN_PRESSURE,
+                        WeatherEntry.COLUMN_WIND_SPEED},
+                null, null, null, null, WeatherEntry.COLUMN_DATE);
+        try {
+            while (rows.moveToNext()) {
+                long weekStart = SunshineDateUtils.getWeekStart(rows.getLong(0));
+                double[] week = weeks.get(weekStart);
+                if (week == null) {
+                    week = newAggregate();
+                    weeks.put(weekStart, week);
+                }
+                if (summary == null) summary = newAggregate();
+                add(week, rows);
+                add(summary, rows);
+            }
+        } finally {
+            rows.close();
+        }
+
+        assertEquals("Wrong number of weeks for " + source, weeks.size(),
+                TestUtilities.count(mResolver, StatsEntry.CONTENT_URI,
+                        StatsEntry.COLUMN_SOURCE + " = ? AND " + StatsEntry.COLUMN_PERIOD + " = ?",
+                        source, StatsEntry.PERIOD_WEEK));
+        for (Map.Entry<Long, double[]> week : weeks.entrySet()) {
+            assertRow(StatsEntry.buildWeekUri(source, week.getKey()), week.getValue());
+        }
+
+        if (summary == null) {
+            assertEquals("An empty " + source + " has no summary", 0,
+                    TestUtilities.count(mResolver, StatsEntry.buildSummaryUri(source), null));
+        } else {
+            assertRow(StatsEntry.buildSummaryUri(source), summary);
+        }
+    }
+
+    /* Day count, min, max, humidity, pressure and wind sums, warmest date */
+    private static double[] newAggregate() {
+        return new double[]{0, Double.MAX_VALUE, -Double.MAX_VALUE, 0, 0, 0, 0};
+    }
+
+    /* Rows are read by date, so a tie on the maximum keeps the earliest day */
+    private static void add(double[] aggregate, Cursor row) {
+        aggregate[0]++;
+        aggregate[1] = Math.min(aggregate[1], row.getDouble(1));
+        if (row.getDouble(2) > aggregate[2]) {
+            aggregate[2] = row.getDouble(2);
+            aggregate[6] = row.getLong(0);
+        }
+        aggregate[3] += row.getDouble(3);
+        aggregate[4] += row.getDouble(4);
+        aggregate[5] += row.getDouble(5);
+    }
+
+    private void assertRow(Uri uri, double[] expected) {
+        Cursor cursor = mResolver.query(uri, STATS_PROJECTION, null, null, null);
+        assertNotNull(cursor);
+        try {
+            assertTrue("No statistics at " + uri, cursor.moveToFirst());
+            assertEquals(1, cursor.getCount());
+            assertEquals((int) expected[0], cursor.getInt(0));
+            assertEquals(expected[1], cursor.getDouble(1), DELTA);
+            assertEquals(expected[2], cursor.getDouble(2), DELTA);
+            assertEquals(expected[3] / expected[0], cursor.getDouble(3), DELTA);
+            assertEquals(expected[4] / expected[0], cursor.getDouble(4), DELTA);
+            assertEquals(expected[5] / expected[0], cursor.getDouble(5), DELTA);
+            assertEquals("Wrong warmest day at " + uri, (long) expected[6], cursor.getLong(6));
+        } finally {
+            cursor.close();
+        }
+    }
+}
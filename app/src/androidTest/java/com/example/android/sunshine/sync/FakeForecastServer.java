@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import com.example.android.sunshine.utils.ForecastJsonFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A tiny HTTP/1.0 server that stands in for andfun-weather.udacity.com during benchmarks. It
+ * answers every request with forecast JSON from {@link ForecastJsonFactory} and can be told to
+ * misbehave in the ways a real server on a real network does: respond slowly, fail with an HTTP
+ * error, report an error "cod" in the body, cut the body short, or drip it out a few bytes at a
+ * time.
+ * <p>
+ * All settings are volatile so a test can change them between syncs without restarting the
+ * server.
+ */
+public class FakeForecastServer {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ServerSocket mServerSocket;
+    private final ExecutorService mConnectionExecutor = Executors.newCachedThreadPool();
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+
+    /* Requests being answered right now, and the most there have been at once */
+    private final AtomicInteger mRequestsInFlight = new AtomicInteger();
+    private final AtomicInteger mMaxRequestsInFlight = new AtomicInteger();
+
+    /* Delay before the response headers are written, simulating round-trip time */
+    private volatile long mLatencyMillis;
+    /* Number of days in the "list" array, the equivalent of the cnt query parameter */
+    private volatile int mDays = 14;
+    /* HTTP status code to respond with */
+    private volatile int mHttpStatus = 200;
+    /* If non-zero, the response body is an error body with this "cod" */
+    private volatile int mErrorCode;
+    /* If true, only the first half of the body is sent although Content-Length claims all of it */
+    private volatile boolean mTruncateBody;
+    /* If non-zero, the body is written in chunks of this size with mDripDelayMillis between them */
+    private volatile int mDripChunkBytes;
+    private volatile long mDripDelayMillis;
+
+    private volatile boolean mRunning = true;
+
+    public FakeForecastServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "FakeForecastServer");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * @return The URL to hand to NetworkUtils#setForecastBaseUrl
+     */
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/weather";
+    }
+
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * @return The most requests that were being answered at the same time since the last
+     * {@link #reset()}
+     */
+    public int getMaxRequestsInFlight() {
+        return mMaxRequestsInFlight.get();
+    }
+
+    public FakeForecastServer setLatencyMillis(long latencyMillis) {
+        mLatencyMillis = latencyMillis;
+        return this;
+    }
+
+    public FakeForecastServer setDays(int days) {
+        mDays = days;
+        return this;
+    }
+
+    public FakeForecastServer setHttpStatus(int httpStatus) {
+        mHttpStatus = httpStatus;
+        return this;
+    }
+
+    public FakeForecastServer setErrorCode(int errorCode) {
+        mErrorCode = errorCode;
+        return this;
+    }
+
+    public FakeForecastServer setTruncateBody(boolean truncateBody) {
+        mTruncateBody = truncateBody;
+        return this;
+    }
+
+    public FakeForecastServer setSlowDrip(int chunkBytes, long delayMillis) {
+        mDripChunkBytes = chunkBytes;
+        mDripDelayMillis = delayMillis;
+        return this;
+    }
+
+    /**
+     * Restores the well-behaved defaults.
+     */
+    public FakeForecastServer reset() {
+        mLatencyMillis = 0;
+        mDays = 14;
+        mHttpStatus = 200;
+        mErrorCode = 0;
+        mTruncateBody = false;
+        mDripChunkBytes = 0;
+        mDripDelayMillis = 0;
+        mMaxRequestsInFlight.set(0);
+        return this;
+    }
+
+    public void shutdown() {
+        mRunning = false;
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        mConnectionExecutor.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (mRunning) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                mConnectionExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handle(socket);
+                    }
+                });
+            } catch (IOException e) {
+                /* The server socket was closed by shutdown */
+                return;
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        boolean inFlight = false;
+        try {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), UTF_8));
+
+            /* Read and discard the request line and headers */
+            String line = reader.readLine();
+            while (line != null && !line.isEmpty()) {
+                line = reader.readLine();
+            }
+
+            int requestNumber = mRequestCount.incrementAndGet();
+            inFlight = true;
+            int requestsInFlight = mRequestsInFlight.incrementAndGet();
+            int max = mMaxRequestsInFlight.get();
+            while (requestsInFlight > max
+                    && !mMaxRequestsInFlight.compareAndSet(max, requestsInFlight)) {
+                max = mMaxRequestsInFlight.get();
+            }
+
+            if (mLatencyMillis > 0) {
+                Thread.sleep(mLatencyMillis);
+            }
+
+            String json = mErrorCode != 0
+                    ? ForecastJsonFactory.buildError(mErrorCode)
+                    : ForecastJsonFactory.buildForecast(mDays, requestNumber);
+            byte[] body = json.getBytes(UTF_8);
+
+            OutputStream out = socket.getOutputStream();
+            String headers = "HTTP/1.0 " + mHttpStatus + " Fake\r\n"
+                    + "Content-Type: application/json; charset=utf-8\r\n"
+                    + "Content-Length: " + body.length + "\r\n"
+                    + "Connection: close\r\n\r\n";
+            out.write(headers.getBytes(UTF_8));
+
+            int bytesToSend = mTruncateBody ? body.length / 2 : body.length;
+            int chunk = mDripChunkBytes > 0 ? mDripChunkBytes : bytesToSend;
+            for (int offset = 0; offset < bytesToSend; offset += chunk) {
+                out.write(body, offset, Math.min(chunk, bytesToSend - offset));
+                out.flush();
+                if (mDripDelayMillis > 0) {
+                    TimeUnit.MILLISECONDS.sleep(mDripDelayMillis);
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            /* The client went away, which is expected when a sync is cancelled */
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (inFlight) mRequestsInFlight.decrementAndGet();
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a usage trace against a simulated forecast and a sync schedule, without touching the
+ * network, the database or the job dispatcher.
+ * <p>
+ * The simulated forecast covers {@link #FORECAST_DAYS} days. Every simulated hour, each day of it
+ * is revised with a probability given by the volatility of that hour. A sync picks up every
+ * revision made since the previous sync; the fraction of days that were revised is the change
+ * rate the sync reports, exactly as SunshineSyncTask measures it from row diffs.
+ * <p>
+ * At every app open we record how old the last sync is and how many days of the forecast the
+ * user sees are outdated.
+ */
+final class SyncScheduleSimulator {
+
+    static final int FORECAST_DAYS = 14;
+
+    private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    /* The old fixed schedule: every 3 hours with a 1 hour flex window */
+    private static final long FIXED_WINDOW_START_MILLIS = TimeUnit.HOURS.toMillis(3);
+    private static final long FIXED_WINDOW_END_MILLIS = TimeUnit.HOURS.toMillis(4);
+
+    /* The simulated device charges on wifi overnight, between these hours */
+    private static final int CHARGING_FROM_HOUR = 23;
+    private static final int CHARGING_UNTIL_HOUR = 7;
+
+    static final TimeZone TIME_ZONE = TimeZone.getTimeZone("UTC");
+
+    /**
+     * Chance per hour that any one forecast day is revised, as a function of time.
+     */
+    interface Volatility {
+        double revisionProbability(long timeMillis);
+    }
+
+    /**
+     * Result of one simulation run.
+     */
+    static final class Result {
+        final String mName;
+        int mSyncs;
+        int mOpens;
+        double mDays;
+        long mTotalAgeAtOpenMillis;
+        int mTotalStaleDaysAtOpen;
+
+        Result(String name) {
+            mName = name;
+        }
+
+        double getSyncsPerDay() {
+            return mSyncs / mDays;
+        }
+
+        long getMeanAgeAtOpenMinutes() {
+            return mOpens == 0 ? 0 : TimeUnit.MILLISECONDS.toMinutes(mTotalAgeAtOpenMillis / mOpens);
+        }
+
+        /**
+         * @return Mean fraction of the forecast days that were outdated when the app was opened
+         */
+        double getMeanStaleFractionAtOpen() {
+            return mOpens == 0 ? 0 : (double) mTotalStaleDaysAtOpen / mOpens / FORECAST_DAYS;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%s: %.2f syncs/day, %d opens, mean age at open %d min, stale at open %.1f%%",
+                    mName, getSyncsPerDay(), mOpens, getMeanAgeAtOpenMinutes(),
+                    getMeanStaleFractionAtOpen() * 100);
+        }
+    }
+
+    private SyncScheduleSimulator() {
+    }
+
+    /**
+     * Runs one schedule over a usage trace.
+     *
+     * @param name       Label of the run
+     * @param adaptive   true for the AdaptiveSyncPolicy, false for the old fixed schedule
+     * @param startMillis Start of the simulation, at midnight
+     * @param days       Length of the simulation
+     * @param opens      Times the app is opened, sorted
+     * @param volatility How fast the forecast is revised
+     * @param seed       Seed of the forecast revisions
+     */
+    static Result run(String name, boolean adaptive, long startMillis, int days, long[] opens,
+                      Volatility volatility, long seed) {
+        Random random = new Random(seed);
+        Result result = new Result(name);
+        result.mDays = days;
+
+        long endMillis = startMillis + days * DAY_MILLIS;
+
+        /* Per forecast day, whether it was revised since the last sync */
+        boolean[] revised = new boolean[FORECAST_DAYS];
+
+        AdaptiveSyncPolicy.Inputs inputs = new AdaptiveSyncPolicy.Inputs();
+
+        long lastSync = startMillis;
+        long nextSync = startMillis + nextDelay(adaptive, inputs, startMillis);
+        long nextRevision = startMillis + HOUR_MILLIS;
+        int openIndex = 0;
+
+        while (true) {
+            long nextOpen = openIndex < opens.length ? opens[openIndex] : Long.MAX_VALUE;
+            long now = Math.min(nextRevision, Math.min(nextSync, nextOpen));
+            if (now >= endMillis) break;
+
+            if (now == nextRevision) {
+                double probability = volatility.revisionProbability(now);
+                for (int day = 0; day < FORECAST_DAYS; day++) {
+                    if (random.nextDouble() < probability) revised[day] = true;
+                }
+                nextRevision += HOUR_MILLIS;
+
+            } else if (now == nextSync) {
+                int changed = 0;
+                for (int day = 0; day < FORECAST_DAYS; day++) {
+                    if (revised[day]) changed++;
+                    revised[day] = false;
+                }
+                inputs.changeRate = AdaptiveSyncPolicy.updateChangeRate(
+                        inputs.changeRate, changed, FORECAST_DAYS, now - lastSync);
+                result.mSyncs++;
+                lastSync = now;
+                nextSync = now + nextDelay(adaptive, inputs, now);
+
+            } else {
+                int stale = 0;
+                for (boolean dayRevised : revised) {
+                    if (dayRevised) stale++;
+                }
+                result.mOpens++;
+                result.mTotalAgeAtOpenMillis += now - lastSync;
+                result.mTotalStaleDaysAtOpen += stale;
+                inputs.openHistogram[hourOfDay(now)]++;
+                openIndex++;
+            }
+        }
+
+        return result;
+    }
+
+    private static long nextDelay(boolean adaptive, AdaptiveSyncPolicy.Inputs inputs, long now) {
+        if (!adaptive) {
+            return (FIXED_WINDOW_START_MILLIS + FIXED_WINDOW_END_MILLIS) / 2;
+        }
+
+        int hour = hourOfDay(now);
+        boolean overnight = hour >= CHARGING_FROM_HOUR || hour < CHARGING_UNTIL_HOUR;
+        inputs.charging = overnight;
+        inputs.unmetered = overnight;
+
+        /* The job dispatcher may run the job anywhere in the window; assume the middle */
+        AdaptiveSyncPolicy.Window window = AdaptiveSyncPolicy.computeWindow(inputs, now, TIME_ZONE);
+        return (window.startDelayMillis + window.endDelayMillis) / 2;
+    }
+
+    static int hourOfDay(long timeMillis) {
+        Calendar calendar = Calendar.getInstance(TIME_ZONE);
+        calendar.setTimeInMillis(timeMillis);
+        return calendar.get(Calendar.HOUR_OF_DAY);
+    }
+
+    /**
+     * Opens at roughly the same times every day, with some jitter.
+     *
+     * @param hours Hours of the day the user opens the app, eg 7.25 for a quarter past seven
+     */
+    static long[] habitualOpens(long startMillis, int days, double[] hours, long jitterMillis,
+                                long seed) {
+        Random random = new Random(seed);
+        List<Long> opens = new ArrayList<>();
+        for (int day = 0; day < days; day++) {
+            for (double hour : hours) {
+                long jitter = (long) ((random.nextDouble() * 2 - 1) * jitterMillis);
+                opens.add(startMillis + day * DAY_MILLIS + (long) (hour * HOUR_MILLIS) + jitter);
+            }
+        }
+        return toSortedArray(opens);
+    }
+
+    /**
+     * Opens at random times between 8:00 and 23:00.
+     */
+    static long[] randomOpens(long startMillis, int days, int opensPerDay, long seed) {
+        Random random = new Random(seed);
+        List<Long> opens = new ArrayList<>();
+        for (int day = 0; day < days; day++) {
+            for (int i = 0; i < opensPerDay; i++) {
+                double hour = 8 + random.nextDouble() * 15;
+                opens.add(startMillis + day * DAY_MILLIS + (long) (hour * HOUR_MILLIS));
+            }
+        }
+        return toSortedArray(opens);
+    }
+
+    private static long[] toSortedArray(List<Long> list) {
+        long[] array = new long[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        Arrays.sort(array);
+        return array;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests {@link AdaptiveSyncPolicy} directly, then replays usage traces through
+ * {@link SyncScheduleSimulator} and compares the policy with the old fixed three-hour schedule
+ * in syncs per day and staleness at app open.
+ * <p>
+ * Simulation results are written to logcat under the SunshineBenchmark tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestAdaptiveSyncPolicy {
+
+    private static final String TAG = "SunshineBenchmark";
+
+    /* Monday 3 October 2016, 00:00 UTC */
+    private static final long SIMULATION_START = 1475452800000L;
+    private static final int SIMULATION_DAYS = 28;
+    private static final long SEED = 42;
+
+    private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /* Adaptive staleness at open may be at most this much worse than the fixed schedule's */
+    private static final double STALENESS_TOLERANCE = 0.01;
+
+    /* The forecast is revised rarely in the first and third week, often in the second and fourth */
+    private static final SyncScheduleSimulator.Volatility MIXED_VOLATILITY =
+            new SyncScheduleSimulator.Volatility() {
+                @Override
+                public double revisionProbability(long timeMillis) {
+                    long week = (timeMillis - SIMULATION_START) / TimeUnit.DAYS.toMillis(7);
+                    return week % 2 == 1 ? 0.15 : 0.01;
+                }
+            };
+
+    private static final SyncScheduleSimulator.Volatility STABLE_VOLATILITY =
+            new SyncScheduleSimulator.Volatility() {
+                @Override
+                public double revisionProbability(long timeMillis) {
+                    return 0.01;
+                }
+            };
+
+    @Test
+    public void testDefaultInputsMatchFixedSchedule() {
+        long interval = AdaptiveSyncPolicy.computeInterval(new AdaptiveSyncPolicy.Inputs());
+        assertEquals(3 * HOUR_MILLIS, interval, TimeUnit.MINUTES.toMillis(1));
+    }
+
+    @Test
+    public void testIntervalFollowsChangeRate() {
+        AdaptiveSyncPolicy.Inputs inputs = new AdaptiveSyncPolicy.Inputs();
+
+        inputs.changeRate = 0;
+        assertEquals(AdaptiveSyncPolicy.MAX_INTERVAL_MILLIS, AdaptiveSyncPolicy.computeInterval(inputs));
+
+        inputs.changeRate = 1;
+        assertEquals(AdaptiveSyncPolicy.MIN_INTERVAL_MILLIS, AdaptiveSyncPolicy.computeInterval(inputs));
+
+        inputs.changeRate = AdaptiveSyncPolicy.DEFAULT_CHANGE_RATE;
+        long uncharged = AdaptiveSyncPolicy.computeInterval(inputs);
+        inputs.charging = true;
+        inputs.unmetered = true;
+        assertTrue("Charging on unmetered should shorten the interval",
+                AdaptiveSyncPolicy.computeInterval(inputs) < uncharged);
+    }
+
+    @Test
+    public void testChangeRateAccountsForElapsedTime() {
+        double rate = AdaptiveSyncPolicy.DEFAULT_CHANGE_RATE;
+
+        /* The same fraction changing over a longer gap means a slower-changing forecast */
+        double afterShortGap = AdaptiveSyncPolicy.updateChangeRate(rate, 7, 14, 2 * HOUR_MILLIS);
+        double afterLongGap = AdaptiveSyncPolicy.updateChangeRate(rate, 7, 14, 12 * HOUR_MILLIS);
+        assertTrue(afterShortGap > afterLongGap);
+
+        assertEquals(rate, AdaptiveSyncPolicy.updateChangeRate(rate, 0, 0, HOUR_MILLIS));
+        assertEquals(rate, AdaptiveSyncPolicy.updateChangeRate(rate, 3, 14, 0));
+    }
+
+    @Test
+    public void testPrefetchesBeforeHabitualOpen() {
+        AdaptiveSyncPolicy.Inputs inputs = new AdaptiveSyncPolicy.Inputs();
+        inputs.changeRate = 0;
+        inputs.openHistogram[7] = 30;
+
+        /* At midnight, the next habitual open is at 7:00, well within the twelve hour interval */
+        long now = SIMULATION_START;
+        AdaptiveSyncPolicy.Window window = AdaptiveSyncPolicy.computeWindow(
+                inputs, now, SyncScheduleSimulator.TIME_ZONE);
+
+        assertTrue(window.prefetch);
+        assertEquals(7 * HOUR_MILLIS - AdaptiveSyncPolicy.PREFETCH_LEAD_MILLIS, window.endDelayMillis);
+        assertTrue(window.startDelayMillis < window.endDelayMillis);
+
+        /* Too few opens to trust */
+        inputs.openHistogram[7] = 3;
+        assertFalse(AdaptiveSyncPolicy.computeWindow(
+                inputs, now, SyncScheduleSimulator.TIME_ZONE).prefetch);
+    }
+
+    /**
+     * With a stable forecast, the adaptive policy must sync less than the fixed schedule for
+     * every trace, and users with habits must not see staler data.
+     */
+    @Test
+    public void simulateStableForecast() {
+        for (Trace trace : buildTraces()) {
+            SyncScheduleSimulator.Result fixed = simulate(trace, false, STABLE_VOLATILITY);
+            SyncScheduleSimulator.Result adaptive = simulate(trace, true, STABLE_VOLATILITY);
+
+            assertTrue(trace.mName + " should sync less when nothing changes",
+                    adaptive.getSyncsPerDay() < fixed.getSyncsPerDay());
+            if (trace.mHabitual) {
+                assertTrue(trace.mName + " should not see staler data",
+                        adaptive.getMeanStaleFractionAtOpen()
+                                <= fixed.getMeanStaleFractionAtOpen() + STALENESS_TOLERANCE);
+            }
+        }
+    }
+
+    /**
+     * With weeks of stable and volatile weather alternating, the adaptive policy spends its syncs
+     * where the forecast changes; users with habits must not see staler data than before.
+     */
+    @Test
+    public void simulateMixedForecast() {
+        for (Trace trace : buildTraces()) {
+            SyncScheduleSimulator.Result fixed = simulate(trace, false, MIXED_VOLATILITY);
+            SyncScheduleSimulator.Result adaptive = simulate(trace, true, MIXED_VOLATILITY);
+
+            if (trace.mHabitual) {
+                assertTrue(trace.mName + " should not see staler data",
+                        adaptive.getMeanStaleFractionAtOpen()
+                                <= fixed.getMeanStaleFractionAtOpen() + STALENESS_TOLERANCE);
+            }
+        }
+    }
+
+    private SyncScheduleSimulator.Result simulate(Trace trace, boolean adaptive,
+                                                  SyncScheduleSimulator.Volatility volatility) {
+        String name = trace.mName + (volatility == STABLE_VOLATILITY ? " stable" : " mixed")
+                + (adaptive ? " adaptive" : " fixed");
+        SyncScheduleSimulator.Result result = SyncScheduleSimulator.run(name, adaptive,
+                SIMULATION_START, SIMULATION_DAYS, trace.mOpens, volatility, SEED);
+        Log.i(TAG, result.toString());
+        return result;
+    }
+
+    private static Trace[] buildTraces() {
+        long jitter = TimeUnit.MINUTES.toMillis(15);
+        return new Trace[]{
+                new Trace("commuter", true, SyncScheduleSimulator.habitualOpens(
+                        SIMULATION_START, SIMULATION_DAYS, new double[]{7.25, 18.5}, jitter, 1)),
+                new Trace("evening", true, SyncScheduleSimulator.habitualOpens(
+                        SIMULATION_START, SIMULATION_DAYS, new double[]{21}, jitter, 2)),
+                new Trace("random", false, SyncScheduleSimulator.randomOpens(
+                        SIMULATION_START, SIMULATION_DAYS, 3, 3)),
+                new Trace("never", false, new long[0])
+        };
+    }
+
+    private static final class Trace {
+        final String mName;
+        final boolean mHabitual;
+        final long[] mOpens;
+
+        Trace(String name, boolean habitual, long[] opens) {
+            mName = name;
+            mHabitual = habitual;
+            mOpens = opens;
+        }
+    }
+}
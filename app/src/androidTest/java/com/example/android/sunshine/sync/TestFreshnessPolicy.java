@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.R;
+import com.example.android.sunshine.data.SunshinePreferences;
+import com.example.android.sunshine.data.TestUtilities;
+import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.data.WeatherContract.SyncMetricsEntry;
+import com.example.android.sunshine.utilities.NetworkUtils;
+import com.example.android.sunshine.utils.PollingCheck;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Verifies that {@link FreshnessPolicy} ages each dataset by its own time to live, that stale
+ * reads start one revalidation, or none if a sync is already on its way, and that the stale reads
+ * and the time they waited are recorded with the sync that refreshed the data.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestFreshnessPolicy {
+
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    /* How long the server holds a sync back, so that reads can happen while it is in flight */
+    private static final long SLOW_SYNC_MILLIS = 1000;
+
+    /* Long enough for a revalidation to have been started and recorded, had there been one */
+    private static final long SETTLE_MILLIS = 2000;
+
+    private static final String[] METRICS_PROJECTION = {
+            SyncMetricsEntry.COLUMN_TRIGGER,
+            SyncMetricsEntry.COLUMN_STALE_READS,
+            SyncMetricsEntry.COLUMN_REVALIDATION_NANOS
+    };
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private FakeForecastServer mServer;
+
+    private String mLocationKey;
+    private String mSavedLocation;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new FakeForecastServer();
+        NetworkUtils.setForecastBaseUrl(mServer.getBaseUrl());
+        mLocationKey = mContext.getString(R.string.pref_location_key);
+        mSavedLocation = TestUtilities.getSharedPreferences(mContext).getString(mLocationKey, null);
+        SunshinePreferences.resetLocationCoordinates(mContext);
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(SyncMetricsEntry.CONTENT_URI, null, null);
+
+        mServer.reset();
+        assertTrue(SunshineSyncTask.syncWeather(mContext).isSuccessful());
+    }
+
+    @After
+    public void tearDown() {
+        NetworkUtils.setForecastBaseUrl(null);
+        SharedPreferences.Editor editor = TestUtilities.getSharedPreferences(mContext).edit();
+        if (mSavedLocation == null) {
+            editor.remove(mLocationKey);
+        } else {
+            editor.putString(mLocationKey, mSavedLocation);
+        }
+        editor.commit();
+        SunshinePreferences.resetLocationCoordinates(mContext);
+        mServer.shutdown();
+    }
+
+    @Test
+    public void testTimeToLiveIsPerDataset() {
+        long now = System.currentTimeMillis();
+        assertFalse(FreshnessPolicy.isStale(mContext, FreshnessPolicy.DATASET_FORECAST, now));
+        assertFalse(FreshnessPolicy.isStale(mContext, FreshnessPolicy.DATASET_TODAY, now));
+
+        assertFalse("The forecast should outlive today's weather",
+                FreshnessPolicy.isStale(mContext, FreshnessPolicy.DATASET_FORECAST, now + HOUR));
+        assertTrue(FreshnessPolicy.isStale(mContext, FreshnessPolicy.DATASET_TODAY, now + HOUR));
+
+        assertTrue(FreshnessPolicy.isStale(mContext, FreshnessPolicy.DATASET_FORECAST,
+                now + 3 * HOUR));
+    }
+
+    @Test
+    public void testUnusableForecastIsStale() {
+        setLocation("Mountain View, CA");
+        assertTrue("A forecast for another location is stale however recent",
+                FreshnessPolicy.isStale(mContext, FreshnessPolicy.DATASET_FORECAST,
+                        System.currentTimeMillis()));
+    }
+
+    @Test
+    public void testFreshReadIsNotCounted() {
+        assertFalse(FreshnessPolicy.getInstance().onRead(mContext,
+                FreshnessPolicy.DATASET_FORECAST));
+
+        SyncReport report = SunshineSyncTask.syncWeather(mContext);
+        assertEquals(0, report.getStaleReads());
+        assertEquals(0, report.getRevalidationNanos());
+    }
+
+    /* Several screens find the forecast stale; one revalidation refreshes it for all of them */
+    @Test
+    public void testStaleReadsAreRevalidatedOnce() {
+        ageForecast(4 * HOUR);
+        mServer.setLatencyMillis(SLOW_SYNC_MILLIS);
+
+        FreshnessPolicy policy = FreshnessPolicy.getInstance();
+        assertTrue(policy.onRead(mContext, FreshnessPolicy.DATASET_FORECAST));
+        assertTrue(policy.onRead(mContext, FreshnessPolicy.DATASET_TODAY));
+        assertTrue(policy.onRead(mContext, FreshnessPolicy.DATASET_FORECAST));
+
+        awaitSyncs(2);
+        SystemClock.sleep(SETTLE_MILLIS);
+
+        Cursor syncs = querySyncs();
+        try {
+            assertEquals("Only one revalidation should have run", 2, syncs.getCount());
+            assertTrue(syncs.moveToLast());
+            assertEquals(SyncMetricsEntry.TRIGGER_REVALIDATE, syncs.getString(0));
+            assertEquals(3, syncs.getLong(1));
+            assertTrue("The wait should include the slow sync",
+                    syncs.getLong(2) >= TimeUnit.MILLISECONDS.toNanos(SLOW_SYNC_MILLIS));
+        } finally {
+            syncs.close();
+        }
+        assertFalse(policy.onRead(mContext, FreshnessPolicy.DATASET_FORECAST));
+    }
+
+    /* A read while a sync is in flight waits for that sync rather than starting another */
+    @Test
+    public void testRevalidationJoinsSyncInFlight() throws Exception {
+        ageForecast(4 * HOUR);
+        mServer.setLatencyMillis(SLOW_SYNC_MILLIS);
+
+        SyncExecutor.SyncHandle handle = SyncExecutor.getInstance()
+                .execute(mContext, SyncMetricsEntry.TRIGGER_SCHEDULED, null);
+        assertTrue(SyncExecutor.getInstance().isSyncInFlight());
+        assertTrue(FreshnessPolicy.getInstance().onRead(mContext,
+                FreshnessPolicy.DATASET_FORECAST));
+
+        SyncReport report = handle.await(10, TimeUnit.SECONDS);
+        assertNotNull(report);
+        assertTrue(report.isSuccessful());
+        assertEquals(1, report.getStaleReads());
+        assertTrue(report.getRevalidationNanos() > 0);
+
+        SystemClock.sleep(SETTLE_MILLIS);
+        Cursor syncs = querySyncs();
+        try {
+            assertEquals("The revalidation should have been dropped", 2, syncs.getCount());
+            assertTrue(syncs.moveToLast());
+            assertEquals(SyncMetricsEntry.TRIGGER_SCHEDULED, syncs.getString(0));
+        } finally {
+            syncs.close();
+        }
+    }
+
+    /* Moves the last sync back in time, as if the app had been idle since */
+    private void ageForecast(long ageMillis) {
+        SunshinePreferences.setSyncFreshness(mContext,
+                SunshinePreferences.getLastSyncTime(mContext) - ageMillis,
+                SunshinePreferences.getLastCoveredDate(mContext),
+                SunshinePreferences.getPreferredWeatherLocation(mContext));
+    }
+
+    private void awaitSyncs(final int count) {
+        new PollingCheck(10000) {
+            @Override
+            protected boolean check() {
+                Cursor syncs = querySyncs();
+                try {
+                    return syncs.getCount() >= count;
+                } finally {
+                    syncs.close();
+                }
+            }
+        }.run();
+    }
+
+    /* The syncs recorded since setUp, oldest first */
+    private Cursor querySyncs() {
+        Cursor cursor = mContext.getContentResolver().query(SyncMetricsEntry.CONTENT_URI,
+                METRICS_PROJECTION, null, null, SyncMetricsEntry._ID + " ASC");
+        assertNotNull(cursor);
+        return cursor;
+    }
+
+    /* Changes the location setting, as the settings screen does, without switching to it */
+    private void setLocation(String location) {
+        TestUtilities.getSharedPreferences(mContext).edit()
+                .putString(mLocationKey, location).commit();
+    }
+}
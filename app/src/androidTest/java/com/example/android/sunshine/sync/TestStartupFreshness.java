@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.R;
+import com.example.android.sunshine.data.SunshinePreferences;
+import com.example.android.sunshine.data.TestUtilities;
+import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.data.WeatherDbHelper;
+import com.example.android.sunshine.utilities.NetworkUtils;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.utils.LatencyStats;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Verifies the freshness record the sync keeps for the cold-start check, then compares the cost
+ * of {@link SunshineSyncUtils#isSyncNeeded(Context)} with the check it replaced: a query for
+ * today's weather on a freshly opened database, run on its own thread.
+ * <p>
+ * Results are written to logcat under the SunshineBenchmark tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestStartupFreshness {
+
+    private static final String TAG = "SunshineBenchmark";
+
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASURED_ITERATIONS = 50;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private FakeForecastServer mServer;
+
+    private String mLocationKey;
+    private String mSavedLocation;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new FakeForecastServer();
+        NetworkUtils.setForecastBaseUrl(mServer.getBaseUrl());
+        mLocationKey = mContext.getString(R.string.pref_location_key);
+        mSavedLocation = TestUtilities.getSharedPreferences(mContext).getString(mLocationKey, null);
+        SunshinePreferences.resetLocationCoordinates(mContext);
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+    }
+
+    @After
+    public void tearDown() {
+        NetworkUtils.setForecastBaseUrl(null);
+        SharedPreferences.Editor editor = TestUtilities.getSharedPreferences(mContext).edit();
+        if (mSavedLocation == null) {
+            editor.remove(mLocationKey);
+        } else {
+            editor.putString(mLocationKey, mSavedLocation);
+        }
+        editor.commit();
+        SunshinePreferences.resetLocationCoordinates(mContext);
+        mServer.shutdown();
+    }
+
+    @Test
+    public void testSyncMaintainsFreshnessRecord() {
+        mServer.reset();
+        assertTrue("A cleared forecast should need a sync",
+                SunshineSyncUtils.isSyncNeeded(mContext));
+
+        assertTrue(SunshineSyncTask.syncWeather(mContext).isSuccessful());
+        assertFalse("A freshly synced forecast should not need a sync",
+                SunshineSyncUtils.isSyncNeeded(mContext));
+
+        /* The record must agree with what the old query would have found */
+        assertTrue(SunshinePreferences.getLastCoveredDate(mContext)
+                >= SunshineDateUtils.normalizeDate(System.currentTimeMillis()));
+        assertTrue(hasWeatherFromTodayOnwards());
+    }
+
+    @Test
+    public void testLocationChangeNeedsSync() {
+        mServer.reset();
+        assertTrue(SunshineSyncTask.syncWeather(mContext).isSuccessful());
+
+        setLocation("Mountain View, CA");
+        assertTrue("A forecast for another location should need a sync",
+                SunshineSyncUtils.isSyncNeeded(mContext));
+    }
+
+    /*
+     * The parse replaces the coordinates with those of the response, so the record has to name
+     * the location setting for the first switch to recognise the stored forecast as its own.
+     */
+    @Test
+    public void testFirstSwitchAdoptsSyncedForecast() {
+        mServer.reset();
+        assertTrue(SunshineSyncTask.syncWeather(mContext).isSuccessful());
+        assertTrue(SunshinePreferences.isLocationLatLonAvailable(mContext));
+
+        /* Forget the saved locations, as a database from before they existed would have none */
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        try {
+            dbHelper.getWritableDatabase()
+                    .delete(WeatherContract.LocationEntry.TABLE_NAME, null, null);
+        } finally {
+            dbHelper.close();
+        }
+
+        ContentValues location = new ContentValues();
+        location.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+                SunshinePreferences.getPreferredWeatherLocation(mContext));
+        assertNotNull(mContext.getContentResolver()
+                .insert(WeatherContract.LocationEntry.CONTENT_URI, location));
+        assertTrue("The synced forecast should be kept", hasWeatherFromTodayOnwards());
+        assertFalse(SunshineSyncUtils.isSyncNeeded(mContext));
+    }
+
+    @Test
+    public void testPastForecastNeedsSync() {
+        mServer.reset();
+        assertTrue(SunshineSyncTask.syncWeather(mContext).isSuccessful());
+
+        long yesterday = SunshineDateUtils.normalizeDate(System.currentTimeMillis())
+                - SunshineDateUtils.DAY_IN_MILLIS;
+        SunshinePreferences.setSyncFreshness(mContext,
+                SunshinePreferences.getLastSyncTime(mContext),
+                yesterday,
+                SunshinePreferences.getPreferredWeatherLocation(mContext));
+        assertTrue("A forecast that ended yesterday should need a sync",
+                SunshineSyncUtils.isSyncNeeded(mContext));
+    }
+
+    /* The sync clears the record along with the forecast, in case it fails before the insert */
+    @Test
+    public void testDeletingWeatherClearsFreshnessRecord() {
+        mServer.reset();
+        assertTrue(SunshineSyncTask.syncWeather(mContext).isSuccessful());
+
+        assertTrue(SunshineSyncTask.deleteForecast(mContext, mContext.getContentResolver()) > 0);
+        assertTrue("Deleted weather should need a sync",
+                SunshineSyncUtils.isSyncNeeded(mContext));
+    }
+
+    /**
+     * Measures both checks on a synced forecast. The old check opens the database from scratch
+     * each time, as it would on a cold start.
+     */
+    @Test
+    public void benchmarkStartupCheck() throws Exception {
+        mServer.reset();
+        assertTrue(SunshineSyncTask.syncWeather(mContext).isSuccessful());
+
+        LatencyStats queryStats = new LatencyStats("startup check, query on new thread");
+        LatencyStats recordStats = new LatencyStats("startup check, freshness record");
+
+        for (int i = 0; i < WARMUP_ITERATIONS + MEASURED_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            boolean queryNeedsSync = queryCheckOnNewThread();
+            long queryNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            boolean recordNeedsSync = SunshineSyncUtils.isSyncNeeded(mContext);
+            long recordNanos = System.nanoTime() - start;
+
+            assertFalse(queryNeedsSync);
+            assertFalse(recordNeedsSync);
+
+            if (i >= WARMUP_ITERATIONS) {
+                queryStats.add(queryNanos);
+                recordStats.add(recordNanos);
+            }
+        }
+
+        queryStats.report();
+        recordStats.report();
+        Log.i(TAG, "startup check speedup at p50: "
+                + queryStats.percentile(50) / Math.max(1, recordStats.percentile(50)) + "x");
+
+        assertTrue("The freshness record should be cheaper than the query",
+                recordStats.percentile(50) < queryStats.percentile(50));
+    }
+
+    /**
+     * The check initialize used to make: spawn a thread, open the database and look for any
+     * weather from today onwards.
+     */
+    private boolean queryCheckOnNewThread() throws InterruptedException {
+        final boolean[] needsSync = new boolean[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+                SQLiteDatabase database = dbHelper.getReadableDatabase();
+                Cursor cursor = database.query(
+                        WeatherContract.WeatherEntry.TABLE_NAME,
+                        new String[]{WeatherContract.WeatherEntry._ID},
+                        WeatherContract.WeatherEntry.COLUMN_DATE + " >= ?",
+                        new String[]{Long.toString(SunshineDateUtils.normalizeDate(
+                                System.currentTimeMillis()))},
+                        null,
+                        null,
+                        null);
+                needsSync[0] = cursor.getCount() == 0;
+                cursor.close();
+                dbHelper.close();
+            }
+        });
+        thread.start();
+        thread.join();
+        return needsSync[0];
+    }
+
+    private boolean hasWeatherFromTodayOnwards() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherTodayOnwardsUri(),
+                new String[]{WeatherContract.WeatherEntry._ID},
+                null,
+                null,
+                null);
+        assertNotNull(cursor);
+        boolean hasWeather = cursor.getCount() > 0;
+        cursor.close();
+        return hasWeather;
+    }
+
+    /* Changes the location setting, as the settings screen does, without switching to it */
+    private void setLocation(String location) {
+        TestUtilities.getSharedPreferences(mContext).edit()
+                .putString(mLocationKey, location).commit();
+    }
+}
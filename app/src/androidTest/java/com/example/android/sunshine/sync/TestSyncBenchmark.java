@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.utilities.NetworkUtils;
+import com.example.android.sunshine.utils.LatencyStats;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * End-to-end benchmark of {@link SunshineSyncTask#syncWeather}. Every sync runs against a
+ * {@link FakeForecastServer} on the loopback interface, so the numbers reflect Sunshine's own
+ * work plus whatever latency the server is configured to add, not the state of the network.
+ * <p>
+ * Results are written to logcat under the SunshineBenchmark tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestSyncBenchmark {
+
+    private static final String TAG = "SunshineBenchmark";
+
+    private static final int WARMUP_SYNCS = 5;
+    private static final int MEASURED_SYNCS = 50;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private FakeForecastServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new FakeForecastServer();
+        NetworkUtils.setForecastBaseUrl(mServer.getBaseUrl());
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+    }
+
+    @After
+    public void tearDown() {
+        NetworkUtils.setForecastBaseUrl(null);
+        mServer.shutdown();
+    }
+
+    /**
+     * Reports p50/p95/p99 of the whole sync and of each stage for a range of payload sizes.
+     */
+    @Test
+    public void benchmarkSyncLatencyByStage() {
+        int[] payloadDays = {1, 7, 14, 16};
+        for (int days : payloadDays) {
+            mServer.reset().setDays(days);
+            runLatencyBenchmark("days=" + days);
+        }
+    }
+
+    /**
+     * Same as {@link #benchmarkSyncLatencyByStage()}, but with round-trip latency added on the
+     * server so the fetch stage dominates.
+     */
+    @Test
+    public void benchmarkSyncLatencyWithServerLatency() {
+        mServer.reset().setLatencyMillis(50);
+        runLatencyBenchmark("latency=50ms");
+    }
+
+    /**
+     * Measures how many back-to-back syncs complete per second.
+     */
+    @Test
+    public void benchmarkSyncThroughput() {
+        mServer.reset();
+        for (int i = 0; i < WARMUP_SYNCS; i++) {
+            SunshineSyncTask.syncWeather(mContext);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_SYNCS; i++) {
+            assertTrue(SunshineSyncTask.syncWeather(mContext).isSuccessful());
+        }
+        long elapsedNanos = System.nanoTime() - start;
+
+        double syncsPerSecond = MEASURED_SYNCS / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1));
+        Log.i(TAG, "throughput: " + syncsPerSecond + " syncs/s over " + MEASURED_SYNCS + " syncs");
+    }
+
+    @Test
+    public void testHttpErrorFailsSyncAndKeepsData() {
+        mServer.reset();
+        assertTrue(SunshineSyncTask.syncWeather(mContext).isSuccessful());
+        int rowsBefore = countWeatherRows();
+
+        mServer.setHttpStatus(500);
+        SyncReport report = SunshineSyncTask.syncWeather(mContext);
+
+        assertFalse("A 500 from the server should fail the sync", report.isSuccessful());
+        assertEquals("A failed fetch must not touch the database", rowsBefore, countWeatherRows());
+    }
+
+    @Test
+    public void testErrorCodeBodyFailsSyncAndKeepsData() {
+        mServer.reset();
+        assertTrue(SunshineSyncTask.syncWeather(mContext).isSuccessful());
+        int rowsBefore = countWeatherRows();
+
+        mServer.setErrorCode(404);
+        SyncReport report = SunshineSyncTask.syncWeather(mContext);
+
+        assertFalse("An error cod in the body should fail the sync", report.isSuccessful());
+        assertEquals(0, report.getRowsDeleted());
+        assertEquals(rowsBefore, countWeatherRows());
+    }
+
+    @Test
+    public void testTruncatedBodyFailsSync() {
+        mServer.reset().setTruncateBody(true);
+        SyncReport report = SunshineSyncTask.syncWeather(mContext);
+        assertFalse("A truncated body should fail the sync", report.isSuccessful());
+        assertEquals(0, countWeatherRows());
+    }
+
+    @Test
+    public void testSlowDripCompletes() {
+        mServer.reset().setDays(7).setSlowDrip(256, 5);
+        SyncReport report = SunshineSyncTask.syncWeather(mContext);
+        assertTrue(report.isSuccessful());
+        assertEquals(7, report.getRowsInserted());
+        Log.i(TAG, "slow drip fetch: "
+                + TimeUnit.NANOSECONDS.toMillis(report.getStageNanos(SyncReport.STAGE_FETCH)) + "ms");
+    }
+
+    private void runLatencyBenchmark(String label) {
+        for (int i = 0; i < WARMUP_SYNCS; i++) {
+            SunshineSyncTask.syncWeather(mContext);
+        }
+
+        LatencyStats total = new LatencyStats(label + " total");
+        LatencyStats[] stages = new LatencyStats[SyncReport.STAGE_COUNT];
+        for (int stage = 0; stage < SyncReport.STAGE_COUNT; stage++) {
+            stages[stage] = new LatencyStats(label + " " + SyncReport.getStageName(stage));
+        }
+
+        for (int i = 0; i < MEASURED_SYNCS; i++) {
+            SyncReport report = SunshineSyncTask.syncWeather(mContext);
+            assertTrue("Sync failed: " + report.getFailure(), report.isSuccessful());
+
+            total.add(report.getTotalNanos());
+            for (int stage = 0; stage < SyncReport.STAGE_COUNT; stage++) {
+                stages[stage].add(report.getStageNanos(stage));
+            }
+        }
+
+        total.report();
+        for (LatencyStats stage : stages) {
+            stage.report();
+        }
+    }
+
+    private int countWeatherRows() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                new String[]{WeatherContract.WeatherEntry._ID},
+                null,
+                null,
+                null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+}
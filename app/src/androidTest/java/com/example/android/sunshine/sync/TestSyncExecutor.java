@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.v4.os.CancellationSignal;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.utilities.NetworkUtils;
+import com.example.android.sunshine.utils.PollingCheck;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Verifies that {@link SyncExecutor} stops a sync promptly when it is cancelled, even while the
+ * sync is blocked on the network, and that a sync reports its result exactly once.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestSyncExecutor {
+
+    /* Cancellation must release the sync thread well within this bound */
+    private static final long CANCEL_BOUND_MILLIS = 2000;
+
+    /* How long to let a sync run before cancelling it, so that it is blocked on the network */
+    private static final long CANCEL_AFTER_MILLIS = 300;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private FakeForecastServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new FakeForecastServer();
+        NetworkUtils.setForecastBaseUrl(mServer.getBaseUrl());
+        mContext.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+    }
+
+    @After
+    public void tearDown() {
+        NetworkUtils.setForecastBaseUrl(null);
+        SyncExecutor.setRefreshStep(null);
+        mServer.shutdown();
+    }
+
+    /**
+     * The server waits half a minute before answering. Cancelling must not wait for it.
+     */
+    @Test
+    public void testCancelWhileWaitingForResponseIsBounded() throws Exception {
+        mServer.reset().setLatencyMillis(TimeUnit.SECONDS.toMillis(30));
+        assertCancellationIsBounded();
+    }
+
+    /**
+     * The server sends the body a few bytes at a time. Cancelling must abort the read.
+     */
+    @Test
+    public void testCancelWhileReadingBodyIsBounded() throws Exception {
+        mServer.reset().setDays(16).setSlowDrip(16, 200);
+        assertCancellationIsBounded();
+    }
+
+    @Test
+    public void testFinishedSyncReportsExactlyOnce() throws Exception {
+        mServer.reset();
+        CountingCallback callback = new CountingCallback();
+
+        SyncExecutor.SyncHandle handle = SyncExecutor.getInstance().execute(
+                mContext, WeatherContract.SyncMetricsEntry.TRIGGER_SCHEDULED, callback);
+        SyncReport report = handle.await(CANCEL_BOUND_MILLIS * 5, TimeUnit.MILLISECONDS);
+
+        assertNotNull("Sync did not finish", report);
+        assertTrue(report.isSuccessful());
+        assertFalse("Cancelling a finished sync should not ask for a reschedule", handle.cancel());
+        assertEquals(1, callback.getCount());
+    }
+
+    /**
+     * The periodic sync succeeds but refreshing the saved locations throws. The sync must still
+     * stop and report a failed result exactly once, or the job would never be finished.
+     */
+    @Test
+    public void testFailingRefreshStillReports() throws Exception {
+        mServer.reset();
+        final IllegalStateException failure = new IllegalStateException("refresh failed");
+        SyncExecutor.setRefreshStep(new SyncExecutor.RefreshStep() {
+            @Override
+            public void refresh(Context context, CancellationSignal signal) {
+                throw failure;
+            }
+        });
+        final CountingCallback callback = new CountingCallback();
+
+        SyncExecutor.SyncHandle handle = SyncExecutor.getInstance().execute(
+                mContext, WeatherContract.SyncMetricsEntry.TRIGGER_SCHEDULED, callback);
+        SyncReport report = handle.await(CANCEL_BOUND_MILLIS * 5, TimeUnit.MILLISECONDS);
+
+        assertNotNull("Sync did not stop", report);
+        assertFalse(report.isSuccessful());
+        assertSame(failure, report.getFailure());
+        assertFalse(SyncExecutor.getInstance().isSyncInFlight());
+
+        /* The callback runs just after the sync stops */
+        PollingCheck.check("The failed sync never reported", CANCEL_BOUND_MILLIS,
+                new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return callback.getCount() > 0;
+                    }
+                });
+        assertEquals(1, callback.getCount());
+        assertSame(report, callback.getReport());
+    }
+
+    private void assertCancellationIsBounded() throws Exception {
+        CountingCallback callback = new CountingCallback();
+
+        SyncExecutor.SyncHandle handle = SyncExecutor.getInstance().execute(
+                mContext, WeatherContract.SyncMetricsEntry.TRIGGER_SCHEDULED, callback);
+        Thread.sleep(CANCEL_AFTER_MILLIS);
+
+        long cancelStart = System.nanoTime();
+        assertTrue("The sync should still have been running", handle.cancel());
+        SyncReport report = handle.await(CANCEL_BOUND_MILLIS, TimeUnit.MILLISECONDS);
+        long cancelMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - cancelStart);
+
+        assertNotNull("Sync did not stop within " + CANCEL_BOUND_MILLIS + "ms", report);
+        assertTrue("Sync stopped after " + cancelMillis + "ms", cancelMillis < CANCEL_BOUND_MILLIS);
+        assertTrue("Report should say the sync was cancelled: " + report.getFailure(),
+                report.isCanceled());
+        assertEquals("A cancelled fetch must not touch the database", 0, countWeatherRows());
+        assertEquals("A cancelled sync must not report its result", 0, callback.getCount());
+    }
+
+    private int countWeatherRows() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                new String[]{WeatherContract.WeatherEntry._ID},
+                null,
+                null,
+                null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    private static class CountingCallback implements SyncExecutor.Callback {
+
+        private final AtomicInteger mCount = new AtomicInteger();
+        private volatile SyncReport mReport;
+
+        @Override
+        public void onSyncFinished(SyncReport report) {
+            mReport = report;
+            mCount.incrementAndGet();
+        }
+
+        int getCount() {
+            return mCount.get();
+        }
+
+        SyncReport getReport() {
+            return mReport;
+        }
+    }
+}
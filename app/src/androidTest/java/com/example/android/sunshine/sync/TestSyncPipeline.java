@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v4.os.CancellationSignal;
+import android.util.Log;
+
+import com.example.android.sunshine.data.TestUtilities;
+import com.example.android.sunshine.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.data.WeatherContract.LocationWeatherEntry;
+import com.example.android.sunshine.data.WeatherDbHelper;
+import com.example.android.sunshine.utilities.NetworkUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Checks that {@link SyncPipeline} writes every parked location it is given, survives bad
+ * responses, keeps several requests in flight and stops when cancelled, and measures how its
+ * throughput scales with the number of fetchers. Every request goes to a
+ * {@link FakeForecastServer} on the loopback interface, with round-trip latency added so that
+ * fetching dominates, as it does on a real network.
+ * <p>
+ * Results are written to logcat under the SunshineBenchmark tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestSyncPipeline {
+
+    private static final String TAG = "SunshineBenchmark";
+
+    private static final int LOCATIONS = 12;
+    private static final int FORECAST_DAYS = 14;
+
+    private static final long LATENCY_MILLIS = 50;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private FakeForecastServer mServer;
+    private SQLiteDatabase mDatabase;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new FakeForecastServer();
+        NetworkUtils.setForecastBaseUrl(mServer.getBaseUrl());
+        mDatabase = new WeatherDbHelper(mContext).getWritableDatabase();
+        TestUtilities.clearLocations(mDatabase, mContext.getContentResolver());
+    }
+
+    @After
+    public void tearDown() {
+        TestUtilities.clearLocations(mDatabase, mContext.getContentResolver());
+        mDatabase.close();
+        NetworkUtils.setForecastBaseUrl(null);
+        mServer.shutdown();
+    }
+
+    @Test
+    public void testWritesEveryParkedLocation() {
+        List<SyncPipeline.Location> locations = insertParkedLocations(LOCATIONS);
+        assertEquals(LOCATIONS, SyncPipeline.getStaleLocations(
+                mContext, System.currentTimeMillis()).size());
+
+        PipelineReport report = new SyncPipeline(mContext, 4, 1, 2, 3).run(locations, null);
+
+        assertEquals(LOCATIONS, report.getLocationsSynced());
+        assertEquals(0, report.getLocationsFailed());
+        assertEquals(LOCATIONS * FORECAST_DAYS, report.getRowsWritten());
+        assertTrue("Locations should be grouped into transactions",
+                report.getTransactions() < LOCATIONS);
+        for (SyncPipeline.Location location : locations) {
+            assertEquals(FORECAST_DAYS, countPartition(location.mId));
+        }
+
+        /* Freshly synced, so none of them are due again */
+        assertEquals(0, SyncPipeline.getStaleLocations(
+                mContext, System.currentTimeMillis()).size());
+    }
+
+    @Test
+    public void testActiveLocationIsSkipped() {
+        List<SyncPipeline.Location> locations = insertParkedLocations(2);
+        ContentValues active = new ContentValues();
+        active.put(LocationEntry.COLUMN_ACTIVE, 1);
+        mDatabase.update(LocationEntry.TABLE_NAME, active, LocationEntry._ID + " = ?",
+                new String[]{Long.toString(locations.get(0).mId)});
+
+        new SyncPipeline(mContext).run(locations, null);
+
+        assertEquals(0, countPartition(locations.get(0).mId));
+        assertEquals(FORECAST_DAYS, countPartition(locations.get(1).mId));
+    }
+
+    /*
+     * A location the user switches to while its refresh is under way is left out of the
+     * transaction that writes it, and the other locations of that transaction are still written
+     */
+    @Test
+    public void testLocationActivatedMidRunKeepsBatch() throws Exception {
+        final List<SyncPipeline.Location> locations = insertParkedLocations(LOCATIONS);
+        mServer.setLatencyMillis(LATENCY_MILLIS);
+
+        /* Every location goes in one transaction, written only once all are fetched */
+        Thread activation = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (mServer.getRequestCount() == 0) {
+                    Thread.yield();
+                }
+                ContentValues location = new ContentValues();
+                location.put(LocationEntry.COLUMN_LOCATION_SETTING,
+                        locations.get(0).mLocationSetting);
+                mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, location);
+            }
+        });
+        activation.start();
+        PipelineReport report =
+                new SyncPipeline(mContext, 4, 1, 2, LOCATIONS).run(locations, null);
+        activation.join();
+
+        assertEquals(1, report.getTransactions());
+        assertEquals(LOCATIONS - 1, report.getLocationsSynced());
+        assertEquals(1, report.getLocationsSkipped());
+        assertEquals(0, report.getLocationsFailed());
+        assertEquals(0, countPartition(locations.get(0).mId));
+        assertEquals("The active location's freshness record belongs to the weather table",
+                0, DatabaseUtils.longForQuery(mDatabase,
+                        "SELECT " + LocationEntry.COLUMN_LAST_SYNC_TIME + " FROM "
+                                + LocationEntry.TABLE_NAME + " WHERE " + LocationEntry._ID
+                                + " = ?", new String[]{Long.toString(locations.get(0).mId)}));
+        for (SyncPipeline.Location location : locations.subList(1, LOCATIONS)) {
+            assertEquals(FORECAST_DAYS, countPartition(location.mId));
+        }
+    }
+
+    @Test
+    public void testErrorResponsesFailWithoutWriting() {
+        List<SyncPipeline.Location> locations = insertParkedLocations(LOCATIONS);
+        mServer.setErrorCode(404);
+
+        PipelineReport report = new SyncPipeline(mContext).run(locations, null);
+
+        assertEquals(0, report.getLocationsSynced());
+        assertEquals(LOCATIONS, report.getLocationsFailed());
+        assertEquals(0, report.getTransactions());
+        assertEquals(LOCATIONS, SyncPipeline.getStaleLocations(
+                mContext, System.currentTimeMillis()).size());
+    }
+
+    @Test
+    public void testCancelStopsPipeline() throws Exception {
+        List<SyncPipeline.Location> locations = insertParkedLocations(LOCATIONS);
+        mServer.setLatencyMillis(10000);
+
+        final CancellationSignal signal = new CancellationSignal();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException ignored) {
+                }
+                signal.cancel();
+            }
+        }).start();
+
+        long startNanos = System.nanoTime();
+        PipelineReport report = new SyncPipeline(mContext).run(locations, signal);
+        long elapsedMillis = (System.nanoTime() - startNanos) / 1000000;
+
+        assertTrue(report.isCanceled());
+        assertEquals(0, report.getLocationsSynced());
+        assertTrue("Cancelling should abort the requests in flight, took " + elapsedMillis
+                + "ms", elapsedMillis < 5000);
+    }
+
+    @Test
+    public void testFetchersOverlap() {
+        mServer.setLatencyMillis(LATENCY_MILLIS);
+
+        new SyncPipeline(mContext, 1, 1, 2, 3).run(insertParkedLocations(LOCATIONS), null);
+        assertEquals("A single fetcher should have one request in flight at a time",
+                1, mServer.getMaxRequestsInFlight());
+
+        TestUtilities.clearLocations(mDatabase, mContext.getContentResolver());
+        mServer.reset();
+        mServer.setLatencyMillis(LATENCY_MILLIS);
+        new SyncPipeline(mContext, 4, 1, 2, 3).run(insertParkedLocations(LOCATIONS), null);
+        int maxInFlight = mServer.getMaxRequestsInFlight();
+        assertTrue("Fetchers should have requests in flight at the same time, at most "
+                + maxInFlight + " were", maxInFlight > 1);
+    }
+
+    /**
+     * Syncs the same locations with 1, 2, 4 and 8 fetchers. With the server's latency
+     * dominating, throughput should grow with the number of requests in flight until the parser
+     * or the writer becomes the bottleneck, which the utilization of each stage shows. The
+     * numbers depend on the device, so they are only logged; {@link #testFetchersOverlap()}
+     * checks that fetches actually run at the same time.
+     */
+    @Test
+    public void benchmarkThroughputByConcurrency() {
+        int[] fetchers = {1, 2, 4, 8};
+        mServer.setLatencyMillis(LATENCY_MILLIS);
+
+        for (int i = 0; i < fetchers.length; i++) {
+            TestUtilities.clearLocations(mDatabase, mContext.getContentResolver());
+            List<SyncPipeline.Location> locations = insertParkedLocations(LOCATIONS * 2);
+
+            PipelineReport report = new SyncPipeline(mContext, fetchers[i],
+                    SyncPipeline.DEFAULT_PARSERS, SyncPipeline.DEFAULT_QUEUE_CAPACITY,
+                    SyncPipeline.DEFAULT_LOCATIONS_PER_TRANSACTION).run(locations, null);
+            assertEquals(locations.size(), report.getLocationsSynced());
+
+            Log.i(TAG, "sync pipeline, fetchers=" + fetchers[i] + ", latency="
+                    + LATENCY_MILLIS + "ms: " + report);
+        }
+    }
+
+    private List<SyncPipeline.Location> insertParkedLocations(int count) {
+        List<SyncPipeline.Location> locations = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String setting = "pipeline-location-" + i;
+            ContentValues location = new ContentValues();
+            location.put(LocationEntry.COLUMN_LOCATION_SETTING, setting);
+            location.put(LocationEntry.COLUMN_ACTIVE, 0);
+            location.put(LocationEntry.COLUMN_LAST_USED, i);
+            location.put(LocationEntry.COLUMN_LAST_SYNC_TIME, 0);
+            location.put(LocationEntry.COLUMN_LAST_COVERED_DATE, 0);
+            long id = mDatabase.insertOrThrow(LocationEntry.TABLE_NAME, null, location);
+            locations.add(new SyncPipeline.Location(id, setting));
+        }
+        return locations;
+    }
+
+    private long countPartition(long id) {
+        return DatabaseUtils.queryNumEntries(mDatabase, LocationWeatherEntry.TABLE_NAME,
+                LocationWeatherEntry.COLUMN_LOCATION_ID + " = ?",
+                new String[]{Long.toString(id)});
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.os.Build;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.sunshine.data.SunshinePreferences;
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.utils.ForecastJsonFactory;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.util.Scanner;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Regression and performance suite for {@link OpenWeatherJsonUtils}.
+ * <p>
+ * The payloads live in the androidTest assets under forecast/ and are listed, together with the
+ * values we expect to parse out of them, in forecast/corpus.json. Large "hourly scale" payloads
+ * are generated with {@link ForecastJsonFactory} from a fixed seed instead of being checked in.
+ * <p>
+ * Each run writes the measured parse time and allocation of both parsers for every payload to
+ * parse_results.json in the app's external files directory so the numbers can be collected and
+ * compared across builds. Absolute numbers depend on the device, so they are never asserted;
+ * what is asserted is that on hourly scale payloads the streaming reader is not slower per row
+ * than the tree parser measured on the same device in the same run.
+ * <p>
+ * Parsing stores the coordinates of the forecast's city, so the ones set before each test are
+ * put back after it.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestOpenWeatherJsonUtils {
+
+    private static final String TAG = "SunshineBenchmark";
+
+    private static final String CORPUS_MANIFEST = "forecast/corpus.json";
+    private static final String RESULTS_FILE_NAME = "parse_results.json";
+
+    /* The parsers being compared: getWeatherContentValuesFromJson and readWeatherContentValues */
+    private static final String PARSER_TREE = "tree";
+    private static final String PARSER_STREAMING = "streaming";
+
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASURED_ITERATIONS = 20;
+
+    /* Payloads with fewer rows than this are too quick to time reliably, so they aren't gated */
+    private static final int GATED_MIN_ROWS = 1000;
+
+    /*
+     * How much slower per row than the tree parser the streaming reader may be before the
+     * benchmark fails. It builds no JSONObject tree, so it should be faster; the slack only
+     * absorbs timing noise.
+     */
+    private static final double STREAMING_TOLERANCE = 1.25;
+
+    /* Parsed doubles are compared against the JSON text, so a tiny delta is enough */
+    private static final double DELTA = 1e-9;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    /* Runtime stat counting the bytes allocated by the whole process, from API 23 on */
+    private static final String STAT_BYTES_ALLOCATED = "art.gc.bytes-allocated";
+
+    private JSONObject mManifest;
+
+    /* The coordinates stored before the test, or null if there were none */
+    private double[] mSavedCoordinates;
+
+    @Before
+    public void setUp() throws Exception {
+        mManifest = new JSONObject(readAsset(CORPUS_MANIFEST));
+        mSavedCoordinates = SunshinePreferences.isLocationLatLonAvailable(mContext)
+                ? SunshinePreferences.getLocationCoordinates(mContext)
+                : null;
+    }
+
+    @After
+    public void tearDown() {
+        if (mSavedCoordinates != null) {
+            SunshinePreferences.setLocationDetails(mContext,
+                    mSavedCoordinates[0], mSavedCoordinates[1]);
+        } else {
+            SunshinePreferences.resetLocationCoordinates(mContext);
+        }
+    }
+
+    /**
+     * Parses every recorded payload and checks the row count and the values of the first and
+     * last rows against the manifest. Error payloads must parse to null.
+     */
+    @Test
+    public void testCorpusParsesCorrectly() throws Exception {
+        JSONArray payloads = mManifest.getJSONArray("payloads");
+
+        for (int i = 0; i < payloads.length(); i++) {
+            JSONObject payload = payloads.getJSONObject(i);
+            String file = payload.getString("file");
+            int expectedRows = payload.getInt("rows");
+
+            ContentValues[] values = OpenWeatherJsonUtils
+                    .getWeatherContentValuesFromJson(mContext, readAsset(file));
+
+            if (expectedRows == 0) {
+                assertNull(file + " should not produce any rows", values);
+                continue;
+            }
+
+            assertNotNull(file + " produced no rows", values);
+            assertEquals(file + " row count", expectedRows, values.length);
+            validateRow(file + " first row", payload.getJSONObject("first"), values[0]);
+            validateRow(file + " last row", payload.getJSONObject("last"), values[values.length - 1]);
+
+            long previousDate = -1;
+            for (ContentValues row : values) {
+                long date = row.getAsLong(WeatherEntry.COLUMN_DATE);
+                assertTrue(file + " dates must be normalized", SunshineDateUtils.isDateNormalized(date));
+                assertTrue(file + " dates must increase", date > previousDate);
+                previousDate = date;
+            }
+        }
+    }
+
+    /**
+     * Parses thousands of entries at once, which is the size an hourly forecast would have.
+     */
+    @Test
+    public void testSyntheticHourlyScalePayloadsParse() throws Exception {
+        JSONArray synthetic = mManifest.getJSONArray("synthetic");
+
+        for (int i = 0; i < synthetic.length(); i++) {
+            JSONObject payload = synthetic.getJSONObject(i);
+            int days = payload.getInt("days");
+            String json = ForecastJsonFactory.buildForecast(days, payload.getLong("seed"));
+
+            ContentValues[] values = OpenWeatherJsonUtils.getWeatherContentValuesFromJson(mContext, json);
+            assertNotNull(values);
+            assertEquals(payload.getString("name") + " row count", days, values.length);
+        }
+    }
+
+    /**
+     * The streaming reader saved locations are synced with must read exactly the rows the tree
+     * parser does, from every recorded and synthetic payload.
+     */
+    @Test
+    public void testStreamingReaderMatchesParser() throws Exception {
+        JSONArray payloads = mManifest.getJSONArray("payloads");
+        for (int i = 0; i < payloads.length(); i++) {
+            String file = payloads.getJSONObject(i).getString("file");
+            assertSameRows(file, readAsset(file));
+        }
+
+        JSONArray synthetic = mManifest.getJSONArray("synthetic");
+        for (int i = 0; i < synthetic.length(); i++) {
+            JSONObject payload = synthetic.getJSONObject(i);
+            assertSameRows(payload.getString("name"), ForecastJsonFactory.buildForecast(
+                    payload.getInt("days"), payload.getLong("seed")));
+        }
+
+        assertNull(OpenWeatherJsonUtils.readWeatherContentValues(
+                new StringReader(ForecastJsonFactory.buildError(404))));
+    }
+
+    private void assertSameRows(String name, String json) throws Exception {
+        ContentValues[] parsed = OpenWeatherJsonUtils.getWeatherContentValuesFromJson(mContext, json);
+        ContentValues[] streamed = OpenWeatherJsonUtils.readWeatherContentValues(
+                new StringReader(json));
+
+        if (parsed == null) {
+            assertNull(name + " should not stream any rows", streamed);
+            return;
+        }
+        assertNotNull(name + " streamed no rows", streamed);
+        assertEquals(name + " row count", parsed.length, streamed.length);
+        for (int i = 0; i < parsed.length; i++) {
+            assertEquals(name + " row " + i, parsed[i], streamed[i]);
+        }
+    }
+
+    /**
+     * Measures parse time and allocation of both parsers for every payload, and logs them along
+     * with the time per row, which is what to compare between payloads of different sizes. Fails
+     * if the streaming reader is more than {@link #STREAMING_TOLERANCE} times slower per row
+     * than the tree parser on any hourly scale payload.
+     */
+    @Test
+    public void benchmarkParse() throws Exception {
+        JSONArray results = new JSONArray();
+        StringBuilder regressions = new StringBuilder();
+
+        JSONArray payloads = mManifest.getJSONArray("payloads");
+        for (int i = 0; i < payloads.length(); i++) {
+            JSONObject payload = payloads.getJSONObject(i);
+            compare(payload.getString("file"), readAsset(payload.getString("file")), results,
+                    regressions);
+        }
+
+        JSONArray synthetic = mManifest.getJSONArray("synthetic");
+        for (int i = 0; i < synthetic.length(); i++) {
+            JSONObject payload = synthetic.getJSONObject(i);
+            String json = ForecastJsonFactory.buildForecast(payload.getInt("days"), payload.getLong("seed"));
+            compare(payload.getString("name"), json, results, regressions);
+        }
+
+        writeResults(results);
+        assertTrue("Streaming reader slower than the tree parser:" + regressions,
+                regressions.length() == 0);
+    }
+
+    /**
+     * Measures both parsers on one payload and notes a regression if the payload is large
+     * enough to gate and the streaming reader is too slow compared to the tree parser.
+     */
+    private void compare(String name, String json, JSONArray results, StringBuilder regressions)
+            throws Exception {
+        JSONObject tree = measure(name, json, PARSER_TREE);
+        JSONObject streaming = measure(name, json, PARSER_STREAMING);
+        results.put(tree).put(streaming);
+
+        if (tree.getInt("rows") < GATED_MIN_ROWS) return;
+        long treeNanos = tree.getLong("nanosPerRow");
+        long streamingNanos = streaming.getLong("nanosPerRow");
+        if (streamingNanos > treeNanos * STREAMING_TOLERANCE) {
+            regressions.append(' ').append(name).append(' ').append(streamingNanos)
+                    .append("ns per row vs ").append(treeNanos).append("ns per row;");
+        }
+    }
+
+    private ContentValues[] parse(String parser, String json) throws Exception {
+        if (PARSER_TREE.equals(parser)) {
+            return OpenWeatherJsonUtils.getWeatherContentValuesFromJson(mContext, json);
+        }
+        return OpenWeatherJsonUtils.readWeatherContentValues(new StringReader(json));
+    }
+
+    private JSONObject measure(String name, String json, String parser) throws Exception {
+        int rows = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            ContentValues[] values = parse(parser, json);
+            rows = values == null ? 0 : values.length;
+        }
+
+        long startBytes = getBytesAllocated();
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            parse(parser, json);
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        long endBytes = getBytesAllocated();
+
+        long micros = elapsedNanos / MEASURED_ITERATIONS / 1000;
+        long nanosPerRow = rows == 0 ? 0 : elapsedNanos / MEASURED_ITERATIONS / rows;
+        long allocPerParse = startBytes < 0 || endBytes < 0
+                ? -1
+                : (endBytes - startBytes) / MEASURED_ITERATIONS;
+
+        Log.i(TAG, parser + " parse " + name + ": " + micros + "us, " + nanosPerRow
+                + "ns per row, "
+                + (allocPerParse < 0 ? "allocation unknown" : allocPerParse + " bytes"));
+
+        return new JSONObject()
+                .put("name", name)
+                .put("parser", parser)
+                .put("rows", rows)
+                .put("micros", micros)
+                .put("nanosPerRow", nanosPerRow)
+                .put("allocBytes", allocPerParse);
+    }
+
+    /**
+     * @return The bytes the process allocated so far, or -1 before API 23, which has no way to
+     * tell short of the deprecated allocation counting. Other threads count too, so this is an
+     * upper bound on what the parser allocated.
+     */
+    private static long getBytesAllocated() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) return -1;
+        String bytes = Debug.getRuntimeStat(STAT_BYTES_ALLOCATED);
+        return bytes == null ? -1 : Long.parseLong(bytes);
+    }
+
+    private void writeResults(JSONArray results) throws IOException {
+        File dir = mContext.getExternalFilesDir(null);
+        if (dir == null) dir = mContext.getFilesDir();
+        File resultsFile = new File(dir, RESULTS_FILE_NAME);
+
+        OutputStream out = new FileOutputStream(resultsFile);
+        try {
+            out.write(results.toString().getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        Log.i(TAG, "parse results written to " + resultsFile);
+    }
+
+    private static void validateRow(String error, JSONObject expected, ContentValues actual)
+            throws JSONException {
+        assertEquals(error + " weather id",
+                expected.getInt("weather_id"),
+                (int) actual.getAsInteger(WeatherEntry.COLUMN_WEATHER_ID));
+        assertEquals(error + " max", expected.getDouble("max"),
+                actual.getAsDouble(WeatherEntry.COLUMN_MAX_TEMP), DELTA);
+        assertEquals(error + " min", expected.getDouble("min"),
+                actual.getAsDouble(WeatherEntry.COLUMN_MIN_TEMP), DELTA);
+
+        if (expected.has("humidity")) {
+            assertEquals(error + " humidity", expected.getDouble("humidity"),
+                    actual.getAsDouble(WeatherEntry.COLUMN_HUMIDITY), DELTA);
+            assertEquals(error + " pressure", expected.getDouble("pressure"),
+                    actual.getAsDouble(WeatherEntry.COLUMN_PRESSURE), DELTA);
+            assertEquals(error + " wind", expected.getDouble("wind"),
+                    actual.getAsDouble(WeatherEntry.COLUMN_WIND_SPEED), DELTA);
+            assertEquals(error + " degrees", expected.getDouble("degrees"),
+                    actual.getAsDouble(WeatherEntry.COLUMN_DEGREES), DELTA);
+        }
+    }
+
+    private static String readAsset(String name) throws IOException {
+        InputStream in = InstrumentationRegistry.getContext().getAssets().open(name);
+        try {
+            Scanner scanner = new Scanner(in, "UTF-8").useDelimiter("\\A");
+            return scanner.hasNext() ? scanner.next() : "";
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * Tests lane ordering, bounded queues, preemption, one sync at a time and the per-lane counters of
+ * {@link SunshineScheduler}. Every test uses its own scheduler so that the app's work can't
+ * interfere.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestSunshineScheduler {
+
+    private static final String TAG = "SunshineBenchmark";
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private SunshineScheduler mScheduler;
+
+    @After
+    public void tearDown() {
+        if (mScheduler != null) mScheduler.shutdown();
+    }
+
+    @Test
+    public void testLanesRunInPriorityOrder() throws Exception {
+        mScheduler = new SunshineScheduler(1);
+        CountDownLatch release = blockWorker(SunshineScheduler.LANE_MAINTENANCE);
+
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(SunshineScheduler.LANE_COUNT);
+
+        /* Submit from least to most important, so FIFO order would be the wrong answer */
+        for (int lane = SunshineScheduler.LANE_COUNT - 1; lane >= 0; lane--) {
+            final int submittedLane = lane;
+            mScheduler.submit(lane, new Runnable() {
+                @Override
+                public void run() {
+                    order.add(submittedLane);
+                    done.countDown();
+                }
+            });
+        }
+
+        release.countDown();
+        assertTrue(done.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        for (int lane = 0; lane < SunshineScheduler.LANE_COUNT; lane++) {
+            assertEquals("Lane ran out of order", lane, (int) order.get(lane));
+        }
+    }
+
+    @Test
+    public void testFullLaneRejectsSubmissions() throws Exception {
+        mScheduler = new SunshineScheduler(1);
+        CountDownLatch release = blockWorker(SunshineScheduler.LANE_MAINTENANCE);
+
+        int lane = SunshineScheduler.LANE_USER_SYNC;
+        Runnable noop = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+
+        for (int i = 0; i < SunshineScheduler.getLaneCapacity(lane); i++) {
+            mScheduler.submit(lane, noop);
+        }
+
+        try {
+            mScheduler.submit(lane, noop);
+            fail("Submitting to a full lane should be rejected");
+        } catch (RejectedExecutionException expected) {
+            /* This is what we want */
+        }
+
+        release.countDown();
+        assertEquals(1, mScheduler.getLaneStats(lane).getRejected());
+    }
+
+    @Test
+    public void testUserWorkPreemptsBackgroundWork() throws Exception {
+        mScheduler = new SunshineScheduler(2);
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch preempted = new CountDownLatch(1);
+        final Thread[] preemptingThread = new Thread[1];
+        mScheduler.submit(SunshineScheduler.LANE_BACKGROUND_SYNC, new PreemptibleTask() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    preempted.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void preempt() {
+                preemptingThread[0] = Thread.currentThread();
+                preempted.countDown();
+            }
+        });
+        assertTrue(started.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        final CountDownLatch userWorkDone = new CountDownLatch(1);
+        long submitStart = System.nanoTime();
+        mScheduler.submit(SunshineScheduler.LANE_USER_SYNC, new Runnable() {
+            @Override
+            public void run() {
+                userWorkDone.countDown();
+            }
+        });
+
+        assertTrue("Background work was not preempted",
+                preempted.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue("Preempting may block, so it must not happen on the submitting thread",
+                preemptingThread[0] != Thread.currentThread());
+        assertTrue(userWorkDone.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        Log.i(TAG, "user work finished "
+                + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - submitStart)
+                + "us after being submitted behind background work");
+
+        assertEquals(1, mScheduler.getLaneStats(SunshineScheduler.LANE_BACKGROUND_SYNC).getPreempted());
+    }
+
+    /**
+     * Two syncs are queued on a scheduler with two workers. Only one may run; the other worker
+     * must stay free for UI work instead of waiting for the first sync.
+     */
+    @Test
+    public void testUiWorkRunsWhileSyncsAreQueued() throws Exception {
+        mScheduler = new SunshineScheduler(2);
+
+        final AtomicInteger syncsRunning = new AtomicInteger();
+        final AtomicInteger maxSyncsRunning = new AtomicInteger();
+        final CountDownLatch firstSyncStarted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch syncsDone = new CountDownLatch(2);
+        for (int i = 0; i < 2; i++) {
+            mScheduler.submit(SunshineScheduler.LANE_BACKGROUND_SYNC, new Runnable() {
+                @Override
+                public void run() {
+                    int running = syncsRunning.incrementAndGet();
+                    maxSyncsRunning.set(Math.max(maxSyncsRunning.get(), running));
+                    firstSyncStarted.countDown();
+                    try {
+                        release.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    syncsRunning.decrementAndGet();
+                    syncsDone.countDown();
+                }
+            });
+        }
+        assertTrue(firstSyncStarted.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        final CountDownLatch uiWorkDone = new CountDownLatch(1);
+        mScheduler.submit(SunshineScheduler.LANE_UI_PRECOMPUTE, new Runnable() {
+            @Override
+            public void run() {
+                uiWorkDone.countDown();
+            }
+        });
+
+        assertTrue("UI work was starved by the queued sync",
+                uiWorkDone.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals("The second sync ran before the first one finished",
+                1, syncsRunning.get());
+
+        release.countDown();
+        assertTrue("The second sync never ran",
+                syncsDone.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(1, maxSyncsRunning.get());
+    }
+
+    @Test
+    public void testLaneStatsRecordWaitAndRunTime() throws Exception {
+        mScheduler = new SunshineScheduler(1);
+        final long runMillis = 50;
+        final CountDownLatch done = new CountDownLatch(1);
+
+        mScheduler.submit(SunshineScheduler.LANE_MAINTENANCE, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(runMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        /* The counters are updated right after the task returns */
+        SunshineScheduler.LaneStats stats;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        do {
+            stats = mScheduler.getLaneStats(SunshineScheduler.LANE_MAINTENANCE);
+        } while (stats.getCompleted() == 0 && System.nanoTime() < deadline);
+
+        Log.i(TAG, stats.toString());
+        assertEquals(1, stats.getCompleted());
+        assertTrue(stats.getMeanRunNanos() >= TimeUnit.MILLISECONDS.toNanos(runMillis));
+        assertTrue(stats.getMaxWaitNanos() >= 0);
+    }
+
+    /**
+     * Occupies the only worker until the returned latch is released, so that submitted tasks
+     * stay queued.
+     */
+    private CountDownLatch blockWorker(int lane) throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        mScheduler.submit(lane, new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(started.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        return release;
+    }
+
+    private abstract static class PreemptibleTask implements Runnable, SunshineScheduler.Preemptible {
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utils;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Builds forecast JSON in the same shape as the responses from andfun-weather.udacity.com. The
+ * output is fully determined by the seed, so two runs with the same arguments produce byte for
+ * byte identical payloads.
+ */
+public final class ForecastJsonFactory {
+
+    private static final int[] WEATHER_IDS = {200, 300, 500, 501, 600, 711, 800, 801, 803, 962};
+
+    private ForecastJsonFactory() {
+    }
+
+    /**
+     * Builds a successful forecast response.
+     *
+     * @param days Number of entries in the "list" array (the "cnt" of the request)
+     * @param seed Seed used to pick the weather values
+     * @return The forecast JSON
+     */
+    public static String buildForecast(int days, long seed) {
+        Random random = new Random(seed);
+        StringBuilder json = new StringBuilder(256 + days * 256);
+
+        json.append("{\"city\":{\"id\":5375480,\"name\":\"Mountain View\",")
+                .append("\"coord\":{\"lat\":37.4056,\"lon\":-122.0775},")
+                .append("\"country\":\"US\",\"population\":0},")
+                .append("\"cod\":\"200\",\"message\":0.0,\"cnt\":").append(days)
+                .append(",\"list\":[");
+
+        long dt = 1475280000L;
+        for (int i = 0; i < days; i++) {
+            if (i > 0) json.append(',');
+
+            double max = 10 + random.nextInt(250) / 10.0;
+            double min = max - random.nextInt(100) / 10.0;
+            int weatherId = WEATHER_IDS[random.nextInt(WEATHER_IDS.length)];
+
+            json.append("{\"dt\":").append(dt + i * 86400L)
+                    .append(",\"temp\":{\"day\":").append(format(max))
+                    .append(",\"min\":").append(format(min))
+                    .append(",\"max\":").append(format(max))
+                    .append(",\"night\":").append(format(min))
+                    .append(",\"eve\":").append(format(max))
+                    .append(",\"morn\":").append(format(min))
+                    .append("},\"pressure\":").append(format(990 + random.nextInt(400) / 10.0))
+                    .append(",\"humidity\":").append(random.nextInt(100))
+                    .append(",\"weather\":[{\"id\":").append(weatherId)
+                    .append(",\"main\":\"Clear\",\"description\":\"sky is clear\",")
+                    .append("\"icon\":\"01d\"}],\"speed\":").append(format(random.nextInt(200) / 10.0))
+                    .append(",\"deg\":").append(random.nextInt(360))
+                    .append(",\"clouds\":").append(random.nextInt(100))
+                    .append('}');
+        }
+
+        json.append("]}");
+        return json.toString();
+    }
+
+    /**
+     * Builds a successful hourly forecast response, in the shape of OpenWeatherMap's
+     * forecast/hourly, where every hour carries its own time.
+     *
+     * @param firstHour Time of the first hour, in seconds since the epoch
+     * @param hours     Number of entries in the "list" array
+     * @param seed      Seed used to pick the weather values
+     * @return The hourly forecast JSON
+     */
+    public static String buildHourlyForecast(long firstHour, int hours, long seed) {
+        Random random = new Random(seed);
+        StringBuilder json = new StringBuilder(256 + hours * 320);
+
+        json.append("{\"cod\":\"200\",\"message\":0,\"cnt\":").append(hours)
+                .append(",\"list\":[");
+
+        for (int i = 0; i < hours; i++) {
+            if (i > 0) json.append(',');
+
+            double temp = 5 + random.nextInt(250) / 10.0;
+            int weatherId = WEATHER_IDS[random.nextInt(WEATHER_IDS.length)];
+
+            json.append("{\"dt\":").append(firstHour + i * 3600L)
+                    .append(",\"main\":{\"temp\":").append(format(temp))
+                    .append(",\"feels_like\":").append(format(temp - 1))
+                    .append(",\"temp_min\":").append(format(temp))
+                    .append(",\"temp_max\":").append(format(temp))
+                    .append(",\"pressure\":").append(990 + random.nextInt(40))
+                    .append(",\"humidity\":").append(random.nextInt(100))
+                    .append("},\"weather\":[{\"id\":").append(weatherId)
+                    .append(",\"main\":\"Clear\",\"description\":\"sky is clear\",")
+                    .append("\"icon\":\"01d\"}],\"clouds\":{\"all\":")
+                    .append(random.nextInt(100))
+                    .append("},\"wind\":{\"speed\":").append(format(random.nextInt(200) / 10.0))
+                    .append(",\"deg\":").append(random.nextInt(360))
+                    .append("},\"dt_txt\":\"\"}");
+        }
+
+        json.append("]}");
+        return json.toString();
+    }
+
+    /**
+     * Builds a response that carries an error code in its "cod" field, the way the weather
+     * server reports an unknown location or an internal failure.
+     *
+     * @param code The error code, for example 404
+     * @return The error JSON
+     */
+    public static String buildError(int code) {
+        return "{\"cod\":\"" + code + "\",\"message\":\"Error: Not found city\"}";
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.US, "%.2f", value);
+    }
+}
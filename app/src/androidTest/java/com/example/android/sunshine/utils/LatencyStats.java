@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utils;
+
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects latency samples (in nanoseconds) and reports nearest-rank percentiles. Used by the
+ * benchmarks to print comparable numbers into logcat.
+ */
+public final class LatencyStats {
+
+    private static final String TAG = "SunshineBenchmark";
+
+    private final String mName;
+    private long[] mSamples = new long[64];
+    private int mCount;
+
+    public LatencyStats(String name) {
+        mName = name;
+    }
+
+    public void add(long nanos) {
+        if (mCount == mSamples.length) {
+            mSamples = Arrays.copyOf(mSamples, mCount * 2);
+        }
+        mSamples[mCount++] = nanos;
+    }
+
+    public int count() {
+        return mCount;
+    }
+
+    /**
+     * @param percentile A value between 0 and 100
+     * @return The sample at that percentile, in nanoseconds, or 0 if there are no samples
+     */
+    public long percentile(double percentile) {
+        if (mCount == 0) return 0;
+        long[] sorted = Arrays.copyOf(mSamples, mCount);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100.0 * mCount);
+        return sorted[Math.max(0, Math.min(mCount - 1, rank - 1))];
+    }
+
+    public long total() {
+        long total = 0;
+        for (int i = 0; i < mCount; i++) {
+            total += mSamples[i];
+        }
+        return total;
+    }
+
+    /**
+     * Logs p50, p95 and p99 in milliseconds and returns the same line for use in assertions.
+     */
+    public String report() {
+        String line = String.format(Locale.US,
+                "%s: n=%d p50=%.3fms p95=%.3fms p99=%.3fms",
+                mName,
+                mCount,
+                toMillis(percentile(50)),
+                toMillis(percentile(95)),
+                toMillis(percentile(99)));
+        Log.i(TAG, line);
+        return line;
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utils;
+
+import android.content.ContentValues;
+
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import java.util.Random;
+
+import static com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+
+/**
+ * Generates realistic, reproducible weather datasets for scaling tests. Unlike FakeDataUtils,
+ * which produces seven days of independent random rows, this generator produces long runs of
+ * days where
+ * <ul>
+ *     <li>temperature follows the seasons of the location plus day-to-day persistence,</li>
+ *     <li>conditions follow a Markov chain, so a rainy day is usually followed by another rainy
+ *     or a cloudy day rather than by a snow storm,</li>
+ *     <li>humidity, pressure and wind are consistent with the conditions.</li>
+ * </ul>
+ * The same seed and location index always produce the same rows.
+ */
+public final class SyntheticWeatherGenerator {
+
+    /* Condition groups used as the states of the Markov chain */
+    private static final int CLEAR = 0;
+    private static final int CLOUDS = 1;
+    private static final int RAIN = 2;
+    private static final int STORM = 3;
+    private static final int SNOW = 4;
+    private static final int FOG = 5;
+
+    /* Representative OpenWeatherMap ids for each condition group */
+    private static final int[][] WEATHER_IDS = {
+            {800, 801},
+            {802, 803, 804},
+            {500, 501, 502, 520, 521},
+            {200, 201, 211, 960},
+            {600, 601, 602, 611},
+            {701, 711, 741}
+    };
+
+    /* Transition probabilities between condition groups, one row per current state */
+    private static final double[][] TRANSITIONS = {
+            {0.70, 0.20, 0.05, 0.01, 0.01, 0.03},
+            {0.30, 0.40, 0.20, 0.03, 0.03, 0.04},
+            {0.15, 0.35, 0.40, 0.05, 0.03, 0.02},
+            {0.10, 0.30, 0.45, 0.15, 0.00, 0.00},
+            {0.15, 0.35, 0.05, 0.00, 0.40, 0.05},
+            {0.40, 0.35, 0.10, 0.00, 0.05, 0.10}
+    };
+
+    private static final double DAYS_PER_YEAR = 365.25;
+
+    private final long mSeed;
+
+    public SyntheticWeatherGenerator(long seed) {
+        mSeed = seed;
+    }
+
+    /**
+     * Generates consecutive daily rows for one location.
+     *
+     * @param locationIndex Index of the location; each index has its own climate
+     * @param startDate     Normalized date of the first row
+     * @param days          Number of rows to generate
+     * @return Rows ready to be passed to bulkInsert
+     */
+    public ContentValues[] generateDaily(int locationIndex, long startDate, int days) {
+        if (!SunshineDateUtils.isDateNormalized(startDate)) {
+            throw new IllegalArgumentException("Start date must be normalized");
+        }
+
+        Random random = new Random(mSeed * 31 + locationIndex);
+
+        /* Each location gets a mean temperature and a seasonal swing between 4 and 16 degrees */
+        double meanTemperature = 5 + random.nextDouble() * 20;
+        double seasonalSwing = 4 + random.nextDouble() * 12;
+
+        int condition = CLEAR;
+        double anomaly = 0;
+        double pressure = 1013;
+
+        ContentValues[] rows = new ContentValues[days];
+        for (int i = 0; i < days; i++) {
+            long date = startDate + SunshineDateUtils.DAY_IN_MILLIS * i;
+
+            condition = nextCondition(random, condition);
+
+            /* Day-to-day persistence: today's anomaly keeps most of yesterday's */
+            anomaly = anomaly * 0.7 + random.nextGaussian() * 2.5;
+            double dayOfYear = (date / SunshineDateUtils.DAY_IN_MILLIS) % DAYS_PER_YEAR;
+            double seasonal = -Math.cos(2 * Math.PI * (dayOfYear - 15) / DAYS_PER_YEAR);
+            double max = meanTemperature + seasonalSwing * seasonal + anomaly;
+            if (condition == SNOW) max = Math.min(max, 1.5);
+
+            double range = condition == CLEAR ? 8 + random.nextDouble() * 6 : 3 + random.nextDouble() * 5;
+            double min = max - range;
+
+            pressure += (1013 - pressure) * 0.2 + random.nextGaussian() * 3
+                    - (condition == STORM || condition == RAIN ? 2 : 0);
+
+            double humidity = clamp(conditionHumidity(condition) + random.nextGaussian() * 8, 5, 100);
+            double wind = Math.abs(random.nextGaussian() * 3 + (condition == STORM ? 12 : 3));
+
+            int[] ids = WEATHER_IDS[condition];
+
+            ContentValues values = new ContentValues();
+            values.put(WeatherEntry.COLUMN_DATE, date);
+            values.put(WeatherEntry.COLUMN_WEATHER_ID, ids[random.nextInt(ids.length)]);
+            values.put(WeatherEntry.COLUMN_MAX_TEMP, round1(max));
+            values.put(WeatherEntry.COLUMN_MIN_TEMP, round1(min));
+            values.put(WeatherEntry.COLUMN_HUMIDITY, round1(humidity));
+            values.put(WeatherEntry.COLUMN_PRESSURE, round1(pressure));
+            values.put(WeatherEntry.COLUMN_WIND_SPEED, round1(wind));
+            values.put(WeatherEntry.COLUMN_DEGREES, (double) random.nextInt(360));
+            rows[i] = values;
+        }
+
+        return rows;
+    }
+
+    private static int nextCondition(Random random, int current) {
+        double roll = random.nextDouble();
+        double[] probabilities = TRANSITIONS[current];
+        for (int next = 0; next < probabilities.length; next++) {
+            roll -= probabilities[next];
+            if (roll <= 0) return next;
+        }
+        return current;
+    }
+
+    private static double conditionHumidity(int condition) {
+        switch (condition) {
+            case CLEAR:
+                return 45;
+            case CLOUDS:
+                return 65;
+            case FOG:
+                return 95;
+            default:
+                return 85;
+        }
+    }
+
+    private static double clamp(double value, double low, double high) {
+        return Math.max(low, Math.min(high, value));
+    }
+
+    private static double round1(double value) {
+        return Math.round(value * 10) / 10.0;
+    }
+}
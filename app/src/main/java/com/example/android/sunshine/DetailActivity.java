@@ -29,13 +29,19 @@ import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 
+import com.example.android.sunshine.data.ForecastChangeSet;
+import com.example.android.sunshine.data.ForecastRepository;
+import com.example.android.sunshine.data.ForecastRow;
 import com.example.android.sunshine.data.WeatherContract;
 import com.example.android.sunshine.databinding.ActivityDetailBinding;
+import com.example.android.sunshine.sync.FreshnessPolicy;
+import com.example.android.sunshine.utilities.StartupTracer;
 import com.example.android.sunshine.utilities.SunshineDateUtils;
 import com.example.android.sunshine.utilities.SunshineWeatherUtils;
 
 public class DetailActivity extends AppCompatActivity implements
-        LoaderManager.LoaderCallbacks<Cursor> {
+        LoaderManager.LoaderCallbacks<Cursor>,
+        ForecastRepository.Listener {
 
     /*
      * In this Activity, you can share the selected day's forecast. No social sharing is complete
@@ -87,6 +93,9 @@ public class DetailActivity extends AppCompatActivity implements
     /* The URI that is used to access the chosen day's weather details */
     private Uri mUri;
 
+    /* Whether the day is being queried again because the forecast it came from was replaced */
+    private boolean mRequerying;
+
 
     /*
      * This field is used for data binding. Normally, we would have to call findViewById many
@@ -107,8 +116,62 @@ public class DetailActivity extends AppCompatActivity implements
         mUri = getIntent().getData();
         if (mUri == null) throw new NullPointerException("URI for DetailActivity cannot be null");
 
-        /* This connects our Activity into the loader lifecycle. */
-        getSupportLoaderManager().initLoader(ID_DETAIL_LOADER, null, this);
+        /*
+         * If the day was opened from the forecast list, its row is already in memory and we can
+         * bind it before the first frame. Otherwise, eg when we were launched from a
+         * notification, query it from the provider.
+         */
+        long date = Long.parseLong(mUri.getLastPathSegment());
+        ForecastRepository repository = ForecastRepository.getInstance();
+        ForecastRow row = repository.get(date);
+
+        /* Whichever way the day was bound, later changes to it come from the repository */
+        repository.subscribe(date, date + SunshineDateUtils.DAY_IN_MILLIS, this);
+
+        /* The day is shown as stored; if it is stale, the revalidation rebinds it */
+        boolean today = date == SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+        FreshnessPolicy.getInstance().onRead(this, today
+                ? FreshnessPolicy.DATASET_TODAY
+                : FreshnessPolicy.DATASET_FORECAST);
+
+        if (row != null) {
+            bindWeather(row);
+        } else {
+            /* This connects our Activity into the loader lifecycle. */
+            getSupportLoaderManager().initLoader(ID_DETAIL_LOADER, null, this);
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        ForecastRepository.getInstance().unsubscribe(this);
+        super.onDestroy();
+    }
+
+    /**
+     * Called when the day changed, on top of when the forecast was loaded. The day is bound
+     * again, unless it was removed, in which case the last weather known for it stays.
+     *
+     * @param days    The day, if it is still in the forecast
+     * @param changes How it changed
+     */
+    @Override
+    public void onForecastChanged(ForecastRepository.Days days, ForecastChangeSet changes) {
+        if (days.getCount() != 0) {
+            bindWeather(days.getRow(0));
+        }
+    }
+
+    /**
+     * Called when the forecast was replaced wholesale, eg when the location switched. Nothing
+     * may load it into the repository again while this activity is open, so the day is queried
+     * from the provider instead. If the new forecast doesn't have it, the weather shown belongs
+     * to the old one, and the activity finishes rather than keep showing it.
+     */
+    @Override
+    public void onForecastInvalidated() {
+        mRequerying = true;
+        getSupportLoaderManager().restartLoader(ID_DETAIL_LOADER, null, this);
     }
 
     /**
@@ -234,16 +297,38 @@ public class DetailActivity extends AppCompatActivity implements
             cursorHasValidData = true;
         }
 
+        boolean requerying = mRequerying;
+        mRequerying = false;
+
         if (!cursorHasValidData) {
+            /* The day isn't in the forecast that replaced the one it was shown from */
+            if (requerying) finish();
             /* No data to display, simply return and do nothing */
             return;
         }
 
+        bindWeather(ForecastRow.fromCursor(data));
+    }
+
+    /**
+     * Binds one day of weather to the views. Also records, for the benchmarks, when the first
+     * frame showing it is drawn.
+     *
+     * @param row The day to display
+     */
+    private void bindWeather(ForecastRow row) {
+        StartupTracer.runAfterNextDraw(mDetailBinding.getRoot(), new Runnable() {
+            @Override
+            public void run() {
+                StartupTracer.markDetailFrame();
+            }
+        });
+
         /****************
          * Weather Icon *
          ****************/
-        /* Read weather condition ID from the cursor (ID provided by Open Weather Map) */
-        int weatherId = data.getInt(INDEX_WEATHER_CONDITION_ID);
+        /* Read weather condition ID from the row (ID provided by Open Weather Map) */
+        int weatherId = row.getWeatherId();
         /* Use our utility method to determine the resource ID for the proper art */
         int weatherImageId = SunshineWeatherUtils.getLargeArtResourceIdForWeatherCondition(weatherId);
 
@@ -254,15 +339,15 @@ public class DetailActivity extends AppCompatActivity implements
          * Weather Date *
          ****************/
         /*
-         * Read the date from the cursor. It is important to note that the date from the cursor
-         * is the same date from the weather SQL table. The date that is stored is a GMT
+         * Read the date from the row. It is important to note that the date from the row is
+         * the same date from the weather SQL table. The date that is stored is a GMT
          * representation at midnight of the date when the weather information was loaded for.
          *
          * When displaying this date, one must add the GMT offset (in milliseconds) to acquire
          * the date representation for the local date in local time.
          * SunshineDateUtils#getFriendlyDateString takes care of this for us.
          */
-        long localDateMidnightGmt = data.getLong(INDEX_WEATHER_DATE);
+        long localDateMidnightGmt = row.getDate();
         String dateText = SunshineDateUtils.getFriendlyDateString(this, localDateMidnightGmt, true);
 
         mDetailBinding.primaryInfo.date.setText(dateText);
@@ -286,8 +371,8 @@ public class DetailActivity extends AppCompatActivity implements
         /**************************
          * High (max) temperature *
          **************************/
-        /* Read high temperature from the cursor (in degrees celsius) */
-        double highInCelsius = data.getDouble(INDEX_WEATHER_MAX_TEMP);
+        /* Read high temperature from the row (in degrees celsius) */
+        double highInCelsius = row.getMaxTemp();
         /*
          * If the user's preference for weather is fahrenheit, formatTemperature will convert
          * the temperature. This method will also append either °C or °F to the temperature
@@ -305,8 +390,8 @@ public class DetailActivity extends AppCompatActivity implements
         /*************************
          * Low (min) temperature *
          *************************/
-        /* Read low temperature from the cursor (in degrees celsius) */
-        double lowInCelsius = data.getDouble(INDEX_WEATHER_MIN_TEMP);
+        /* Read low temperature from the row (in degrees celsius) */
+        double lowInCelsius = row.getMinTemp();
         /*
          * If the user's preference for weather is fahrenheit, formatTemperature will convert
          * the temperature. This method will also append either °C or °F to the temperature
@@ -323,8 +408,8 @@ public class DetailActivity extends AppCompatActivity implements
         /************
          * Humidity *
          ************/
-        /* Read humidity from the cursor */
-        float humidity = data.getFloat(INDEX_WEATHER_HUMIDITY);
+        /* Read humidity from the row */
+        float humidity = row.getHumidity();
         String humidityString = getString(R.string.format_humidity, humidity);
 
         String humidityA11y = getString(R.string.a11y_humidity, humidityString);
@@ -338,9 +423,9 @@ public class DetailActivity extends AppCompatActivity implements
         /****************************
          * Wind speed and direction *
          ****************************/
-        /* Read wind speed (in MPH) and direction (in compass degrees) from the cursor  */
-        float windSpeed = data.getFloat(INDEX_WEATHER_WIND_SPEED);
-        float windDirection = data.getFloat(INDEX_WEATHER_DEGREES);
+        /* Read wind speed (in MPH) and direction (in compass degrees) from the row */
+        float windSpeed = row.getWindSpeed();
+        float windDirection = row.getDegrees();
         String windString = SunshineWeatherUtils.getFormattedWind(this, windSpeed, windDirection);
 
         String windA11y = getString(R.string.a11y_wind, windString);
@@ -354,8 +439,8 @@ public class DetailActivity extends AppCompatActivity implements
         /************
          * Pressure *
          ************/
-        /* Read pressure from the cursor */
-        float pressure = data.getFloat(INDEX_WEATHER_PRESSURE);
+        /* Read pressure from the row */
+        float pressure = row.getPressure();
 
         /*
          * Format the pressure text using string resources. The reason we directly access
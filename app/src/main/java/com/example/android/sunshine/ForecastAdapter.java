@@ -25,6 +25,10 @@ import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import com.example.android.sunshine.data.ForecastChangeSet;
+import com.example.android.sunshine.data.ForecastRepository;
+import com.example.android.sunshine.data.ForecastRow;
+import com.example.android.sunshine.data.ForecastSnapshot;
 import com.example.android.sunshine.utilities.SunshineDateUtils;
 import com.example.android.sunshine.utilities.SunshineWeatherUtils;
 
@@ -65,6 +69,18 @@ class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapt
 
     private Cursor mCursor;
 
+    /*
+     * The days of the forecast, kept up to date by MainActivity from the ForecastRepository.
+     * They win over the cursor and the snapshot once there are any.
+     */
+    private ForecastRepository.Days mDays;
+
+    /*
+     * Rows of the forecast snapshot, displayed on a cold start until the first cursor or days
+     * arrive. They always win once there are some.
+     */
+    private ForecastSnapshot mSnapshot;
+
     /**
      * Creates a ForecastAdapter.
      *
@@ -129,12 +145,42 @@ class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapt
      */
     @Override
     public void onBindViewHolder(ForecastAdapterViewHolder forecastAdapterViewHolder, int position) {
+        if (null != mDays) {
+            ForecastRow row = mDays.getRow(position);
+            bindWeather(forecastAdapterViewHolder, position, row.getDate(), row.getWeatherId(),
+                    row.getMaxTemp(), row.getMinTemp());
+            return;
+        }
+
+        if (null == mCursor) {
+            bindFromSnapshot(forecastAdapterViewHolder, position);
+            return;
+        }
+
         mCursor.moveToPosition(position);
+        bindWeather(forecastAdapterViewHolder, position,
+                mCursor.getLong(MainActivity.INDEX_WEATHER_DATE),
+                mCursor.getInt(MainActivity.INDEX_WEATHER_CONDITION_ID),
+                mCursor.getDouble(MainActivity.INDEX_WEATHER_MAX_TEMP),
+                mCursor.getDouble(MainActivity.INDEX_WEATHER_MIN_TEMP));
+    }
 
+    /**
+     * Displays one day of weather, read from the days or the cursor.
+     *
+     * @param forecastAdapterViewHolder The ViewHolder to display the day in
+     * @param position                  The position of the day in the list
+     * @param dateInMillis              Normalized UTC date of the day
+     * @param weatherId                 The weather condition of the day
+     * @param highInCelsius             The high temperature of the day, in degrees celsius
+     * @param lowInCelsius              The low temperature of the day, in degrees celsius
+     */
+    private void bindWeather(ForecastAdapterViewHolder forecastAdapterViewHolder, int position,
+                             long dateInMillis, int weatherId, double highInCelsius,
+                             double lowInCelsius) {
         /****************
          * Weather Icon *
          ****************/
-        int weatherId = mCursor.getInt(MainActivity.INDEX_WEATHER_CONDITION_ID);
         int weatherImageId;
 
         int viewType = getItemViewType(position);
@@ -160,8 +206,6 @@ class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapt
         /****************
          * Weather Date *
          ****************/
-         /* Read date from the cursor */
-        long dateInMillis = mCursor.getLong(MainActivity.INDEX_WEATHER_DATE);
          /* Get human readable string using our utility method */
         String dateString = SunshineDateUtils.getFriendlyDateString(mContext, dateInMillis, false);
 
@@ -182,8 +226,6 @@ class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapt
         /**************************
          * High (max) temperature *
          **************************/
-         /* Read high temperature from the cursor (in degrees celsius) */
-        double highInCelsius = mCursor.getDouble(MainActivity.INDEX_WEATHER_MAX_TEMP);
          /*
           * If the user's preference for weather is fahrenheit, formatTemperature will convert
           * the temperature. This method will also append either °C or °F to the temperature
@@ -200,8 +242,6 @@ class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapt
         /*************************
          * Low (min) temperature *
          *************************/
-         /* Read low temperature from the cursor (in degrees celsius) */
-        double lowInCelsius = mCursor.getDouble(MainActivity.INDEX_WEATHER_MIN_TEMP);
          /*
           * If the user's preference for weather is fahrenheit, formatTemperature will convert
           * the temperature. This method will also append either °C or °F to the temperature
@@ -223,8 +263,41 @@ class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapt
      */
     @Override
     public int getItemCount() {
-        if (null == mCursor) return 0;
-        return mCursor.getCount();
+        if (null != mDays) return mDays.getCount();
+        if (null != mCursor) return mCursor.getCount();
+        if (null != mSnapshot) return mSnapshot.getCount();
+        return 0;
+    }
+
+    /**
+     * Binds a row of the forecast snapshot. Everything but the date was formatted when the
+     * snapshot was written; the date is formatted here since "Today" turns into "Yesterday".
+     */
+    private void bindFromSnapshot(ForecastAdapterViewHolder forecastAdapterViewHolder,
+                                  int position) {
+        int weatherId = mSnapshot.getWeatherId(position);
+        int weatherImageId = getItemViewType(position) == VIEW_TYPE_TODAY
+                ? SunshineWeatherUtils.getLargeArtResourceIdForWeatherCondition(weatherId)
+                : SunshineWeatherUtils.getSmallArtResourceIdForWeatherCondition(weatherId);
+        forecastAdapterViewHolder.iconView.setImageResource(weatherImageId);
+
+        forecastAdapterViewHolder.dateView.setText(SunshineDateUtils.getFriendlyDateString(
+                mContext, mSnapshot.getDate(position), false));
+
+        String description = mSnapshot.getDescription(position);
+        forecastAdapterViewHolder.descriptionView.setText(description);
+        forecastAdapterViewHolder.descriptionView.setContentDescription(
+                mContext.getString(R.string.a11y_forecast, description));
+
+        String highString = mSnapshot.getHigh(position);
+        forecastAdapterViewHolder.highTempView.setText(highString);
+        forecastAdapterViewHolder.highTempView.setContentDescription(
+                mContext.getString(R.string.a11y_high_temp, highString));
+
+        String lowString = mSnapshot.getLow(position);
+        forecastAdapterViewHolder.lowTempView.setText(lowString);
+        forecastAdapterViewHolder.lowTempView.setContentDescription(
+                mContext.getString(R.string.a11y_low_temp, lowString));
     }
 
     /**
@@ -256,6 +329,79 @@ class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapt
      */
     void swapCursor(Cursor newCursor) {
         mCursor = newCursor;
+        if (null != newCursor) mSnapshot = null;
+        mDays = null;
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Displays the days of the forecast, updating only the items of the days that changed since
+     * the days last displayed. Falls back to redrawing every item when the changes are a reset,
+     * or when they don't lead from the days displayed to the new ones.
+     *
+     * @param days    The days to display
+     * @param changes The days that changed since the days last displayed
+     */
+    void swapDays(ForecastRepository.Days days, ForecastChangeSet changes) {
+        ForecastRepository.Days oldDays = mDays;
+        mDays = days;
+        mCursor = null;
+        mSnapshot = null;
+
+        if (null == oldDays || changes.isReset()) {
+            notifyDataSetChanged();
+            return;
+        }
+
+        int[] removed = getPositions(oldDays, changes.getRemoved());
+        int[] inserted = getPositions(days, changes.getInserted());
+        int[] updated = getPositions(days, changes.getUpdated());
+        if (null == removed || null == inserted || null == updated
+                || oldDays.getCount() - removed.length + inserted.length != days.getCount()) {
+            notifyDataSetChanged();
+            return;
+        }
+
+        /*
+         * Removals go last to first, by their old positions, which leaves the days both lists
+         * share in order. Insertions then go first to last, by their new positions.
+         */
+        for (int i = removed.length - 1; i >= 0; i--) {
+            notifyItemRemoved(removed[i]);
+        }
+        for (int position : inserted) {
+            notifyItemInserted(position);
+        }
+        for (int position : updated) {
+            notifyItemChanged(position);
+        }
+
+        /* A different day may have become the first, which has a layout of its own */
+        if (mUseTodayLayout && days.getCount() != 0 && oldDays.getCount() != 0
+                && days.getRow(0).getDate() != oldDays.getRow(0).getDate()) {
+            notifyItemChanged(0);
+        }
+    }
+
+    /* The positions of the dates among the days, or null if one of them isn't there */
+    private static int[] getPositions(ForecastRepository.Days days, long[] dates) {
+        int[] positions = new int[dates.length];
+        for (int i = 0; i < dates.length; i++) {
+            positions[i] = days.indexOf(dates[i]);
+            if (positions[i] == -1) return null;
+        }
+        return positions;
+    }
+
+    /**
+     * Displays a forecast snapshot until the first cursor or days are swapped in. Ignored if
+     * there are some already.
+     *
+     * @param snapshot The snapshot read on a cold start
+     */
+    void swapSnapshot(ForecastSnapshot snapshot) {
+        if (null != mCursor || null != mDays) return;
+        mSnapshot = snapshot;
         notifyDataSetChanged();
     }
 
@@ -294,8 +440,15 @@ class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapt
         @Override
         public void onClick(View v) {
             int adapterPosition = getAdapterPosition();
-            mCursor.moveToPosition(adapterPosition);
-            long dateInMillis = mCursor.getLong(MainActivity.INDEX_WEATHER_DATE);
+            long dateInMillis;
+            if (null != mDays) {
+                dateInMillis = mDays.getRow(adapterPosition).getDate();
+            } else if (null != mCursor) {
+                mCursor.moveToPosition(adapterPosition);
+                dateInMillis = mCursor.getLong(MainActivity.INDEX_WEATHER_DATE);
+            } else {
+                dateInMillis = mSnapshot.getDate(adapterPosition);
+            }
             mClickHandler.onClick(dateInMillis);
         }
     }
@@ -15,6 +15,7 @@
  */
 package com.example.android.sunshine;
 
+import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
 import android.graphics.Bitmap;
@@ -24,7 +25,7 @@ import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
+import android.support.v4.content.AsyncTaskLoader;
 import android.support.v4.content.Loader;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.LinearLayoutManager;
@@ -36,9 +37,16 @@ import android.view.MenuItem;
 import android.view.View;
 import android.widget.ProgressBar;
 
+import com.example.android.sunshine.data.ForecastChangeSet;
+import com.example.android.sunshine.data.ForecastRepository;
+import com.example.android.sunshine.data.ForecastRow;
+import com.example.android.sunshine.data.ForecastSnapshot;
 import com.example.android.sunshine.data.SunshinePreferences;
 import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.sync.FreshnessPolicy;
 import com.example.android.sunshine.sync.SunshineSyncUtils;
+import com.example.android.sunshine.utilities.StartupTracer;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
 import com.example.android.sunshine.utilities.SunshineWeatherUtils;
 import com.example.android.sunshine.utilities.WearableUtils;
 import com.google.android.gms.common.ConnectionResult;
@@ -57,20 +65,26 @@ import static com.example.android.sunshine.data.SunshinePreferences.getWeatherIc
 import static com.example.android.sunshine.data.SunshinePreferences.setTodayDataForWearables;
 
 public class MainActivity extends AppCompatActivity implements
-        LoaderManager.LoaderCallbacks<Cursor>,
+        LoaderManager.LoaderCallbacks<Boolean>,
+        ForecastRepository.Listener,
         ForecastAdapter.ForecastAdapterOnClickHandler,
         GoogleApiClient.ConnectionCallbacks,
         GoogleApiClient.OnConnectionFailedListener {
 
     /*
      * The columns of data that we are interested in displaying within our MainActivity's list of
-     * weather data.
+     * weather data. The last four are only displayed by DetailActivity; loading them with the
+     * list lets it open a day from memory, through the ForecastRepository.
      */
     public static final String[] MAIN_FORECAST_PROJECTION = {
             WeatherContract.WeatherEntry.COLUMN_DATE,
             WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
             WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
             WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES,
     };
     /*
      * We store the indices of the values in the array of Strings above to more quickly be able to
@@ -96,8 +110,90 @@ public class MainActivity extends AppCompatActivity implements
 
     private ProgressBar mLoadingIndicator;
 
+    /*
+     * Created the first time there is weather to send to a watch, rather than in onCreate. Building
+     * it and connecting to Play services is not something the first frame should wait for.
+     */
     private GoogleApiClient mGoogleApiClient;
 
+    /* Whether today's weather should be sent to the wearables once the client is connected */
+    private boolean mWearableSendPending;
+
+    /* The first date the list is subscribed to, which was today when it subscribed */
+    private long mSubscribedDate;
+
+    /**
+     * Loads the forecast from today on into the ForecastRepository, which sends the rows to the
+     * list. Unlike a CursorLoader, it doesn't query again when the weather table changes: the
+     * repository takes the changes from the provider as they are made. It only loads again once
+     * the repository was invalidated, and is restarted. It is static so that it doesn't hold on
+     * to the activity across configuration changes.
+     */
+    private static class ForecastLoader extends AsyncTaskLoader<Boolean> {
+
+        /* Whether the rows were published, once they were */
+        private Boolean mPublished;
+
+        ForecastLoader(Context context) {
+            super(context);
+        }
+
+        @Override
+        protected void onStartLoading() {
+            if (mPublished != null) {
+                deliverResult(mPublished);
+            } else {
+                forceLoad();
+            }
+        }
+
+        @Override
+        public Boolean loadInBackground() {
+            ForecastRepository repository = ForecastRepository.getInstance();
+
+            /*
+             * URI for the weather from today onwards. The provider binds today's date, so every
+             * load of the list runs the same, already compiled, statement.
+             */
+            Uri forecastQueryUri = WeatherContract.WeatherEntry.buildWeatherTodayOnwardsUri();
+            /* Sort order: Ascending by date */
+            String sortOrder = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
+
+            /*
+             * The rows are dropped if the weather table changed while they were read, which is
+             * rare and never happens many times in a row, so they are simply read again.
+             */
+            while (true) {
+                long ticket = repository.beginLoad();
+                Cursor cursor = getContext().getContentResolver().query(forecastQueryUri,
+                        MAIN_FORECAST_PROJECTION, null, null, sortOrder);
+                if (cursor == null) return false;
+                try {
+                    if (repository.publish(ticket, cursor)) return true;
+                } finally {
+                    cursor.close();
+                }
+            }
+        }
+
+        @Override
+        public void deliverResult(Boolean published) {
+            mPublished = published;
+            super.deliverResult(published);
+        }
+
+        @Override
+        protected void onStopLoading() {
+            cancelLoad();
+        }
+
+        @Override
+        protected void onReset() {
+            onStopLoading();
+            mPublished = null;
+        }
+    }
+
     private static Asset createAssetFromBitmap(Bitmap bitmap) {
         final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
         bitmap.compress(Bitmap.CompressFormat.PNG, 100, byteStream);
@@ -107,14 +203,13 @@ public class MainActivity extends AppCompatActivity implements
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        setContentView(R.layout.activity_forecast);
+        StartupTracer.onStartupBegin();
 
-        mGoogleApiClient = new GoogleApiClient.Builder(this)
-                .addConnectionCallbacks(this)
-                .addOnConnectionFailedListener(this)
-                .addApi(Wearable.API)
-                .build();
+        StartupTracer.beginSection(StartupTracer.SECTION_CONTENT_VIEW);
+        setContentView(R.layout.activity_forecast);
+        StartupTracer.endSection();
 
+        StartupTracer.beginSection(StartupTracer.SECTION_FORECAST_LIST);
         getSupportActionBar().setElevation(0f);
 
         /*
@@ -175,22 +270,125 @@ public class MainActivity extends AppCompatActivity implements
 
 
         showLoading();
+        StartupTracer.endSection();
 
         /*
-         * Ensures a loader is initialized and active. If the loader doesn't already exist, one is
-         * created and (if the activity/fragment is currently started) starts the loader. Otherwise
-         * the last created loader is re-used.
+         * Until the loader has queried the database, draw the list from the snapshot the last
+         * sync left behind. Mapping it is quick enough to do here, and it means the first frame
+         * already shows the forecast instead of the loading indicator.
          */
-        getSupportLoaderManager().initLoader(ID_FORECAST_LOADER, null, this);
+        StartupTracer.beginSection(StartupTracer.SECTION_READ_SNAPSHOT);
+        ForecastSnapshot snapshot = ForecastSnapshot.read(this);
+        if (snapshot != null && snapshot.getCount() != 0) {
+            mForecastAdapter.swapSnapshot(snapshot);
+            showWeatherDataView();
+            StartupTracer.runAfterNextDraw(mRecyclerView, new Runnable() {
+                @Override
+                public void run() {
+                    StartupTracer.markFirstForecastRow();
+                }
+            });
+        }
+        StartupTracer.endSection();
 
-        SunshineSyncUtils.initialize(this);
+        /*
+         * From here on, the list follows the ForecastRepository. If the forecast is already in
+         * memory, eg after a configuration change, it is displayed right away. Otherwise a
+         * loader is initialized and active: if it doesn't already exist, one is created and (if
+         * the activity/fragment is currently started) starts loading the forecast into the
+         * repository, which then sends it to onForecastChanged.
+         */
+        StartupTracer.beginSection(StartupTracer.SECTION_INIT_LOADER);
+        ForecastRepository.Days days = subscribeToForecast();
+        if (days != null) {
+            onForecastChanged(days, ForecastChangeSet.RESET);
+        } else {
+            getSupportLoaderManager().initLoader(ID_FORECAST_LOADER, null, this);
+        }
+        StartupTracer.endSection();
 
+        /* Count real opens only, not recreations after a configuration change */
+        if (savedInstanceState == null) {
+            SunshineSyncUtils.recordAppOpen(this);
+        }
+
+        /*
+         * Scheduling the periodic sync goes through Play services and deciding on an immediate
+         * sync is not needed to draw anything, so both wait until the first frame is out. So
+         * does revalidating a stale forecast, which comes after initialize so that it is dropped
+         * if initialize already started a sync.
+         */
+        StartupTracer.runAfterNextDraw(mRecyclerView, new Runnable() {
+            @Override
+            public void run() {
+                StartupTracer.markFirstFrame();
+                StartupTracer.beginSection(StartupTracer.SECTION_SYNC_INITIALIZE);
+                SunshineSyncUtils.initialize(MainActivity.this);
+                StartupTracer.endSection();
+                FreshnessPolicy.getInstance().onRead(MainActivity.this,
+                        FreshnessPolicy.DATASET_FORECAST);
+            }
+        });
+    }
+
+    /**
+     * Coming back to a stopped MainActivity is a warm start. Its first frame already shows the
+     * forecast, if there is one, since the list kept its days, however old they are; if they are
+     * stale, they are revalidated once that frame is out.
+     */
+    @Override
+    protected void onRestart() {
+        super.onRestart();
+        StartupTracer.onStartupBegin();
+        StartupTracer.runAfterNextDraw(mRecyclerView, new Runnable() {
+            @Override
+            public void run() {
+                StartupTracer.markFirstFrame();
+                if (mForecastAdapter.getItemCount() != 0) {
+                    StartupTracer.markFirstForecastRow();
+                }
+                FreshnessPolicy.getInstance().onRead(MainActivity.this,
+                        FreshnessPolicy.DATASET_FORECAST);
+            }
+        });
     }
 
+    @Override
+    protected void onDestroy() {
+        ForecastRepository.getInstance().unsubscribe(this);
+        super.onDestroy();
+    }
+
+    /**
+     * Subscribes the list to the forecast from today on.
+     *
+     * @return The days of the forecast, or null if they aren't in memory
+     */
+    private ForecastRepository.Days subscribeToForecast() {
+        ForecastRepository repository = ForecastRepository.getInstance();
+        repository.unsubscribe(this);
+        mSubscribedDate = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+        return repository.subscribe(mSubscribedDate, Long.MAX_VALUE, this);
+    }
+
+    /**
+     * If the day turned since the list subscribed, which it can while the activity is stopped,
+     * subscribes again from the new today so that the day that passed drops off the list.
+     */
     @Override
     protected void onStart() {
         super.onStart();
-        mGoogleApiClient.connect();
+        if (mSubscribedDate != SunshineDateUtils.normalizeDate(System.currentTimeMillis())) {
+            ForecastRepository.Days days = subscribeToForecast();
+            if (days != null) {
+                onForecastChanged(days, ForecastChangeSet.RESET);
+            } else {
+                getSupportLoaderManager().restartLoader(ID_FORECAST_LOADER, null, this);
+            }
+        }
+        if (mGoogleApiClient != null) {
+            mGoogleApiClient.connect();
+        }
     }
 
     @Override
@@ -238,29 +436,17 @@ public class MainActivity extends AppCompatActivity implements
      * @return A new Loader instance that is ready to start loading.
      */
     @Override
-    public Loader<Cursor> onCreateLoader(int loaderId, Bundle bundle) {
+    public Loader<Boolean> onCreateLoader(int loaderId, Bundle bundle) {
 
 
         switch (loaderId) {
 
             case ID_FORECAST_LOADER:
-                /* URI for all rows of weather data in our weather table */
-                Uri forecastQueryUri = WeatherContract.WeatherEntry.CONTENT_URI;
-                /* Sort order: Ascending by date */
-                String sortOrder = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
                 /*
-                 * A SELECTION in SQL declares which rows you'd like to return. In our case, we
-                 * want all weather data from today onwards that is stored in our weather table.
-                 * We created a handy method to do that in our WeatherEntry class.
+                 * Loads the rows, still on the loader's thread, into the ForecastRepository,
+                 * which the list and DetailActivity both bind from.
                  */
-                String selection = WeatherContract.WeatherEntry.getSqlSelectForTodayOnwards();
-
-                return new CursorLoader(this,
-                        forecastQueryUri,
-                        MAIN_FORECAST_PROJECTION,
-                        selection,
-                        null,
-                        sortOrder);
+                return new ForecastLoader(this);
 
             default:
                 throw new RuntimeException("Loader Not Implemented: " + loaderId);
@@ -268,41 +454,73 @@ public class MainActivity extends AppCompatActivity implements
     }
 
     /**
-     * Called when a Loader has finished loading its data.
+     * Called when a Loader has finished loading its data. The rows reach the list through
+     * {@link #onForecastChanged}, so there is nothing left to do here.
+     *
+     * @param loader    The Loader that has finished.
+     * @param published Whether the rows were published to the ForecastRepository.
+     */
+    @Override
+    public void onLoadFinished(Loader<Boolean> loader, Boolean published) {
+    }
+
+    /**
+     * Called when a previously created loader is being reset. The list keeps the days it was
+     * sent by the ForecastRepository, which don't belong to the loader.
+     *
+     * @param loader The Loader that is being reset.
+     */
+    @Override
+    public void onLoaderReset(Loader<Boolean> loader) {
+    }
+
+    /**
+     * Called when the forecast was loaded, and whenever days of it change after that. Only the
+     * items of the days that changed are updated.
      * <p>
-     * NOTE: There is one small bug in this code. If no data is present in the cursor do to an
-     * initial load being performed with no access to internet, the loading indicator will show
-     * indefinitely, until data is present from the ContentProvider. This will be fixed in a
-     * future version of the course.
+     * NOTE: There is one small bug in this code. If no data is present do to an initial load
+     * being performed with no access to internet, the loading indicator will show indefinitely,
+     * until data is present from the ContentProvider. This will be fixed in a future version of
+     * the course.
      *
-     * @param loader The Loader that has finished.
-     * @param data   The data generated by the Loader.
+     * @param days    The forecast from today on
+     * @param changes The days that changed
      */
     @Override
-    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        mForecastAdapter.swapCursor(data);
-        if (mPosition == RecyclerView.NO_POSITION) mPosition = 0;
-        mRecyclerView.smoothScrollToPosition(mPosition);
-        if (data.getCount() != 0) {
+    public void onForecastChanged(ForecastRepository.Days days, ForecastChangeSet changes) {
+        StartupTracer.beginSection(StartupTracer.SECTION_BIND_FORECAST);
+        mForecastAdapter.swapDays(days, changes);
+        if (changes.isReset()) {
+            if (mPosition == RecyclerView.NO_POSITION) mPosition = 0;
+            mRecyclerView.smoothScrollToPosition(mPosition);
+        }
+        if (days.getCount() != 0) {
             showWeatherDataView();
-            storeWeatherDataForWearables(data);
-            sendWeatherDataToWearables();
+            storeWeatherDataForWearables(days.getRow(0));
+
+            /* The watch can wait until the forecast is on screen */
+            StartupTracer.runAfterNextDraw(mRecyclerView, new Runnable() {
+                @Override
+                public void run() {
+                    StartupTracer.markFirstForecastRow();
+                    sendWeatherDataToWearables();
+                }
+            });
+        } else {
+            /* The snapshot we may have been showing turned out to be gone from the database */
+            showLoading();
         }
+        StartupTracer.endSection();
     }
 
     /**
-     * Called when a previously created loader is being reset, and thus making its data unavailable.
-     * The application should at this point remove any references it has to the Loader's data.
-     *
-     * @param loader The Loader that is being reset.
+     * Called when the forecast was replaced wholesale, eg when the location switched. The list
+     * keeps the days it shows until the new forecast is loaded.
      */
     @Override
-    public void onLoaderReset(Loader<Cursor> loader) {
-        /*
-         * Since this Loader's data is now invalid, we need to clear the Adapter that is
-         * displaying the data.
-         */
-        mForecastAdapter.swapCursor(null);
+    public void onForecastInvalidated() {
+        subscribeToForecast();
+        getSupportLoaderManager().restartLoader(ID_FORECAST_LOADER, null, this);
     }
 
     /**
@@ -313,6 +531,7 @@ public class MainActivity extends AppCompatActivity implements
      */
     @Override
     public void onClick(long date) {
+        StartupTracer.onDetailRequested();
         Intent weatherDetailIntent = new Intent(MainActivity.this, DetailActivity.class);
         Uri uriForDateClicked = WeatherContract.WeatherEntry.buildWeatherUriWithDate(date);
         weatherDetailIntent.setData(uriForDateClicked);
@@ -393,7 +612,9 @@ public class MainActivity extends AppCompatActivity implements
     public void onConnected(@Nullable Bundle bundle) {
         Log.d(TAG, "onConnected: " + bundle);
 
-        //sendWeatherDataToWearables();
+        if (mWearableSendPending) {
+            sendWeatherDataToWearables();
+        }
     }
 
     @Override
@@ -406,45 +627,61 @@ public class MainActivity extends AppCompatActivity implements
         Log.d(TAG, "onConnectionFailed: " + connectionResult);
     }
 
-    private void storeWeatherDataForWearables(Cursor data) {
-        if (data != null && data.getCount() != 0) {
-            data.moveToFirst();
+    private void storeWeatherDataForWearables(ForecastRow today) {
+        int weatherConditionId = today.getWeatherId();
+        long max = Math.round(today.getMaxTemp());
+        long min = Math.round(today.getMinTemp());
 
-            int weatherConditionId = (data.getInt(INDEX_WEATHER_CONDITION_ID));
-            long max = Math.round(data.getDouble(INDEX_WEATHER_MAX_TEMP));
-            long min = Math.round(data.getDouble(INDEX_WEATHER_MIN_TEMP));
-
-            setTodayDataForWearables(this, weatherConditionId, max, min);
-        }
+        setTodayDataForWearables(this, weatherConditionId, max, min);
     }
 
+    /**
+     * Sends today's weather to the wearables. If the client isn't connected yet, it is created and
+     * connected as needed, and the weather is sent from {@link #onConnected(Bundle)}.
+     */
     private void sendWeatherDataToWearables() {
-        if (mGoogleApiClient != null && mGoogleApiClient.isConnected()) {
-            PutDataMapRequest putDataMapRequest = PutDataMapRequest
-                    .create(WearableUtils.PATH_WEATHER_DATA);
-            int weatherIconId = SunshineWeatherUtils
-                    .getSmallArtResourceIdForWeatherCondition(getWeatherIconIdForWearables(this));
-            Bitmap iconBitmap = BitmapFactory.decodeResource(getApplicationContext().getResources(), weatherIconId);
-
-            Asset iconAsset = createAssetFromBitmap(iconBitmap);
-            long high = getHighTempForWearables(this);
-            long low = getLowTempForWearables(this);
-
-            putDataMapRequest.getDataMap().putAsset(WearableUtils.DATA_WEATHER_ICON, iconAsset);
-            putDataMapRequest.getDataMap().putLong(WearableUtils.DATA_WEATHER_HIGH_TEMPERATURE, high);
-            putDataMapRequest.getDataMap().putLong(WearableUtils.DATA_WEATHER_LOW_TEMPERATURE, low);
-            putDataMapRequest.setUrgent();
-
-            Wearable.DataApi.putDataItem(mGoogleApiClient, putDataMapRequest.asPutDataRequest())
-                    .setResultCallback(new ResultCallback<DataApi.DataItemResult>() {
-                        @Override
-                        public void onResult(DataApi.DataItemResult dataItemResult) {
-                            if (Log.isLoggable(TAG, Log.DEBUG)) {
-                                Log.d(TAG, "putDataItem result status: " + dataItemResult.getStatus());
-                            }
-                        }
-                    });
+        if (mGoogleApiClient == null) {
+            StartupTracer.beginSection(StartupTracer.SECTION_WEARABLE_CLIENT);
+            mGoogleApiClient = new GoogleApiClient.Builder(this)
+                    .addConnectionCallbacks(this)
+                    .addOnConnectionFailedListener(this)
+                    .addApi(Wearable.API)
+                    .build();
+            StartupTracer.endSection();
+        }
+
+        if (!mGoogleApiClient.isConnected()) {
+            mWearableSendPending = true;
+            mGoogleApiClient.connect();
+            return;
         }
+
+        mWearableSendPending = false;
+
+        PutDataMapRequest putDataMapRequest = PutDataMapRequest
+                .create(WearableUtils.PATH_WEATHER_DATA);
+        int weatherIconId = SunshineWeatherUtils
+                .getSmallArtResourceIdForWeatherCondition(getWeatherIconIdForWearables(this));
+        Bitmap iconBitmap = BitmapFactory.decodeResource(getApplicationContext().getResources(), weatherIconId);
+
+        Asset iconAsset = createAssetFromBitmap(iconBitmap);
+        long high = getHighTempForWearables(this);
+        long low = getLowTempForWearables(this);
+
+        putDataMapRequest.getDataMap().putAsset(WearableUtils.DATA_WEATHER_ICON, iconAsset);
+        putDataMapRequest.getDataMap().putLong(WearableUtils.DATA_WEATHER_HIGH_TEMPERATURE, high);
+        putDataMapRequest.getDataMap().putLong(WearableUtils.DATA_WEATHER_LOW_TEMPERATURE, low);
+        putDataMapRequest.setUrgent();
+
+        Wearable.DataApi.putDataItem(mGoogleApiClient, putDataMapRequest.asPutDataRequest())
+                .setResultCallback(new ResultCallback<DataApi.DataItemResult>() {
+                    @Override
+                    public void onResult(DataApi.DataItemResult dataItemResult) {
+                        if (Log.isLoggable(TAG, Log.DEBUG)) {
+                            Log.d(TAG, "putDataItem result status: " + dataItemResult.getStatus());
+                        }
+                    }
+                });
     }
 
 }
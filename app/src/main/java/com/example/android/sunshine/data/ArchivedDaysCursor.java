@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+
+import com.example.android.sunshine.data.WeatherContract.HistoryEntry;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the archived days of a range out of the blobs of the months it overlaps, with the
+ * columns of the history table. A month is only decoded once the cursor first moves onto one of
+ * its days, so a caller that reads the first few days of a long range only pays for those.
+ * <p>
+ * The first and last months are decoded up front, as only they can hold days outside the range
+ * and so the count of the cursor depends on them. Every month in between holds its day count,
+ * which is all the count needs.
+ * <p>
+ * The days come in date order, or in reverse date order for a descending cursor.
+ * <p>
+ * Archived days are not rows, so they have no row ID of their own. Their _ID is the negated
+ * number of days since the epoch, which can't collide with a row of the history table.
+ */
+final class ArchivedDaysCursor extends AbstractCursor {
+
+    /* The columns of the history table, in the order SELECT * returns them */
+    private static final String[] ALL_COLUMNS = {
+            HistoryEntry._ID,
+            HistoryEntry.COLUMN_DATE,
+            HistoryEntry.COLUMN_WEATHER_ID,
+            HistoryEntry.COLUMN_MIN_TEMP,
+            HistoryEntry.COLUMN_MAX_TEMP,
+            HistoryEntry.COLUMN_HUMIDITY,
+            HistoryEntry.COLUMN_PRESSURE,
+            HistoryEntry.COLUMN_WIND_SPEED,
+            HistoryEntry.COLUMN_DEGREES
+    };
+
+    /* Indices into ALL_COLUMNS. The value columns follow in HistoryArchiveCodec's order */
+    private static final int INDEX_ID = 0;
+    private static final int INDEX_DATE = 1;
+    private static final int INDEX_WEATHER_ID = 2;
+    private static final int FIRST_VALUE_COLUMN = 3;
+
+    private final String[] mColumnNames;
+
+    /* For each column of the projection, its index in ALL_COLUMNS */
+    private final int[] mColumns;
+
+    private final List<Month> mMonths = new ArrayList<>();
+    private final long mStart;
+    private final long mEnd;
+    private final boolean mDescending;
+    private int mCount;
+
+    private Month mMonth;
+    private int mDay;
+
+    /* One month of the range: its blob, and once decoded, its days */
+    private static final class Month {
+
+        final int mFirstPosition;
+
+        /* The days of the month within the range, from mFirstDay on */
+        final int mFirstDay;
+        final int mDayCount;
+
+        byte[] mBlob;
+        HistoryArchiveCodec.Days mDays;
+
+        Month(int firstPosition, int firstDay, int dayCount, byte[] blob,
+              HistoryArchiveCodec.Days days) {
+            mFirstPosition = firstPosition;
+            mFirstDay = firstDay;
+            mDayCount = dayCount;
+            mBlob = blob;
+            mDays = days;
+        }
+    }
+
+    /**
+     * @param projection The history columns to return, or null for all of them. As in SQL, "*"
+     *                   stands for all of them, in table order.
+     * @param start      First normalized date in the range
+     * @param end        Normalized date just past the range
+     * @param descending Whether the days come latest first
+     * @throws IllegalArgumentException If the projection has a column the history doesn't
+     */
+    ArchivedDaysCursor(String[] projection, long start, long end, boolean descending) {
+        mStart = start;
+        mEnd = end;
+        mDescending = descending;
+        mColumnNames = expandProjection(projection);
+        mColumns = new int[mColumnNames.length];
+        for (int i = 0; i < mColumnNames.length; i++) {
+            mColumns[i] = indexOf(mColumnNames[i]);
+        }
+    }
+
+    private static String[] expandProjection(String[] projection) {
+        if (projection == null) return ALL_COLUMNS;
+
+        List<String> columns = new ArrayList<>(projection.length);
+        for (String column : projection) {
+            if ("*".equals(column)) {
+                columns.addAll(Arrays.asList(ALL_COLUMNS));
+            } else {
+                columns.add(column);
+            }
+        }
+        return columns.toArray(new String[columns.size()]);
+    }
+
+    private static int indexOf(String column) {
+        for (int i = 0; i < ALL_COLUMNS.length; i++) {
+            if (ALL_COLUMNS[i].equals(column)) return i;
+        }
+        throw new IllegalArgumentException("Archived days have no column " + column);
+    }
+
+    /**
+     * Adds the next month of the range. Months must be added in order.
+     *
+     * @param dayCount Number of days the month's blob holds
+     * @param blob     The month's blob
+     * @param edge     Whether the month may hold days outside the range, which decodes it now
+     */
+    void addMonth(int dayCount, byte[] blob, boolean edge) {
+        Month month;
+        if (edge) {
+            HistoryArchiveCodec.Days days = HistoryArchiveCodec.decode(blob);
+            int firstDay = days.indexOf(mStart);
+            month = new Month(mCount, firstDay, days.indexOf(mEnd) - firstDay, null, days);
+        } else {
+            month = new Month(mCount, 0, dayCount, blob, null);
+        }
+
+        if (month.mDayCount > 0) {
+            mMonths.add(month);
+            mCount += month.mDayCount;
+        }
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        /* Months are laid out in date order, whichever way the cursor goes */
+        int position = mDescending ? mCount - 1 - newPosition : newPosition;
+        if (mMonth == null || position < mMonth.mFirstPosition
+                || position >= mMonth.mFirstPosition + mMonth.mDayCount) {
+            mMonth = findMonth(position);
+            if (mMonth.mDays == null) {
+                mMonth.mDays = HistoryArchiveCodec.decode(mMonth.mBlob);
+                mMonth.mBlob = null;
+            }
+        }
+        mDay = mMonth.mFirstDay + position - mMonth.mFirstPosition;
+        return true;
+    }
+
+    private Month findMonth(int position) {
+        int low = 0;
+        int high = mMonths.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (mMonths.get(middle).mFirstPosition <= position) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return mMonths.get(low);
+    }
+
+    @Override
+    public int getType(int column) {
+        switch (mColumns[column]) {
+            case INDEX_ID:
+            case INDEX_DATE:
+            case INDEX_WEATHER_ID:
+                return Cursor.FIELD_TYPE_INTEGER;
+            default:
+                return Cursor.FIELD_TYPE_FLOAT;
+        }
+    }
+
+    @Override
+    public double getDouble(int column) {
+        checkPosition();
+        int index = mColumns[column];
+        switch (index) {
+            case INDEX_ID:
+                return -mMonth.mDays.mDates[mDay] / SunshineDateUtils.DAY_IN_MILLIS;
+            case INDEX_DATE:
+                return mMonth.mDays.mDates[mDay];
+            case INDEX_WEATHER_ID:
+                return mMonth.mDays.mWeatherIds[mDay];
+            default:
+                return mMonth.mDays.mValues[index - FIRST_VALUE_COLUMN][mDay];
+        }
+    }
+
+    @Override
+    public long getLong(int column) {
+        checkPosition();
+        int index = mColumns[column];
+        switch (index) {
+            case INDEX_ID:
+                return -mMonth.mDays.mDates[mDay] / SunshineDateUtils.DAY_IN_MILLIS;
+            case INDEX_DATE:
+                return mMonth.mDays.mDates[mDay];
+            case INDEX_WEATHER_ID:
+                return mMonth.mDays.mWeatherIds[mDay];
+            default:
+                return (long) mMonth.mDays.mValues[index - FIRST_VALUE_COLUMN][mDay];
+        }
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return (float) getDouble(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public String getString(int column) {
+        return getType(column) == Cursor.FIELD_TYPE_INTEGER
+                ? Long.toString(getLong(column))
+                : Double.toString(getDouble(column));
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return false;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import java.util.Arrays;
+
+/**
+ * The days of the forecast that changed between two {@link ForecastRepository.Days}, by date.
+ * Every list is sorted. A change set can also be a reset, which says nothing of which days
+ * changed, eg when the forecast was loaded; whoever displays it then starts over.
+ */
+public final class ForecastChangeSet {
+
+    private static final long[] NO_DATES = new long[0];
+
+    /* The change set of a load, after which anything may have changed */
+    public static final ForecastChangeSet RESET =
+            new ForecastChangeSet(true, NO_DATES, NO_DATES, NO_DATES);
+
+    private final boolean mReset;
+    private final long[] mInserted;
+    private final long[] mUpdated;
+    private final long[] mRemoved;
+
+    ForecastChangeSet(boolean reset, long[] inserted, long[] updated, long[] removed) {
+        mReset = reset;
+        mInserted = inserted;
+        mUpdated = updated;
+        mRemoved = removed;
+    }
+
+    /**
+     * @return true if the days may all have changed, in which case no dates are listed
+     */
+    public boolean isReset() {
+        return mReset;
+    }
+
+    /**
+     * @return true if no day changed
+     */
+    public boolean isEmpty() {
+        return !mReset && mInserted.length == 0 && mUpdated.length == 0 && mRemoved.length == 0;
+    }
+
+    /**
+     * @return The dates of the days that were added
+     */
+    public long[] getInserted() {
+        return mInserted.clone();
+    }
+
+    /**
+     * @return The dates of the days whose weather changed
+     */
+    public long[] getUpdated() {
+        return mUpdated.clone();
+    }
+
+    /**
+     * @return The dates of the days that were removed
+     */
+    public long[] getRemoved() {
+        return mRemoved.clone();
+    }
+
+    /**
+     * @param start First normalized date of the range
+     * @param end   Normalized date just past the range
+     * @return The changes within the range
+     */
+    ForecastChangeSet forRange(long start, long end) {
+        if (mReset) return this;
+        return new ForecastChangeSet(false, slice(mInserted, start, end),
+                slice(mUpdated, start, end), slice(mRemoved, start, end));
+    }
+
+    private static long[] slice(long[] dates, long start, long end) {
+        int from = position(dates, start);
+        int to = position(dates, end);
+        return from == to ? NO_DATES : Arrays.copyOfRange(dates, from, to);
+    }
+
+    /* Position of the first date at or after a date */
+    private static int position(long[] dates, long date) {
+        int position = Arrays.binarySearch(dates, date);
+        return position >= 0 ? position : -position - 1;
+    }
+
+    @Override
+    public String toString() {
+        if (mReset) return "ForecastChangeSet{reset}";
+        return "ForecastChangeSet{inserted=" + Arrays.toString(mInserted)
+                + ", updated=" + Arrays.toString(mUpdated)
+                + ", removed=" + Arrays.toString(mRemoved) + "}";
+    }
+}
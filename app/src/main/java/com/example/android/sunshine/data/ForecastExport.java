@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.ParcelFileDescriptor;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.example.android.sunshine.data.WeatherContract.ExportEntry;
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Writes the forecast export the provider hands out through {@link ExportEntry#CONTENT_URI},
+ * and reads it back the way a consumer would. See {@link ExportEntry} for the layout.
+ * <p>
+ * The export is only written once a consumer has opened it; from then on, the provider rewrites
+ * it every time the forecast changes and once the day turns. It is rewritten in place, rather
+ * than replaced by a new file, so that the mappings consumers already hold show the new rows.
+ */
+public final class ForecastExport {
+
+    private static final String TAG = ForecastExport.class.getSimpleName();
+
+    private static final String FILE_NAME = "forecast.export";
+
+    private static final String[] PROJECTION = {
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    /* Where each column of PROJECTION after the weather id goes in a row */
+    private static final int[] VALUE_OFFSETS = {
+            ExportEntry.ROW_MAX_TEMP,
+            ExportEntry.ROW_MIN_TEMP,
+            ExportEntry.ROW_HUMIDITY,
+            ExportEntry.ROW_PRESSURE,
+            ExportEntry.ROW_WIND_SPEED,
+            ExportEntry.ROW_DEGREES
+    };
+
+    private static final String SELECTION = WeatherEntry.COLUMN_DATE + " >= ?";
+
+    private static final String SORT_ORDER = WeatherEntry.COLUMN_DATE + " ASC";
+
+    /* Rewrites are serialized, so the generation only ever moves from even to odd to even */
+    private static final Object sWriteLock = new Object();
+
+    private ForecastExport() {
+    }
+
+    /**
+     * @param context Used to find the file
+     * @return The export file, which may not exist yet
+     */
+    static File getFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * Rewrites the export with the forecast from a day on, creating the file if needed. Failing
+     * to write only leaves consumers with the previous forecast, so errors are logged, not
+     * thrown.
+     *
+     * @param file  The export file
+     * @param db    The database to read the forecast from
+     * @param today Normalized date of the first day to export
+     * @return true if the export was written
+     */
+    static boolean write(File file, SQLiteDatabase db, long today) {
+        synchronized (sWriteLock) {
+            Cursor cursor = db.query(WeatherEntry.TABLE_NAME, PROJECTION, SELECTION,
+                    new String[]{Long.toString(today)}, null, null, SORT_ORDER,
+                    Integer.toString(ExportEntry.MAX_DAYS));
+            try {
+                RandomAccessFile output = new RandomAccessFile(file, "rw");
+                try {
+                    /* Mapping past the end of a new file grows it to the full size */
+                    MappedByteBuffer buffer = output.getChannel().map(
+                            FileChannel.MapMode.READ_WRITE, 0, ExportEntry.FILE_BYTES);
+                    writeRows(buffer, cursor);
+                } finally {
+                    output.close();
+                }
+                return true;
+            } catch (IOException e) {
+                Log.w(TAG, "Could not write the forecast export", e);
+                return false;
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    private static void writeRows(ByteBuffer buffer, Cursor cursor) {
+        long generation;
+        if (buffer.getInt(ExportEntry.OFFSET_MAGIC) == ExportEntry.MAGIC
+                && buffer.getInt(ExportEntry.OFFSET_VERSION) == ExportEntry.VERSION) {
+            generation = buffer.getLong(ExportEntry.OFFSET_GENERATION);
+        } else {
+            /* A new file; the generation is odd until the first rows are in */
+            generation = -1;
+            buffer.putLong(ExportEntry.OFFSET_GENERATION, generation);
+            buffer.putInt(ExportEntry.OFFSET_MAGIC, ExportEntry.MAGIC);
+            buffer.putInt(ExportEntry.OFFSET_VERSION, ExportEntry.VERSION);
+            buffer.putInt(ExportEntry.OFFSET_MAX_DAYS, ExportEntry.MAX_DAYS);
+            buffer.putInt(ExportEntry.OFFSET_ROW_BYTES, ExportEntry.ROW_BYTES);
+        }
+
+        /* An odd generation was left by a write that was interrupted, which this one finishes */
+        if ((generation & 1) == 0) {
+            generation++;
+            buffer.putLong(ExportEntry.OFFSET_GENERATION, generation);
+        }
+
+        /* The rows are put together first, so the checksum covers exactly what is copied in */
+        int count = cursor.getCount();
+        ByteBuffer rows = ByteBuffer.allocate(count * ExportEntry.ROW_BYTES);
+        for (int i = 0; cursor.moveToNext(); i++) {
+            int row = i * ExportEntry.ROW_BYTES;
+            rows.putLong(row + ExportEntry.ROW_DATE, cursor.getLong(0));
+            rows.putInt(row + ExportEntry.ROW_WEATHER_ID, cursor.getInt(1));
+            for (int column = 0; column < VALUE_OFFSETS.length; column++) {
+                rows.putDouble(row + VALUE_OFFSETS[column], cursor.getDouble(column + 2));
+            }
+        }
+
+        long published = generation + 1;
+        buffer.position(ExportEntry.HEADER_BYTES);
+        buffer.put(rows.array());
+        buffer.putInt(ExportEntry.OFFSET_COUNT, count);
+        buffer.putInt(ExportEntry.OFFSET_CHECKSUM, checksum(published, count, rows.array()));
+
+        buffer.putLong(ExportEntry.OFFSET_GENERATION, published);
+    }
+
+    /**
+     * @param generation The even generation the rows belong to
+     * @param count      The number of rows in use
+     * @param rows       Those rows, as laid out in the file
+     * @return The checksum of the rows, see {@link ExportEntry}
+     */
+    private static int checksum(long generation, int count, byte[] rows) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(12).putLong(generation).putInt(count).array());
+        crc.update(rows);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Reads the export the way a consumer in another process would: it maps the file once and
+     * reads the latest rows from the mapping whenever it needs them.
+     */
+    public static final class Reader {
+
+        /* Reads given up on while the provider keeps rewriting the rows, see read() */
+        private static final int MAX_READ_ATTEMPTS = 100;
+
+        private final ByteBuffer mBuffer;
+        private final int mMaxDays;
+        private final int mRowBytes;
+
+        private Reader(ByteBuffer buffer) {
+            mBuffer = buffer;
+            mMaxDays = buffer.getInt(ExportEntry.OFFSET_MAX_DAYS);
+            mRowBytes = buffer.getInt(ExportEntry.OFFSET_ROW_BYTES);
+        }
+
+        /**
+         * Opens the export through the provider and maps it into memory. The descriptor is
+         * closed again once mapped; the mapping stays valid.
+         *
+         * @param resolver Used to open the export
+         * @return A reader of the export
+         * @throws IOException If the export can't be opened, or has a layout this reader
+         *                     doesn't know
+         */
+        public static Reader open(ContentResolver resolver) throws IOException {
+            ParcelFileDescriptor descriptor =
+                    resolver.openFileDescriptor(ExportEntry.CONTENT_URI, "r");
+            if (descriptor == null) {
+                throw new FileNotFoundException("No forecast export");
+            }
+
+            FileInputStream stream = new FileInputStream(descriptor.getFileDescriptor());
+            try {
+                FileChannel channel = stream.getChannel();
+                MappedByteBuffer buffer = channel.map(
+                        FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.capacity() < ExportEntry.HEADER_BYTES
+                        || buffer.getInt(ExportEntry.OFFSET_MAGIC) != ExportEntry.MAGIC
+                        || buffer.getInt(ExportEntry.OFFSET_VERSION) != ExportEntry.VERSION) {
+                    throw new IOException("Unknown forecast export layout");
+                }
+
+                Reader reader = new Reader(buffer);
+                if (reader.mRowBytes < ExportEntry.ROW_BYTES || reader.mMaxDays < 0
+                        || buffer.capacity() < ExportEntry.HEADER_BYTES
+                        + (long) reader.mMaxDays * reader.mRowBytes) {
+                    throw new IOException("Truncated forecast export");
+                }
+                return reader;
+            } finally {
+                stream.close();
+                descriptor.close();
+            }
+        }
+
+        /**
+         * @return The generation of the export. It changes whenever the forecast does, and is
+         * odd while the rows are being rewritten
+         */
+        public long getGeneration() {
+            return mBuffer.getLong(ExportEntry.OFFSET_GENERATION);
+        }
+
+        /**
+         * Reads the rows of the export, again if the provider rewrote them while they were being
+         * read. The rows are copied out of the mapping and only kept if the checksum of their
+         * generation matches the copy, so rows torn by a rewrite are never returned.
+         *
+         * @return The rows, or null if the provider kept rewriting them through every attempt
+         */
+        @Nullable
+        public Days read() {
+            ByteBuffer buffer = mBuffer.duplicate();
+            for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+                long generation = getGeneration();
+                if ((generation & 1) == 0) {
+                    int count = Math.max(0,
+                            Math.min(mBuffer.getInt(ExportEntry.OFFSET_COUNT), mMaxDays));
+                    byte[] rows = new byte[count * mRowBytes];
+                    buffer.position(ExportEntry.HEADER_BYTES);
+                    buffer.get(rows);
+                    int checksum = mBuffer.getInt(ExportEntry.OFFSET_CHECKSUM);
+                    if (getGeneration() == generation
+                            && checksum == checksum(generation, count, rows)) {
+                        return readRows(generation, count, ByteBuffer.wrap(rows));
+                    }
+                }
+                Thread.yield();
+            }
+            return null;
+        }
+
+        /* Reads a copy of the rows that was checked to be whole */
+        private Days readRows(long generation, int count, ByteBuffer rows) {
+            Days days = new Days(generation, count);
+            for (int i = 0; i < count; i++) {
+                int row = i * mRowBytes;
+                days.mDates[i] = rows.getLong(row + ExportEntry.ROW_DATE);
+                days.mWeatherIds[i] = rows.getInt(row + ExportEntry.ROW_WEATHER_ID);
+                for (int column = 0; column < VALUE_OFFSETS.length; column++) {
+                    days.mValues[column][i] = rows.getDouble(row + VALUE_OFFSETS[column]);
+                }
+            }
+            return days;
+        }
+    }
+
+    /**
+     * The rows of the export as of one generation. Rows are sorted by date; the first may have
+     * passed if the day turned moments ago and the provider hasn't rewritten the export yet.
+     */
+    public static final class Days {
+
+        private final long mGeneration;
+        private final long[] mDates;
+        private final int[] mWeatherIds;
+
+        /* One array per VALUE_OFFSETS entry, indexed by day */
+        private final double[][] mValues;
+
+        private Days(long generation, int count) {
+            mGeneration = generation;
+            mDates = new long[count];
+            mWeatherIds = new int[count];
+            mValues = new double[VALUE_OFFSETS.length][count];
+        }
+
+        public long getGeneration() {
+            return mGeneration;
+        }
+
+        public int getCount() {
+            return mDates.length;
+        }
+
+        public long getDate(int position) {
+            return mDates[position];
+        }
+
+        public int getWeatherId(int position) {
+            return mWeatherIds[position];
+        }
+
+        public double getMaxTemp(int position) {
+            return mValues[0][position];
+        }
+
+        public double getMinTemp(int position) {
+            return mValues[1][position];
+        }
+
+        public double getHumidity(int position) {
+            return mValues[2][position];
+        }
+
+        public double getPressure(int position) {
+            return mValues[3][position];
+        }
+
+        public double getWindSpeed(int position) {
+            return mValues[4][position];
+        }
+
+        public double getDegrees(int position) {
+            return mValues[5][position];
+        }
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+import android.support.v4.util.LongSparseArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Holds, in memory, the rows of the forecast keyed by date, and lets screens observe them. When
+ * the user opens a day, DetailActivity binds from here on its first frame instead of querying the
+ * provider again. It only queries on a miss, eg when it is launched from a notification before
+ * the list was ever loaded.
+ * <p>
+ * MainActivity loads the forecast from today on once, through {@link #publish(long, Cursor)}.
+ * From then on {@link WeatherProvider} keeps the rows up to date from its write path: it hands
+ * over the rows it inserted and the dates it deleted once they have committed, so nothing has to
+ * query the weather table again. Screens {@link #subscribe} to a range of dates and are told which
+ * days were inserted, updated or removed, along with an immutable {@link Days} of the range. The
+ * changes are sent when the provider announces them, so the changes of a batch, or of a delete
+ * and an insert within the debounce window, are sent once, see {@link NotificationBatcher}.
+ * <p>
+ * When the forecast is replaced wholesale, eg when the location switches, the provider
+ * invalidates the repository and subscribers load it again. A load that was already running when
+ * the rows changed may have read the old ones, so loads take a ticket with {@link #beginLoad()}
+ * before they query and their rows are dropped if the rows changed since.
+ * <p>
+ * Other apps, and anything in a process of its own, still read the forecast through the
+ * provider.
+ */
+public final class ForecastRepository {
+
+    private static final Object sLock = new Object();
+    private static ForecastRepository sInstance;
+
+    /**
+     * Told about the changes to the days of a range. Called on the main thread.
+     */
+    public interface Listener {
+
+        /**
+         * @param days    The days of the range, as of the changes
+         * @param changes The days of the range that changed since the listener was last called,
+         *                or since it subscribed
+         */
+        void onForecastChanged(Days days, ForecastChangeSet changes);
+
+        /**
+         * The rows were dropped, and won't change again until the forecast is loaded again.
+         */
+        void onForecastInvalidated();
+    }
+
+    /* A listener along with the range of dates it observes */
+    private static final class Subscription {
+
+        final long mStart;
+        final long mEnd;
+        final Listener mListener;
+
+        Subscription(long start, long end, Listener listener) {
+            mStart = start;
+            mEnd = end;
+            mListener = listener;
+        }
+    }
+
+    private LongSparseArray<ForecastRow> mRows = new LongSparseArray<>();
+
+    /* Whether the forecast was loaded since the last invalidation */
+    private boolean mLoaded;
+
+    /* Incremented every time the rows change */
+    private long mGeneration;
+
+    /*
+     * The rows changed since the changes were last sent, as they were before the first of those
+     * changes. A date mapped to null had no row.
+     */
+    private LongSparseArray<ForecastRow> mChangedFrom = new LongSparseArray<>();
+
+    /* Whether the forecast was loaded since the changes were last sent */
+    private boolean mResetPending;
+
+    /* Only touched on the main thread */
+    private final List<Subscription> mSubscriptions = new ArrayList<>();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable mDispatchChanges = new Runnable() {
+        @Override
+        public void run() {
+            sendChanges();
+        }
+    };
+
+    private final Runnable mDispatchInvalidation = new Runnable() {
+        @Override
+        public void run() {
+            for (Subscription subscription : new ArrayList<>(mSubscriptions)) {
+                subscription.mListener.onForecastInvalidated();
+            }
+        }
+    };
+
+    private ForecastRepository() {
+    }
+
+    public static ForecastRepository getInstance() {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                sInstance = new ForecastRepository();
+            }
+            return sInstance;
+        }
+    }
+
+    /**
+     * Call before querying the rows that will be passed to {@link #publish(long, Cursor)}.
+     *
+     * @return The ticket to publish the rows with
+     */
+    public synchronized long beginLoad() {
+        return mGeneration;
+    }
+
+    /**
+     * Replaces the rows held with the ones of a cursor, unless the rows changed since the load
+     * began. Subscribers are then sent the rows, as a reset. The cursor is left positioned before
+     * its first row.
+     *
+     * @param ticket What {@link #beginLoad()} returned before the cursor was queried
+     * @param cursor Rows of the weather table with every column a {@link ForecastRow} holds
+     * @return true if the rows were stored
+     */
+    public boolean publish(long ticket, Cursor cursor) {
+        /* Read the rows without holding the lock; the cursor may need to fill its window */
+        LongSparseArray<ForecastRow> rows = new LongSparseArray<>(cursor.getCount());
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            ForecastRow row = ForecastRow.fromCursor(cursor);
+            rows.put(row.getDate(), row);
+        }
+        cursor.moveToPosition(-1);
+
+        synchronized (this) {
+            if (ticket != mGeneration) return false;
+            mRows = rows;
+            mLoaded = true;
+            mChangedFrom = new LongSparseArray<>();
+            mResetPending = true;
+        }
+        mHandler.post(mDispatchChanges);
+        return true;
+    }
+
+    /**
+     * @param date Normalized UTC date of the day
+     * @return The row for that day, or null if it isn't held
+     */
+    @Nullable
+    public synchronized ForecastRow get(long date) {
+        return mRows.get(date);
+    }
+
+    /**
+     * Drops every row held, and every load still in progress. Subscribers are told, so they can
+     * load the forecast again.
+     */
+    public void invalidate() {
+        synchronized (this) {
+            mGeneration++;
+            mRows = new LongSparseArray<>();
+            mLoaded = false;
+            mChangedFrom = new LongSparseArray<>();
+            mResetPending = false;
+        }
+        mHandler.post(mDispatchInvalidation);
+    }
+
+    /**
+     * Starts sending the changes to the days of a range to a listener. Call on the main thread,
+     * and {@link #unsubscribe(Listener)} once the changes are no longer needed.
+     *
+     * @param start    First normalized date of the range
+     * @param end      Normalized date just past the range
+     * @param listener The listener to send the changes to
+     * @return The days of the range, or null if the forecast isn't loaded, in which case the
+     * listener is sent them once it is
+     */
+    @Nullable
+    public Days subscribe(long start, long end, Listener listener) {
+        mSubscriptions.add(new Subscription(start, end, listener));
+        synchronized (this) {
+            return mLoaded ? createDays(toArray(mRows), start, end) : null;
+        }
+    }
+
+    /**
+     * Stops sending changes to a listener. Call on the main thread.
+     *
+     * @param listener A listener passed to {@link #subscribe(long, long, Listener)}
+     */
+    public void unsubscribe(Listener listener) {
+        for (int i = mSubscriptions.size() - 1; i >= 0; i--) {
+            if (mSubscriptions.get(i).mListener == listener) {
+                mSubscriptions.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Applies a change to the weather table, once it has committed. The change is sent to
+     * subscribers by {@link #dispatchChanges()}.
+     *
+     * @param written The rows inserted or replaced
+     * @param removed The dates of the rows deleted
+     */
+    synchronized void apply(ForecastRow[] written, long[] removed) {
+        mGeneration++;
+        for (long date : removed) {
+            recordChange(date);
+            mRows.remove(date);
+        }
+        for (ForecastRow row : written) {
+            recordChange(row.getDate());
+            mRows.put(row.getDate(), row);
+        }
+    }
+
+    private void recordChange(long date) {
+        if (mChangedFrom.indexOfKey(date) < 0) {
+            mChangedFrom.put(date, mRows.get(date));
+        }
+    }
+
+    /**
+     * Sends the changes applied since they were last sent to the subscribers, on the main thread.
+     * Called when the provider announces a change to the weather table.
+     */
+    void dispatchChanges() {
+        mHandler.post(mDispatchChanges);
+    }
+
+    private void sendChanges() {
+        ForecastRow[] rows;
+        ForecastChangeSet changes;
+        synchronized (this) {
+            if (!mLoaded) {
+                /* The rows are incomplete, so there is nothing to send until they are loaded */
+                mChangedFrom = new LongSparseArray<>();
+                return;
+            }
+            changes = mResetPending ? ForecastChangeSet.RESET : collectChanges();
+            mChangedFrom = new LongSparseArray<>();
+            mResetPending = false;
+            if (changes.isEmpty()) return;
+            rows = toArray(mRows);
+        }
+
+        for (Subscription subscription : new ArrayList<>(mSubscriptions)) {
+            ForecastChangeSet rangeChanges =
+                    changes.forRange(subscription.mStart, subscription.mEnd);
+            if (!rangeChanges.isEmpty()) {
+                subscription.mListener.onForecastChanged(
+                        createDays(rows, subscription.mStart, subscription.mEnd), rangeChanges);
+            }
+        }
+    }
+
+    /* Compares the rows as they were before the changes to the ones held now */
+    private ForecastChangeSet collectChanges() {
+        int count = mChangedFrom.size();
+        long[] inserted = new long[count];
+        long[] updated = new long[count];
+        long[] removed = new long[count];
+        int insertedCount = 0;
+        int updatedCount = 0;
+        int removedCount = 0;
+        for (int i = 0; i < count; i++) {
+            long date = mChangedFrom.keyAt(i);
+            ForecastRow before = mChangedFrom.valueAt(i);
+            ForecastRow after = mRows.get(date);
+            if (before == null && after != null) {
+                inserted[insertedCount++] = date;
+            } else if (before != null && after == null) {
+                removed[removedCount++] = date;
+            } else if (before != null && !before.equals(after)) {
+                updated[updatedCount++] = date;
+            }
+        }
+
+        /* The keys of a LongSparseArray are sorted, so the dates already are */
+        return new ForecastChangeSet(false, Arrays.copyOf(inserted, insertedCount),
+                Arrays.copyOf(updated, updatedCount), Arrays.copyOf(removed, removedCount));
+    }
+
+    private static ForecastRow[] toArray(LongSparseArray<ForecastRow> rows) {
+        ForecastRow[] array = new ForecastRow[rows.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = rows.valueAt(i);
+        }
+        return array;
+    }
+
+    private static Days createDays(ForecastRow[] rows, long start, long end) {
+        int from = position(rows, start);
+        int to = position(rows, end);
+        return new Days(Arrays.copyOfRange(rows, from, to));
+    }
+
+    /* Position of the first row on or after a date, in rows sorted by date */
+    private static int position(ForecastRow[] rows, long date) {
+        int low = 0;
+        int high = rows.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (rows[middle].getDate() < date) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * The days of a range of dates at one point in time, sorted by date.
+     */
+    public static final class Days {
+
+        private final ForecastRow[] mRows;
+
+        private Days(ForecastRow[] rows) {
+            mRows = rows;
+        }
+
+        public int getCount() {
+            return mRows.length;
+        }
+
+        public ForecastRow getRow(int position) {
+            return mRows[position];
+        }
+
+        /**
+         * @param date Normalized UTC date of a day
+         * @return The position of the day, or -1 if it isn't one of the days
+         */
+        public int indexOf(long date) {
+            int position = position(mRows, date);
+            return position < mRows.length && mRows[position].getDate() == date ? position : -1;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+/**
+ * One day of weather, with every column the forecast list and the detail screen display. Rows
+ * are immutable, so they can be handed between threads and activities freely.
+ */
+public final class ForecastRow {
+
+    private final long mDate;
+    private final int mWeatherId;
+    private final double mMaxTemp;
+    private final double mMinTemp;
+    private final float mHumidity;
+    private final float mPressure;
+    private final float mWindSpeed;
+    private final float mDegrees;
+
+    public ForecastRow(long date, int weatherId, double maxTemp, double minTemp, float humidity,
+                       float pressure, float windSpeed, float degrees) {
+        mDate = date;
+        mWeatherId = weatherId;
+        mMaxTemp = maxTemp;
+        mMinTemp = minTemp;
+        mHumidity = humidity;
+        mPressure = pressure;
+        mWindSpeed = windSpeed;
+        mDegrees = degrees;
+    }
+
+    /**
+     * Reads the row the cursor is positioned on. The cursor must contain every column of the
+     * weather table that a ForecastRow holds, in any order.
+     *
+     * @param cursor A cursor over the weather table, positioned on a row
+     * @return The row
+     */
+    public static ForecastRow fromCursor(Cursor cursor) {
+        return new ForecastRow(
+                cursor.getLong(cursor.getColumnIndexOrThrow(WeatherContract.WeatherEntry.COLUMN_DATE)),
+                cursor.getInt(cursor.getColumnIndexOrThrow(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID)),
+                cursor.getDouble(cursor.getColumnIndexOrThrow(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP)),
+                cursor.getDouble(cursor.getColumnIndexOrThrow(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP)),
+                cursor.getFloat(cursor.getColumnIndexOrThrow(WeatherContract.WeatherEntry.COLUMN_HUMIDITY)),
+                cursor.getFloat(cursor.getColumnIndexOrThrow(WeatherContract.WeatherEntry.COLUMN_PRESSURE)),
+                cursor.getFloat(cursor.getColumnIndexOrThrow(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED)),
+                cursor.getFloat(cursor.getColumnIndexOrThrow(WeatherContract.WeatherEntry.COLUMN_DEGREES)));
+    }
+
+    /**
+     * Reads a row about to be inserted into the weather table. The values are read the way a
+     * cursor over the stored row would return them, so the row equals the one read back.
+     *
+     * @param values Every column of the weather table that a ForecastRow holds
+     * @return The row
+     */
+    static ForecastRow fromValues(ContentValues values) {
+        return new ForecastRow(
+                values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE),
+                values.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID),
+                values.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP),
+                values.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP),
+                values.getAsDouble(WeatherContract.WeatherEntry.COLUMN_HUMIDITY).floatValue(),
+                values.getAsDouble(WeatherContract.WeatherEntry.COLUMN_PRESSURE).floatValue(),
+                values.getAsDouble(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED).floatValue(),
+                values.getAsDouble(WeatherContract.WeatherEntry.COLUMN_DEGREES).floatValue());
+    }
+
+    /**
+     * @return Normalized UTC date of the day, as stored in the weather table
+     */
+    public long getDate() {
+        return mDate;
+    }
+
+    public int getWeatherId() {
+        return mWeatherId;
+    }
+
+    /**
+     * @return The high temperature, in degrees celsius
+     */
+    public double getMaxTemp() {
+        return mMaxTemp;
+    }
+
+    /**
+     * @return The low temperature, in degrees celsius
+     */
+    public double getMinTemp() {
+        return mMinTemp;
+    }
+
+    public float getHumidity() {
+        return mHumidity;
+    }
+
+    public float getPressure() {
+        return mPressure;
+    }
+
+    public float getWindSpeed() {
+        return mWindSpeed;
+    }
+
+    /**
+     * @return The wind direction, in compass degrees
+     */
+    public float getDegrees() {
+        return mDegrees;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ForecastRow)) return false;
+        ForecastRow row = (ForecastRow) o;
+        return mDate == row.mDate
+                && mWeatherId == row.mWeatherId
+                && Double.compare(mMaxTemp, row.mMaxTemp) == 0
+                && Double.compare(mMinTemp, row.mMinTemp) == 0
+                && Float.compare(mHumidity, row.mHumidity) == 0
+                && Float.compare(mPressure, row.mPressure) == 0
+                && Float.compare(mWindSpeed, row.mWindSpeed) == 0
+                && Float.compare(mDegrees, row.mDegrees) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int) (mDate ^ (mDate >>> 32));
+        result = 31 * result + mWeatherId;
+        long maxTemp = Double.doubleToLongBits(mMaxTemp);
+        result = 31 * result + (int) (maxTemp ^ (maxTemp >>> 32));
+        long minTemp = Double.doubleToLongBits(mMinTemp);
+        result = 31 * result + (int) (minTemp ^ (minTemp >>> 32));
+        result = 31 * result + Float.floatToIntBits(mHumidity);
+        result = 31 * result + Float.floatToIntBits(mPressure);
+        result = 31 * result + Float.floatToIntBits(mWindSpeed);
+        result = 31 * result + Float.floatToIntBits(mDegrees);
+        return result;
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.support.annotation.Nullable;
+import android.support.v4.util.AtomicFile;
+import android.util.Log;
+
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.utilities.SunshineWeatherUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * A small binary file holding the forecast list exactly as MainActivity displays it: for every
+ * day, its date, weather condition and the already formatted description, high and low. The sync
+ * writes it next to the database. On a cold start, MainActivity maps it into memory and draws the
+ * list from it straight away, instead of waiting for the database to open and the first query to
+ * return. The loader then replaces it with the real data.
+ * <p>
+ * The file is written through an {@link AtomicFile}, so a reader sees either the previous
+ * snapshot or the new one, never a torn write. It starts with a header:
+ * <pre>
+ *     int    magic
+ *     int    format version
+ *     byte   1 if the temperatures were formatted in metric units, 0 otherwise
+ *     string locale the strings were formatted in
+ *     int    number of rows
+ * </pre>
+ * followed by the rows, each a long date, an int weather id and three strings. Strings are a
+ * short byte count followed by UTF-8 bytes. A snapshot whose magic, version, units or locale
+ * don't match the current ones is ignored, as is one that is cut short.
+ */
+public final class ForecastSnapshot {
+
+    private static final String TAG = ForecastSnapshot.class.getSimpleName();
+
+    private static final String FILE_NAME = "forecast.snapshot";
+
+    /* "SSNP" */
+    private static final int MAGIC = 0x53534E50;
+
+    /* Increment when the layout of the file changes; older files are then ignored */
+    private static final int VERSION = 1;
+
+    /* A row with three empty strings */
+    private static final int MIN_ROW_BYTES = 8 + 4 + 3 * 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final long[] mDates;
+    private final int[] mWeatherIds;
+    private final String[] mDescriptions;
+    private final String[] mHighs;
+    private final String[] mLows;
+
+    private ForecastSnapshot(int count) {
+        mDates = new long[count];
+        mWeatherIds = new int[count];
+        mDescriptions = new String[count];
+        mHighs = new String[count];
+        mLows = new String[count];
+    }
+
+    public int getCount() {
+        return mDates.length;
+    }
+
+    public long getDate(int position) {
+        return mDates[position];
+    }
+
+    public int getWeatherId(int position) {
+        return mWeatherIds[position];
+    }
+
+    public String getDescription(int position) {
+        return mDescriptions[position];
+    }
+
+    public String getHigh(int position) {
+        return mHighs[position];
+    }
+
+    public String getLow(int position) {
+        return mLows[position];
+    }
+
+    /**
+     * Formats a forecast for display and replaces the snapshot with it. Failing to write the
+     * snapshot only costs the next cold start its head start, so errors are logged, not thrown.
+     *
+     * @param context       Used to format the values and find the file
+     * @param weatherValues The forecast as stored in the weather table, sorted by date
+     */
+    public static void write(Context context, ContentValues[] weatherValues) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeByte(SunshinePreferences.isMetric(context) ? 1 : 0);
+            writeString(out, Locale.getDefault().toString());
+            out.writeInt(weatherValues.length);
+
+            for (ContentValues values : weatherValues) {
+                int weatherId = values.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID);
+                out.writeLong(values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE));
+                out.writeInt(weatherId);
+                writeString(out, SunshineWeatherUtils.getStringForWeatherCondition(context, weatherId));
+                writeString(out, SunshineWeatherUtils.formatTemperature(context,
+                        values.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP)));
+                writeString(out, SunshineWeatherUtils.formatTemperature(context,
+                        values.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP)));
+            }
+            out.flush();
+        } catch (IOException e) {
+            /* Writing to memory doesn't fail */
+            throw new IllegalStateException(e);
+        }
+
+        AtomicFile file = getFile(context);
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            stream.write(bytes.toByteArray());
+            file.finishWrite(stream);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write the forecast snapshot", e);
+            if (stream != null) file.failWrite(stream);
+        }
+    }
+
+    /**
+     * Maps the snapshot into memory and decodes the rows from today onwards.
+     *
+     * @param context Used to check the units and find the file
+     * @return The snapshot, or null if there is none that matches the current units and locale
+     */
+    @Nullable
+    public static ForecastSnapshot read(Context context) {
+        FileInputStream stream = null;
+        try {
+            /* Also rolls back a write that was interrupted half way */
+            stream = getFile(context).openRead();
+            FileChannel channel = stream.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return decode(buffer, SunshinePreferences.isMetric(context),
+                    Locale.getDefault().toString(),
+                    SunshineDateUtils.normalizeDate(System.currentTimeMillis()));
+        } catch (FileNotFoundException e) {
+            /* No sync has written one yet */
+            return null;
+        } catch (IOException | BufferUnderflowException e) {
+            Log.w(TAG, "Could not read the forecast snapshot", e);
+            return null;
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    /* Nothing left to do with it */
+                }
+            }
+        }
+    }
+
+    /**
+     * Throws the snapshot away, so that the next cold start waits for the database.
+     *
+     * @param context Used to find the file
+     */
+    public static void delete(Context context) {
+        getFile(context).delete();
+    }
+
+    private static ForecastSnapshot decode(ByteBuffer buffer, boolean metric, String locale,
+                                           long today) {
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) return null;
+        if ((buffer.get() == 1) != metric) return null;
+        if (!locale.equals(readString(buffer))) return null;
+
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / MIN_ROW_BYTES) return null;
+        long[] dates = new long[count];
+        int[] weatherIds = new int[count];
+        String[] descriptions = new String[count];
+        String[] highs = new String[count];
+        String[] lows = new String[count];
+
+        /* Rows are sorted by date; the ones before today are no longer displayed */
+        int first = count;
+        for (int i = 0; i < count; i++) {
+            dates[i] = buffer.getLong();
+            weatherIds[i] = buffer.getInt();
+            descriptions[i] = readString(buffer);
+            highs[i] = readString(buffer);
+            lows[i] = readString(buffer);
+            if (first == count && dates[i] >= today) first = i;
+        }
+
+        ForecastSnapshot snapshot = new ForecastSnapshot(count - first);
+        System.arraycopy(dates, first, snapshot.mDates, 0, count - first);
+        System.arraycopy(weatherIds, first, snapshot.mWeatherIds, 0, count - first);
+        System.arraycopy(descriptions, first, snapshot.mDescriptions, 0, count - first);
+        System.arraycopy(highs, first, snapshot.mHighs, 0, count - first);
+        System.arraycopy(lows, first, snapshot.mLows, 0, count - first);
+        return snapshot;
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static AtomicFile getFile(Context context) {
+        return new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+    }
+}
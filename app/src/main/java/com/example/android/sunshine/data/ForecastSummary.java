@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+
+import com.example.android.sunshine.data.WeatherContract.SummaryCall;
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+
+import java.util.Arrays;
+
+/**
+ * The weather id, high and low of every day of the forecast from one day on, held by the
+ * provider to answer {@link SummaryCall#METHOD_GET_SUMMARY} from memory. A summary is read once
+ * and then stays valid until the weather table changes, which {@link ForecastRepository}'s
+ * generation tracks, or until the day it was read for has passed.
+ */
+final class ForecastSummary {
+
+    private static final String[] PROJECTION = {
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP
+    };
+
+    private static final String SELECTION = WeatherEntry.COLUMN_DATE + " >= ?";
+
+    private static final String SORT_ORDER = WeatherEntry.COLUMN_DATE + " ASC";
+
+    /* The ForecastRepository generation and the day the summary was read for */
+    private final long mGeneration;
+    private final long mToday;
+
+    private final long[] mDates;
+    private final int[] mWeatherIds;
+    private final double[] mMaxTemps;
+    private final double[] mMinTemps;
+
+    private ForecastSummary(long generation, long today, int count) {
+        mGeneration = generation;
+        mToday = today;
+        mDates = new long[count];
+        mWeatherIds = new int[count];
+        mMaxTemps = new double[count];
+        mMinTemps = new double[count];
+    }
+
+    /**
+     * Reads the forecast from a day on.
+     *
+     * @param db         The database to read from
+     * @param generation What {@link ForecastRepository#beginLoad()} returned before reading
+     * @param today      Normalized date of the first day to read
+     * @return The summary of the forecast from that day on
+     */
+    static ForecastSummary load(SQLiteDatabase db, long generation, long today) {
+        Cursor cursor = db.query(WeatherEntry.TABLE_NAME, PROJECTION, SELECTION,
+                new String[]{Long.toString(today)}, null, null, SORT_ORDER);
+        try {
+            ForecastSummary summary = new ForecastSummary(generation, today, cursor.getCount());
+            for (int i = 0; cursor.moveToNext(); i++) {
+                summary.mDates[i] = cursor.getLong(0);
+                summary.mWeatherIds[i] = cursor.getInt(1);
+                summary.mMaxTemps[i] = cursor.getDouble(2);
+                summary.mMinTemps[i] = cursor.getDouble(3);
+            }
+            return summary;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @param generation The current {@link ForecastRepository} generation
+     * @param today      Today's normalized date
+     * @return true if the summary still describes the forecast from today on
+     */
+    boolean isCurrent(long generation, long today) {
+        return generation == mGeneration && today == mToday;
+    }
+
+    /**
+     * @param days Most days to return
+     * @return The first days of the summary, under the {@link SummaryCall} keys
+     */
+    Bundle toBundle(int days) {
+        int count = Math.min(days, mDates.length);
+        Bundle bundle = new Bundle(4);
+        bundle.putLongArray(SummaryCall.KEY_DATES, Arrays.copyOf(mDates, count));
+        bundle.putIntArray(SummaryCall.KEY_WEATHER_IDS, Arrays.copyOf(mWeatherIds, count));
+        bundle.putDoubleArray(SummaryCall.KEY_MAX_TEMPS, Arrays.copyOf(mMaxTemps, count));
+        bundle.putDoubleArray(SummaryCall.KEY_MIN_TEMPS, Arrays.copyOf(mMinTemps, count));
+        return bundle;
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import com.example.android.sunshine.data.WeatherContract.HistoryEntry;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Packs the archived days of a month into the blob stored in the history archive table, and
+ * unpacks them again. The days are stored column by column rather than row by row, so that each
+ * column holds similar values next to each other:
+ * <ul>
+ *     <li>dates as the number of days since the previous day, which is nearly always 1,</li>
+ *     <li>weather ids as runs of the same id, as conditions tend to last a few days,</li>
+ *     <li>temperatures, humidity, pressure, wind speed and direction in fixed point, in
+ *     hundredths, as the difference from the previous day.</li>
+ * </ul>
+ * Every number is written as a variable length integer, so small differences take a byte, and
+ * the whole is then deflated. Fixed point keeps every value the weather server sends, which has
+ * at most two decimals, exactly.
+ * <p>
+ * The first byte of a blob is its format version, so that the format can change later without
+ * migrating the blobs already stored.
+ */
+final class HistoryArchiveCodec {
+
+    /* The columns stored in fixed point, in the order they are stored */
+    static final String[] VALUE_COLUMNS = {
+            HistoryEntry.COLUMN_MIN_TEMP,
+            HistoryEntry.COLUMN_MAX_TEMP,
+            HistoryEntry.COLUMN_HUMIDITY,
+            HistoryEntry.COLUMN_PRESSURE,
+            HistoryEntry.COLUMN_WIND_SPEED,
+            HistoryEntry.COLUMN_DEGREES
+    };
+
+    private static final int FORMAT_VERSION = 1;
+
+    /* Values are stored in hundredths */
+    private static final double FIXED_POINT_SCALE = 100;
+
+    private HistoryArchiveCodec() {
+    }
+
+    /**
+     * The days of a month, held column by column as the blob stores them.
+     */
+    static final class Days {
+
+        final long[] mDates;
+        final int[] mWeatherIds;
+
+        /* One array per VALUE_COLUMNS entry, indexed by day */
+        final double[][] mValues;
+
+        int mCount;
+
+        Days(int capacity) {
+            mDates = new long[capacity];
+            mWeatherIds = new int[capacity];
+            mValues = new double[VALUE_COLUMNS.length][capacity];
+        }
+
+        /**
+         * Appends a day. Days must be added in date order.
+         *
+         * @param date      Normalized date of the day
+         * @param weatherId Weather id of the day
+         * @param values    The day's values, in the order of VALUE_COLUMNS
+         */
+        void add(long date, int weatherId, double[] values) {
+            mDates[mCount] = date;
+            mWeatherIds[mCount] = weatherId;
+            for (int column = 0; column < VALUE_COLUMNS.length; column++) {
+                mValues[column][mCount] = values[column];
+            }
+            mCount++;
+        }
+
+        /**
+         * @param date A normalized date
+         * @return The index of the first day on or after the date, or mCount if there is none
+         */
+        int indexOf(long date) {
+            int low = 0;
+            int high = mCount;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (mDates[middle] < date) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * @param days The days of a month, in date order
+     * @return The blob to store
+     */
+    static byte[] encode(Days days) {
+        ByteArrayOutputStream columns = new ByteArrayOutputStream(16 + days.mCount * 10);
+        int count = days.mCount;
+        writeVarint(columns, count);
+
+        long previousDay = 0;
+        for (int i = 0; i < count; i++) {
+            long day = days.mDates[i] / SunshineDateUtils.DAY_IN_MILLIS;
+            writeSigned(columns, day - previousDay);
+            previousDay = day;
+        }
+
+        for (int i = 0; i < count; ) {
+            int weatherId = days.mWeatherIds[i];
+            int run = 1;
+            while (i + run < count && days.mWeatherIds[i + run] == weatherId) {
+                run++;
+            }
+            writeSigned(columns, weatherId);
+            writeVarint(columns, run);
+            i += run;
+        }
+
+        for (double[] values : days.mValues) {
+            long previous = 0;
+            for (int i = 0; i < count; i++) {
+                long fixed = Math.round(values[i] * FIXED_POINT_SCALE);
+                writeSigned(columns, fixed - previous);
+                previous = fixed;
+            }
+        }
+
+        byte[] raw = columns.toByteArray();
+        ByteArrayOutputStream blob = new ByteArrayOutputStream(raw.length / 2 + 16);
+        blob.write(FORMAT_VERSION);
+        writeVarint(blob, raw.length);
+
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            byte[] buffer = new byte[512];
+            while (!deflater.finished()) {
+                blob.write(buffer, 0, deflater.deflate(buffer));
+            }
+        } finally {
+            deflater.end();
+        }
+        return blob.toByteArray();
+    }
+
+    /**
+     * @param blob A blob written by {@link #encode(Days)}
+     * @return The days it holds
+     * @throws IllegalStateException If the blob is corrupt or of an unknown format
+     */
+    static Days decode(byte[] blob) {
+        Input header = new Input(blob);
+        int version = blob.length == 0 ? -1 : blob[header.mPosition++];
+        if (version != FORMAT_VERSION) {
+            throw new IllegalStateException("Unknown history archive format " + version);
+        }
+        byte[] raw = new byte[(int) header.readVarint()];
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(blob, header.mPosition, blob.length - header.mPosition);
+            if (inflater.inflate(raw) != raw.length) {
+                throw new IllegalStateException("Truncated history archive");
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt history archive", e);
+        } finally {
+            inflater.end();
+        }
+
+        Input columns = new Input(raw);
+        int count = (int) columns.readVarint();
+        Days days = new Days(count);
+        days.mCount = count;
+
+        long day = 0;
+        for (int i = 0; i < count; i++) {
+            day += columns.readSigned();
+            days.mDates[i] = day * SunshineDateUtils.DAY_IN_MILLIS;
+        }
+
+        for (int i = 0; i < count; ) {
+            int weatherId = (int) columns.readSigned();
+            int run = (int) columns.readVarint();
+            if (run <= 0 || i + run > count) {
+                throw new IllegalStateException("Corrupt history archive");
+            }
+            for (int end = i + run; i < end; i++) {
+                days.mWeatherIds[i] = weatherId;
+            }
+        }
+
+        for (double[] values : days.mValues) {
+            long fixed = 0;
+            for (int i = 0; i < count; i++) {
+                fixed += columns.readSigned();
+                values[i] = fixed / FIXED_POINT_SCALE;
+            }
+        }
+        return days;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /* Zig-zag encodes the value first, so that small negative values stay small */
+    private static void writeSigned(ByteArrayOutputStream out, long value) {
+        writeVarint(out, (value << 1) ^ (value >> 63));
+    }
+
+    /* Reads the numbers written above back out of a byte array */
+    private static final class Input {
+
+        final byte[] mBytes;
+        int mPosition;
+
+        Input(byte[] bytes) {
+            mBytes = bytes;
+        }
+
+        long readVarint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (mPosition >= mBytes.length) {
+                    throw new IllegalStateException("Truncated history archive");
+                }
+                byte b = mBytes[mPosition++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new IllegalStateException("Corrupt history archive");
+        }
+
+        long readSigned() {
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.example.android.sunshine.data.WeatherContract.ChangeNotification;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects the changes the provider makes and announces each changed URI once, rather than once
+ * per insert or delete. Changes are held in two ways:
+ * <ul>
+ *     <li>Inside a batch, opened with {@link #beginBatch()} and closed with
+ *     {@link #endBatch(boolean)}, the changes of the calling thread are held until the outermost
+ *     batch closes, then announced right away. Batches nest. If the outermost batch fails,
+ *     nothing changed and its changes are dropped; an inner batch can't tell its changes apart
+ *     from the outer ones', so they are announced anyway.</li>
+ *     <li>Outside any batch, changes are held for DEBOUNCE_MILLIS from the first of them, so that
+ *     a delete followed by an insert is still announced once.</li>
+ * </ul>
+ * A change can carry the dates it affected. The changes of a URI are merged into one covering
+ * all of their dates, which the notification carries, see {@link ChangeNotification}. A change
+ * without dates affects the whole URI, and so does the merged change it is part of.
+ * <p>
+ * Changes to the weather table are also sent to the subscribers of the {@link ForecastRepository}
+ * at the same time, so they see a batch or debounce window as one change too.
+ */
+final class NotificationBatcher {
+
+    /* How long changes made outside a batch are held for, so that they can be merged */
+    static final long DEBOUNCE_MILLIS = 100;
+
+    /* The dates a URI's changes affected, or NO_DATES if they aren't all known */
+    private static final class Change {
+
+        long mStart;
+        long mEnd;
+
+        Change(long start, long end) {
+            mStart = start;
+            mEnd = end;
+        }
+
+        boolean hasDates() {
+            return mStart != ChangeNotification.NO_DATES;
+        }
+
+        void merge(Change change) {
+            if (!hasDates() || !change.hasDates()) {
+                mStart = ChangeNotification.NO_DATES;
+                mEnd = ChangeNotification.NO_DATES;
+            } else {
+                mStart = Math.min(mStart, change.mStart);
+                mEnd = Math.max(mEnd, change.mEnd);
+            }
+        }
+    }
+
+    /* The changes of the batches open on a thread, along with how deeply they are nested */
+    private static final class Batch {
+
+        final Map<Uri, Change> mChanges = new LinkedHashMap<>();
+        int mDepth;
+    }
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+
+    private final ThreadLocal<Batch> mBatches = new ThreadLocal<>();
+
+    /* Changes made outside a batch, waiting for the debounce window to close */
+    private final Map<Uri, Change> mPending = new LinkedHashMap<>();
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flushPending();
+        }
+    };
+
+    NotificationBatcher(ContentResolver resolver) {
+        mResolver = resolver;
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Opens a batch on the calling thread. Every call must be matched by
+     * {@link #endBatch(boolean)}, in a finally block.
+     */
+    void beginBatch() {
+        Batch batch = mBatches.get();
+        if (batch == null) {
+            batch = new Batch();
+            mBatches.set(batch);
+        }
+        batch.mDepth++;
+    }
+
+    /**
+     * Closes the innermost batch of the calling thread. Once the outermost one closes, its
+     * changes are announced, or dropped if it failed.
+     *
+     * @param successful Whether the changes of the batch took effect. Only counts for the
+     *                   outermost batch
+     */
+    void endBatch(boolean successful) {
+        Batch batch = mBatches.get();
+        if (batch == null) {
+            throw new IllegalStateException("No batch is open");
+        }
+        if (--batch.mDepth > 0) return;
+
+        mBatches.remove();
+        if (successful) {
+            dispatch(batch.mChanges);
+        }
+    }
+
+    /**
+     * Records that the data at a URI changed, with no telling which dates.
+     *
+     * @param uri The URI whose data changed
+     */
+    void notifyChange(Uri uri) {
+        record(uri, new Change(ChangeNotification.NO_DATES, ChangeNotification.NO_DATES));
+    }
+
+    /**
+     * Records that the data at a URI changed on some dates.
+     *
+     * @param uri   The URI whose data changed
+     * @param start First normalized date affected
+     * @param end   Normalized date just past the last one affected
+     */
+    void notifyChange(Uri uri, long start, long end) {
+        record(uri, new Change(start, end));
+    }
+
+    private void record(Uri uri, Change change) {
+        Batch batch = mBatches.get();
+        if (batch != null) {
+            merge(batch.mChanges, uri, change);
+            return;
+        }
+
+        synchronized (mPending) {
+            if (mPending.isEmpty()) {
+                mHandler.postDelayed(mFlush, DEBOUNCE_MILLIS);
+            }
+            merge(mPending, uri, change);
+        }
+    }
+
+    private static void merge(Map<Uri, Change> changes, Uri uri, Change change) {
+        Change existing = changes.get(uri);
+        if (existing == null) {
+            changes.put(uri, change);
+        } else {
+            existing.merge(change);
+        }
+    }
+
+    /**
+     * Announces the changes made outside a batch right away, rather than once the debounce
+     * window closes.
+     */
+    void flushPending() {
+        Map<Uri, Change> pending;
+        synchronized (mPending) {
+            mHandler.removeCallbacks(mFlush);
+            pending = new LinkedHashMap<>(mPending);
+            mPending.clear();
+        }
+        dispatch(pending);
+    }
+
+    private void dispatch(Map<Uri, Change> changes) {
+        /* The rows held in memory already took the changes; their subscribers hear of them now */
+        if (changes.containsKey(WeatherContract.WeatherEntry.CONTENT_URI)) {
+            ForecastRepository.getInstance().dispatchChanges();
+        }
+
+        for (Map.Entry<Uri, Change> entry : changes.entrySet()) {
+            Change change = entry.getValue();
+            mResolver.notifyChange(change.hasDates()
+                    ? ChangeNotification.buildChangeUri(entry.getKey(), change.mStart, change.mEnd)
+                    : entry.getKey(), null);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.support.v4.util.LruCache;
+
+/**
+ * Counts how often the reads of {@link WeatherProvider} can reuse a statement SQLite has already
+ * compiled. Each database connection keeps the statements it compiled in an LRU cache keyed by
+ * their SQL, so a read hits the cache only if exactly the same SQL ran recently; a selection
+ * with a value written into it, rather than bound, is new SQL every time the value changes.
+ * <p>
+ * The framework doesn't expose that cache, so this keeps an LRU of the same size over the SQL
+ * of every provider read. Writes and statements compiled by hand also pass through the
+ * connection's cache, which makes the counts here a slight overestimate of its hit rate.
+ * <p>
+ * The counts are taken, and reset, by every sync, which records them in the sync metrics table.
+ */
+public final class StatementCacheStats {
+
+    /*
+     * Number of compiled statements each connection keeps. WeatherDbHelper sets the database's
+     * cache to this size, which is also SQLiteDatabase's default.
+     */
+    static final int CACHE_SIZE = 25;
+
+    /* Indices into the array returned by takeCounts */
+    public static final int INDEX_HITS = 0;
+    public static final int INDEX_MISSES = 1;
+
+    private static final Object sLock = new Object();
+    private static StatementCacheStats sInstance;
+
+    private final LruCache<String, Boolean> mStatements = new LruCache<>(CACHE_SIZE);
+
+    private long mHits;
+    private long mMisses;
+
+    private StatementCacheStats() {
+    }
+
+    public static StatementCacheStats getInstance() {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                sInstance = new StatementCacheStats();
+            }
+            return sInstance;
+        }
+    }
+
+    /**
+     * Records that a statement is about to be run.
+     *
+     * @param sql The SQL of the statement, exactly as it is passed to the database
+     */
+    synchronized void recordQuery(String sql) {
+        if (mStatements.get(sql) != null) {
+            mHits++;
+        } else {
+            mMisses++;
+            mStatements.put(sql, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Returns the reads that hit and missed the cache since the counts were last taken, and
+     * starts counting again from zero. The statements remembered are kept, as the connection
+     * keeps its cache.
+     *
+     * @return The hits and misses, at INDEX_HITS and INDEX_MISSES
+     */
+    public synchronized long[] takeCounts() {
+        long[] counts = {mHits, mMisses};
+        mHits = 0;
+        mMisses = 0;
+        return counts;
+    }
+}
@@ -35,6 +35,27 @@ public final class SunshinePreferences {
     public static final String PREF_HIGH_TEMP = "high_temp";
     public static final String PREF_LOW_TEMP = "low_temp";
 
+    /*
+     * The freshness record: when the last successful sync started, the last date the stored
+     * forecast covers and the location setting it was fetched for. It lets us decide at startup
+     * whether the stored forecast is usable without opening the database. The location is the
+     * setting, the same identity saved locations are kept under, rather than the coordinates,
+     * which every sync overwrites with those of the response.
+     */
+    public static final String PREF_LAST_SYNC_TIME = "last_sync_time";
+    public static final String PREF_LAST_COVERED_DATE = "last_covered_date";
+    public static final String PREF_SYNCED_LOCATION_KEY = "synced_location_key";
+
+    /*
+     * Inputs of the adaptive sync schedule: how fast the forecast has been changing between
+     * syncs, and how often the app was opened in each hour of the day.
+     */
+    public static final String PREF_SYNC_CHANGE_RATE = "sync_change_rate";
+    public static final String PREF_APP_OPEN_HISTOGRAM = "app_open_histogram";
+
+    /* Once this many opens are recorded, every count is halved so old habits fade out */
+    private static final int APP_OPEN_HISTOGRAM_DECAY_TOTAL = 200;
+
     /**
      * Helper method to handle setting location details in Preferences (city name, latitude,
      * longitude)
@@ -189,6 +210,54 @@ public final class SunshinePreferences {
         return shouldDisplayNotifications;
     }
 
+    /**
+     * Returns true if past days should be moved into the history table when the forecast is
+     * replaced, false if they should simply be deleted. This preference can be changed by the
+     * user within the SettingsFragment.
+     *
+     * @param context Used to access SharedPreferences
+     * @return true if past days are archived
+     */
+    public static boolean isHistoryArchiveEnabled(Context context) {
+        String archiveKey = context.getString(R.string.pref_archive_history_key);
+        boolean archiveByDefault = context
+                .getResources()
+                .getBoolean(R.bool.archive_history_by_default);
+
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        return sp.getBoolean(archiveKey, archiveByDefault);
+    }
+
+    /**
+     * Returns true if a sync should also fetch the hourly forecast of the preferred location.
+     * This isn't a user preference, it depends on whether the weather server has one.
+     *
+     * @param context Used to access resources
+     * @return true if the hourly forecast is synced
+     */
+    public static boolean isHourlyForecastEnabled(Context context) {
+        return context.getResources().getBoolean(R.bool.sync_hourly_forecast);
+    }
+
+    /**
+     * Returns how many days of history are kept before they are dropped from the archive
+     * altogether, daily rows and roll-ups alike.
+     *
+     * @param context Used to access SharedPreferences
+     * @return The retention in days, or 0 if history is kept forever
+     */
+    public static int getHistoryRetentionDays(Context context) {
+        String retentionKey = context.getString(R.string.pref_history_retention_key);
+        String defaultRetention = context.getString(R.string.pref_history_retention_two_years);
+
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        try {
+            return Integer.parseInt(sp.getString(retentionKey, defaultRetention));
+        } catch (NumberFormatException e) {
+            return Integer.parseInt(defaultRetention);
+        }
+    }
+
     /**
      * Returns the last time that a notification was shown (in UNIX time)
      *
@@ -273,4 +342,135 @@ public final class SunshinePreferences {
         int id = sp.getInt(PREF_WEATHER_ICON_ID, 0);
         return id;
     }
+
+    /**
+     * @param context Context used to get the SharedPreferences
+     * @return When the last successful sync started (in UNIX time), or 0 if there was none
+     */
+    public static long getLastSyncTime(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        return sp.getLong(PREF_LAST_SYNC_TIME, 0);
+    }
+
+    /**
+     * @param context Context used to get the SharedPreferences
+     * @return The normalized date of the last day the stored forecast covers, or 0 if unknown
+     */
+    public static long getLastCoveredDate(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        return sp.getLong(PREF_LAST_COVERED_DATE, 0);
+    }
+
+    /**
+     * @param context Context used to get the SharedPreferences
+     * @return The location setting the stored forecast was fetched for, or null if unknown
+     */
+    public static String getSyncedLocationSetting(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        return sp.getString(PREF_SYNCED_LOCATION_KEY, null);
+    }
+
+    /**
+     * Updates the freshness record after a successful sync. All three values are written in one
+     * edit so they always describe the same sync.
+     *
+     * @param context         Context used to get the SharedPreferences
+     * @param lastSyncTime    When the sync started (in UNIX time)
+     * @param lastCoveredDate Normalized date of the last day of the stored forecast
+     * @param locationSetting The {@link #getPreferredWeatherLocation(Context) location setting}
+     *                        synced for
+     */
+    public static void setSyncFreshness(Context context, long lastSyncTime, long lastCoveredDate,
+                                        String locationSetting) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = sp.edit();
+        editor.putLong(PREF_LAST_SYNC_TIME, lastSyncTime);
+        editor.putLong(PREF_LAST_COVERED_DATE, lastCoveredDate);
+        editor.putString(PREF_SYNCED_LOCATION_KEY, locationSetting);
+        editor.apply();
+    }
+
+    /**
+     * Forgets the freshness record. Called whenever the stored forecast is thrown away, so that
+     * the next startup syncs.
+     *
+     * @param context Context used to get the SharedPreferences
+     */
+    public static void clearSyncFreshness(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = sp.edit();
+        editor.remove(PREF_LAST_COVERED_DATE);
+        editor.remove(PREF_SYNCED_LOCATION_KEY);
+        editor.apply();
+    }
+
+    /**
+     * Returns the smoothed chance per hour that a forecast day changes, as measured by diffing
+     * the forecasts of consecutive syncs.
+     *
+     * @param context      Context used to get the SharedPreferences
+     * @param defaultValue Returned if no sync has been measured yet
+     * @return The change rate, between 0 and 1
+     */
+    public static double getSyncChangeRate(Context context, double defaultValue) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        return sp.getFloat(PREF_SYNC_CHANGE_RATE, (float) defaultValue);
+    }
+
+    public static void setSyncChangeRate(Context context, double changeRate) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        sp.edit().putFloat(PREF_SYNC_CHANGE_RATE, (float) changeRate).apply();
+    }
+
+    /**
+     * Counts one app open in the given hour of the day.
+     *
+     * @param context   Context used to get the SharedPreferences
+     * @param hourOfDay Local hour of the open, 0 to 23
+     */
+    public static void recordAppOpen(Context context, int hourOfDay) {
+        int[] histogram = getAppOpenHistogram(context);
+        histogram[hourOfDay]++;
+
+        int total = 0;
+        for (int count : histogram) {
+            total += count;
+        }
+        if (total > APP_OPEN_HISTOGRAM_DECAY_TOTAL) {
+            for (int hour = 0; hour < histogram.length; hour++) {
+                histogram[hour] /= 2;
+            }
+        }
+
+        StringBuilder encoded = new StringBuilder();
+        for (int hour = 0; hour < histogram.length; hour++) {
+            if (hour > 0) encoded.append(',');
+            encoded.append(histogram[hour]);
+        }
+
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        sp.edit().putString(PREF_APP_OPEN_HISTOGRAM, encoded.toString()).apply();
+    }
+
+    /**
+     * @param context Context used to get the SharedPreferences
+     * @return How many times the app was opened in each hour of the day, 24 entries
+     */
+    public static int[] getAppOpenHistogram(Context context) {
+        int[] histogram = new int[24];
+
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        String encoded = sp.getString(PREF_APP_OPEN_HISTOGRAM, null);
+        if (encoded == null) return histogram;
+
+        String[] counts = encoded.split(",");
+        for (int hour = 0; hour < histogram.length && hour < counts.length; hour++) {
+            try {
+                histogram[hour] = Integer.parseInt(counts[hour]);
+            } catch (NumberFormatException e) {
+                histogram[hour] = 0;
+            }
+        }
+        return histogram;
+    }
 }
\ No newline at end of file
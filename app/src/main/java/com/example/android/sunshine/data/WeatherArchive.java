@@ -0,0 +1,471 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.sunshine.data.WeatherContract.ArchiveEntry;
+import com.example.android.sunshine.data.WeatherContract.HistoryEntry;
+import com.example.android.sunshine.data.WeatherContract.RollupEntry;
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import java.util.Calendar;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * Moves the days of the forecast that have passed into the history table, and keeps that table
+ * from growing without bound. History is kept in three tiers:
+ * <ul>
+ *     <li>daily rows for the last {@link HistoryEntry#DAILY_DAYS} days,</li>
+ *     <li>weekly roll-ups for the last {@link RollupEntry#WEEKLY_DAYS} days,</li>
+ *     <li>monthly roll-ups for as long as the retention allows.</li>
+ * </ul>
+ * Daily rows that fall out of the first tier are added to the weekly and monthly roll-ups of
+ * the days they belong to, packed into the archived month they belong to, and then deleted.
+ * Archived months keep every value of every day at a fraction of the space the rows took, so
+ * history range queries still return those days; see {@link ArchiveEntry}. A roll-up or an
+ * archived month that already holds some of its days, for instance a month whose first weeks
+ * were compacted by an earlier pass, is merged with the new days rather than replaced.
+ * <p>
+ * Every method expects to be called inside the transaction of the change that triggered it, so
+ * the forecast, the history and the roll-ups never disagree.
+ */
+final class WeatherArchive {
+
+    /* The columns copied from the weather table, which the history table shares */
+    private static final String ARCHIVED_COLUMNS =
+            HistoryEntry.COLUMN_DATE + ", " +
+            HistoryEntry.COLUMN_WEATHER_ID + ", " +
+            HistoryEntry.COLUMN_MIN_TEMP + ", " +
+            HistoryEntry.COLUMN_MAX_TEMP + ", " +
+            HistoryEntry.COLUMN_HUMIDITY + ", " +
+            HistoryEntry.COLUMN_PRESSURE + ", " +
+            HistoryEntry.COLUMN_WIND_SPEED + ", " +
+            HistoryEntry.COLUMN_DEGREES;
+
+    private static final String SQL_ARCHIVE =
+            "INSERT INTO " + HistoryEntry.TABLE_NAME + " (" + ARCHIVED_COLUMNS + ")" +
+            " SELECT " + ARCHIVED_COLUMNS + " FROM " + WeatherEntry.TABLE_NAME + " WHERE ";
+
+    private static final String[] ROLLUP_SOURCE_PROJECTION = {
+            HistoryEntry.COLUMN_DATE,
+            HistoryEntry.COLUMN_MIN_TEMP,
+            HistoryEntry.COLUMN_MAX_TEMP,
+            HistoryEntry.COLUMN_HUMIDITY,
+            HistoryEntry.COLUMN_PRESSURE,
+            HistoryEntry.COLUMN_WIND_SPEED
+    };
+
+    private static final String[] ROLLUP_PROJECTION = {
+            RollupEntry.COLUMN_DAY_COUNT,
+            RollupEntry.COLUMN_MIN_TEMP,
+            RollupEntry.COLUMN_MAX_TEMP,
+            RollupEntry.COLUMN_HUMIDITY,
+            RollupEntry.COLUMN_PRESSURE,
+            RollupEntry.COLUMN_WIND_SPEED
+    };
+
+    /* Replaces the row of the same period, see the UNIQUE constraint of the roll-up table */
+    private static final String SQL_INSERT_ROLLUP =
+            "INSERT INTO " + RollupEntry.TABLE_NAME + " (" +
+            RollupEntry.COLUMN_PERIOD + ", " +
+            RollupEntry.COLUMN_PERIOD_START + ", " +
+            RollupEntry.COLUMN_PERIOD_END + ", " +
+            RollupEntry.COLUMN_DAY_COUNT + ", " +
+            RollupEntry.COLUMN_MIN_TEMP + ", " +
+            RollupEntry.COLUMN_MAX_TEMP + ", " +
+            RollupEntry.COLUMN_HUMIDITY + ", " +
+            RollupEntry.COLUMN_PRESSURE + ", " +
+            RollupEntry.COLUMN_WIND_SPEED + ") VALUES (?,?,?,?,?,?,?,?,?)";
+
+    /* The columns packed into an archived month, in the order the codec takes them */
+    private static final String[] PACK_PROJECTION = {
+            HistoryEntry.COLUMN_DATE,
+            HistoryEntry.COLUMN_WEATHER_ID,
+            HistoryEntry.COLUMN_MIN_TEMP,
+            HistoryEntry.COLUMN_MAX_TEMP,
+            HistoryEntry.COLUMN_HUMIDITY,
+            HistoryEntry.COLUMN_PRESSURE,
+            HistoryEntry.COLUMN_WIND_SPEED,
+            HistoryEntry.COLUMN_DEGREES
+    };
+
+    private static final String SQL_INSERT_ARCHIVE =
+            "INSERT INTO " + ArchiveEntry.TABLE_NAME + " (" +
+            ArchiveEntry.COLUMN_MONTH_START + ", " +
+            ArchiveEntry.COLUMN_MONTH_END + ", " +
+            ArchiveEntry.COLUMN_DAY_COUNT + ", " +
+            ArchiveEntry.COLUMN_DAYS + ") VALUES (?,?,?,?)";
+
+    private static final String SQL_SELECT_ARCHIVE_MONTH =
+            "SELECT " + ArchiveEntry.COLUMN_DAYS + " FROM " + ArchiveEntry.TABLE_NAME +
+            " WHERE " + ArchiveEntry.COLUMN_MONTH_START + " = ?";
+
+    /* The months overlapping a range, oldest first */
+    private static final String SQL_SELECT_ARCHIVE_RANGE =
+            "SELECT " + ArchiveEntry.COLUMN_MONTH_START + ", " +
+            ArchiveEntry.COLUMN_MONTH_END + ", " +
+            ArchiveEntry.COLUMN_DAY_COUNT + ", " +
+            ArchiveEntry.COLUMN_DAYS + " FROM " + ArchiveEntry.TABLE_NAME +
+            " WHERE " + ArchiveEntry.COLUMN_MONTH_START + " < ? AND " +
+            ArchiveEntry.COLUMN_MONTH_END + " > ?" +
+            " ORDER BY " + ArchiveEntry.COLUMN_MONTH_START;
+
+    private static final long WEEK_IN_MILLIS = 7 * SunshineDateUtils.DAY_IN_MILLIS;
+
+    private WeatherArchive() {
+    }
+
+    /**
+     * Copies the rows of the weather table that match the selection and are dated before today
+     * into the history table. The caller deletes them from the weather table afterwards.
+     *
+     * @param db            The database, inside a transaction
+     * @param selection     Selection of the weather rows about to be deleted, never null
+     * @param selectionArgs Arguments of the selection
+     * @param today         Today's normalized date
+     * @return The number of days archived
+     */
+    static int archivePastDays(SQLiteDatabase db, String selection, String[] selectionArgs,
+                               long today) {
+        SQLiteStatement archiveStatement = db.compileStatement(
+                SQL_ARCHIVE + "(" + selection + ") AND " + WeatherEntry.COLUMN_DATE + " < ?");
+        try {
+            int argCount = selectionArgs == null ? 0 : selectionArgs.length;
+            archiveStatement.bindAllArgsAsStrings(selectionArgs);
+            archiveStatement.bindLong(argCount + 1, today);
+            return archiveStatement.executeUpdateDelete();
+        } finally {
+            archiveStatement.close();
+        }
+    }
+
+    /**
+     * Rolls up the daily rows that have left the daily tier, drops the weekly roll-ups that have
+     * left the weekly tier and drops everything older than the retention.
+     *
+     * @param db            The database, inside a transaction
+     * @param today         Today's normalized date
+     * @param retentionDays Days of history to keep, or 0 to keep it forever
+     */
+    static void compact(SQLiteDatabase db, long today, int retentionDays) {
+        /* A weekly roll-up is normally written once, with all of its days */
+        long dailyCutoff = getDailyCutoff(today);
+        rollUp(db, dailyCutoff);
+        pack(db, dailyCutoff);
+        db.delete(HistoryEntry.TABLE_NAME,
+                HistoryEntry.COLUMN_DATE + " < ?",
+                new String[]{Long.toString(dailyCutoff)});
+
+        long weeklyCutoff = today - RollupEntry.WEEKLY_DAYS * SunshineDateUtils.DAY_IN_MILLIS;
+        db.delete(RollupEntry.TABLE_NAME,
+                RollupEntry.COLUMN_PERIOD + " = ? AND " + RollupEntry.COLUMN_PERIOD_END + " <= ?",
+                new String[]{RollupEntry.PERIOD_WEEK, Long.toString(weeklyCutoff)});
+
+        if (retentionDays > 0) {
+            String retentionCutoff =
+                    Long.toString(today - retentionDays * SunshineDateUtils.DAY_IN_MILLIS);
+            db.delete(HistoryEntry.TABLE_NAME,
+                    HistoryEntry.COLUMN_DATE + " < ?",
+                    new String[]{retentionCutoff});
+            db.delete(RollupEntry.TABLE_NAME,
+                    RollupEntry.COLUMN_PERIOD_END + " <= ?",
+                    new String[]{retentionCutoff});
+            db.delete(ArchiveEntry.TABLE_NAME,
+                    ArchiveEntry.COLUMN_MONTH_END + " <= ?",
+                    new String[]{retentionCutoff});
+        }
+    }
+
+    /**
+     * Reads the archived days of a range. Only the months at either end of the range are
+     * decoded here; the rest are decoded as the cursor reaches them.
+     *
+     * @param db         The database
+     * @param projection The history columns to return, or null for all of them
+     * @param start      First normalized date in the range
+     * @param end        Normalized date just past the range
+     * @param descending Whether the days come latest first
+     * @return The archived days in the range, in date order or reverse date order, or null if
+     * no archived month overlaps the range
+     * @throws IllegalArgumentException If the projection has a column the history doesn't
+     */
+    static ArchivedDaysCursor queryArchivedDays(SQLiteDatabase db, String[] projection,
+                                                long start, long end, boolean descending) {
+        ArchivedDaysCursor days = null;
+        Cursor months = db.rawQuery(SQL_SELECT_ARCHIVE_RANGE,
+                new String[]{Long.toString(end), Long.toString(start)});
+        try {
+            while (months.moveToNext()) {
+                if (days == null) days = new ArchivedDaysCursor(projection, start, end, descending);
+                boolean edge = months.getLong(0) < start || months.getLong(1) > end;
+                days.addMonth(months.getInt(2), months.getBlob(3), edge);
+            }
+        } finally {
+            months.close();
+        }
+        return days;
+    }
+
+    /**
+     * Returns the first day kept in the daily tier. Daily rows are rolled up a whole week at a
+     * time, so this is always a Monday.
+     *
+     * @param today Today's normalized date
+     * @return Normalized date of the oldest day that is not rolled up
+     */
+    static long getDailyCutoff(long today) {
+        return SunshineDateUtils.getWeekStart(
+                today - HistoryEntry.DAILY_DAYS * SunshineDateUtils.DAY_IN_MILLIS);
+    }
+
+    /**
+     * Adds every daily row dated before the cutoff to the weekly and monthly roll-ups of its day.
+     *
+     * @param db     The database, inside a transaction
+     * @param cutoff Normalized date of the first day that stays in the daily tier
+     */
+    private static void rollUp(SQLiteDatabase db, long cutoff) {
+        Map<Long, Rollup> weeks = new TreeMap<>();
+        Map<Long, Rollup> months = new TreeMap<>();
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+
+        Cursor cursor = db.query(
+                HistoryEntry.TABLE_NAME,
+                ROLLUP_SOURCE_PROJECTION,
+                HistoryEntry.COLUMN_DATE + " < ?",
+                new String[]{Long.toString(cutoff)},
+                null,
+                null,
+                null);
+        try {
+            while (cursor.moveToNext()) {
+                long date = cursor.getLong(0);
+
+                long weekStart = SunshineDateUtils.getWeekStart(date);
+                Rollup week = weeks.get(weekStart);
+                if (week == null) {
+                    week = new Rollup(weekStart, weekStart + WEEK_IN_MILLIS);
+                    weeks.put(weekStart, week);
+                }
+
+                calendar.setTimeInMillis(date);
+                calendar.set(Calendar.DAY_OF_MONTH, 1);
+                long monthStart = calendar.getTimeInMillis();
+                Rollup month = months.get(monthStart);
+                if (month == null) {
+                    calendar.add(Calendar.MONTH, 1);
+                    month = new Rollup(monthStart, calendar.getTimeInMillis());
+                    months.put(monthStart, month);
+                }
+
+                for (Rollup rollup : new Rollup[]{week, month}) {
+                    rollup.add(1, cursor.getDouble(1), cursor.getDouble(2), cursor.getDouble(3),
+                            cursor.getDouble(4), cursor.getDouble(5));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (weeks.isEmpty()) return;
+
+        SQLiteStatement insertStatement = db.compileStatement(SQL_INSERT_ROLLUP);
+        try {
+            writeRollups(db, insertStatement, RollupEntry.PERIOD_WEEK, weeks);
+            writeRollups(db, insertStatement, RollupEntry.PERIOD_MONTH, months);
+        } finally {
+            insertStatement.close();
+        }
+    }
+
+    /**
+     * Packs every daily row dated before the cutoff into the archived month of its day. A month
+     * that already holds some of its days, packed by an earlier compaction, is unpacked and
+     * packed again with the new days.
+     *
+     * @param db     The database, inside a transaction
+     * @param cutoff Normalized date of the first day that stays in the daily tier
+     */
+    private static void pack(SQLiteDatabase db, long cutoff) {
+        /* For each month, its days by date; a date packed again keeps its newest values */
+        Map<Long, TreeMap<Long, ArchivedDay>> months = new TreeMap<>();
+        Map<Long, Long> monthEnds = new TreeMap<>();
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+
+        Cursor cursor = db.query(
+                HistoryEntry.TABLE_NAME,
+                PACK_PROJECTION,
+                HistoryEntry.COLUMN_DATE + " < ?",
+                new String[]{Long.toString(cutoff)},
+                null,
+                null,
+                null);
+        try {
+            while (cursor.moveToNext()) {
+                long date = cursor.getLong(0);
+
+                calendar.setTimeInMillis(date);
+                calendar.set(Calendar.DAY_OF_MONTH, 1);
+                long monthStart = calendar.getTimeInMillis();
+                TreeMap<Long, ArchivedDay> month = months.get(monthStart);
+                if (month == null) {
+                    month = new TreeMap<>();
+                    months.put(monthStart, month);
+                    calendar.add(Calendar.MONTH, 1);
+                    monthEnds.put(monthStart, calendar.getTimeInMillis());
+                }
+
+                double[] values = new double[HistoryArchiveCodec.VALUE_COLUMNS.length];
+                for (int column = 0; column < values.length; column++) {
+                    values[column] = cursor.getDouble(2 + column);
+                }
+                month.put(date, new ArchivedDay(cursor.getInt(1), values));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (months.isEmpty()) return;
+
+        SQLiteStatement insertStatement = db.compileStatement(SQL_INSERT_ARCHIVE);
+        try {
+            for (Map.Entry<Long, TreeMap<Long, ArchivedDay>> entry : months.entrySet()) {
+                long monthStart = entry.getKey();
+                TreeMap<Long, ArchivedDay> month = entry.getValue();
+
+                Cursor stored = db.rawQuery(SQL_SELECT_ARCHIVE_MONTH,
+                        new String[]{Long.toString(monthStart)});
+                try {
+                    if (stored.moveToFirst()) {
+                        HistoryArchiveCodec.Days days =
+                                HistoryArchiveCodec.decode(stored.getBlob(0));
+                        for (int i = 0; i < days.mCount; i++) {
+                            if (month.containsKey(days.mDates[i])) continue;
+                            double[] values = new double[days.mValues.length];
+                            for (int column = 0; column < values.length; column++) {
+                                values[column] = days.mValues[column][i];
+                            }
+                            month.put(days.mDates[i],
+                                    new ArchivedDay(days.mWeatherIds[i], values));
+                        }
+                    }
+                } finally {
+                    stored.close();
+                }
+
+                HistoryArchiveCodec.Days days = new HistoryArchiveCodec.Days(month.size());
+                for (Map.Entry<Long, ArchivedDay> day : month.entrySet()) {
+                    days.add(day.getKey(), day.getValue().mWeatherId, day.getValue().mValues);
+                }
+
+                insertStatement.clearBindings();
+                insertStatement.bindLong(1, monthStart);
+                insertStatement.bindLong(2, monthEnds.get(monthStart));
+                insertStatement.bindLong(3, days.mCount);
+                insertStatement.bindBlob(4, HistoryArchiveCodec.encode(days));
+                insertStatement.executeInsert();
+            }
+        } finally {
+            insertStatement.close();
+        }
+    }
+
+    /**
+     * Merges each roll-up with the stored roll-up of the same period, if there is one, and
+     * stores the result.
+     */
+    private static void writeRollups(SQLiteDatabase db, SQLiteStatement insertStatement,
+                                     String period, Map<Long, Rollup> rollups) {
+        for (Rollup rollup : rollups.values()) {
+            Cursor stored = db.query(
+                    RollupEntry.TABLE_NAME,
+                    ROLLUP_PROJECTION,
+                    RollupEntry.COLUMN_PERIOD + " = ? AND " + RollupEntry.COLUMN_PERIOD_START + " = ?",
+                    new String[]{period, Long.toString(rollup.mStart)},
+                    null,
+                    null,
+                    null);
+            try {
+                if (stored.moveToFirst()) {
+                    rollup.add(stored.getInt(0), stored.getDouble(1), stored.getDouble(2),
+                            stored.getDouble(3), stored.getDouble(4), stored.getDouble(5));
+                }
+            } finally {
+                stored.close();
+            }
+
+            insertStatement.clearBindings();
+            insertStatement.bindString(1, period);
+            insertStatement.bindLong(2, rollup.mStart);
+            insertStatement.bindLong(3, rollup.mEnd);
+            insertStatement.bindLong(4, rollup.mDayCount);
+            insertStatement.bindDouble(5, rollup.mMin);
+            insertStatement.bindDouble(6, rollup.mMax);
+            insertStatement.bindDouble(7, rollup.mHumiditySum / rollup.mDayCount);
+            insertStatement.bindDouble(8, rollup.mPressureSum / rollup.mDayCount);
+            insertStatement.bindDouble(9, rollup.mWindSum / rollup.mDayCount);
+            insertStatement.executeInsert();
+        }
+    }
+
+    /* Running aggregate of the days of one period */
+    private static final class Rollup {
+
+        final long mStart;
+        final long mEnd;
+
+        int mDayCount;
+        double mMin = Double.MAX_VALUE;
+        double mMax = -Double.MAX_VALUE;
+        double mHumiditySum;
+        double mPressureSum;
+        double mWindSum;
+
+        Rollup(long start, long end) {
+            mStart = start;
+            mEnd = end;
+        }
+
+        /* Adds dayCount days whose averages are the given humidity, pressure and wind */
+        void add(int dayCount, double min, double max, double humidity, double pressure,
+                 double wind) {
+            mDayCount += dayCount;
+            mMin = Math.min(mMin, min);
+            mMax = Math.max(mMax, max);
+            mHumiditySum += humidity * dayCount;
+            mPressureSum += pressure * dayCount;
+            mWindSum += wind * dayCount;
+        }
+    }
+
+    /* The values of one day on its way into an archived month */
+    private static final class ArchivedDay {
+
+        final int mWeatherId;
+        final double[] mValues;
+
+        ArchivedDay(int weatherId, double[] values) {
+            mWeatherId = weatherId;
+            mValues = values;
+        }
+    }
+}
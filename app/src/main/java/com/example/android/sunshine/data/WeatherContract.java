@@ -15,11 +15,12 @@
  */
 package com.example.android.sunshine.data;
 
+import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.net.Uri;
+import android.os.Bundle;
 import android.provider.BaseColumns;
 
-import com.example.android.sunshine.utilities.SunshineDateUtils;
-
 /**
  * Defines table and column names for the weather database. This class is not necessary, but keeps
  * the code organized.
@@ -56,6 +57,68 @@ public class WeatherContract {
      */
     public static final String PATH_WEATHER = "weather";
 
+    /* Path for the records describing each sync, see SyncMetricsEntry */
+    public static final String PATH_SYNC_METRICS = "sync_metrics";
+
+    /* Paths for the archived past days and their roll-ups, see HistoryEntry and RollupEntry */
+    public static final String PATH_HISTORY = "history";
+    public static final String PATH_HISTORY_ROLLUP = "history_rollup";
+
+    /* Path for the statistics of the forecast and of the history, see StatsEntry */
+    public static final String PATH_STATS = "stats";
+
+    /*
+     * Appended to the weather path to select the weather from today onwards, which is what the
+     * forecast list shows. For instance, content://com.example.android.sunshine/weather/today
+     */
+    public static final String PATH_TODAY_ONWARDS = "today";
+
+    /* Path for the saved locations, see LocationEntry */
+    public static final String PATH_LOCATION = "location";
+
+    /* Path for the hourly forecast, see HourlyEntry */
+    public static final String PATH_HOURLY = "hourly";
+
+    /*
+     * Appended to the hourly path, followed by a number of hours, to select the hourly forecast
+     * from the start of the current hour on. For instance,
+     *
+     *     content://com.example.android.sunshine/hourly/next/24
+     */
+    public static final String PATH_NEXT = "next";
+
+    /* Path for the shared forecast export, see ExportEntry */
+    public static final String PATH_EXPORT = "export";
+
+    /* Path for the record of schema upgrades, see MigrationEntry */
+    public static final String PATH_SCHEMA_MIGRATIONS = "schema_migrations";
+
+    /*
+     * Appended to a table's path, followed by a start and an end date, to select the rows dated
+     * from the start (inclusive) to the end (exclusive). For instance,
+     *
+     *     content://com.example.android.sunshine/history/range/1472169600000/1474761600000
+     *
+     * Range selections are always served through the index on the date column.
+     */
+    public static final String PATH_RANGE = "range";
+
+    /**
+     * Builds a URI selecting the rows of a table dated from start (inclusive) to end (exclusive).
+     *
+     * @param contentUri The CONTENT_URI of the table
+     * @param start      First normalized date in the range
+     * @param end        Normalized date just past the range
+     * @return Uri selecting the range
+     */
+    private static Uri buildRangeUri(Uri contentUri, long start, long end) {
+        return contentUri.buildUpon()
+                .appendPath(PATH_RANGE)
+                .appendPath(Long.toString(start))
+                .appendPath(Long.toString(end))
+                .build();
+    }
+
     /* Inner class that defines the table contents of the weather table */
     public static final class WeatherEntry implements BaseColumns {
 
@@ -124,15 +187,793 @@ public class WeatherContract {
         }
 
         /**
-         * Returns just the selection part of the weather query from a normalized today value.
-         * This is used to get a weather forecast from today's date. To make this easy to use
-         * in compound selection, we embed today's date as an argument in the query.
+         * Builds a URI selecting the forecast days from start (inclusive) to end (exclusive).
+         *
+         * @param start First normalized date in the range
+         * @param end   Normalized date just past the range
+         * @return Uri to query the weather in the range
+         */
+        public static Uri buildWeatherRangeUri(long start, long end) {
+            return buildRangeUri(CONTENT_URI, start, end);
+        }
+
+        /**
+         * Builds a URI selecting the weather from today onwards. The provider binds today's
+         * date as an argument rather than writing it into the SQL, so the statement it runs is
+         * the same every time and SQLite can reuse it once compiled.
+         *
+         * @return Uri to query the weather from today onwards
+         */
+        public static Uri buildWeatherTodayOnwardsUri() {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(PATH_TODAY_ONWARDS)
+                    .build();
+        }
+    }
+
+    /*
+     * Inner class that defines the table contents of the sync metrics table. Every sync, whether
+     * it succeeded or not, adds one row describing how long each stage took, how much data was
+     * moved and why it failed, if it did. The table is a ring buffer: once it holds MAX_ROWS
+     * rows, the oldest row is dropped for every new one.
+     */
+    public static final class SyncMetricsEntry implements BaseColumns {
+
+        /* The base CONTENT_URI used to query the sync metrics table from the content provider */
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_SYNC_METRICS)
+                .build();
+
+        /* Used internally as the name of our sync metrics table. */
+        public static final String TABLE_NAME = "sync_metrics";
+
+        /* The maximum number of sync records kept before the oldest ones are discarded */
+        public static final int MAX_ROWS = 500;
+
+        /* Wall clock time (UNIX time in milliseconds) at which the sync started */
+        public static final String COLUMN_STARTED_AT = "started_at";
+
+        /* What started the sync, one of the TRIGGER_* values below */
+        public static final String COLUMN_TRIGGER = "trigger";
+
+        /* Time spent in each stage of the sync, in nanoseconds */
+        public static final String COLUMN_URL_BUILD_NANOS = "url_build_nanos";
+        public static final String COLUMN_FETCH_NANOS = "fetch_nanos";
+        public static final String COLUMN_PARSE_NANOS = "parse_nanos";
+        public static final String COLUMN_DELETE_NANOS = "delete_nanos";
+        public static final String COLUMN_INSERT_NANOS = "insert_nanos";
+        public static final String COLUMN_NOTIFY_NANOS = "notify_nanos";
+        public static final String COLUMN_WEAR_NANOS = "wear_nanos";
+
+        /* Sum of all the stage timings above, in nanoseconds */
+        public static final String COLUMN_TOTAL_NANOS = "total_nanos";
+
+        /* Size of the forecast response body, in bytes */
+        public static final String COLUMN_BYTES_FETCHED = "bytes_fetched";
+
+        /* Number of rows removed from and added to the weather table */
+        public static final String COLUMN_ROWS_DELETED = "rows_deleted";
+        public static final String COLUMN_ROWS_INSERTED = "rows_inserted";
+
+        /*
+         * Provider reads since the previous sync that could, and could not, reuse a compiled
+         * statement. See StatementCacheStats.
+         */
+        public static final String COLUMN_STATEMENT_CACHE_HITS = "statement_cache_hits";
+        public static final String COLUMN_STATEMENT_CACHE_MISSES = "statement_cache_misses";
+
+        /*
+         * Screens shown since the previous sync with data past its freshness policy's TTL, and
+         * the time from the first of them to the end of this sync if it was the one that
+         * refreshed the data, in nanoseconds, 0 otherwise. See FreshnessPolicy.
+         */
+        public static final String COLUMN_STALE_READS = "stale_reads";
+        public static final String COLUMN_REVALIDATION_NANOS = "revalidation_nanos";
+
+        /* Class and message of the exception that ended the sync, or NULL if it succeeded */
+        public static final String COLUMN_FAILURE = "failure";
+
+        /* Values for COLUMN_TRIGGER */
+        public static final String TRIGGER_IMMEDIATE = "immediate";
+        public static final String TRIGGER_SCHEDULED = "scheduled";
+        public static final String TRIGGER_REVALIDATE = "revalidate";
+        public static final String TRIGGER_UNSPECIFIED = "unspecified";
+    }
+
+    /*
+     * Inner class that defines the table contents of the history table. When archiving is
+     * enabled, the days of the forecast that have passed are moved here instead of being deleted
+     * when the forecast is replaced. The table has the same columns as the weather table, and like
+     * it holds at most one row per date.
+     *
+     * History doesn't grow without bound: daily rows older than DAILY_DAYS are rolled up into
+     * weekly and monthly rows of RollupEntry, and everything older than the retention the user
+     * chose is dropped.
+     */
+    public static final class HistoryEntry implements BaseColumns {
+
+        /* The base CONTENT_URI used to query the history table from the content provider */
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_HISTORY)
+                .build();
+
+        /* Used internally as the name of our history table. */
+        public static final String TABLE_NAME = "history";
+
+        /* Number of days kept as daily rows before they are rolled up */
+        public static final int DAILY_DAYS = 8 * 7;
+
+        /* Same meaning as the WeatherEntry columns of the same name */
+        public static final String COLUMN_DATE = WeatherEntry.COLUMN_DATE;
+        public static final String COLUMN_WEATHER_ID = WeatherEntry.COLUMN_WEATHER_ID;
+        public static final String COLUMN_MIN_TEMP = WeatherEntry.COLUMN_MIN_TEMP;
+        public static final String COLUMN_MAX_TEMP = WeatherEntry.COLUMN_MAX_TEMP;
+        public static final String COLUMN_HUMIDITY = WeatherEntry.COLUMN_HUMIDITY;
+        public static final String COLUMN_PRESSURE = WeatherEntry.COLUMN_PRESSURE;
+        public static final String COLUMN_WIND_SPEED = WeatherEntry.COLUMN_WIND_SPEED;
+        public static final String COLUMN_DEGREES = WeatherEntry.COLUMN_DEGREES;
+
+        /**
+         * Builds a URI selecting the archived days from start (inclusive) to end (exclusive).
+         * Days that have left the daily tier are read from the history archive, see
+         * {@link ArchiveEntry}, along with the daily rows. The archive can't be filtered or
+         * sorted by SQL, so a query of a range that holds archived days can't have a selection,
+         * and can only be sorted by {@link #COLUMN_DATE}, either way; without a sort order, it
+         * is in date order. Such a query is rejected with an IllegalArgumentException.
+         *
+         * @param start First normalized date in the range
+         * @param end   Normalized date just past the range
+         * @return Uri to query the history in the range
+         */
+        public static Uri buildHistoryRangeUri(long start, long end) {
+            return buildRangeUri(CONTENT_URI, start, end);
+        }
+    }
+
+    /*
+     * Inner class that defines the table contents of the history archive table. The days that
+     * leave the daily tier of the history table are packed here, one row per calendar month
+     * (UTC), so that their detail outlives the roll-ups that sum them up. The days of a month
+     * are stored column by column in a single compressed blob; see HistoryArchiveCodec.
+     * <p>
+     * The table has no URI of its own. The history range URIs read the archived days along with
+     * the daily rows, decoding only the months they overlap.
+     */
+    public static final class ArchiveEntry implements BaseColumns {
+
+        /* Used internally as the name of our history archive table. */
+        public static final String TABLE_NAME = "history_archive";
+
+        /* Normalized date of the first day of the month, and of the first day after it */
+        public static final String COLUMN_MONTH_START = "month_start";
+        public static final String COLUMN_MONTH_END = "month_end";
+
+        /* Number of days packed into the blob, which may not be every day of the month */
+        public static final String COLUMN_DAY_COUNT = "day_count";
+
+        /* The packed days */
+        public static final String COLUMN_DAYS = "days";
+    }
+
+    /*
+     * Inner class that defines the table contents of the history roll-up table. Each row sums up
+     * the archived days of one calendar week (starting on Monday) or one calendar month, both in
+     * UTC like the normalized dates they cover. Weekly rows are kept for WEEKLY_DAYS, monthly rows
+     * for as long as the history retention allows.
+     */
+    public static final class RollupEntry implements BaseColumns {
+
+        /* The base CONTENT_URI used to query the roll-up table from the content provider */
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_HISTORY_ROLLUP)
+                .build();
+
+        /* Used internally as the name of our roll-up table. */
+        public static final String TABLE_NAME = "history_rollup";
+
+        /* Number of days weekly roll-ups are kept; only monthly roll-ups cover older days */
+        public static final int WEEKLY_DAYS = 365;
+
+        /* Length of the period the row covers, one of the PERIOD_* values below */
+        public static final String COLUMN_PERIOD = "period";
+
+        /* Normalized date of the first day of the period, and of the first day after it */
+        public static final String COLUMN_PERIOD_START = "period_start";
+        public static final String COLUMN_PERIOD_END = "period_end";
+
+        /* Number of archived days that were rolled up into this row */
+        public static final String COLUMN_DAY_COUNT = "day_count";
+
+        /* Lowest minimum and highest maximum temperature of the period, in °C */
+        public static final String COLUMN_MIN_TEMP = "min";
+        public static final String COLUMN_MAX_TEMP = "max";
+
+        /* Averages over the days of the period, in the units of the WeatherEntry columns */
+        public static final String COLUMN_HUMIDITY = "humidity";
+        public static final String COLUMN_PRESSURE = "pressure";
+        public static final String COLUMN_WIND_SPEED = "wind";
+
+        /* Values for COLUMN_PERIOD */
+        public static final String PERIOD_WEEK = "week";
+        public static final String PERIOD_MONTH = "month";
+
+        /**
+         * Builds a URI selecting the roll-ups of one period length that overlap the days from
+         * start (inclusive) to end (exclusive).
+         *
+         * @param period One of the PERIOD_* values
+         * @param start  First normalized date in the range
+         * @param end    Normalized date just past the range
+         * @return Uri to query the roll-ups in the range
+         */
+        public static Uri buildRollupRangeUri(String period, long start, long end) {
+            return buildRangeUri(CONTENT_URI.buildUpon().appendPath(period).build(), start, end);
+        }
+    }
+
+    /*
+     * Inner class that defines the table contents of the statistics table. It holds, for the
+     * forecast and for the daily history separately, one row per calendar week that has any days
+     * and one row summing up all of them. The rows are kept up to date by the provider in the
+     * same transaction as every insert or delete of weather or history, so reading a statistic
+     * is a single row lookup however many days it covers.
+     */
+    public static final class StatsEntry implements BaseColumns {
+
+        /* The base CONTENT_URI used to query the statistics table from the content provider */
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_STATS)
+                .build();
+
+        /* Used internally as the name of our statistics table. */
+        public static final String TABLE_NAME = "weather_stats";
+
+        /* Which days the row describes, one of the SOURCE_* values below */
+        public static final String COLUMN_SOURCE = "source";
+
+        /* One of the PERIOD_* values below */
+        public static final String COLUMN_PERIOD = "period";
+
+        /*
+         * Normalized date of the Monday starting the week, see SunshineDateUtils#getWeekStart,
+         * or 0 for the summary of all days
+         */
+        public static final String COLUMN_PERIOD_START = "period_start";
+
+        /* Number of days the row describes */
+        public static final String COLUMN_DAY_COUNT = "day_count";
+
+        /* Lowest minimum and highest maximum temperature of the days, in °C */
+        public static final String COLUMN_MIN_TEMP = "min";
+        public static final String COLUMN_MAX_TEMP = "max";
+
+        /* Averages over the days, in the units of the WeatherEntry columns */
+        public static final String COLUMN_HUMIDITY = "humidity";
+        public static final String COLUMN_PRESSURE = "pressure";
+        public static final String COLUMN_WIND_SPEED = "wind";
+
+        /* Normalized date of the day with the highest maximum, the earliest one on a tie */
+        public static final String COLUMN_WARMEST_DATE = "warmest_date";
+
+        /* Values for COLUMN_SOURCE: the weather table, or the daily rows of the history table */
+        public static final String SOURCE_FORECAST = "forecast";
+        public static final String SOURCE_HISTORY = "history";
+
+        /* Values for COLUMN_PERIOD */
+        public static final String PERIOD_WEEK = "week";
+        public static final String PERIOD_ALL = "all";
+
+        /**
+         * Builds a URI for the row summing up all days of a source.
+         *
+         * @param source One of the SOURCE_* values
+         * @return Uri to query the summary
+         */
+        public static Uri buildSummaryUri(String source) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(source)
+                    .appendPath(PERIOD_ALL)
+                    .build();
+        }
+
+        /**
+         * Builds a URI for the row describing one week of a source.
+         *
+         * @param source    One of the SOURCE_* values
+         * @param weekStart Normalized date of the Monday starting the week
+         * @return Uri to query the week
+         */
+        public static Uri buildWeekUri(String source, long weekStart) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(source)
+                    .appendPath(PERIOD_WEEK)
+                    .appendPath(Long.toString(weekStart))
+                    .build();
+        }
+    }
+
+    /*
+     * Inner class that defines the table contents of the schema migrations table. Every time the
+     * database is upgraded, one row is added for each version step it went through, saying how
+     * long the step took. If the stored data couldn't be migrated and the database was recreated
+     * instead, a single row spanning the whole upgrade says so.
+     */
+    public static final class MigrationEntry implements BaseColumns {
+
+        /* The base CONTENT_URI used to query the migrations table from the content provider */
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_SCHEMA_MIGRATIONS)
+                .build();
+
+        /* Used internally as the name of our migrations table. */
+        public static final String TABLE_NAME = "schema_migrations";
+
+        /* Database version before and after the step */
+        public static final String COLUMN_FROM_VERSION = "from_version";
+        public static final String COLUMN_TO_VERSION = "to_version";
+
+        /* Wall clock time (UNIX time in milliseconds) at which the step started */
+        public static final String COLUMN_STARTED_AT = "started_at";
+
+        /* Time the step took, in nanoseconds */
+        public static final String COLUMN_DURATION_NANOS = "duration_nanos";
+
+        /* How the step went, one of the OUTCOME_* values below */
+        public static final String COLUMN_OUTCOME = "outcome";
+
+        /* Values for COLUMN_OUTCOME */
+        public static final String OUTCOME_MIGRATED = "migrated";
+        public static final String OUTCOME_RECREATED = "recreated";
+    }
+
+    /*
+     * Inner class that defines the table contents of the location table: one row per location
+     * the user has had the forecast shown for, most recently used first. Exactly one location is
+     * active at a time. Its forecast is the one in the weather table, which every URI without a
+     * location in it reads; the forecasts of the others wait in the location weather table until
+     * they are switched back to, so switching needs no sync while they are still fresh.
+     */
+    public static final class LocationEntry implements BaseColumns {
+
+        /* The base CONTENT_URI used to query the location table from the content provider */
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_LOCATION)
+                .build();
+
+        /* Used internally as the name of our location table. */
+        public static final String TABLE_NAME = "location";
+
+        /*
+         * The number of locations kept, including the active one. Switching to a new location
+         * beyond this drops the least recently used one along with its forecast.
+         */
+        public static final int MAX_LOCATIONS = 16;
+
+        /* The location setting the forecast is requested for, as the user entered it */
+        public static final String COLUMN_LOCATION_SETTING = "location_setting";
+
+        /* 1 for the location whose forecast is in the weather table, 0 for the others */
+        public static final String COLUMN_ACTIVE = "active";
+
+        /* When the location was last switched to or synced (in UNIX time) */
+        public static final String COLUMN_LAST_USED = "last_used";
+
+        /*
+         * The freshness record of the location's forecast: when its last successful sync started
+         * (in UNIX time) and the normalized date of the last day it covers, or 0 if never synced
+         */
+        public static final String COLUMN_LAST_SYNC_TIME = "last_sync_time";
+        public static final String COLUMN_LAST_COVERED_DATE = "last_covered_date";
+
+        /**
+         * Builds a URI for one saved location.
+         *
+         * @param id The _ID of the location
+         * @return Uri to query, update or delete the location
+         */
+        public static Uri buildLocationUri(long id) {
+            return ContentUris.withAppendedId(CONTENT_URI, id);
+        }
+
+        /**
+         * Builds a URI selecting the whole forecast of one location, whether or not it is the
+         * active one.
+         *
+         * @param id The _ID of the location
+         * @return Uri to query the location's forecast
+         */
+        public static Uri buildLocationWeatherUri(long id) {
+            return buildLocationUri(id).buildUpon()
+                    .appendPath(PATH_WEATHER)
+                    .build();
+        }
+
+        /**
+         * Builds a URI selecting the forecast of one location from today onwards, with today's
+         * date bound by the provider as for {@link WeatherEntry#buildWeatherTodayOnwardsUri()}.
+         *
+         * @param id The _ID of the location
+         * @return Uri to query the location's forecast from today onwards
+         */
+        public static Uri buildLocationTodayOnwardsUri(long id) {
+            return buildLocationWeatherUri(id).buildUpon()
+                    .appendPath(PATH_TODAY_ONWARDS)
+                    .build();
+        }
+    }
+
+    /*
+     * Inner class that defines the table contents of the location weather table, which holds the
+     * forecasts of the saved locations that aren't active. Each location's rows form a partition
+     * keyed by its _ID, served by the index on the location and date columns.
+     * <p>
+     * The partitions grow with the number of saved locations, so they store the values of each
+     * day as integers in fixed point, see {@link FixedPoint}, rather than as floats. The location
+     * weather URIs read them through a view that converts them back, so they return, select and
+     * sort by the columns of the weather table.
+     */
+    public static final class LocationWeatherEntry implements BaseColumns {
+
+        /* Used internally as the name of our location weather table. */
+        public static final String TABLE_NAME = "location_weather";
+
+        /* The view of the table with its values converted back, under the contract's names */
+        public static final String VIEW_NAME = "location_weather_values";
+
+        /* The _ID of the location in the location table */
+        public static final String COLUMN_LOCATION_ID = "location_id";
+
+        /* The columns the location weather URIs return, as the weather table has them */
+        public static final String COLUMN_DATE = WeatherEntry.COLUMN_DATE;
+        public static final String COLUMN_WEATHER_ID = WeatherEntry.COLUMN_WEATHER_ID;
+        public static final String COLUMN_MIN_TEMP = WeatherEntry.COLUMN_MIN_TEMP;
+        public static final String COLUMN_MAX_TEMP = WeatherEntry.COLUMN_MAX_TEMP;
+        public static final String COLUMN_HUMIDITY = WeatherEntry.COLUMN_HUMIDITY;
+        public static final String COLUMN_PRESSURE = WeatherEntry.COLUMN_PRESSURE;
+        public static final String COLUMN_WIND_SPEED = WeatherEntry.COLUMN_WIND_SPEED;
+        public static final String COLUMN_DEGREES = WeatherEntry.COLUMN_DEGREES;
+
+        /* The values as the table stores them, in hundredths of a degree Celsius */
+        public static final String COLUMN_MIN_TEMP_FIXED = "min_fixed";
+        public static final String COLUMN_MAX_TEMP_FIXED = "max_fixed";
+
+        /* In hundredths of a percent */
+        public static final String COLUMN_HUMIDITY_FIXED = "humidity_fixed";
+
+        /* In hundredths of a hectopascal */
+        public static final String COLUMN_PRESSURE_FIXED = "pressure_fixed";
+
+        /* In hundredths of the unit of the weather table's wind speed */
+        public static final String COLUMN_WIND_SPEED_FIXED = "wind_fixed";
+
+        /* In hundredths of a compass degree */
+        public static final String COLUMN_DEGREES_FIXED = "degrees_fixed";
+    }
+
+    /**
+     * Converts weather values to and from the scaled integers the location weather table stores
+     * them as. A value is multiplied by the scale of its column and rounded to the nearest
+     * integer, halves away from zero as SQLite's ROUND does, so values converted in Java and in
+     * SQL always agree. Comparing two of them is an exact integer comparison.
+     * <p>
+     * Every value is kept in hundredths, as the history archive keeps them, which is the
+     * precision the server sends them in. Parking a forecast and restoring it returns the values
+     * that were synced.
+     * <p>
+     * Only parked forecasts are kept this way. The weather table, which everything that shows
+     * the forecast reads, keeps its values as floats.
+     */
+    public static final class FixedPoint {
+
+        /* Temperatures are kept in hundredths of a degree */
+        public static final int TEMPERATURE_SCALE = 100;
+
+        /* Humidity is kept in hundredths of a percent */
+        public static final int HUMIDITY_SCALE = 100;
+
+        /* Pressure is kept in hundredths of a hectopascal */
+        public static final int PRESSURE_SCALE = 100;
+
+        /* Wind speed is kept in hundredths */
+        public static final int WIND_SPEED_SCALE = 100;
+
+        /* Wind direction is kept in hundredths of a degree */
+        public static final int DEGREES_SCALE = 100;
+
+        private FixedPoint() {
+        }
+
+        /**
+         * @param value A weather value
+         * @param scale The scale of its column, one of the *_SCALE values above
+         * @return The value in fixed point
+         */
+        public static long toFixed(double value, int scale) {
+            double scaled = value * scale;
+            return (long) (scaled < 0 ? scaled - 0.5 : scaled + 0.5);
+        }
+
+        /**
+         * @param fixed A value in fixed point
+         * @param scale The scale it was converted with
+         * @return The value
+         */
+        public static double fromFixed(long fixed, int scale) {
+            return (double) fixed / scale;
+        }
+    }
+
+    /*
+     * Inner class that defines the table contents of the hourly forecast table: one row per hour
+     * of the active location's forecast, from the current hour on. Hours are kept apart from the
+     * days of the weather table, which everything that works in days reads, and are replaced
+     * hour by hour as newer forecasts arrive. Hours that have passed are dropped, not archived.
+     */
+    public static final class HourlyEntry implements BaseColumns {
+
+        /* The base CONTENT_URI used to query the hourly forecast table from the content provider */
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_HOURLY)
+                .build();
+
+        /* Used internally as the name of our hourly forecast table. */
+        public static final String TABLE_NAME = "hourly_weather";
+
+        /* Start of the hour, normalized with SunshineDateUtils.normalizeHour (in UNIX time) */
+        public static final String COLUMN_TIME = "time";
+
+        /* Weather id as returned by API, used to identify the icon to be used */
+        public static final String COLUMN_WEATHER_ID = WeatherEntry.COLUMN_WEATHER_ID;
+
+        /* Temperature for the hour, in degrees Celsius */
+        public static final String COLUMN_TEMP = "temp";
+
+        /* Same meaning as the WeatherEntry columns of the same name */
+        public static final String COLUMN_HUMIDITY = WeatherEntry.COLUMN_HUMIDITY;
+        public static final String COLUMN_PRESSURE = WeatherEntry.COLUMN_PRESSURE;
+        public static final String COLUMN_WIND_SPEED = WeatherEntry.COLUMN_WIND_SPEED;
+        public static final String COLUMN_DEGREES = WeatherEntry.COLUMN_DEGREES;
+
+        /**
+         * Builds a URI selecting the hours from start (inclusive) to end (exclusive).
+         *
+         * @param start First normalized hour in the range
+         * @param end   Normalized hour just past the range
+         * @return Uri to query the hourly forecast in the range
+         */
+        public static Uri buildHourlyRangeUri(long start, long end) {
+            return buildRangeUri(CONTENT_URI, start, end);
+        }
+
+        /**
+         * Builds a URI selecting a number of hours from the start of the current hour on. The
+         * current hour is bound by the provider, so the query is the same every time it runs.
+         *
+         * @param hours Number of hours to select
+         * @return Uri to query the next hours of the forecast
+         */
+        public static Uri buildHourlyNextUri(int hours) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(PATH_NEXT)
+                    .appendPath(Integer.toString(hours))
+                    .build();
+        }
+    }
+
+    /**
+     * The layout of the forecast export: a small file the provider keeps up to date with the
+     * forecast from today on, for other processes such as widgets or a companion app. Opening
+     * CONTENT_URI read only returns a descriptor of the file, which the consumer maps into memory
+     * once. The provider rewrites the file in place whenever the forecast changes, so the mapping
+     * always shows the latest forecast without any further call. The provider isn't exported, so
+     * the app grants a consumer read access to CONTENT_URI along with the intent it sends.
+     * <p>
+     * All numbers are big endian. The file starts with a header:
+     * <pre>
+     *     int    magic, MAGIC
+     *     int    layout version, VERSION
+     *     int    number of row slots, MAX_DAYS
+     *     int    bytes per row, ROW_BYTES
+     *     long   generation
+     *     int    number of rows in use
+     *     int    checksum
+     * </pre>
+     * followed by MAX_DAYS row slots of ROW_BYTES bytes each. The rows in use come first, sorted
+     * by date, each a long date, an int weather id, an unused int, then the high, low, humidity,
+     * pressure, wind speed and wind direction as doubles, in the units of WeatherEntry.
+     * <p>
+     * The generation is odd while the provider is rewriting the rows and even once they are
+     * complete, and grows with every rewrite. Comparing the generation with the last one read is
+     * all it takes to tell whether anything changed.
+     * <p>
+     * The file is memory shared without a lock, and nothing orders the provider's writes to it
+     * against a consumer's reads in another process, so an unchanged generation alone doesn't
+     * prove the rows read in between were whole. The checksum does: it is the CRC-32 of the
+     * generation, the number of rows in use and those rows, as laid out in the file, and is
+     * written along with the rows before the even generation it belongs to. A consumer reads
+     * the generation, copies the number of rows, the rows and the checksum, then reads the
+     * generation again. It keeps the copy only if the generation was even and unchanged and the
+     * checksum matches the copy, and reads again otherwise. A torn copy is then only taken for
+     * whole if its CRC-32 happens to match, about one time in four billion.
+     * <p>
+     * The rows start today. The provider rewrites them soon after the day turns, even if the
+     * forecast hasn't changed, so a day that has passed is only ever briefly the first row.
+     * <p>
+     * A consumer must check MAGIC and VERSION, and use ROW_BYTES from the header to find the
+     * rows, so that later versions can append fields to a row.
+     */
+    public static final class ExportEntry {
+
+        /* The URI to open, read only, with ContentResolver#openFileDescriptor */
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_EXPORT)
+                .build();
+
+        /* "SEXP" */
+        public static final int MAGIC = 0x53455850;
+
+        /* 2 added the checksum */
+        public static final int VERSION = 2;
+
+        /* The most days the export holds; the forecast is cut off there */
+        public static final int MAX_DAYS = 16;
+
+        /* Offsets into the header */
+        public static final int OFFSET_MAGIC = 0;
+        public static final int OFFSET_VERSION = 4;
+        public static final int OFFSET_MAX_DAYS = 8;
+        public static final int OFFSET_ROW_BYTES = 12;
+        public static final int OFFSET_GENERATION = 16;
+        public static final int OFFSET_COUNT = 24;
+        public static final int OFFSET_CHECKSUM = 28;
+        public static final int HEADER_BYTES = 32;
+
+        /* Offsets into a row */
+        public static final int ROW_DATE = 0;
+        public static final int ROW_WEATHER_ID = 8;
+        public static final int ROW_MAX_TEMP = 16;
+        public static final int ROW_MIN_TEMP = 24;
+        public static final int ROW_HUMIDITY = 32;
+        public static final int ROW_PRESSURE = 40;
+        public static final int ROW_WIND_SPEED = 48;
+        public static final int ROW_DEGREES = 56;
+        public static final int ROW_BYTES = 64;
+
+        /* The size of the whole file */
+        public static final int FILE_BYTES = HEADER_BYTES + MAX_DAYS * ROW_BYTES;
+
+        private ExportEntry() {
+        }
+    }
+
+    /**
+     * Describes the change notifications the provider sends. Each changed URI is announced once
+     * per logical change rather than once per insert or delete: the changes a caller makes
+     * between {@link #beginBatch} and {@link #endBatch} are announced together when the batch
+     * ends, and changes made outside a batch within a few milliseconds of each other are
+     * announced together too. A sync, which deletes the old forecast and inserts the new one,
+     * wraps both in a batch.
+     * <p>
+     * When the dates a change affected are known, the URI announced is the changed URI with the
+     * range of dates added as query parameters. Query parameters don't count when notifications
+     * are matched to observers, so every observer of the URI or of a URI under it is notified as
+     * before. An observer that only shows some dates can read the range with
+     * {@link #getChangedStart} and {@link #getChangedEnd}, and skip refreshing if its dates
+     * weren't affected.
+     */
+    public static final class ChangeNotification {
+
+        /* The method names to pass to ContentResolver#call, with the weather CONTENT_URI */
+        public static final String METHOD_BEGIN_BATCH = "begin_notification_batch";
+        public static final String METHOD_END_BATCH = "end_notification_batch";
+
+        /* The first date affected (inclusive) and the date just past the last one affected */
+        public static final String PARAM_CHANGED_START = "changed_start";
+        public static final String PARAM_CHANGED_END = "changed_end";
+
+        /* Returned for a change whose dates aren't known, so which may affect any date */
+        public static final long NO_DATES = Long.MIN_VALUE;
+
+        private ChangeNotification() {
+        }
+
+        /**
+         * Opens a batch of changes on the calling thread. The provider must run in the calling
+         * process, as it does for Sunshine's own components.
+         *
+         * @param resolver Used to call the provider
+         */
+        public static void beginBatch(ContentResolver resolver) {
+            resolver.call(WeatherEntry.CONTENT_URI, METHOD_BEGIN_BATCH, null, null);
+        }
+
+        /**
+         * Closes the batch opened by {@link #beginBatch}, and announces its changes. Call it in a
+         * finally block.
+         *
+         * @param resolver Used to call the provider
+         */
+        public static void endBatch(ContentResolver resolver) {
+            resolver.call(WeatherEntry.CONTENT_URI, METHOD_END_BATCH, null, null);
+        }
+
+        /**
+         * @param uri   The URI whose data changed
+         * @param start First normalized date affected
+         * @param end   Normalized date just past the last one affected
+         * @return The URI to announce the change with
+         */
+        public static Uri buildChangeUri(Uri uri, long start, long end) {
+            return uri.buildUpon()
+                    .appendQueryParameter(PARAM_CHANGED_START, Long.toString(start))
+                    .appendQueryParameter(PARAM_CHANGED_END, Long.toString(end))
+                    .build();
+        }
+
+        /**
+         * @param uri A URI received by ContentObserver#onChange, or null
+         * @return The first date the change affected, or NO_DATES if they aren't known
+         */
+        public static long getChangedStart(Uri uri) {
+            return getDate(uri, PARAM_CHANGED_START);
+        }
+
+        /**
+         * @param uri A URI received by ContentObserver#onChange, or null
+         * @return The date just past the last one the change affected, or NO_DATES if they
+         * aren't known
+         */
+        public static long getChangedEnd(Uri uri) {
+            return getDate(uri, PARAM_CHANGED_END);
+        }
+
+        private static long getDate(Uri uri, String parameter) {
+            String date = uri == null ? null : uri.getQueryParameter(parameter);
+            return date == null ? NO_DATES : Long.parseLong(date);
+        }
+    }
+
+    /**
+     * Names for the forecast summary the provider returns from
+     * {@link android.content.ContentProvider#call}: the weather id, high and low of the coming
+     * days, as arrays in a Bundle. It is what the notification, the wearables and widgets show,
+     * and it is served from memory, without a query, a cursor or a cursor window. The provider
+     * only reads the weather table again once the forecast has changed or the day has turned.
+     * <p>
+     * Every array holds the same number of days, sorted by date and starting today at the
+     * earliest. The first day is tomorrow or later if today isn't in the forecast.
+     */
+    public static final class SummaryCall {
+
+        /* The method name to pass to ContentResolver#call, with the weather CONTENT_URI */
+        public static final String METHOD_GET_SUMMARY = "get_summary";
+
+        /* Normalized dates of the days, as a long[] */
+        public static final String KEY_DATES = "dates";
+
+        /* Weather ids of the days, as an int[] */
+        public static final String KEY_WEATHER_IDS = "weather_ids";
+
+        /* High and low temperatures of the days in °C, as double[]s */
+        public static final String KEY_MAX_TEMPS = "max_temps";
+        public static final String KEY_MIN_TEMPS = "min_temps";
+
+        private SummaryCall() {
+        }
+
+        /**
+         * Gets the summary of the coming days of the forecast.
          *
-         * @return The selection part of the weather query for today onwards
+         * @param resolver Used to call the provider
+         * @param days     Most days to return; 1 for today's summary
+         * @return The summary, whose arrays are empty if there is no forecast from today on
          */
-        public static String getSqlSelectForTodayOnwards() {
-            long normalizedUtcNow = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
-            return WeatherContract.WeatherEntry.COLUMN_DATE + " >= " + normalizedUtcNow;
+        public static Bundle getSummary(ContentResolver resolver, int days) {
+            if (days < 1) {
+                throw new IllegalArgumentException("At least one day must be asked for");
+            }
+            return resolver.call(WeatherEntry.CONTENT_URI, METHOD_GET_SUMMARY,
+                    Integer.toString(days), null);
         }
     }
-}
\ No newline at end of file
+}
@@ -15,12 +15,29 @@
  */
 package com.example.android.sunshine.data;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.support.annotation.VisibleForTesting;
+import android.text.TextUtils;
+import android.util.Log;
 
+import com.example.android.sunshine.data.WeatherContract.ArchiveEntry;
+import com.example.android.sunshine.data.WeatherContract.HistoryEntry;
+import com.example.android.sunshine.data.WeatherContract.HourlyEntry;
+import com.example.android.sunshine.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.data.WeatherContract.LocationWeatherEntry;
+import com.example.android.sunshine.data.WeatherContract.MigrationEntry;
+import com.example.android.sunshine.data.WeatherContract.RollupEntry;
+import com.example.android.sunshine.data.WeatherContract.StatsEntry;
+import com.example.android.sunshine.data.WeatherContract.SyncMetricsEntry;
 import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Manages a local database for weather data.
  */
@@ -43,10 +60,139 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
      * use-case, we wanted to watch out for it and warn you what could happen if you mistakenly
      * version your databases.
      */
-    private static final int DATABASE_VERSION = 3;
+    private static final int DATABASE_VERSION = 13;
+
+    private static final String TAG = WeatherDbHelper.class.getSimpleName();
+
+    /*
+     * The scale version 12 converted every value of the location weather table to fixed point
+     * with, hundredths. Steps reproduce the schema they shipped with, so this stays as it is
+     * whatever FixedPoint's scales become.
+     */
+    private static final int FIXED_POINT_SCALE_V12 = 100;
+
+    /*
+     * One step of the schema, from mFromVersion to the version after it. Steps only ever add to
+     * the schema and backfill what they add, so the rows already stored survive an upgrade and
+     * the first screen after an app update doesn't wait for a sync.
+     */
+    private abstract static class Migration {
+
+        final int mFromVersion;
+
+        Migration(int fromVersion) {
+            mFromVersion = fromVersion;
+        }
+
+        abstract void migrate(SQLiteDatabase sqLiteDatabase);
+    }
+
+    /*
+     * Every step from the first version Sunshine shipped to DATABASE_VERSION, in order. A new
+     * version of the schema needs a new step here as well as the change in onCreate.
+     */
+    private static final Migration[] MIGRATIONS = {
+            /* 3 to 4: sync metrics */
+            new Migration(3) {
+                @Override
+                void migrate(SQLiteDatabase sqLiteDatabase) {
+                    createSyncMetricsTable(sqLiteDatabase);
+                }
+            },
+            /* 4 to 5: history archive and its roll-ups, which start out empty */
+            new Migration(4) {
+                @Override
+                void migrate(SQLiteDatabase sqLiteDatabase) {
+                    createHistoryTables(sqLiteDatabase);
+                }
+            },
+            /* 5 to 6: statistics, backfilled from the forecast and history already stored */
+            new Migration(5) {
+                @Override
+                void migrate(SQLiteDatabase sqLiteDatabase) {
+                    createStatsTable(sqLiteDatabase);
+                    WeatherStats.rebuild(sqLiteDatabase, StatsEntry.SOURCE_FORECAST);
+                    WeatherStats.rebuild(sqLiteDatabase, StatsEntry.SOURCE_HISTORY);
+                }
+            },
+            /* 6 to 7: the record of these migrations */
+            new Migration(6) {
+                @Override
+                void migrate(SQLiteDatabase sqLiteDatabase) {
+                    createMigrationsTable(sqLiteDatabase);
+                }
+            },
+            /* 7 to 8: statement cache counts in the sync metrics, 0 for the syncs before */
+            new Migration(7) {
+                @Override
+                void migrate(SQLiteDatabase sqLiteDatabase) {
+                    addStatementCacheColumns(sqLiteDatabase);
+                }
+            },
+            /*
+             * 8 to 9: saved locations. The weather already stored is adopted by the first
+             * location the provider switches to, if it was synced for that location.
+             */
+            new Migration(8) {
+                @Override
+                void migrate(SQLiteDatabase sqLiteDatabase) {
+                    createLocationTables(sqLiteDatabase);
+                }
+            },
+            /* 9 to 10: the hourly forecast, which the next sync that fetches it fills */
+            new Migration(9) {
+                @Override
+                void migrate(SQLiteDatabase sqLiteDatabase) {
+                    createHourlyTable(sqLiteDatabase);
+                }
+            },
+            /*
+             * 10 to 11: the history archive. Days compacted before it existed were only kept
+             * in the roll-ups, so there is nothing to pack.
+             */
+            new Migration(10) {
+                @Override
+                void migrate(SQLiteDatabase sqLiteDatabase) {
+                    createArchiveTable(sqLiteDatabase);
+                }
+            },
+            /*
+             * 11 to 12: parked forecasts in fixed point, converted from the floats stored, and
+             * the view the location weather URIs read them through
+             */
+            new Migration(11) {
+                @Override
+                void migrate(SQLiteDatabase sqLiteDatabase) {
+                    convertLocationWeatherToFixedPoint(sqLiteDatabase);
+                    createLocationWeatherView(sqLiteDatabase);
+                }
+            },
+            /* 12 to 13: freshness counts in the sync metrics, 0 for the syncs before */
+            new Migration(12) {
+                @Override
+                void migrate(SQLiteDatabase sqLiteDatabase) {
+                    addFreshnessColumns(sqLiteDatabase);
+                }
+            }
+    };
+
+    private final Context mContext;
 
     public WeatherDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * Opens a database other than weather.db with the same schema, so that upgrades can be
+     * tested without touching the app's data.
+     *
+     * @param context Used to find the database and clear what depends on its contents
+     * @param name    The database file name
+     */
+    @VisibleForTesting
+    WeatherDbHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+        mContext = context;
     }
 
     /**
@@ -99,15 +245,432 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
          * that SQL with the execSQL method of our SQLite database object.
          */
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+
+        createSyncMetricsTable(sqLiteDatabase);
+        addStatementCacheColumns(sqLiteDatabase);
+        createHistoryTables(sqLiteDatabase);
+        createStatsTable(sqLiteDatabase);
+        createMigrationsTable(sqLiteDatabase);
+        createLocationTables(sqLiteDatabase);
+        createHourlyTable(sqLiteDatabase);
+        createArchiveTable(sqLiteDatabase);
+        convertLocationWeatherToFixedPoint(sqLiteDatabase);
+        createLocationWeatherView(sqLiteDatabase);
+        addFreshnessColumns(sqLiteDatabase);
+    }
+
+    /**
+     * Creates the table that records one row per sync, along with the trigger that keeps it from
+     * growing past {@link SyncMetricsEntry#MAX_ROWS} rows. Because _ID is AUTOINCREMENT, IDs are
+     * never reused and the oldest rows are always the ones with the smallest IDs.
+     *
+     * @param sqLiteDatabase The database.
+     */
+    private static void createSyncMetricsTable(SQLiteDatabase sqLiteDatabase) {
+
+        final String SQL_CREATE_SYNC_METRICS_TABLE =
+
+                "CREATE TABLE " + SyncMetricsEntry.TABLE_NAME + " (" +
+
+                SyncMetricsEntry._ID                    + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+
+                SyncMetricsEntry.COLUMN_STARTED_AT      + " INTEGER NOT NULL, "                 +
+                SyncMetricsEntry.COLUMN_TRIGGER         + " TEXT NOT NULL, "                    +
+
+                SyncMetricsEntry.COLUMN_URL_BUILD_NANOS + " INTEGER NOT NULL, "                 +
+                SyncMetricsEntry.COLUMN_FETCH_NANOS     + " INTEGER NOT NULL, "                 +
+                SyncMetricsEntry.COLUMN_PARSE_NANOS     + " INTEGER NOT NULL, "                 +
+                SyncMetricsEntry.COLUMN_DELETE_NANOS    + " INTEGER NOT NULL, "                 +
+                SyncMetricsEntry.COLUMN_INSERT_NANOS    + " INTEGER NOT NULL, "                 +
+                SyncMetricsEntry.COLUMN_NOTIFY_NANOS    + " INTEGER NOT NULL, "                 +
+                SyncMetricsEntry.COLUMN_WEAR_NANOS      + " INTEGER NOT NULL, "                 +
+                SyncMetricsEntry.COLUMN_TOTAL_NANOS     + " INTEGER NOT NULL, "                 +
+
+                SyncMetricsEntry.COLUMN_BYTES_FETCHED   + " INTEGER NOT NULL, "                 +
+                SyncMetricsEntry.COLUMN_ROWS_DELETED    + " INTEGER NOT NULL, "                 +
+                SyncMetricsEntry.COLUMN_ROWS_INSERTED   + " INTEGER NOT NULL, "                 +
+
+                SyncMetricsEntry.COLUMN_FAILURE         + " TEXT);";
+
+        sqLiteDatabase.execSQL(SQL_CREATE_SYNC_METRICS_TABLE);
+
+        /*
+         * Every insert drops whatever has fallen out of the ring buffer. Deleting by _ID range
+         * only touches the primary key index, so this stays cheap no matter how many syncs have
+         * been recorded over the lifetime of the app.
+         */
+        sqLiteDatabase.execSQL(
+                "CREATE TRIGGER " + SyncMetricsEntry.TABLE_NAME + "_ring_buffer" +
+                " AFTER INSERT ON " + SyncMetricsEntry.TABLE_NAME +
+                " BEGIN" +
+                " DELETE FROM " + SyncMetricsEntry.TABLE_NAME +
+                " WHERE " + SyncMetricsEntry._ID + " <= NEW." + SyncMetricsEntry._ID +
+                " - " + SyncMetricsEntry.MAX_ROWS + ";" +
+                " END;");
+    }
+
+    /**
+     * Adds the statement cache counts to the sync metrics table. New databases get them the same
+     * way upgraded ones do, so that both end up with exactly the same table.
+     *
+     * @param sqLiteDatabase The database.
+     */
+    private static void addStatementCacheColumns(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("ALTER TABLE " + SyncMetricsEntry.TABLE_NAME +
+                " ADD COLUMN " + SyncMetricsEntry.COLUMN_STATEMENT_CACHE_HITS +
+                " INTEGER NOT NULL DEFAULT 0");
+        sqLiteDatabase.execSQL("ALTER TABLE " + SyncMetricsEntry.TABLE_NAME +
+                " ADD COLUMN " + SyncMetricsEntry.COLUMN_STATEMENT_CACHE_MISSES +
+                " INTEGER NOT NULL DEFAULT 0");
+    }
+
+    /**
+     * Adds the stale read count and revalidation time to the sync metrics table, the same way
+     * for new and upgraded databases.
+     *
+     * @param sqLiteDatabase The database.
+     */
+    private static void addFreshnessColumns(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("ALTER TABLE " + SyncMetricsEntry.TABLE_NAME +
+                " ADD COLUMN " + SyncMetricsEntry.COLUMN_STALE_READS +
+                " INTEGER NOT NULL DEFAULT 0");
+        sqLiteDatabase.execSQL("ALTER TABLE " + SyncMetricsEntry.TABLE_NAME +
+                " ADD COLUMN " + SyncMetricsEntry.COLUMN_REVALIDATION_NANOS +
+                " INTEGER NOT NULL DEFAULT 0");
     }
 
     /**
-     * This database is only a cache for online data, so its upgrade policy is simply to discard
-     * the data and call through to onCreate to recreate the table. Note that this only fires if
-     * you change the version number for your database (in our case, DATABASE_VERSION). It does NOT
-     * depend on the version number for your application found in your app/build.gradle file. If
-     * you want to update the schema without wiping data, commenting out the current body of this
-     * method should be your top priority before modifying this method.
+     * Creates the table past days are archived into and the table of their weekly and monthly
+     * roll-ups. Both are only ever read by date range, so the UNIQUE constraints double as the
+     * indices those range queries are served through: SQLite backs every UNIQUE constraint with
+     * an index, and the leftmost column of each is the one the ranges are on.
+     *
+     * @param sqLiteDatabase The database.
+     */
+    private static void createHistoryTables(SQLiteDatabase sqLiteDatabase) {
+
+        final String SQL_CREATE_HISTORY_TABLE =
+
+                "CREATE TABLE " + HistoryEntry.TABLE_NAME + " (" +
+
+                HistoryEntry._ID               + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+
+                HistoryEntry.COLUMN_DATE       + " INTEGER NOT NULL, "                 +
+
+                HistoryEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL,"                  +
+
+                HistoryEntry.COLUMN_MIN_TEMP   + " REAL NOT NULL, "                    +
+                HistoryEntry.COLUMN_MAX_TEMP   + " REAL NOT NULL, "                    +
+
+                HistoryEntry.COLUMN_HUMIDITY   + " REAL NOT NULL, "                    +
+                HistoryEntry.COLUMN_PRESSURE   + " REAL NOT NULL, "                    +
+
+                HistoryEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, "                    +
+                HistoryEntry.COLUMN_DEGREES    + " REAL NOT NULL, "                    +
+
+                /* A day archived twice keeps the last forecast made for it */
+                " UNIQUE (" + HistoryEntry.COLUMN_DATE + ") ON CONFLICT REPLACE);";
+
+        sqLiteDatabase.execSQL(SQL_CREATE_HISTORY_TABLE);
+
+        final String SQL_CREATE_ROLLUP_TABLE =
+
+                "CREATE TABLE " + RollupEntry.TABLE_NAME + " (" +
+
+                RollupEntry._ID                 + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+
+                RollupEntry.COLUMN_PERIOD       + " TEXT NOT NULL, "                    +
+                RollupEntry.COLUMN_PERIOD_START + " INTEGER NOT NULL, "                 +
+                RollupEntry.COLUMN_PERIOD_END   + " INTEGER NOT NULL, "                 +
+
+                RollupEntry.COLUMN_DAY_COUNT    + " INTEGER NOT NULL, "                 +
+
+                RollupEntry.COLUMN_MIN_TEMP     + " REAL NOT NULL, "                    +
+                RollupEntry.COLUMN_MAX_TEMP     + " REAL NOT NULL, "                    +
+
+                RollupEntry.COLUMN_HUMIDITY     + " REAL NOT NULL, "                    +
+                RollupEntry.COLUMN_PRESSURE     + " REAL NOT NULL, "                    +
+                RollupEntry.COLUMN_WIND_SPEED   + " REAL NOT NULL, "                    +
+
+                " UNIQUE (" + RollupEntry.COLUMN_PERIOD + ", " + RollupEntry.COLUMN_PERIOD_START +
+                ") ON CONFLICT REPLACE);";
+
+        sqLiteDatabase.execSQL(SQL_CREATE_ROLLUP_TABLE);
+    }
+
+    /**
+     * Creates the table of forecast and history statistics. Every read and every update of it
+     * is by source, period and week, so the UNIQUE constraint is the only index it needs.
+     *
+     * @param sqLiteDatabase The database.
+     */
+    private static void createStatsTable(SQLiteDatabase sqLiteDatabase) {
+
+        final String SQL_CREATE_STATS_TABLE =
+
+                "CREATE TABLE " + StatsEntry.TABLE_NAME + " (" +
+
+                StatsEntry._ID                 + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+
+                StatsEntry.COLUMN_SOURCE       + " TEXT NOT NULL, "                    +
+                StatsEntry.COLUMN_PERIOD       + " TEXT NOT NULL, "                    +
+                StatsEntry.COLUMN_PERIOD_START + " INTEGER NOT NULL, "                 +
+
+                StatsEntry.COLUMN_DAY_COUNT    + " INTEGER NOT NULL, "                 +
+
+                StatsEntry.COLUMN_MIN_TEMP     + " REAL NOT NULL, "                    +
+                StatsEntry.COLUMN_MAX_TEMP     + " REAL NOT NULL, "                    +
+
+                StatsEntry.COLUMN_HUMIDITY     + " REAL NOT NULL, "                    +
+                StatsEntry.COLUMN_PRESSURE     + " REAL NOT NULL, "                    +
+                StatsEntry.COLUMN_WIND_SPEED   + " REAL NOT NULL, "                    +
+
+                StatsEntry.COLUMN_WARMEST_DATE + " INTEGER NOT NULL, "                 +
+
+                " UNIQUE (" + StatsEntry.COLUMN_SOURCE + ", " + StatsEntry.COLUMN_PERIOD + ", " +
+                StatsEntry.COLUMN_PERIOD_START + ") ON CONFLICT REPLACE);";
+
+        sqLiteDatabase.execSQL(SQL_CREATE_STATS_TABLE);
+    }
+
+    /**
+     * Creates the table of saved locations and the table their forecasts are kept in while they
+     * aren't active. A location's forecast is always read or moved as a whole, or from a date on,
+     * so the UNIQUE constraint on its location and date columns is the index that serves it.
+     *
+     * @param sqLiteDatabase The database.
+     */
+    private static void createLocationTables(SQLiteDatabase sqLiteDatabase) {
+
+        final String SQL_CREATE_LOCATION_TABLE =
+
+                "CREATE TABLE " + LocationEntry.TABLE_NAME + " (" +
+
+                LocationEntry._ID                      + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+
+                LocationEntry.COLUMN_LOCATION_SETTING  + " TEXT NOT NULL, "                    +
+                LocationEntry.COLUMN_ACTIVE            + " INTEGER NOT NULL, "                 +
+                LocationEntry.COLUMN_LAST_USED         + " INTEGER NOT NULL, "                 +
+
+                LocationEntry.COLUMN_LAST_SYNC_TIME    + " INTEGER NOT NULL, "                 +
+                LocationEntry.COLUMN_LAST_COVERED_DATE + " INTEGER NOT NULL, "                 +
+
+                " UNIQUE (" + LocationEntry.COLUMN_LOCATION_SETTING + "));";
+
+        sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
+
+        final String SQL_CREATE_LOCATION_WEATHER_TABLE =
+
+                "CREATE TABLE " + LocationWeatherEntry.TABLE_NAME + " (" +
+
+                LocationWeatherEntry._ID                + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+
+                LocationWeatherEntry.COLUMN_LOCATION_ID + " INTEGER NOT NULL, "                 +
+                LocationWeatherEntry.COLUMN_DATE        + " INTEGER NOT NULL, "                 +
+
+                LocationWeatherEntry.COLUMN_WEATHER_ID  + " INTEGER NOT NULL,"                  +
+
+                LocationWeatherEntry.COLUMN_MIN_TEMP    + " REAL NOT NULL, "                    +
+                LocationWeatherEntry.COLUMN_MAX_TEMP    + " REAL NOT NULL, "                    +
+
+                LocationWeatherEntry.COLUMN_HUMIDITY    + " REAL NOT NULL, "                    +
+                LocationWeatherEntry.COLUMN_PRESSURE    + " REAL NOT NULL, "                    +
+
+                LocationWeatherEntry.COLUMN_WIND_SPEED  + " REAL NOT NULL, "                    +
+                LocationWeatherEntry.COLUMN_DEGREES     + " REAL NOT NULL, "                    +
+
+                " UNIQUE (" + LocationWeatherEntry.COLUMN_LOCATION_ID + ", " +
+                LocationWeatherEntry.COLUMN_DATE + ") ON CONFLICT REPLACE);";
+
+        sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_WEATHER_TABLE);
+    }
+
+    /**
+     * Replaces the float values of the location weather table with integers in fixed point, in
+     * hundredths. Only the parked forecasts are converted; the weather table keeps its floats.
+     * SQLite can't change the type of a column, so the rows are copied into a new table,
+     * converted on the way, which then takes the old one's place. New databases get the table
+     * the same way upgraded ones do, so that both end up with exactly the same table.
+     *
+     * @param sqLiteDatabase The database.
+     */
+    private static void convertLocationWeatherToFixedPoint(SQLiteDatabase sqLiteDatabase) {
+
+        final String fixedTable = LocationWeatherEntry.TABLE_NAME + "_fixed";
+
+        final String SQL_CREATE_FIXED_TABLE =
+
+                "CREATE TABLE " + fixedTable + " (" +
+
+                LocationWeatherEntry._ID +
+                " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+
+                LocationWeatherEntry.COLUMN_LOCATION_ID      + " INTEGER NOT NULL, " +
+                LocationWeatherEntry.COLUMN_DATE             + " INTEGER NOT NULL, " +
+
+                LocationWeatherEntry.COLUMN_WEATHER_ID       + " INTEGER NOT NULL, " +
+
+                LocationWeatherEntry.COLUMN_MIN_TEMP_FIXED   + " INTEGER NOT NULL, " +
+                LocationWeatherEntry.COLUMN_MAX_TEMP_FIXED   + " INTEGER NOT NULL, " +
+
+                LocationWeatherEntry.COLUMN_HUMIDITY_FIXED   + " INTEGER NOT NULL, " +
+                LocationWeatherEntry.COLUMN_PRESSURE_FIXED   + " INTEGER NOT NULL, " +
+
+                LocationWeatherEntry.COLUMN_WIND_SPEED_FIXED + " INTEGER NOT NULL, " +
+                LocationWeatherEntry.COLUMN_DEGREES_FIXED    + " INTEGER NOT NULL, " +
+
+                " UNIQUE (" + LocationWeatherEntry.COLUMN_LOCATION_ID + ", " +
+                LocationWeatherEntry.COLUMN_DATE + ") ON CONFLICT REPLACE);";
+
+        sqLiteDatabase.execSQL(SQL_CREATE_FIXED_TABLE);
+
+        /* The old table names its values as the weather table does */
+        final String keyColumns = LocationWeatherEntry._ID + ", " +
+                LocationWeatherEntry.COLUMN_LOCATION_ID + ", " +
+                LocationWeatherEntry.COLUMN_DATE + ", " +
+                LocationWeatherEntry.COLUMN_WEATHER_ID;
+        StringBuilder encodedValues = new StringBuilder();
+        for (int i = 0; i < WeatherLocations.VALUE_COLUMNS.length; i++) {
+            if (i > 0) encodedValues.append(", ");
+            encodedValues.append("ROUND(").append(WeatherLocations.VALUE_COLUMNS[i])
+                    .append(" * ").append(FIXED_POINT_SCALE_V12).append(')');
+        }
+        sqLiteDatabase.execSQL("INSERT INTO " + fixedTable + " (" + keyColumns + ", " +
+                TextUtils.join(", ", WeatherLocations.FIXED_COLUMNS) + ")" +
+                " SELECT " + keyColumns + ", " + encodedValues +
+                " FROM " + LocationWeatherEntry.TABLE_NAME);
+
+        sqLiteDatabase.execSQL("DROP TABLE " + LocationWeatherEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("ALTER TABLE " + fixedTable +
+                " RENAME TO " + LocationWeatherEntry.TABLE_NAME);
+    }
+
+    /**
+     * Creates the view the location weather URIs read parked forecasts through, which converts
+     * the values back from fixed point under the names of the weather table. Selections and sort
+     * orders on those names then work on parked forecasts as they do on the active one. SQLite
+     * flattens a view this simple into the query, so a partition is still read through the index
+     * on its location and date columns.
+     *
+     * @param sqLiteDatabase The database.
+     */
+    private static void createLocationWeatherView(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("CREATE VIEW " + LocationWeatherEntry.VIEW_NAME + " AS" +
+                " SELECT " + LocationWeatherEntry._ID + ", " +
+                LocationWeatherEntry.COLUMN_LOCATION_ID + ", " +
+                LocationWeatherEntry.COLUMN_DATE + ", " +
+                LocationWeatherEntry.COLUMN_WEATHER_ID + ", " +
+                WeatherLocations.SQL_DECODED_VALUES +
+                " FROM " + LocationWeatherEntry.TABLE_NAME);
+    }
+
+    /**
+     * Creates the hourly forecast table. Every read of it selects a window of hours, so the
+     * UNIQUE constraint on the time column is the index that serves it, and replaces an hour
+     * that is forecast again.
+     *
+     * @param sqLiteDatabase The database.
+     */
+    private static void createHourlyTable(SQLiteDatabase sqLiteDatabase) {
+
+        final String SQL_CREATE_HOURLY_TABLE =
+
+                "CREATE TABLE " + HourlyEntry.TABLE_NAME + " (" +
+
+                HourlyEntry._ID               + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+
+                HourlyEntry.COLUMN_TIME       + " INTEGER NOT NULL, "                 +
+
+                HourlyEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL, "                 +
+                HourlyEntry.COLUMN_TEMP       + " REAL NOT NULL, "                    +
+
+                HourlyEntry.COLUMN_HUMIDITY   + " REAL NOT NULL, "                    +
+                HourlyEntry.COLUMN_PRESSURE   + " REAL NOT NULL, "                    +
+
+                HourlyEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, "                    +
+                HourlyEntry.COLUMN_DEGREES    + " REAL NOT NULL, "                    +
+
+                " UNIQUE (" + HourlyEntry.COLUMN_TIME + ") ON CONFLICT REPLACE);";
+
+        sqLiteDatabase.execSQL(SQL_CREATE_HOURLY_TABLE);
+    }
+
+    /**
+     * Creates the history archive table. Months are read by range, which the UNIQUE constraint
+     * on the month start serves, and a month packed again replaces its row.
+     *
+     * @param sqLiteDatabase The database.
+     */
+    private static void createArchiveTable(SQLiteDatabase sqLiteDatabase) {
+
+        final String SQL_CREATE_ARCHIVE_TABLE =
+
+                "CREATE TABLE " + ArchiveEntry.TABLE_NAME + " (" +
+
+                ArchiveEntry._ID                + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+
+                ArchiveEntry.COLUMN_MONTH_START + " INTEGER NOT NULL, "                 +
+                ArchiveEntry.COLUMN_MONTH_END   + " INTEGER NOT NULL, "                 +
+
+                ArchiveEntry.COLUMN_DAY_COUNT   + " INTEGER NOT NULL, "                 +
+                ArchiveEntry.COLUMN_DAYS        + " BLOB NOT NULL, "                    +
+
+                " UNIQUE (" + ArchiveEntry.COLUMN_MONTH_START + ") ON CONFLICT REPLACE);";
+
+        sqLiteDatabase.execSQL(SQL_CREATE_ARCHIVE_TABLE);
+    }
+
+    /**
+     * Sizes the connection's cache of compiled statements to match what StatementCacheStats
+     * models, so that the hit rate recorded with each sync describes this database.
+     *
+     * @param sqLiteDatabase The database.
+     */
+    @Override
+    public void onOpen(SQLiteDatabase sqLiteDatabase) {
+        super.onOpen(sqLiteDatabase);
+        sqLiteDatabase.setMaxSqlCacheSize(StatementCacheStats.CACHE_SIZE);
+    }
+
+    /**
+     * Creates the table each upgrade records its steps in.
+     *
+     * @param sqLiteDatabase The database.
+     */
+    private static void createMigrationsTable(SQLiteDatabase sqLiteDatabase) {
+
+        final String SQL_CREATE_MIGRATIONS_TABLE =
+
+                "CREATE TABLE " + MigrationEntry.TABLE_NAME + " (" +
+
+                MigrationEntry._ID                  + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+
+                MigrationEntry.COLUMN_FROM_VERSION  + " INTEGER NOT NULL, "                 +
+                MigrationEntry.COLUMN_TO_VERSION    + " INTEGER NOT NULL, "                 +
+
+                MigrationEntry.COLUMN_STARTED_AT    + " INTEGER NOT NULL, "                 +
+                MigrationEntry.COLUMN_DURATION_NANOS + " INTEGER NOT NULL, "                +
+
+                MigrationEntry.COLUMN_OUTCOME       + " TEXT NOT NULL);";
+
+        sqLiteDatabase.execSQL(SQL_CREATE_MIGRATIONS_TABLE);
+    }
+
+    /**
+     * Upgrades the schema one version at a time through the steps in MIGRATIONS, keeping the
+     * stored weather, history and sync metrics. SQLiteOpenHelper runs this method inside a single
+     * transaction together with setting the new version, so the upgrade either completes or
+     * leaves the database exactly as it was.
+     * <p>
+     * If there is no path of steps from the old version, or a step fails, the database falls
+     * back to being treated as the cache it mostly is: every table is dropped and recreated, and
+     * the next sync fills it again. That way a broken migration costs one resync, rather than a
+     * crash every time the database is opened.
+     * <p>
+     * Each step is timed, logged and recorded in the schema migrations table. Note that this
+     * only fires if you change the version number for your database (in our case,
+     * DATABASE_VERSION). It does NOT depend on the version number for your application found in
+     * your app/build.gradle file.
      *
      * @param sqLiteDatabase Database that is being upgraded
      * @param oldVersion     The old database version
@@ -115,7 +678,80 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
      */
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+        List<ContentValues> steps = new ArrayList<>();
+
+        boolean migrated = false;
+        if (canMigrate(oldVersion, newVersion)) {
+            try {
+                for (int version = oldVersion; version < newVersion; version++) {
+                    long startedAt = System.currentTimeMillis();
+                    long startNanos = System.nanoTime();
+                    MIGRATIONS[version - MIGRATIONS[0].mFromVersion].migrate(sqLiteDatabase);
+                    steps.add(createStep(version, version + 1, startedAt,
+                            System.nanoTime() - startNanos, MigrationEntry.OUTCOME_MIGRATED));
+                }
+                migrated = true;
+            } catch (SQLException e) {
+                Log.w(TAG, "Could not migrate from version " + oldVersion, e);
+            }
+        }
+
+        if (!migrated) {
+            long startedAt = System.currentTimeMillis();
+            long startNanos = System.nanoTime();
+            recreate(sqLiteDatabase);
+            steps.clear();
+            steps.add(createStep(oldVersion, newVersion, startedAt,
+                    System.nanoTime() - startNanos, MigrationEntry.OUTCOME_RECREATED));
+        }
+
+        for (ContentValues step : steps) {
+            Log.i(TAG, "Database upgrade " + step);
+            sqLiteDatabase.insert(MigrationEntry.TABLE_NAME, null, step);
+        }
+    }
+
+    /**
+     * @return true if MIGRATIONS has a step for every version from oldVersion to newVersion
+     */
+    private static boolean canMigrate(int oldVersion, int newVersion) {
+        int firstVersion = MIGRATIONS[0].mFromVersion;
+        return oldVersion >= firstVersion
+                && newVersion <= firstVersion + MIGRATIONS.length;
+    }
+
+    /**
+     * Discards every table and view and recreates the schema from scratch. The weather is gone
+     * after this, so the freshness record and snapshot no longer describe anything either.
+     *
+     * @param sqLiteDatabase The database
+     */
+    private void recreate(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("DROP VIEW IF EXISTS " + LocationWeatherEntry.VIEW_NAME);
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + SyncMetricsEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + HistoryEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + RollupEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + StatsEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + MigrationEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationWeatherEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + HourlyEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + ArchiveEntry.TABLE_NAME);
         onCreate(sqLiteDatabase);
+
+        SunshinePreferences.clearSyncFreshness(mContext);
+        ForecastSnapshot.delete(mContext);
+    }
+
+    private static ContentValues createStep(int fromVersion, int toVersion, long startedAt,
+                                            long durationNanos, String outcome) {
+        ContentValues step = new ContentValues();
+        step.put(MigrationEntry.COLUMN_FROM_VERSION, fromVersion);
+        step.put(MigrationEntry.COLUMN_TO_VERSION, toVersion);
+        step.put(MigrationEntry.COLUMN_STARTED_AT, startedAt);
+        step.put(MigrationEntry.COLUMN_DURATION_NANOS, durationNanos);
+        step.put(MigrationEntry.COLUMN_OUTCOME, outcome);
+        return step;
     }
-}
\ No newline at end of file
+}
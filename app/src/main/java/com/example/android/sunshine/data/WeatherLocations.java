@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.text.TextUtils;
+
+import com.example.android.sunshine.data.WeatherContract.FixedPoint;
+import com.example.android.sunshine.data.WeatherContract.HourlyEntry;
+import com.example.android.sunshine.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.data.WeatherContract.LocationWeatherEntry;
+import com.example.android.sunshine.data.WeatherContract.StatsEntry;
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+
+/**
+ * Switches the forecast between saved locations. The active location's forecast lives in the
+ * weather table, so everything that reads the forecast, from the list to the statistics, keeps
+ * working on a single location. Switching parks that forecast in the location's partition of the
+ * location weather table and moves the new location's forecast out of its partition in its place.
+ * Both are local copies of a couple of weeks of rows, so a switch costs a few milliseconds rather
+ * than a sync.
+ * <p>
+ * Partitions keep their values in fixed point, see {@link FixedPoint}, at the precision the
+ * server sends them in, so a forecast comes back from its partition exactly as it was parked.
+ * <p>
+ * Every method expects to be called inside a transaction, so the weather table never holds a
+ * mix of two locations.
+ */
+final class WeatherLocations {
+
+    /* The values of a day, as the weather table and the location weather URIs have them */
+    static final String[] VALUE_COLUMNS = {
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    /* The same values, as the partitions store them, and the scale of each */
+    static final String[] FIXED_COLUMNS = {
+            LocationWeatherEntry.COLUMN_MIN_TEMP_FIXED,
+            LocationWeatherEntry.COLUMN_MAX_TEMP_FIXED,
+            LocationWeatherEntry.COLUMN_HUMIDITY_FIXED,
+            LocationWeatherEntry.COLUMN_PRESSURE_FIXED,
+            LocationWeatherEntry.COLUMN_WIND_SPEED_FIXED,
+            LocationWeatherEntry.COLUMN_DEGREES_FIXED
+    };
+
+    private static final int[] SCALES = {
+            FixedPoint.TEMPERATURE_SCALE,
+            FixedPoint.TEMPERATURE_SCALE,
+            FixedPoint.HUMIDITY_SCALE,
+            FixedPoint.PRESSURE_SCALE,
+            FixedPoint.WIND_SPEED_SCALE,
+            FixedPoint.DEGREES_SCALE
+    };
+
+    /* The columns of a day other than its values, which both tables have */
+    private static final String KEY_COLUMNS =
+            WeatherEntry.COLUMN_DATE + ", " + WeatherEntry.COLUMN_WEATHER_ID;
+
+    /*
+     * The values of the weather table converted to fixed point, in the order of FIXED_COLUMNS,
+     * for the SELECT of an INSERT into the partitions.
+     */
+    private static final String SQL_ENCODED_VALUES = buildValueList(true);
+
+    /*
+     * The values of the partitions converted back, under the names of VALUE_COLUMNS, for the
+     * SELECT of an INSERT into the weather table or of the location weather view. Each is cast
+     * to REAL so that it has the affinity of the weather table's columns, which converts the
+     * string arguments of a selection to numbers before comparing them.
+     */
+    static final String SQL_DECODED_VALUES = buildValueList(false);
+
+    private static final String SQL_PARK =
+            "INSERT INTO " + LocationWeatherEntry.TABLE_NAME + " (" +
+            LocationWeatherEntry.COLUMN_LOCATION_ID + ", " + KEY_COLUMNS + ", " +
+            TextUtils.join(", ", FIXED_COLUMNS) + ")" +
+            " SELECT ?, " + KEY_COLUMNS + ", " + SQL_ENCODED_VALUES +
+            " FROM " + WeatherEntry.TABLE_NAME;
+
+    /* Days that passed while the location was parked are of no use to the list, so stay behind */
+    private static final String SQL_RESTORE =
+            "INSERT INTO " + WeatherEntry.TABLE_NAME + " (" + KEY_COLUMNS + ", " +
+            TextUtils.join(", ", VALUE_COLUMNS) + ")" +
+            " SELECT " + KEY_COLUMNS + ", " + SQL_DECODED_VALUES +
+            " FROM " + LocationWeatherEntry.TABLE_NAME +
+            " WHERE " + LocationWeatherEntry.COLUMN_LOCATION_ID + " = ?" +
+            " AND " + LocationWeatherEntry.COLUMN_DATE + " >= ?";
+
+    private static final String SQL_SELECT_ACTIVE =
+            "SELECT " + LocationEntry._ID + " FROM " + LocationEntry.TABLE_NAME +
+            " WHERE " + LocationEntry.COLUMN_ACTIVE + " = 1";
+
+    private static final String SQL_COUNT_PARKED =
+            "SELECT COUNT(*) FROM " + LocationEntry.TABLE_NAME +
+            " WHERE " + LocationEntry._ID + " = ? AND " + LocationEntry.COLUMN_ACTIVE + " = 0";
+
+    private static final String SQL_SELECT_BY_SETTING =
+            "SELECT " + LocationEntry._ID + " FROM " + LocationEntry.TABLE_NAME +
+            " WHERE " + LocationEntry.COLUMN_LOCATION_SETTING + " = ?";
+
+    /*
+     * The locations past the most recently used ones kept, never including the active one.
+     * Locations used within the same millisecond are ordered by when they were first saved.
+     */
+    private static final String SQL_SELECT_EVICTED =
+            "SELECT " + LocationEntry._ID + " FROM " + LocationEntry.TABLE_NAME +
+            " WHERE " + LocationEntry.COLUMN_ACTIVE + " = 0" +
+            " ORDER BY " + LocationEntry.COLUMN_LAST_USED + " DESC, " + LocationEntry._ID +
+            " DESC LIMIT -1 OFFSET ?";
+
+    private WeatherLocations() {
+    }
+
+    /**
+     * Builds the list of the values of a day converted to or from fixed point, in SQL.
+     *
+     * @param encode Whether to convert the weather table's values to fixed point, rather than
+     *               the partition's values back
+     */
+    private static String buildValueList(boolean encode) {
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < VALUE_COLUMNS.length; i++) {
+            if (i > 0) values.append(", ");
+            if (encode) {
+                values.append("ROUND(").append(VALUE_COLUMNS[i]).append(" * ")
+                        .append(SCALES[i]).append(')');
+            } else {
+                values.append("CAST(").append(FIXED_COLUMNS[i]).append(" / ").append(SCALES[i])
+                        .append(".0 AS REAL) AS ").append(VALUE_COLUMNS[i]);
+            }
+        }
+        return values.toString();
+    }
+
+    /**
+     * Converts a day of a forecast, with the columns of the weather table, to a row of a
+     * location's partition.
+     *
+     * @param day        The day
+     * @param locationId The _ID of the location
+     * @return The row to insert into the location weather table
+     */
+    static ContentValues toPartitionValues(ContentValues day, long locationId) {
+        ContentValues row = new ContentValues(day);
+        row.put(LocationWeatherEntry.COLUMN_LOCATION_ID, locationId);
+        for (int i = 0; i < VALUE_COLUMNS.length; i++) {
+            Double value = day.getAsDouble(VALUE_COLUMNS[i]);
+            row.remove(VALUE_COLUMNS[i]);
+            /* A missing value is left out, which the NOT NULL column then rejects */
+            if (value != null) {
+                row.put(FIXED_COLUMNS[i], FixedPoint.toFixed(value, SCALES[i]));
+            }
+        }
+        return row;
+    }
+
+    /**
+     * @param db The database
+     * @return The _ID of the active location, or -1 if no location has been switched to yet
+     */
+    static long getActiveId(SQLiteDatabase db) {
+        try {
+            return DatabaseUtils.longForQuery(db, SQL_SELECT_ACTIVE, null);
+        } catch (SQLiteDoneException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param db The database
+     * @param id The _ID of a location
+     * @return Whether the location is saved and not the active one, so its forecast is parked
+     */
+    static boolean isParked(SQLiteDatabase db, long id) {
+        return DatabaseUtils.longForQuery(db, SQL_COUNT_PARKED,
+                new String[]{Long.toString(id)}) != 0;
+    }
+
+    /**
+     * Makes a location the active one, saving it first if it is new. Switching away from the
+     * active location parks its forecast; switching to a saved location brings its forecast back
+     * from today on, though the hourly forecast is dropped until the next sync. Then the least
+     * recently used locations beyond maxLocations are forgotten, and the forecast statistics are
+     * rebuilt for the forecast now in the weather table.
+     * <p>
+     * The very first switch has no active location to park. The weather already stored then
+     * either becomes the new location's forecast, along with its freshness record, or, if it was
+     * synced for another location or nobody knows which, is dropped.
+     *
+     * @param db              The database, inside a transaction
+     * @param locationSetting The location setting to switch to
+     * @param now             The time of the switch (in UNIX time)
+     * @param today           Today's normalized date
+     * @param storedFreshness The LocationEntry freshness columns of the weather already stored,
+     *                        if it was synced for this location, or null
+     * @param maxLocations    The number of locations to keep, including the active one
+     * @return The _ID of the location
+     */
+    static long activate(SQLiteDatabase db, String locationSetting, long now, long today,
+                         ContentValues storedFreshness, int maxLocations) {
+        long activeId = getActiveId(db);
+        long id = getId(db, locationSetting);
+
+        if (id != -1 && id == activeId) {
+            ContentValues lastUsed = new ContentValues();
+            lastUsed.put(LocationEntry.COLUMN_LAST_USED, now);
+            updateLocation(db, id, lastUsed);
+            return id;
+        }
+
+        boolean adopt = activeId == -1 && id == -1 && storedFreshness != null;
+        if (activeId != -1) {
+            park(db, activeId);
+        } else if (!adopt) {
+            db.delete(WeatherEntry.TABLE_NAME, null, null);
+        }
+
+        /* Hours are only kept for the active location, so they go rather than being parked */
+        if (!adopt) {
+            db.delete(HourlyEntry.TABLE_NAME, null, null);
+        }
+
+        if (id == -1) {
+            ContentValues location = new ContentValues();
+            location.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+            location.put(LocationEntry.COLUMN_ACTIVE, 1);
+            location.put(LocationEntry.COLUMN_LAST_USED, now);
+            location.put(LocationEntry.COLUMN_LAST_SYNC_TIME, 0);
+            location.put(LocationEntry.COLUMN_LAST_COVERED_DATE, 0);
+            if (adopt) location.putAll(storedFreshness);
+            id = db.insertOrThrow(LocationEntry.TABLE_NAME, null, location);
+        } else {
+            restore(db, id, today);
+            ContentValues active = new ContentValues();
+            active.put(LocationEntry.COLUMN_ACTIVE, 1);
+            active.put(LocationEntry.COLUMN_LAST_USED, now);
+            updateLocation(db, id, active);
+        }
+
+        evict(db, maxLocations);
+        WeatherStats.rebuild(db, StatsEntry.SOURCE_FORECAST);
+        return id;
+    }
+
+    /**
+     * Forgets a saved location and its forecast. The active location can't be forgotten, as its
+     * forecast is the one shown.
+     *
+     * @param db The database, inside a transaction
+     * @param id The _ID of the location
+     * @return The number of locations deleted, 0 or 1
+     */
+    static int delete(SQLiteDatabase db, long id) {
+        String[] args = {Long.toString(id)};
+        int deleted = db.delete(LocationEntry.TABLE_NAME,
+                LocationEntry._ID + " = ? AND " + LocationEntry.COLUMN_ACTIVE + " = 0", args);
+        if (deleted > 0) {
+            db.delete(LocationWeatherEntry.TABLE_NAME,
+                    LocationWeatherEntry.COLUMN_LOCATION_ID + " = ?", args);
+        }
+        return deleted;
+    }
+
+    private static long getId(SQLiteDatabase db, String locationSetting) {
+        try {
+            return DatabaseUtils.longForQuery(db, SQL_SELECT_BY_SETTING,
+                    new String[]{locationSetting});
+        } catch (SQLiteDoneException e) {
+            return -1;
+        }
+    }
+
+    /* Moves the weather table into the location's partition, replacing what was parked before */
+    private static void park(SQLiteDatabase db, long id) {
+        db.delete(LocationWeatherEntry.TABLE_NAME,
+                LocationWeatherEntry.COLUMN_LOCATION_ID + " = ?",
+                new String[]{Long.toString(id)});
+        db.execSQL(SQL_PARK, new Object[]{id});
+        db.delete(WeatherEntry.TABLE_NAME, null, null);
+
+        ContentValues inactive = new ContentValues();
+        inactive.put(LocationEntry.COLUMN_ACTIVE, 0);
+        updateLocation(db, id, inactive);
+    }
+
+    /* Moves the location's partition, from today on, into the emptied weather table */
+    private static void restore(SQLiteDatabase db, long id, long today) {
+        db.execSQL(SQL_RESTORE, new Object[]{id, today});
+        db.delete(LocationWeatherEntry.TABLE_NAME,
+                LocationWeatherEntry.COLUMN_LOCATION_ID + " = ?",
+                new String[]{Long.toString(id)});
+    }
+
+    private static void evict(SQLiteDatabase db, int maxLocations) {
+        /* The active location is one of the locations kept */
+        Cursor evicted = db.rawQuery(SQL_SELECT_EVICTED,
+                new String[]{Integer.toString(maxLocations - 1)});
+        try {
+            while (evicted.moveToNext()) {
+                delete(db, evicted.getLong(0));
+            }
+        } finally {
+            evicted.close();
+        }
+    }
+
+    private static void updateLocation(SQLiteDatabase db, long id, ContentValues values) {
+        db.update(LocationEntry.TABLE_NAME, values, LocationEntry._ID + " = ?",
+                new String[]{Long.toString(id)});
+    }
+}
@@ -17,14 +17,42 @@ package com.example.android.sunshine.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.MergeCursor;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
 
 import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.utilities.SunshineScheduler;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * This class serves as the ContentProvider for all of Sunshine's data. This class allows us to
@@ -45,6 +73,32 @@ public class WeatherProvider extends ContentProvider {
      */
     public static final int CODE_WEATHER = 100;
     public static final int CODE_WEATHER_WITH_DATE = 101;
+    public static final int CODE_WEATHER_RANGE = 102;
+    public static final int CODE_WEATHER_TODAY_ONWARDS = 103;
+
+    public static final int CODE_SYNC_METRICS = 200;
+
+    public static final int CODE_HISTORY = 300;
+    public static final int CODE_HISTORY_RANGE = 301;
+    public static final int CODE_HISTORY_ROLLUP = 310;
+    public static final int CODE_HISTORY_ROLLUP_RANGE = 311;
+
+    public static final int CODE_STATS = 400;
+    public static final int CODE_STATS_SUMMARY = 401;
+    public static final int CODE_STATS_WEEK = 402;
+
+    public static final int CODE_SCHEMA_MIGRATIONS = 500;
+
+    public static final int CODE_LOCATION = 600;
+    public static final int CODE_LOCATION_WITH_ID = 601;
+    public static final int CODE_LOCATION_WEATHER = 602;
+    public static final int CODE_LOCATION_WEATHER_TODAY_ONWARDS = 603;
+
+    public static final int CODE_HOURLY = 700;
+    public static final int CODE_HOURLY_RANGE = 701;
+    public static final int CODE_HOURLY_NEXT = 702;
+
+    public static final int CODE_EXPORT = 800;
 
     /*
      * The URI Matcher used by this content provider. The leading "s" in this variable name
@@ -52,8 +106,94 @@ public class WeatherProvider extends ContentProvider {
      * common convention in Android programming.
      */
     private static final UriMatcher sUriMatcher = buildUriMatcher();
+
+    /*
+     * The columns of a weather row in the order they are bound to SQL_INSERT_WEATHER. Every one of
+     * these columns is NOT NULL, so a row missing any of them is rejected by SQLite.
+     */
+    private static final String[] INSERT_WEATHER_COLUMNS = {
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES
+    };
+
+    private static final String SQL_INSERT_WEATHER = buildInsertSql(
+            WeatherContract.WeatherEntry.TABLE_NAME, INSERT_WEATHER_COLUMNS);
+
+    /* The columns of an hourly row in the order they are bound to SQL_INSERT_HOURLY */
+    private static final String[] INSERT_HOURLY_COLUMNS = {
+            WeatherContract.HourlyEntry.COLUMN_TIME,
+            WeatherContract.HourlyEntry.COLUMN_WEATHER_ID,
+            WeatherContract.HourlyEntry.COLUMN_TEMP,
+            WeatherContract.HourlyEntry.COLUMN_HUMIDITY,
+            WeatherContract.HourlyEntry.COLUMN_PRESSURE,
+            WeatherContract.HourlyEntry.COLUMN_WIND_SPEED,
+            WeatherContract.HourlyEntry.COLUMN_DEGREES
+    };
+
+    private static final String SQL_INSERT_HOURLY = buildInsertSql(
+            WeatherContract.HourlyEntry.TABLE_NAME, INSERT_HOURLY_COLUMNS);
+
+    /* Selects the dates of a range URI, bound to its start and end */
+    private static final String RANGE_SELECTION = WeatherContract.WeatherEntry.COLUMN_DATE
+            + " >= ? AND " + WeatherContract.WeatherEntry.COLUMN_DATE + " < ?";
+
+    /* A sort order by date alone, the only one a history range with archived days takes */
+    private static final Pattern DATE_ORDER = Pattern.compile(
+            "\\s*" + WeatherContract.HistoryEntry.COLUMN_DATE + "(?:\\s+(ASC|DESC))?\\s*",
+            Pattern.CASE_INSENSITIVE);
+
+    private static final String TAG = WeatherProvider.class.getSimpleName();
+
+    /*
+     * The longest the forecast export goes without checking whether the day turned. Handler
+     * delays stop while the device sleeps, so a single delay until the turn of the day could
+     * fire hours late; checking this often bounds how late it is after the device wakes.
+     */
+    private static final long EXPORT_ROLLOVER_CHECK_MILLIS = TimeUnit.MINUTES.toMillis(15);
+
     private WeatherDbHelper mOpenHelper;
 
+    /* Every change is announced through here, so that each logical change is announced once */
+    private NotificationBatcher mNotifications;
+
+    /* What the last summary call read, see ForecastSummary */
+    private volatile ForecastSummary mSummary;
+
+    /* Waits for the turn of the day to rewrite the forecast export, once it has been opened */
+    private Handler mExportHandler;
+
+    /* The first day the forecast export was last written from, or 0 if it hasn't been */
+    private volatile long mExportDay;
+
+    private final Runnable mExportRollover = new Runnable() {
+        @Override
+        public void run() {
+            if (SunshineDateUtils.normalizeDate(System.currentTimeMillis()) == mExportDay) {
+                scheduleExportRollover();
+                return;
+            }
+            /* Rewriting reads the database, which the main thread this runs on mustn't */
+            try {
+                SunshineScheduler.getInstance().submit(SunshineScheduler.LANE_MAINTENANCE,
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                writeExport();
+                            }
+                        });
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "Could not rewrite the forecast export for the new day", e);
+                scheduleExportRollover();
+            }
+        }
+    };
+
     /**
      * Creates the UriMatcher that will match each URI to the CODE_WEATHER and
      * CODE_WEATHER_WITH_DATE constants defined above.
@@ -96,6 +236,82 @@ public class WeatherProvider extends ContentProvider {
          */
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/#", CODE_WEATHER_WITH_DATE);
 
+        /*
+         * This URI would look something like
+         * content://com.example.android.sunshine/weather/range/1472169600000/1474761600000
+         * and selects the weather from the first date (inclusive) to the second (exclusive).
+         */
+        matcher.addURI(authority,
+                WeatherContract.PATH_WEATHER + "/" + WeatherContract.PATH_RANGE + "/#/#",
+                CODE_WEATHER_RANGE);
+
+        /* This URI is content://com.example.android.sunshine/weather/today */
+        matcher.addURI(authority,
+                WeatherContract.PATH_WEATHER + "/" + WeatherContract.PATH_TODAY_ONWARDS,
+                CODE_WEATHER_TODAY_ONWARDS);
+
+        /* This URI is content://com.example.android.sunshine/sync_metrics/ */
+        matcher.addURI(authority, WeatherContract.PATH_SYNC_METRICS, CODE_SYNC_METRICS);
+
+        /* The archived days, all of them or a range of them */
+        matcher.addURI(authority, WeatherContract.PATH_HISTORY, CODE_HISTORY);
+        matcher.addURI(authority,
+                WeatherContract.PATH_HISTORY + "/" + WeatherContract.PATH_RANGE + "/#/#",
+                CODE_HISTORY_RANGE);
+
+        /*
+         * The roll-ups of the archived days, all of them or those of one period length that
+         * overlap a range, such as history_rollup/month/range/1472169600000/1474761600000
+         */
+        matcher.addURI(authority, WeatherContract.PATH_HISTORY_ROLLUP, CODE_HISTORY_ROLLUP);
+        matcher.addURI(authority,
+                WeatherContract.PATH_HISTORY_ROLLUP + "/*/" + WeatherContract.PATH_RANGE + "/#/#",
+                CODE_HISTORY_ROLLUP_RANGE);
+
+        /*
+         * The statistics of the forecast or history: all of them, the summary of all days, such
+         * as stats/forecast/all, or one week, such as stats/history/week/1474243200000
+         */
+        matcher.addURI(authority, WeatherContract.PATH_STATS, CODE_STATS);
+        matcher.addURI(authority,
+                WeatherContract.PATH_STATS + "/*/" + WeatherContract.StatsEntry.PERIOD_ALL,
+                CODE_STATS_SUMMARY);
+        matcher.addURI(authority,
+                WeatherContract.PATH_STATS + "/*/" + WeatherContract.StatsEntry.PERIOD_WEEK + "/#",
+                CODE_STATS_WEEK);
+
+        /* The record of database upgrades, which is read only */
+        matcher.addURI(authority, WeatherContract.PATH_SCHEMA_MIGRATIONS, CODE_SCHEMA_MIGRATIONS);
+
+        /*
+         * The saved locations, one of them, such as location/3, and the forecast of one of them,
+         * whole or from today onwards, such as location/3/weather/today
+         */
+        matcher.addURI(authority, WeatherContract.PATH_LOCATION, CODE_LOCATION);
+        matcher.addURI(authority, WeatherContract.PATH_LOCATION + "/#", CODE_LOCATION_WITH_ID);
+        matcher.addURI(authority,
+                WeatherContract.PATH_LOCATION + "/#/" + WeatherContract.PATH_WEATHER,
+                CODE_LOCATION_WEATHER);
+        matcher.addURI(authority,
+                WeatherContract.PATH_LOCATION + "/#/" + WeatherContract.PATH_WEATHER + "/"
+                        + WeatherContract.PATH_TODAY_ONWARDS,
+                CODE_LOCATION_WEATHER_TODAY_ONWARDS);
+
+        /*
+         * The hourly forecast, all of it, a range of hours such as
+         * hourly/range/1472169600000/1472256000000, or the next hours, such as hourly/next/24
+         */
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY, CODE_HOURLY);
+        matcher.addURI(authority,
+                WeatherContract.PATH_HOURLY + "/" + WeatherContract.PATH_RANGE + "/#/#",
+                CODE_HOURLY_RANGE);
+        matcher.addURI(authority,
+                WeatherContract.PATH_HOURLY + "/" + WeatherContract.PATH_NEXT + "/#",
+                CODE_HOURLY_NEXT);
+
+        /* The forecast export, which is opened as a file rather than queried */
+        matcher.addURI(authority, WeatherContract.PATH_EXPORT, CODE_EXPORT);
+
         return matcher;
     }
 
@@ -122,6 +338,8 @@ public class WeatherProvider extends ContentProvider {
          * very lightweight, we are safe to perform that initialization here.
          */
         mOpenHelper = new WeatherDbHelper(getContext());
+        mNotifications = new NotificationBatcher(getContext().getContentResolver());
+        mExportHandler = new Handler(Looper.getMainLooper());
         return true;
     }
 
@@ -147,6 +365,16 @@ public class WeatherProvider extends ContentProvider {
             case CODE_WEATHER:
                 db.beginTransaction();
                 int rowsInserted = 0;
+                /*
+                 * Compiling the INSERT once and re-binding it for every row is much cheaper than
+                 * SQLiteDatabase#insert, which builds and compiles a new statement from the
+                 * ContentValues for every single row.
+                 */
+                SQLiteStatement insertStatement = db.compileStatement(SQL_INSERT_WEATHER);
+                Set<Long> changedWeeks = new TreeSet<>();
+                List<ForecastRow> writtenRows = new ArrayList<>(values.length);
+                long firstDate = Long.MAX_VALUE;
+                long lastDate = Long.MIN_VALUE;
                 try {
                     for (ContentValues value : values) {
                         long weatherDate =
@@ -155,27 +383,258 @@ public class WeatherProvider extends ContentProvider {
                             throw new IllegalArgumentException("Date must be normalized to insert");
                         }
 
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
-                        if (_id != -1) {
+                        if (insertRow(insertStatement, INSERT_WEATHER_COLUMNS, value) != -1) {
                             rowsInserted++;
+                            writtenRows.add(ForecastRow.fromValues(value));
+                            changedWeeks.add(SunshineDateUtils.getWeekStart(weatherDate));
+                            firstDate = Math.min(firstDate, weatherDate);
+                            lastDate = Math.max(lastDate, weatherDate);
                         }
                     }
+
+                    WeatherStats.update(db, WeatherContract.StatsEntry.SOURCE_FORECAST,
+                            changedWeeks);
                     db.setTransactionSuccessful();
                 } finally {
+                    insertStatement.close();
                     db.endTransaction();
                 }
 
                 if (rowsInserted > 0) {
-                    getContext().getContentResolver().notifyChange(uri, null);
+                    onForecastChanged(writtenRows.toArray(new ForecastRow[rowsInserted]),
+                            new long[0]);
+                    mNotifications.notifyChange(uri, firstDate,
+                            lastDate + SunshineDateUtils.DAY_IN_MILLIS);
+                    notifyChange(WeatherContract.StatsEntry.CONTENT_URI);
                 }
 
                 return rowsInserted;
 
+            /*
+             * An hourly sync writes hundreds of rows or more, so they go through the same
+             * compiled statement. Hours that have passed are dropped in the same transaction,
+             * which keeps the table to the hours still ahead without a separate cleanup.
+             */
+            case CODE_HOURLY: {
+                int hoursInserted = 0;
+                int hoursDropped;
+                db.beginTransaction();
+                SQLiteStatement insertHourStatement = db.compileStatement(SQL_INSERT_HOURLY);
+                try {
+                    for (ContentValues value : values) {
+                        long time = value.getAsLong(WeatherContract.HourlyEntry.COLUMN_TIME);
+                        if (!SunshineDateUtils.isHourNormalized(time)) {
+                            throw new IllegalArgumentException("Time must be normalized to insert");
+                        }
+
+                        if (insertRow(insertHourStatement, INSERT_HOURLY_COLUMNS, value) != -1) {
+                            hoursInserted++;
+                        }
+                    }
+
+                    hoursDropped = db.delete(WeatherContract.HourlyEntry.TABLE_NAME,
+                            WeatherContract.HourlyEntry.COLUMN_TIME + " < ?",
+                            new String[]{Long.toString(
+                                    SunshineDateUtils.normalizeHour(System.currentTimeMillis()))});
+                    db.setTransactionSuccessful();
+                } finally {
+                    insertHourStatement.close();
+                    db.endTransaction();
+                }
+
+                if (hoursInserted > 0 || hoursDropped > 0) {
+                    notifyChange(uri);
+                }
+
+                return hoursInserted;
+            }
+
             default:
                 return super.bulkInsert(uri, values);
         }
     }
 
+    /**
+     * Builds an INSERT statement with one bind argument per column.
+     *
+     * @param table   The table to insert into
+     * @param columns The columns, in bind order
+     * @return The INSERT statement
+     */
+    private static String buildInsertSql(String table, String[] columns) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+        StringBuilder bindArgs = new StringBuilder();
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                sql.append(',');
+                bindArgs.append(',');
+            }
+            sql.append(columns[i]);
+            bindArgs.append('?');
+        }
+        return sql.append(") VALUES (").append(bindArgs).append(')').toString();
+    }
+
+    /**
+     * Binds one row of values to a compiled INSERT statement built by
+     * {@link #buildInsertSql(String, String[])} and executes it. Values are bound with the same
+     * types the ContentValues hold them as, so the rows end up exactly as SQLiteDatabase#insert
+     * would have stored them.
+     *
+     * @param insertStatement The compiled INSERT statement
+     * @param columns         The columns the statement was built with, in bind order
+     * @param value           The row to insert
+     * @return The row ID of the inserted row, or -1 if the row was rejected
+     * @throws IllegalArgumentException If the row has a value for a column the statement doesn't
+     *                                  write, which SQLiteDatabase#insert would have failed on too
+     */
+    private static long insertRow(SQLiteStatement insertStatement, String[] columns,
+                                  ContentValues value) {
+        insertStatement.clearBindings();
+        int boundValues = 0;
+        for (int i = 0; i < columns.length; i++) {
+            if (value.containsKey(columns[i])) {
+                boundValues++;
+            }
+            Object columnValue = value.get(columns[i]);
+            int bindIndex = i + 1;
+            if (columnValue == null) {
+                insertStatement.bindNull(bindIndex);
+            } else if (columnValue instanceof Double || columnValue instanceof Float) {
+                insertStatement.bindDouble(bindIndex, ((Number) columnValue).doubleValue());
+            } else if (columnValue instanceof Number) {
+                insertStatement.bindLong(bindIndex, ((Number) columnValue).longValue());
+            } else {
+                insertStatement.bindString(bindIndex, columnValue.toString());
+            }
+        }
+
+        if (boundValues < value.size()) {
+            List<String> known = Arrays.asList(columns);
+            for (String column : value.keySet()) {
+                if (!known.contains(column)) {
+                    throw new IllegalArgumentException("Unknown column: " + column);
+                }
+            }
+        }
+
+        try {
+            return insertStatement.executeInsert();
+        } catch (SQLiteConstraintException e) {
+            /* Matches SQLiteDatabase#insert, which reports a rejected row as -1 */
+            return -1;
+        }
+    }
+
+    /**
+     * Combines the caller's selection, if any, with the selection a URI implies.
+     *
+     * @param selection    The caller's selection, or null
+     * @param uriSelection The selection implied by the URI
+     * @return A selection matching both
+     */
+    private static String appendSelection(String selection, String uriSelection) {
+        if (selection == null) return uriSelection;
+        return "(" + selection + ") AND " + uriSelection;
+    }
+
+    /**
+     * Appends the arguments of the selection a URI implies to the caller's arguments, in the
+     * order {@link #appendSelection(String, String)} puts the selections in.
+     *
+     * @param selectionArgs The caller's arguments, or null
+     * @param uriArgs       The arguments implied by the URI
+     * @return All arguments
+     */
+    private static String[] appendSelectionArgs(String[] selectionArgs, String... uriArgs) {
+        if (selectionArgs == null) return uriArgs;
+        String[] args = new String[selectionArgs.length + uriArgs.length];
+        System.arraycopy(selectionArgs, 0, args, 0, selectionArgs.length);
+        System.arraycopy(uriArgs, 0, args, selectionArgs.length, uriArgs.length);
+        return args;
+    }
+
+    /**
+     * Runs a query the way SQLiteDatabase#query would, counting whether the statement can come
+     * from the connection's cache of compiled statements. Bound arguments aren't part of the
+     * SQL, so reads that only differ in their arguments share one compiled statement.
+     *
+     * @return A Cursor over the rows selected
+     */
+    private Cursor queryTable(String table, String[] projection, String selection,
+                              String[] selectionArgs, String groupBy, String having,
+                              String sortOrder) {
+        String sql = SQLiteQueryBuilder.buildQueryString(
+                false, table, projection, selection, groupBy, having, sortOrder, null);
+        StatementCacheStats.getInstance().recordQuery(sql);
+        return mOpenHelper.getReadableDatabase().rawQuery(sql, selectionArgs);
+    }
+
+    /**
+     * Queries a range of the history. Days older than the daily tier are packed in the archive,
+     * which SQL can neither filter nor sort, so a range that holds archived days only takes
+     * what the archive can serve: no selection, and the dates in either order. Anything else
+     * is rejected rather than quietly leaving the archived days out or out of order.
+     *
+     * @param start First normalized date in the range
+     * @param end   Normalized date just past the range
+     * @return The days in the range
+     * @throws IllegalArgumentException If the range holds archived days and the query has a
+     *                                  selection, a sort order other than by date or a column
+     *                                  the history doesn't
+     */
+    private Cursor queryHistoryRange(String[] projection, String selection,
+                                     String[] selectionArgs, String sortOrder, String start,
+                                     String end) {
+        Boolean descending = parseDateOrder(sortOrder);
+        Cursor archivedDays = WeatherArchive.queryArchivedDays(
+                mOpenHelper.getReadableDatabase(), projection,
+                Long.parseLong(start), Long.parseLong(end),
+                descending != null && descending);
+        if (archivedDays != null && archivedDays.getCount() == 0) {
+            archivedDays.close();
+            archivedDays = null;
+        }
+
+        if (archivedDays != null) {
+            if (selection != null || descending == null) {
+                archivedDays.close();
+                throw new IllegalArgumentException("A history range that holds archived days"
+                        + " can't take a selection or be sorted by anything but "
+                        + WeatherContract.HistoryEntry.COLUMN_DATE);
+            }
+            sortOrder = WeatherContract.HistoryEntry.COLUMN_DATE
+                    + (descending ? " DESC" : " ASC");
+        }
+
+        Cursor rows = queryTable(
+                WeatherContract.HistoryEntry.TABLE_NAME,
+                projection,
+                appendSelection(selection, RANGE_SELECTION),
+                appendSelectionArgs(selectionArgs, start, end),
+                null,
+                null,
+                sortOrder);
+        if (archivedDays == null) return rows;
+
+        /* The archived days are all older than the daily rows */
+        return new MergeCursor(descending
+                ? new Cursor[]{rows, archivedDays}
+                : new Cursor[]{archivedDays, rows});
+    }
+
+    /**
+     * @param sortOrder A sort order, as passed to query
+     * @return Whether the sort order is by date descending, or null if it sorts by anything
+     * else. No sort order is taken as by date ascending.
+     */
+    private static Boolean parseDateOrder(String sortOrder) {
+        if (sortOrder == null) return false;
+        Matcher matcher = DATE_ORDER.matcher(sortOrder);
+        if (!matcher.matches()) return null;
+        return matcher.group(1) != null && matcher.group(1).equalsIgnoreCase("DESC");
+    }
+
     /**
      * Handles query requests from clients. We will use this method in Sunshine to query for all
      * of our weather data as well as to query for the weather on a particular day.
@@ -201,7 +660,8 @@ public class WeatherProvider extends ContentProvider {
          * Here's the switch statement that, given a URI, will determine what kind of request is
          * being made and query the database accordingly.
          */
-        switch (sUriMatcher.match(uri)) {
+        int match = sUriMatcher.match(uri);
+        switch (match) {
 
             /*
              * When sUriMatcher's match method is called with a URI that looks something like this
@@ -233,7 +693,7 @@ public class WeatherProvider extends ContentProvider {
                  */
                 String[] selectionArguments = new String[]{normalizedUtcDateString};
 
-                cursor = mOpenHelper.getReadableDatabase().query(
+                cursor = queryTable(
                         /* Table we are going to query */
                         WeatherContract.WeatherEntry.TABLE_NAME,
                         /*
@@ -273,9 +733,315 @@ public class WeatherProvider extends ContentProvider {
              * in our weather table.
              */
             case CODE_WEATHER: {
-                cursor = mOpenHelper.getReadableDatabase().query(
+                cursor = queryTable(
+                        WeatherContract.WeatherEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder);
+
+                break;
+            }
+
+            /*
+             * The weather from today onwards, as the forecast list shows it. Today's date is
+             * bound rather than written into the selection, so every load runs the same SQL.
+             */
+            case CODE_WEATHER_TODAY_ONWARDS: {
+                String todayOnwardsSelection = WeatherContract.WeatherEntry.COLUMN_DATE + " >= ?";
+                long normalizedUtcNow = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+
+                cursor = queryTable(
                         WeatherContract.WeatherEntry.TABLE_NAME,
                         projection,
+                        appendSelection(selection, todayOnwardsSelection),
+                        appendSelectionArgs(selectionArgs, Long.toString(normalizedUtcNow)),
+                        null,
+                        null,
+                        sortOrder);
+
+                break;
+            }
+
+            /*
+             * Range URIs end with a start and an end date. The weather and history tables have
+             * a UNIQUE index on their date column, which serves this selection directly.
+             */
+            case CODE_WEATHER_RANGE: {
+                List<String> segments = uri.getPathSegments();
+                String start = segments.get(segments.size() - 2);
+                String end = segments.get(segments.size() - 1);
+
+                cursor = queryTable(
+                        WeatherContract.WeatherEntry.TABLE_NAME,
+                        projection,
+                        appendSelection(selection, RANGE_SELECTION),
+                        appendSelectionArgs(selectionArgs, start, end),
+                        null,
+                        null,
+                        sortOrder);
+
+                break;
+            }
+
+            case CODE_HISTORY_RANGE: {
+                List<String> segments = uri.getPathSegments();
+                cursor = queryHistoryRange(
+                        projection,
+                        selection,
+                        selectionArgs,
+                        sortOrder,
+                        segments.get(segments.size() - 2),
+                        segments.get(segments.size() - 1));
+
+                break;
+            }
+
+            case CODE_HISTORY: {
+                cursor = queryTable(
+                        WeatherContract.HistoryEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder);
+
+                break;
+            }
+
+            case CODE_HISTORY_ROLLUP: {
+                cursor = queryTable(
+                        WeatherContract.RollupEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder);
+
+                break;
+            }
+
+            /*
+             * Selects the roll-ups of one period length that overlap the range. The period and
+             * start columns lead the UNIQUE index of the roll-up table, which serves this.
+             */
+            case CODE_HISTORY_ROLLUP_RANGE: {
+                List<String> segments = uri.getPathSegments();
+                String period = segments.get(1);
+                if (!WeatherContract.RollupEntry.PERIOD_WEEK.equals(period)
+                        && !WeatherContract.RollupEntry.PERIOD_MONTH.equals(period)) {
+                    throw new UnsupportedOperationException("Unknown uri: " + uri);
+                }
+                String rangeSelection = WeatherContract.RollupEntry.COLUMN_PERIOD + " = ? AND "
+                        + WeatherContract.RollupEntry.COLUMN_PERIOD_START + " < ? AND "
+                        + WeatherContract.RollupEntry.COLUMN_PERIOD_END + " > ?";
+
+                cursor = queryTable(
+                        WeatherContract.RollupEntry.TABLE_NAME,
+                        projection,
+                        appendSelection(selection, rangeSelection),
+                        appendSelectionArgs(selectionArgs,
+                                period,
+                                segments.get(4),
+                                segments.get(3)),
+                        null,
+                        null,
+                        sortOrder);
+
+                break;
+            }
+
+            case CODE_STATS: {
+                cursor = queryTable(
+                        WeatherContract.StatsEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder);
+
+                break;
+            }
+
+            /*
+             * The summary or one week of the statistics of a source: a single row, looked up
+             * through the UNIQUE index of the statistics table.
+             */
+            case CODE_STATS_SUMMARY:
+            case CODE_STATS_WEEK: {
+                List<String> segments = uri.getPathSegments();
+                String source = segments.get(1);
+                String periodStart = match == CODE_STATS_WEEK ? segments.get(3) : "0";
+                String statsSelection = WeatherContract.StatsEntry.COLUMN_SOURCE + " = ? AND "
+                        + WeatherContract.StatsEntry.COLUMN_PERIOD + " = ? AND "
+                        + WeatherContract.StatsEntry.COLUMN_PERIOD_START + " = ?";
+
+                cursor = queryTable(
+                        WeatherContract.StatsEntry.TABLE_NAME,
+                        projection,
+                        appendSelection(selection, statsSelection),
+                        appendSelectionArgs(selectionArgs,
+                                source,
+                                segments.get(2),
+                                periodStart),
+                        null,
+                        null,
+                        sortOrder);
+
+                break;
+            }
+
+            /*
+             * Returns the recorded syncs, which are used to compute sync latency percentiles
+             * and failure rates.
+             */
+            case CODE_SYNC_METRICS: {
+                cursor = queryTable(
+                        WeatherContract.SyncMetricsEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder);
+
+                break;
+            }
+
+            case CODE_LOCATION: {
+                cursor = queryTable(
+                        WeatherContract.LocationEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder);
+
+                break;
+            }
+
+            case CODE_LOCATION_WITH_ID: {
+                cursor = queryTable(
+                        WeatherContract.LocationEntry.TABLE_NAME,
+                        projection,
+                        appendSelection(selection, WeatherContract.LocationEntry._ID + " = ?"),
+                        appendSelectionArgs(selectionArgs, uri.getPathSegments().get(1)),
+                        null,
+                        null,
+                        sortOrder);
+
+                break;
+            }
+
+            /*
+             * The forecast of one location. The active location's forecast is the weather
+             * table; any other location's is its partition of the location weather table, read
+             * through the view that converts its values back under the weather table's names.
+             */
+            case CODE_LOCATION_WEATHER:
+            case CODE_LOCATION_WEATHER_TODAY_ONWARDS: {
+                String locationId = uri.getPathSegments().get(1);
+                String partitionSelection = null;
+                String[] partitionArgs = selectionArgs;
+
+                String table;
+                if (Long.parseLong(locationId) == WeatherLocations.getActiveId(
+                        mOpenHelper.getReadableDatabase())) {
+                    table = WeatherContract.WeatherEntry.TABLE_NAME;
+                } else {
+                    table = WeatherContract.LocationWeatherEntry.VIEW_NAME;
+                    partitionSelection =
+                            WeatherContract.LocationWeatherEntry.COLUMN_LOCATION_ID + " = ?";
+                    partitionArgs = appendSelectionArgs(partitionArgs, locationId);
+                }
+
+                if (match == CODE_LOCATION_WEATHER_TODAY_ONWARDS) {
+                    String todayOnwardsSelection =
+                            WeatherContract.WeatherEntry.COLUMN_DATE + " >= ?";
+                    partitionSelection = partitionSelection == null
+                            ? todayOnwardsSelection
+                            : partitionSelection + " AND " + todayOnwardsSelection;
+                    partitionArgs = appendSelectionArgs(partitionArgs, Long.toString(
+                            SunshineDateUtils.normalizeDate(System.currentTimeMillis())));
+                }
+
+                cursor = queryTable(
+                        table,
+                        projection,
+                        partitionSelection == null
+                                ? selection
+                                : appendSelection(selection, partitionSelection),
+                        partitionArgs,
+                        null,
+                        null,
+                        sortOrder);
+
+                break;
+            }
+
+            case CODE_HOURLY: {
+                cursor = queryTable(
+                        WeatherContract.HourlyEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder);
+
+                break;
+            }
+
+            /*
+             * A window of hours, given by its first hour and the hour just past it, or by a
+             * number of hours from the start of the current one. Either way the window is bound,
+             * so the UI and the watch, which ask for the next hours every time they refresh,
+             * reuse one compiled statement served by the UNIQUE index on the time column.
+             */
+            case CODE_HOURLY_RANGE:
+            case CODE_HOURLY_NEXT: {
+                List<String> segments = uri.getPathSegments();
+                String start;
+                String end;
+                if (match == CODE_HOURLY_RANGE) {
+                    start = segments.get(2);
+                    end = segments.get(3);
+                } else {
+                    long currentHour =
+                            SunshineDateUtils.normalizeHour(System.currentTimeMillis());
+                    start = Long.toString(currentHour);
+                    end = Long.toString(currentHour
+                            + Long.parseLong(segments.get(2)) * SunshineDateUtils.HOUR_IN_MILLIS);
+                }
+                String windowSelection = WeatherContract.HourlyEntry.COLUMN_TIME + " >= ? AND "
+                        + WeatherContract.HourlyEntry.COLUMN_TIME + " < ?";
+
+                cursor = queryTable(
+                        WeatherContract.HourlyEntry.TABLE_NAME,
+                        projection,
+                        appendSelection(selection, windowSelection),
+                        appendSelectionArgs(selectionArgs, start, end),
+                        null,
+                        null,
+                        sortOrder);
+
+                break;
+            }
+
+            /*
+             * Returns each step of each database upgrade, with how long it took and whether the
+             * data was migrated or the database recreated.
+             */
+            case CODE_SCHEMA_MIGRATIONS: {
+                cursor = queryTable(
+                        WeatherContract.MigrationEntry.TABLE_NAME,
+                        projection,
                         selection,
                         selectionArgs,
                         null,
@@ -307,6 +1073,10 @@ public class WeatherProvider extends ContentProvider {
         /* Users of the delete method will expect the number of rows deleted to be returned. */
         int numRowsDeleted;
 
+        /* The dates the deleted rows covered, where they are known */
+        long changedStart = WeatherContract.ChangeNotification.NO_DATES;
+        long changedEnd = WeatherContract.ChangeNotification.NO_DATES;
+
         /*
          * If we pass null as the selection to SQLiteDatabase#delete, our entire table will be
          * deleted. However, if we do pass null and delete all of the rows in the table, we won't
@@ -316,23 +1086,182 @@ public class WeatherProvider extends ContentProvider {
          */
         if (null == selection) selection = "1";
 
-        switch (sUriMatcher.match(uri)) {
+        int match = sUriMatcher.match(uri);
+        switch (match) {
 
-            case CODE_WEATHER:
+            case CODE_WEATHER: {
+                SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+                int numDaysArchived = 0;
+
+                /*
+                 * In archive mode, the days about to be deleted that have already passed are
+                 * first copied into the history table, and the history is compacted. Both happen
+                 * in the same transaction as the delete, so a day is never lost or in both.
+                 */
+                long[] deletedDates;
+                Set<Long> changedWeeks;
+                db.beginTransaction();
+                try {
+                    deletedDates = WeatherStats.getDates(db,
+                            WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+                    changedWeeks = WeatherStats.getWeeks(deletedDates);
+
+                    if (SunshinePreferences.isHistoryArchiveEnabled(getContext())) {
+                        long today = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+                        numDaysArchived = WeatherArchive.archivePastDays(
+                                db, selection, selectionArgs, today);
+                        WeatherArchive.compact(db, today,
+                                SunshinePreferences.getHistoryRetentionDays(getContext()));
+
+                        /*
+                         * The archived days fall in the weeks of the deleted ones, and compaction
+                         * only ever removes whole weeks before the daily cutoff.
+                         */
+                        WeatherStats.dropWeeksBefore(db, WeatherContract.StatsEntry.SOURCE_HISTORY,
+                                WeatherArchive.getDailyCutoff(today));
+                        WeatherStats.update(db, WeatherContract.StatsEntry.SOURCE_HISTORY,
+                                changedWeeks);
+                    }
+
+                    numRowsDeleted = db.delete(
+                            WeatherContract.WeatherEntry.TABLE_NAME,
+                            selection,
+                            selectionArgs);
+                    WeatherStats.update(db, WeatherContract.StatsEntry.SOURCE_FORECAST,
+                            changedWeeks);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+
+                if (numDaysArchived != 0) {
+                    notifyChange(WeatherContract.HistoryEntry.CONTENT_URI);
+                    notifyChange(WeatherContract.RollupEntry.CONTENT_URI);
+                }
+
+                /*
+                 * The forecast snapshot describes the rows we just removed, so it can't be
+                 * trusted anymore. A sync writes a new one once it has inserted its forecast.
+                 * The rows held in memory drop the deleted days.
+                 */
+                if (numRowsDeleted != 0) {
+                    ForecastSnapshot.delete(getContext());
+                    onForecastChanged(new ForecastRow[0], deletedDates);
+
+                    /* The whole weeks of the deleted days, which is close enough for observers */
+                    for (long week : changedWeeks) {
+                        changedStart = changedStart == WeatherContract.ChangeNotification.NO_DATES
+                                ? week : Math.min(changedStart, week);
+                        changedEnd = Math.max(changedEnd,
+                                week + 7 * SunshineDateUtils.DAY_IN_MILLIS);
+                    }
+                }
+
+                break;
+            }
+
+            case CODE_HISTORY: {
+                SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    Set<Long> changedWeeks = WeatherStats.getWeeks(db,
+                            WeatherContract.HistoryEntry.TABLE_NAME, selection, selectionArgs);
+                    numRowsDeleted = db.delete(
+                            WeatherContract.HistoryEntry.TABLE_NAME,
+                            selection,
+                            selectionArgs);
+                    WeatherStats.update(db, WeatherContract.StatsEntry.SOURCE_HISTORY,
+                            changedWeeks);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+
+                break;
+            }
+
+            case CODE_HISTORY_ROLLUP:
                 numRowsDeleted = mOpenHelper.getWritableDatabase().delete(
-                        WeatherContract.WeatherEntry.TABLE_NAME,
+                        WeatherContract.RollupEntry.TABLE_NAME,
+                        selection,
+                        selectionArgs);
+
+                break;
+
+            case CODE_SYNC_METRICS:
+                numRowsDeleted = mOpenHelper.getWritableDatabase().delete(
+                        WeatherContract.SyncMetricsEntry.TABLE_NAME,
                         selection,
                         selectionArgs);
 
                 break;
 
+            case CODE_HOURLY:
+                numRowsDeleted = mOpenHelper.getWritableDatabase().delete(
+                        WeatherContract.HourlyEntry.TABLE_NAME,
+                        selection,
+                        selectionArgs);
+
+                break;
+
+            /*
+             * Deletes days of a parked location's forecast. The active location's forecast is
+             * the weather table, which is only ever deleted through the weather URI. The values
+             * of parked days are stored in fixed point, so the selection picks the days out of
+             * the view that converts them back, under the weather table's names.
+             */
+            case CODE_LOCATION_WEATHER: {
+                SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+                String locationId = uri.getPathSegments().get(1);
+                if (!WeatherLocations.isParked(db, Long.parseLong(locationId))) {
+                    numRowsDeleted = 0;
+                    break;
+                }
+
+                String daysSelection = appendSelection(selection,
+                        WeatherContract.LocationWeatherEntry.COLUMN_LOCATION_ID + " = ?");
+                numRowsDeleted = db.delete(
+                        WeatherContract.LocationWeatherEntry.TABLE_NAME,
+                        WeatherContract.LocationWeatherEntry._ID + " IN (SELECT " +
+                                WeatherContract.LocationWeatherEntry._ID + " FROM " +
+                                WeatherContract.LocationWeatherEntry.VIEW_NAME +
+                                " WHERE " + daysSelection + ")",
+                        appendSelectionArgs(selectionArgs, locationId));
+
+                break;
+            }
+
+            /* Forgets a saved location and its forecast, unless it is the active one */
+            case CODE_LOCATION_WITH_ID: {
+                SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    numRowsDeleted = WeatherLocations.delete(db, ContentUris.parseId(uri));
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+
+                break;
+            }
+
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
 
         /* If we actually deleted any rows, notify that a change has occurred to this URI */
         if (numRowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            if (changedStart == WeatherContract.ChangeNotification.NO_DATES) {
+                notifyChange(uri);
+            } else {
+                mNotifications.notifyChange(uri, changedStart, changedEnd);
+            }
+            if (match == CODE_WEATHER || match == CODE_HISTORY) {
+                notifyChange(WeatherContract.StatsEntry.CONTENT_URI);
+            }
+            if (match == CODE_LOCATION_WITH_ID) {
+                notifyChange(WeatherContract.LocationEntry.CONTENT_URI);
+            }
         }
 
         return numRowsDeleted;
@@ -354,25 +1283,384 @@ public class WeatherProvider extends ContentProvider {
     }
 
     /**
-     * In Sunshine, we aren't going to do anything with this method. However, we are required to
-     * override it as WeatherProvider extends ContentProvider and insert is an abstract method in
-     * ContentProvider. Rather than the single insert method, we are only going to implement
-     * {@link WeatherProvider#bulkInsert}.
+     * Inserts a single row. Weather data always arrives as a whole forecast, so it must go
+     * through {@link WeatherProvider#bulkInsert} instead; the only single-row inserts Sunshine
+     * performs are recording a sync in the sync metrics table and switching to a location,
+     * plus the days of a parked location's forecast, which a bulk location sync writes through
+     * {@link #applyBatch} to group several locations into one transaction.
+     * <p>
+     * Inserting a location setting into the location table makes it the active location, saving
+     * it first if it is new, and returns its URI. See {@link WeatherLocations#activate}.
+     * <p>
+     * A day inserted for a location that is not parked, because it is active or was forgotten,
+     * is dropped and null is returned. The active location's forecast is the weather table.
      *
      * @param uri    The URI of the insertion request. This must not be null.
      * @param values A set of column_name/value pairs to add to the database.
      *               This must not be null
-     * @return nothing in Sunshine, but normally the URI for the newly inserted item.
+     * @return The URI of the newly inserted row, or null if the insert failed
      */
     @Override
     public Uri insert(@NonNull Uri uri, ContentValues values) {
-        throw new RuntimeException(
-                "We are not implementing insert in Sunshine. Use bulkInsert instead");
+        switch (sUriMatcher.match(uri)) {
+
+            case CODE_SYNC_METRICS:
+                long _id = mOpenHelper.getWritableDatabase().insert(
+                        WeatherContract.SyncMetricsEntry.TABLE_NAME,
+                        null,
+                        values);
+                if (_id == -1) {
+                    return null;
+                }
+
+                notifyChange(uri);
+                return ContentUris.withAppendedId(uri, _id);
+
+            case CODE_LOCATION:
+                return activateLocation(
+                        values.getAsString(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING));
+
+            /*
+             * A day of a parked location's forecast. A location that isn't parked, as it was
+             * switched to or forgotten since the caller looked, has its day dropped and the URI
+             * returned as it was, without an _ID. Returning null instead would fail a whole
+             * batch of locations over the one that changed.
+             */
+            case CODE_LOCATION_WEATHER: {
+                SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+                long locationId = Long.parseLong(uri.getPathSegments().get(1));
+                if (!WeatherLocations.isParked(db, locationId)) {
+                    return uri;
+                }
+
+                long dayId = db.insert(
+                        WeatherContract.LocationWeatherEntry.TABLE_NAME,
+                        null,
+                        WeatherLocations.toPartitionValues(values, locationId));
+                if (dayId == -1) {
+                    return null;
+                }
+
+                notifyChange(uri);
+                return ContentUris.withAppendedId(uri, dayId);
+            }
+
+            default:
+                throw new RuntimeException(
+                        "We are not implementing insert in Sunshine. Use bulkInsert instead");
+        }
+    }
+
+    /**
+     * Makes a location the active one. If that switches the forecast, everything derived from
+     * the weather table is invalidated, and the freshness record SunshineSyncUtils decides
+     * whether to sync from is replaced with the new location's.
+     *
+     * @param locationSetting The location setting to switch to
+     * @return The URI of the location
+     */
+    private Uri activateLocation(String locationSetting) {
+        if (locationSetting == null) {
+            throw new IllegalArgumentException("A location setting is required");
+        }
+        Context context = getContext();
+
+        /* Only consulted on the very first switch, for the weather stored before locations */
+        ContentValues storedFreshness = null;
+        if (locationSetting.equals(SunshinePreferences.getSyncedLocationSetting(context))) {
+            storedFreshness = new ContentValues();
+            storedFreshness.put(WeatherContract.LocationEntry.COLUMN_LAST_SYNC_TIME,
+                    SunshinePreferences.getLastSyncTime(context));
+            storedFreshness.put(WeatherContract.LocationEntry.COLUMN_LAST_COVERED_DATE,
+                    SunshinePreferences.getLastCoveredDate(context));
+        }
+
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long previousId;
+        long id;
+        long lastSyncTime = 0;
+        long lastCoveredDate = 0;
+        db.beginTransaction();
+        try {
+            previousId = WeatherLocations.getActiveId(db);
+            long now = System.currentTimeMillis();
+            id = WeatherLocations.activate(db, locationSetting, now,
+                    SunshineDateUtils.normalizeDate(now), storedFreshness,
+                    WeatherContract.LocationEntry.MAX_LOCATIONS);
+
+            Cursor location = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                    new String[]{
+                            WeatherContract.LocationEntry.COLUMN_LAST_SYNC_TIME,
+                            WeatherContract.LocationEntry.COLUMN_LAST_COVERED_DATE},
+                    WeatherContract.LocationEntry._ID + " = ?",
+                    new String[]{Long.toString(id)},
+                    null, null, null);
+            try {
+                if (location.moveToFirst()) {
+                    lastSyncTime = location.getLong(0);
+                    lastCoveredDate = location.getLong(1);
+                }
+            } finally {
+                location.close();
+            }
+
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (id != previousId) {
+            if (lastSyncTime == 0) {
+                SunshinePreferences.clearSyncFreshness(context);
+            } else {
+                SunshinePreferences.setSyncFreshness(context, lastSyncTime, lastCoveredDate,
+                        locationSetting);
+            }
+            /* The snapshot describes the forecast that was just parked */
+            ForecastSnapshot.delete(context);
+            onForecastReplaced();
+
+            notifyChange(WeatherContract.WeatherEntry.CONTENT_URI);
+            notifyChange(WeatherContract.StatsEntry.CONTENT_URI);
+            notifyChange(WeatherContract.HourlyEntry.CONTENT_URI);
+        }
+        notifyChange(WeatherContract.LocationEntry.CONTENT_URI);
+
+        return WeatherContract.LocationEntry.buildLocationUri(id);
     }
 
+    /**
+     * Updates the saved locations. Sunshine only updates a location's freshness record, after
+     * syncing its forecast.
+     *
+     * @return The number of locations updated
+     */
     @Override
     public int update(@NonNull Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        throw new RuntimeException("We are not implementing update in Sunshine");
+        switch (sUriMatcher.match(uri)) {
+
+            case CODE_LOCATION_WITH_ID: {
+                int numRowsUpdated = mOpenHelper.getWritableDatabase().update(
+                        WeatherContract.LocationEntry.TABLE_NAME,
+                        values,
+                        appendSelection(selection, WeatherContract.LocationEntry._ID + " = ?"),
+                        appendSelectionArgs(selectionArgs, uri.getPathSegments().get(1)));
+
+                if (numRowsUpdated != 0) {
+                    notifyChange(uri);
+                }
+                return numRowsUpdated;
+            }
+
+            default:
+                throw new RuntimeException("We are not implementing update in Sunshine");
+        }
+    }
+
+    /**
+     * Applies a batch of operations in a single transaction, so that either all of them take
+     * effect or none do, and the database commits once rather than once per operation. The
+     * operations are a notification batch: their changes are announced once the transaction has
+     * committed, each URI once, instead of after every row, and not at all if it fails.
+     *
+     * @param operations The operations to apply
+     * @return The result of each operation
+     * @throws OperationApplicationException If any operation fails, in which case none apply
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(
+            @NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        ContentProviderResult[] results;
+        boolean successful = false;
+
+        mNotifications.beginBatch();
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            db.endTransaction();
+            mNotifications.endBatch(successful);
+
+            /* The rows held in memory may have taken changes that were rolled back */
+            if (!successful) {
+                ForecastRepository.getInstance().invalidate();
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Handles the calls that don't fit a query:
+     * <ul>
+     *     <li>{@link WeatherContract.SummaryCall#METHOD_GET_SUMMARY} returns the summary of the
+     *     coming days of the forecast. The summary is read from the weather table the first time
+     *     it is asked for after the table changed or the day turned, and from memory after that,
+     *     so the notification, the wearables and widgets don't each pay for a query and its
+     *     cursor. The arg is the most days to return, or null for today's summary only.</li>
+     *     <li>{@link WeatherContract.ChangeNotification#METHOD_BEGIN_BATCH} and
+     *     {@link WeatherContract.ChangeNotification#METHOD_END_BATCH} open and close a batch of
+     *     changes on the calling thread, whose notifications are sent together once it closes.
+     *     They return null.</li>
+     * </ul>
+     *
+     * @param method The method to call
+     * @param arg    The argument of the method, if it takes one
+     * @param extras Unused
+     * @return The result of the method
+     * @throws IllegalArgumentException If the arg of METHOD_GET_SUMMARY isn't a number of days
+     *                                  of at least 1
+     */
+    @Nullable
+    @Override
+    public Bundle call(@NonNull String method, @Nullable String arg, @Nullable Bundle extras) {
+        switch (method) {
+            case WeatherContract.SummaryCall.METHOD_GET_SUMMARY:
+                return getSummary(parseSummaryDays(arg));
+
+            case WeatherContract.ChangeNotification.METHOD_BEGIN_BATCH:
+                mNotifications.beginBatch();
+                return null;
+
+            /* The changes were made through calls that each committed, so they always count */
+            case WeatherContract.ChangeNotification.METHOD_END_BATCH:
+                mNotifications.endBatch(true);
+                return null;
+
+            default:
+                return super.call(method, arg, extras);
+        }
+    }
+
+    /* The arg of a summary call, validated as SummaryCall#getSummary does for callers using it */
+    private static int parseSummaryDays(@Nullable String arg) {
+        if (arg == null) return 1;
+        int days;
+        try {
+            days = Integer.parseInt(arg);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number of days: " + arg);
+        }
+        if (days < 1) {
+            throw new IllegalArgumentException("At least one day must be asked for, not " + days);
+        }
+        return days;
+    }
+
+    private Bundle getSummary(int days) {
+        long generation = ForecastRepository.getInstance().beginLoad();
+        long today = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+        ForecastSummary summary = mSummary;
+        if (summary == null || !summary.isCurrent(generation, today)) {
+            /*
+             * If the forecast changes while this reads, the summary keeps the generation it was
+             * read under and is read again by the next call.
+             */
+            summary = ForecastSummary.load(mOpenHelper.getReadableDatabase(), generation, today);
+            mSummary = summary;
+        }
+        return summary.toBundle(days);
+    }
+
+    /**
+     * Opens the forecast export, see {@link WeatherContract.ExportEntry}. The first time it is
+     * opened, the export is written; from then on it is kept up to date as the forecast changes
+     * and the day turns.
+     *
+     * @param uri  {@link WeatherContract.ExportEntry#CONTENT_URI}
+     * @param mode "r", as the export is read only
+     * @return A read only descriptor of the export
+     * @throws FileNotFoundException If the export couldn't be written
+     */
+    @Override
+    public ParcelFileDescriptor openFile(@NonNull Uri uri, @NonNull String mode)
+            throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != CODE_EXPORT) {
+            throw new UnsupportedOperationException("Unknown uri: " + uri);
+        }
+        if (!"r".equals(mode)) {
+            throw new IllegalArgumentException("The forecast export can only be read");
+        }
+
+        File export = ForecastExport.getFile(getContext());
+        if (!export.exists()) {
+            if (!writeExport(export)) {
+                throw new FileNotFoundException("Could not write the forecast export");
+            }
+        } else if (mExportDay != SunshineDateUtils.normalizeDate(System.currentTimeMillis())) {
+            /* Written by an earlier process, or on an earlier day; the old rows still serve */
+            writeExport(export);
+        }
+        return ParcelFileDescriptor.open(export, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    /**
+     * Passes a change to the weather table on to the rows held in memory, which send it to their
+     * subscribers once it is announced, and rewrites the forecast export if a consumer has
+     * opened it. Call after the change has committed.
+     *
+     * @param written The rows inserted or replaced
+     * @param removed The dates of the rows deleted
+     */
+    private void onForecastChanged(ForecastRow[] written, long[] removed) {
+        ForecastRepository.getInstance().apply(written, removed);
+        writeExport();
+    }
+
+    /**
+     * Drops the rows held in memory once the whole forecast was replaced, and rewrites the
+     * forecast export if a consumer has opened it. Call after the change has committed.
+     */
+    private void onForecastReplaced() {
+        ForecastRepository.getInstance().invalidate();
+        writeExport();
+    }
+
+    private void writeExport() {
+        File export = ForecastExport.getFile(getContext());
+        if (export.exists()) {
+            writeExport(export);
+        }
+    }
+
+    /**
+     * Rewrites the forecast export from today on, and waits for the turn of the day to rewrite
+     * it again, so that its first row is always today's.
+     *
+     * @param export The export file
+     * @return true if the export was written
+     */
+    private boolean writeExport(File export) {
+        long today = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+        boolean written = ForecastExport.write(export, mOpenHelper.getReadableDatabase(), today);
+        if (written) {
+            mExportDay = today;
+        }
+        scheduleExportRollover();
+        return written;
+    }
+
+    private void scheduleExportRollover() {
+        long now = System.currentTimeMillis();
+        long untilTomorrow = SunshineDateUtils.normalizeDate(now)
+                + SunshineDateUtils.DAY_IN_MILLIS - now;
+        mExportHandler.removeCallbacks(mExportRollover);
+        mExportHandler.postDelayed(mExportRollover,
+                Math.min(untilTomorrow, EXPORT_ROLLOVER_CHECK_MILLIS));
+    }
+
+    /**
+     * Announces a change to a URI, along with the other changes of the same batch or debounce
+     * window, see {@link NotificationBatcher}.
+     *
+     * @param uri The URI whose data changed
+     */
+    private void notifyChange(Uri uri) {
+        mNotifications.notifyChange(uri);
     }
 
     /**
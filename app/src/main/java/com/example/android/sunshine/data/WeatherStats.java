@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.sunshine.data.WeatherContract.HistoryEntry;
+import com.example.android.sunshine.data.WeatherContract.StatsEntry;
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Keeps the statistics table in step with the weather and history tables. Whenever rows of
+ * either change, the provider passes the weeks those rows fall in to {@link #update}, which
+ * recomputes just those weeks from their at most seven days and then the summary from the
+ * weekly rows. The cost of a change depends on how many weeks it touches, never on how many days
+ * are stored.
+ * <p>
+ * Weeks are recomputed rather than adjusted by the difference, because a minimum, maximum or
+ * warmest day can't be taken back out of an aggregate once the day holding it is deleted.
+ * <p>
+ * Every method expects to be called inside the transaction of the change, so the statistics
+ * never disagree with the rows they describe.
+ */
+final class WeatherStats {
+
+    private static final long WEEK_IN_MILLIS = 7 * SunshineDateUtils.DAY_IN_MILLIS;
+
+    private static final String SQL_AGGREGATE_WEEK =
+            "SELECT COUNT(*), " +
+            "MIN(" + WeatherEntry.COLUMN_MIN_TEMP + "), " +
+            "MAX(" + WeatherEntry.COLUMN_MAX_TEMP + "), " +
+            "AVG(" + WeatherEntry.COLUMN_HUMIDITY + "), " +
+            "AVG(" + WeatherEntry.COLUMN_PRESSURE + "), " +
+            "AVG(" + WeatherEntry.COLUMN_WIND_SPEED + ") " +
+            "FROM %s WHERE " + WeatherEntry.COLUMN_DATE + " >= ? AND " +
+            WeatherEntry.COLUMN_DATE + " < ?";
+
+    /* Averages are weighted by the days of each week, so the summary is the average of all days */
+    private static final String SQL_AGGREGATE_SUMMARY =
+            "SELECT SUM(" + StatsEntry.COLUMN_DAY_COUNT + "), " +
+            "MIN(" + StatsEntry.COLUMN_MIN_TEMP + "), " +
+            "MAX(" + StatsEntry.COLUMN_MAX_TEMP + "), " +
+            "SUM(" + StatsEntry.COLUMN_HUMIDITY + " * " + StatsEntry.COLUMN_DAY_COUNT + "), " +
+            "SUM(" + StatsEntry.COLUMN_PRESSURE + " * " + StatsEntry.COLUMN_DAY_COUNT + "), " +
+            "SUM(" + StatsEntry.COLUMN_WIND_SPEED + " * " + StatsEntry.COLUMN_DAY_COUNT + ") " +
+            "FROM " + StatsEntry.TABLE_NAME + " WHERE " + StatsEntry.COLUMN_SOURCE + " = ? AND " +
+            StatsEntry.COLUMN_PERIOD + " = '" + StatsEntry.PERIOD_WEEK + "'";
+
+    /* Replaces the row of the same period, see the UNIQUE constraint of the statistics table */
+    private static final String SQL_INSERT_STATS =
+            "INSERT INTO " + StatsEntry.TABLE_NAME + " (" +
+            StatsEntry.COLUMN_SOURCE + ", " +
+            StatsEntry.COLUMN_PERIOD + ", " +
+            StatsEntry.COLUMN_PERIOD_START + ", " +
+            StatsEntry.COLUMN_DAY_COUNT + ", " +
+            StatsEntry.COLUMN_MIN_TEMP + ", " +
+            StatsEntry.COLUMN_MAX_TEMP + ", " +
+            StatsEntry.COLUMN_HUMIDITY + ", " +
+            StatsEntry.COLUMN_PRESSURE + ", " +
+            StatsEntry.COLUMN_WIND_SPEED + ", " +
+            StatsEntry.COLUMN_WARMEST_DATE + ") VALUES (?,?,?,?,?,?,?,?,?,?)";
+
+    private static final String SELECT_STATS_ROW = StatsEntry.COLUMN_SOURCE + " = ? AND "
+            + StatsEntry.COLUMN_PERIOD + " = ? AND " + StatsEntry.COLUMN_PERIOD_START + " = ?";
+
+    private WeatherStats() {
+    }
+
+    /**
+     * Returns the dates of the rows of a table that match a selection. Called before the rows
+     * are deleted, to know which days and weeks to update afterwards.
+     *
+     * @param db            The database, inside a transaction
+     * @param table         The weather or history table
+     * @param selection     Selection of the rows, never null
+     * @param selectionArgs Arguments of the selection
+     * @return The normalized dates, sorted
+     */
+    static long[] getDates(SQLiteDatabase db, String table, String selection,
+                           String[] selectionArgs) {
+        Cursor cursor = db.query(true, table, new String[]{WeatherEntry.COLUMN_DATE}, selection,
+                selectionArgs, null, null, WeatherEntry.COLUMN_DATE, null);
+        try {
+            long[] dates = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                dates[i] = cursor.getLong(0);
+            }
+            return dates;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the weeks of the rows of a table that match a selection. Called before the rows
+     * are deleted, to know which weeks to update afterwards.
+     *
+     * @param db            The database, inside a transaction
+     * @param table         The weather or history table
+     * @param selection     Selection of the rows, never null
+     * @param selectionArgs Arguments of the selection
+     * @return The normalized dates of the Mondays starting the weeks
+     */
+    static Set<Long> getWeeks(SQLiteDatabase db, String table, String selection,
+                              String[] selectionArgs) {
+        return getWeeks(getDates(db, table, selection, selectionArgs));
+    }
+
+    /**
+     * @param dates Normalized dates
+     * @return The normalized dates of the Mondays starting the weeks of the dates
+     */
+    static Set<Long> getWeeks(long[] dates) {
+        Set<Long> weeks = new TreeSet<>();
+        for (long date : dates) {
+            weeks.add(SunshineDateUtils.getWeekStart(date));
+        }
+        return weeks;
+    }
+
+    /**
+     * Drops the weekly statistics of a source for the weeks before a date, without updating the
+     * summary. Used when compaction removes whole weeks of history at once; the caller then calls
+     * {@link #update} for the summary.
+     *
+     * @param db        The database, inside a transaction
+     * @param source    One of the StatsEntry SOURCE_* values
+     * @param weekStart Normalized date of the Monday starting the first week kept
+     */
+    static void dropWeeksBefore(SQLiteDatabase db, String source, long weekStart) {
+        db.delete(StatsEntry.TABLE_NAME,
+                StatsEntry.COLUMN_SOURCE + " = ? AND " + StatsEntry.COLUMN_PERIOD + " = ? AND "
+                        + StatsEntry.COLUMN_PERIOD_START + " < ?",
+                new String[]{source, StatsEntry.PERIOD_WEEK, Long.toString(weekStart)});
+    }
+
+    /**
+     * Recomputes the statistics of the given weeks of a source, then its summary.
+     *
+     * @param db           The database, inside a transaction
+     * @param source       One of the StatsEntry SOURCE_* values
+     * @param changedWeeks The Mondays starting the weeks whose rows changed
+     */
+    static void update(SQLiteDatabase db, String source, Collection<Long> changedWeeks) {
+        String table = getTable(source);
+
+        SQLiteStatement insertStatement = db.compileStatement(SQL_INSERT_STATS);
+        try {
+            for (long weekStart : changedWeeks) {
+                updateWeek(db, insertStatement, source, table, weekStart);
+            }
+            updateSummary(db, insertStatement, source);
+        } finally {
+            insertStatement.close();
+        }
+    }
+
+    /**
+     * Recomputes every statistic of a source from scratch, in a single pass over its rows. Used
+     * to backfill the statistics of rows that were stored before the statistics table existed.
+     *
+     * @param db     The database, inside a transaction
+     * @param source One of the StatsEntry SOURCE_* values
+     */
+    static void rebuild(SQLiteDatabase db, String source) {
+        db.delete(StatsEntry.TABLE_NAME, StatsEntry.COLUMN_SOURCE + " = ?", new String[]{source});
+
+        /* Day count, min, max, humidity, pressure and wind sums, warmest date */
+        Map<Long, double[]> weeks = new TreeMap<>();
+        Cursor rows = db.query(getTable(source), new String[]{
+                        WeatherEntry.COLUMN_DATE,
+                        WeatherEntry.COLUMN_MIN_TEMP,
+                        WeatherEntry.COLUMN_MAX_TEMP,
+                        WeatherEntry.COLUMN_HUMIDITY,
+                        WeatherEntry.COLUMN_PRESSURE,
+                        WeatherEntry.COLUMN_WIND_SPEED},
+                null, null, null, null, WeatherEntry.COLUMN_DATE);
+        try {
+            while (rows.moveToNext()) {
+                long weekStart = SunshineDateUtils.getWeekStart(rows.getLong(0));
+                double[] week = weeks.get(weekStart);
+                if (week == null) {
+                    week = new double[]{0, Double.MAX_VALUE, -Double.MAX_VALUE, 0, 0, 0, 0};
+                    weeks.put(weekStart, week);
+                }
+                week[0]++;
+                week[1] = Math.min(week[1], rows.getDouble(1));
+                /* Rows are read by date, so a tie keeps the earliest day */
+                if (rows.getDouble(2) > week[2]) {
+                    week[2] = rows.getDouble(2);
+                    week[6] = rows.getLong(0);
+                }
+                week[3] += rows.getDouble(3);
+                week[4] += rows.getDouble(4);
+                week[5] += rows.getDouble(5);
+            }
+        } finally {
+            rows.close();
+        }
+
+        SQLiteStatement insertStatement = db.compileStatement(SQL_INSERT_STATS);
+        try {
+            for (Map.Entry<Long, double[]> entry : weeks.entrySet()) {
+                double[] week = entry.getValue();
+                insertStatement.clearBindings();
+                insertStatement.bindString(1, source);
+                insertStatement.bindString(2, StatsEntry.PERIOD_WEEK);
+                insertStatement.bindLong(3, entry.getKey());
+                insertStatement.bindLong(4, (long) week[0]);
+                insertStatement.bindDouble(5, week[1]);
+                insertStatement.bindDouble(6, week[2]);
+                insertStatement.bindDouble(7, week[3] / week[0]);
+                insertStatement.bindDouble(8, week[4] / week[0]);
+                insertStatement.bindDouble(9, week[5] / week[0]);
+                insertStatement.bindLong(10, (long) week[6]);
+                insertStatement.executeInsert();
+            }
+            updateSummary(db, insertStatement, source);
+        } finally {
+            insertStatement.close();
+        }
+    }
+
+    private static String getTable(String source) {
+        return StatsEntry.SOURCE_FORECAST.equals(source)
+                ? WeatherEntry.TABLE_NAME
+                : HistoryEntry.TABLE_NAME;
+    }
+
+    private static void updateWeek(SQLiteDatabase db, SQLiteStatement insertStatement,
+                                   String source, String table, long weekStart) {
+        String[] rangeArgs = {Long.toString(weekStart), Long.toString(weekStart + WEEK_IN_MILLIS)};
+
+        Cursor aggregate = db.rawQuery(String.format(SQL_AGGREGATE_WEEK, table), rangeArgs);
+        try {
+            aggregate.moveToFirst();
+            if (aggregate.getInt(0) == 0) {
+                deleteRow(db, source, StatsEntry.PERIOD_WEEK, weekStart);
+                return;
+            }
+
+            long warmestDate = queryWarmestDate(db, table, WeatherEntry.COLUMN_DATE,
+                    WeatherEntry.COLUMN_MAX_TEMP,
+                    WeatherEntry.COLUMN_DATE + " >= ? AND " + WeatherEntry.COLUMN_DATE + " < ?",
+                    rangeArgs);
+            writeRow(insertStatement, source, StatsEntry.PERIOD_WEEK, weekStart, aggregate,
+                    aggregate.getDouble(3), aggregate.getDouble(4), aggregate.getDouble(5),
+                    warmestDate);
+        } finally {
+            aggregate.close();
+        }
+    }
+
+    private static void updateSummary(SQLiteDatabase db, SQLiteStatement insertStatement,
+                                      String source) {
+        Cursor aggregate = db.rawQuery(SQL_AGGREGATE_SUMMARY, new String[]{source});
+        try {
+            aggregate.moveToFirst();
+            int dayCount = aggregate.getInt(0);
+            if (dayCount == 0) {
+                deleteRow(db, source, StatsEntry.PERIOD_ALL, 0);
+                return;
+            }
+
+            long warmestDate = queryWarmestDate(db, StatsEntry.TABLE_NAME,
+                    StatsEntry.COLUMN_WARMEST_DATE, StatsEntry.COLUMN_MAX_TEMP,
+                    StatsEntry.COLUMN_SOURCE + " = ? AND " + StatsEntry.COLUMN_PERIOD + " = ?",
+                    new String[]{source, StatsEntry.PERIOD_WEEK});
+            writeRow(insertStatement, source, StatsEntry.PERIOD_ALL, 0, aggregate,
+                    aggregate.getDouble(3) / dayCount, aggregate.getDouble(4) / dayCount,
+                    aggregate.getDouble(5) / dayCount, warmestDate);
+        } finally {
+            aggregate.close();
+        }
+    }
+
+    /**
+     * Returns the date of the row with the highest maximum temperature, the earliest on a tie.
+     */
+    private static long queryWarmestDate(SQLiteDatabase db, String table, String dateColumn,
+                                         String maxColumn, String selection,
+                                         String[] selectionArgs) {
+        Cursor cursor = db.query(table, new String[]{dateColumn}, selection, selectionArgs,
+                null, null, maxColumn + " DESC, " + dateColumn + " ASC", "1");
+        try {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Writes one row of statistics. The day count, minimum and maximum are read from the first
+     * three columns of the aggregate.
+     */
+    private static void writeRow(SQLiteStatement insertStatement, String source, String period,
+                                 long periodStart, Cursor aggregate, double humidity,
+                                 double pressure, double wind, long warmestDate) {
+        insertStatement.clearBindings();
+        insertStatement.bindString(1, source);
+        insertStatement.bindString(2, period);
+        insertStatement.bindLong(3, periodStart);
+        insertStatement.bindLong(4, aggregate.getInt(0));
+        insertStatement.bindDouble(5, aggregate.getDouble(1));
+        insertStatement.bindDouble(6, aggregate.getDouble(2));
+        insertStatement.bindDouble(7, humidity);
+        insertStatement.bindDouble(8, pressure);
+        insertStatement.bindDouble(9, wind);
+        insertStatement.bindLong(10, warmestDate);
+        insertStatement.executeInsert();
+    }
+
+    private static void deleteRow(SQLiteDatabase db, String source, String period,
+                                  long periodStart) {
+        db.delete(StatsEntry.TABLE_NAME, SELECT_STATS_ROW,
+                new String[]{source, period, Long.toString(periodStart)});
+    }
+}
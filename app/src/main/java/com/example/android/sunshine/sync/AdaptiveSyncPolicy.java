@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when the next periodic sync should run. Instead of syncing every three hours no matter
+ * what, the interval follows three inputs:
+ * <ul>
+ *     <li>How fast the forecast changes. Each sync diffs the new forecast against the stored one;
+ *     the fraction of days that changed, spread over the time since the previous sync, gives the
+ *     chance per hour that any one day is revised. The interval is chosen so that about
+ *     {@link #TARGET_CHANGED_FRACTION} of the days will have changed by the next sync: a forecast
+ *     that hardly changes is synced rarely, one that keeps changing is synced often.</li>
+ *     <li>When the user opens the app. If the user habitually opens the app at an hour that falls
+ *     within the interval, the sync is moved to just before that hour, so the forecast they see
+ *     is fresh.</li>
+ *     <li>Whether the device is charging on an unmetered network. Syncing costs next to nothing
+ *     then, so the interval is shortened.</li>
+ * </ul>
+ * This class has no Android dependencies, so the same code runs in the app and in the
+ * simulation harness.
+ */
+public final class AdaptiveSyncPolicy {
+
+    public static final long MIN_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+    public static final long MAX_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(12);
+
+    /* Fraction of the forecast days we are willing to let go out of date between two syncs */
+    public static final double TARGET_CHANGED_FRACTION = 0.3;
+
+    /*
+     * Chance per hour that a forecast day is revised, before anything has been measured. Chosen
+     * so that a fresh install syncs every three hours, like the old fixed schedule.
+     */
+    public static final double DEFAULT_CHANGE_RATE = 1 - Math.pow(1 - TARGET_CHANGED_FRACTION, 1.0 / 3);
+
+    /* Weight of the newest sync in the smoothed change rate */
+    private static final double CHANGE_RATE_SMOOTHING = 0.3;
+
+    /*
+     * Bounds on the change rate, so neither a perfectly stable nor a constantly changing forecast
+     * breaks the logarithms below
+     */
+    private static final double MIN_CHANGE_RATE = 0.001;
+    private static final double MAX_CHANGE_RATE = 0.99;
+
+    /* Factor applied to the interval while charging on an unmetered network */
+    private static final double CHARGING_UNMETERED_FACTOR = 0.75;
+
+    /* How long before a predicted app open the prefetch should have finished */
+    public static final long PREFETCH_LEAD_MILLIS = TimeUnit.MINUTES.toMillis(20);
+
+    /* A prefetch window is kept narrow so the sync lands close to the predicted open */
+    private static final long PREFETCH_FLEX_MILLIS = TimeUnit.MINUTES.toMillis(15);
+
+    /* Don't prefetch if the predicted open is this close; the current data is fresh enough */
+    private static final long MIN_PREFETCH_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+    /* An hour counts as a habitual open time once it gets this many times its uniform share */
+    private static final double OPEN_HOUR_THRESHOLD = 2.0;
+
+    /* Number of recorded opens needed before we trust the histogram */
+    private static final int MIN_OPENS_FOR_PREDICTION = 10;
+
+    public static final int HOURS_PER_DAY = 24;
+
+    /**
+     * Everything the policy looks at. The open histogram holds one count per hour of the day.
+     */
+    public static final class Inputs {
+        /* Smoothed chance per hour that a forecast day is revised */
+        public double changeRate = DEFAULT_CHANGE_RATE;
+        public int[] openHistogram = new int[HOURS_PER_DAY];
+        public boolean charging;
+        public boolean unmetered;
+    }
+
+    /**
+     * When the next sync should run, relative to the time it was computed for.
+     */
+    public static final class Window {
+        public final long startDelayMillis;
+        public final long endDelayMillis;
+        public final boolean prefetch;
+
+        Window(long startDelayMillis, long endDelayMillis, boolean prefetch) {
+            this.startDelayMillis = startDelayMillis;
+            this.endDelayMillis = endDelayMillis;
+            this.prefetch = prefetch;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + TimeUnit.MILLISECONDS.toMinutes(startDelayMillis) + ", "
+                    + TimeUnit.MILLISECONDS.toMinutes(endDelayMillis) + "] min"
+                    + (prefetch ? " prefetch" : "");
+        }
+    }
+
+    private AdaptiveSyncPolicy() {
+    }
+
+    /**
+     * Folds the result of one sync into the smoothed change rate.
+     *
+     * @param previousRate  The smoothed change rate before this sync
+     * @param rowsChanged   Number of rows whose weather differed from the stored forecast
+     * @param rowsCompared  Number of rows that could be compared, ie dates present in both
+     * @param elapsedMillis Time since the sync that stored the previous forecast
+     * @return The new smoothed change rate, or the previous one if nothing could be compared
+     */
+    public static double updateChangeRate(double previousRate, int rowsChanged, int rowsCompared,
+                                          long elapsedMillis) {
+        if (rowsCompared <= 0 || elapsedMillis <= 0) return previousRate;
+
+        /*
+         * If each day is revised with chance p per hour, the chance it survives h hours unchanged
+         * is (1 - p)^h. Solving that for p with the observed fraction keeps a long gap between
+         * syncs from looking like a fast-changing forecast.
+         */
+        double changedFraction = (double) rowsChanged / rowsCompared;
+        double hours = (double) elapsedMillis / TimeUnit.HOURS.toMillis(1);
+        double rate = 1 - Math.pow(1 - changedFraction, 1 / hours);
+
+        return previousRate + CHANGE_RATE_SMOOTHING * (rate - previousRate);
+    }
+
+    /**
+     * @return The interval the change rate and the device state call for, ignoring open times
+     */
+    public static long computeInterval(Inputs inputs) {
+        double changeRate = Math.max(MIN_CHANGE_RATE, Math.min(MAX_CHANGE_RATE, inputs.changeRate));
+
+        /* The number of hours after which TARGET_CHANGED_FRACTION of the days have changed */
+        double hours = Math.log(1 - TARGET_CHANGED_FRACTION) / Math.log(1 - changeRate);
+        double interval = hours * TimeUnit.HOURS.toMillis(1);
+
+        if (inputs.charging && inputs.unmetered) {
+            interval *= CHARGING_UNMETERED_FACTOR;
+        }
+
+        return Math.max(MIN_INTERVAL_MILLIS, Math.min(MAX_INTERVAL_MILLIS, (long) interval));
+    }
+
+    /**
+     * Computes the window for the next sync.
+     *
+     * @param inputs    The current inputs
+     * @param nowMillis The current time
+     * @param timeZone  Time zone the open histogram was recorded in
+     * @return The window, relative to nowMillis
+     */
+    public static Window computeWindow(Inputs inputs, long nowMillis, TimeZone timeZone) {
+        long interval = computeInterval(inputs);
+        long flex = interval / 3;
+
+        /*
+         * Look for a habitual open time we can still prefetch for, ie one at least
+         * MIN_PREFETCH_DELAY_MILLIS plus the lead away, that comes before the regular sync would.
+         * Opens closer than that are served by the data we have; we look past them.
+         */
+        long predictedOpen = predictNextOpen(inputs.openHistogram, timeZone,
+                nowMillis + MIN_PREFETCH_DELAY_MILLIS + PREFETCH_LEAD_MILLIS,
+                nowMillis + interval + PREFETCH_LEAD_MILLIS);
+        if (predictedOpen > 0) {
+            long prefetchDelay = predictedOpen - PREFETCH_LEAD_MILLIS - nowMillis;
+            long prefetchFlex = Math.min(flex, PREFETCH_FLEX_MILLIS);
+            return new Window(prefetchDelay - prefetchFlex, prefetchDelay, true);
+        }
+
+        return new Window(interval - flex, interval, false);
+    }
+
+    /**
+     * Finds the start of the first hour the user habitually opens the app in, within a range.
+     *
+     * @param histogram     Opens per hour of the day
+     * @param timeZone      Time zone the histogram was recorded in
+     * @param earliestMillis The predicted open must not start before this
+     * @param latestMillis   The predicted open must not start after this
+     * @return The time the predicted open starts, or 0 if there is none in the range
+     */
+    static long predictNextOpen(int[] histogram, TimeZone timeZone, long earliestMillis,
+                                long latestMillis) {
+        int totalOpens = 0;
+        for (int count : histogram) {
+            totalOpens += count;
+        }
+        if (totalOpens < MIN_OPENS_FOR_PREDICTION) return 0;
+
+        double threshold = OPEN_HOUR_THRESHOLD * totalOpens / HOURS_PER_DAY;
+
+        /* Start from the first full hour at or after earliestMillis */
+        Calendar calendar = Calendar.getInstance(timeZone);
+        calendar.setTimeInMillis(earliestMillis - 1);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        calendar.add(Calendar.HOUR_OF_DAY, 1);
+
+        while (calendar.getTimeInMillis() <= latestMillis) {
+            if (histogram[calendar.get(Calendar.HOUR_OF_DAY)] >= threshold) {
+                return calendar.getTimeInMillis();
+            }
+            calendar.add(Calendar.HOUR_OF_DAY, 1);
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+import com.example.android.sunshine.data.SunshinePreferences;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether the weather a screen shows is still fresh, and has it refreshed in the
+ * background if it isn't. Screens always show what is stored right away, however old; a stale
+ * read only starts a revalidation, whose rows reach the screen through the ForecastRepository
+ * like any other sync's.
+ * <p>
+ * Each dataset has its own time to live. One sync stores them all, so they are all aged from the
+ * last successful sync, and data {@link SunshineSyncUtils#isSyncNeeded(Context)} considers
+ * unusable is stale whatever its age.
+ * <p>
+ * At most one revalidation is requested at a time. It is dropped by SunshineSyncService if a
+ * sync is already on its way, since that sync refreshes the same data, and the next one can only
+ * be requested once a sync has ended or REVALIDATION_TIMEOUT_NANOS has passed.
+ * <p>
+ * The stale reads and how long they waited for fresh data are taken, and reset, by every sync,
+ * which records them in the sync metrics table.
+ */
+public final class FreshnessPolicy {
+
+    /* The datasets screens read, used as indices into TTL_MILLIS */
+    public static final int DATASET_FORECAST = 0;
+    public static final int DATASET_TODAY = 1;
+
+    /*
+     * Time to live of each dataset. Today's weather is the one that changes by the hour, so it
+     * lives as long as the shortest interval AdaptiveSyncPolicy ever syncs at. The days after it
+     * change little within a few hours, so they get a fixed three hours, however far apart the
+     * periodic syncs are; with syncs up to MAX_INTERVAL_MILLIS apart, a read between them can
+     * find the forecast stale and revalidate it.
+     */
+    private static final long[] TTL_MILLIS = {
+            TimeUnit.HOURS.toMillis(3),
+            AdaptiveSyncPolicy.MIN_INTERVAL_MILLIS
+    };
+
+    /* How long a requested revalidation holds back the next one if no sync ends meanwhile */
+    static final long REVALIDATION_TIMEOUT_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    /* Indices into the array returned by takeCounts */
+    public static final int INDEX_STALE_READS = 0;
+    public static final int INDEX_REVALIDATION_NANOS = 1;
+
+    private static final Object sLock = new Object();
+    private static FreshnessPolicy sInstance;
+
+    private long mStaleReads;
+
+    /* Whether a read found the data stale since the last successful sync, and when the first did */
+    private boolean mAwaitingRefresh;
+    private long mFirstStaleReadNanos;
+
+    /* Whether a revalidation was requested since the last sync ended, and when */
+    private boolean mRevalidating;
+    private long mRevalidationRequestedNanos;
+
+    private FreshnessPolicy() {
+    }
+
+    public static FreshnessPolicy getInstance() {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                sInstance = new FreshnessPolicy();
+            }
+            return sInstance;
+        }
+    }
+
+    /**
+     * Records that a screen is showing a dataset, and starts a revalidation if the dataset is
+     * stale and none is already requested. Cheap enough for the main thread: the freshness record
+     * is read from SharedPreferences, which are held in memory.
+     *
+     * @param context Used to access SharedPreferences and start the revalidation
+     * @param dataset One of the DATASET_* values
+     * @return true if the dataset was stale
+     */
+    public boolean onRead(@NonNull Context context, int dataset) {
+        if (!isStale(context, dataset, System.currentTimeMillis())) return false;
+
+        long nowNanos = System.nanoTime();
+        boolean revalidate;
+        synchronized (this) {
+            mStaleReads++;
+            if (!mAwaitingRefresh) {
+                mAwaitingRefresh = true;
+                mFirstStaleReadNanos = nowNanos;
+            }
+
+            revalidate = !mRevalidating
+                    || nowNanos - mRevalidationRequestedNanos > REVALIDATION_TIMEOUT_NANOS;
+            if (revalidate) {
+                mRevalidating = true;
+                mRevalidationRequestedNanos = nowNanos;
+            }
+        }
+
+        if (revalidate) {
+            SunshineSyncUtils.startRevalidation(context);
+        }
+        return true;
+    }
+
+    /**
+     * @param context Used to access SharedPreferences
+     * @param dataset One of the DATASET_* values
+     * @param now     The current time, in milliseconds
+     * @return true if the dataset is unusable or older than its time to live
+     */
+    static boolean isStale(@NonNull Context context, int dataset, long now) {
+        if (SunshineSyncUtils.isSyncNeeded(context)) return true;
+        return now - SunshinePreferences.getLastSyncTime(context) >= TTL_MILLIS[dataset];
+    }
+
+    /**
+     * Returns the stale reads since the counts were last taken and, if the sync taking them
+     * refreshed the data, how long it took from the first of them. Starts counting again from
+     * zero, and lets the next stale read request a revalidation.
+     *
+     * @param refreshed Whether the sync taking the counts stored fresh data
+     * @return The stale reads and revalidation time in nanoseconds, at INDEX_STALE_READS and
+     * INDEX_REVALIDATION_NANOS; the time is 0 if the sync didn't refresh data a read found stale
+     */
+    synchronized long[] takeCounts(boolean refreshed) {
+        long revalidationNanos = 0;
+        if (refreshed && mAwaitingRefresh) {
+            revalidationNanos = System.nanoTime() - mFirstStaleReadNanos;
+            mAwaitingRefresh = false;
+        }
+
+        long[] counts = {mStaleReads, revalidationNanos};
+        mStaleReads = 0;
+        mRevalidating = false;
+        return counts;
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Describes a single run of a {@link SyncPipeline}. Every stage records how long its workers
+ * spent working and how long they spent blocked handing their output to the next stage, which
+ * is how backpressure shows up: a stage that is often blocked is waiting on the stage after it.
+ * <p>
+ * Stages record from their own threads, so everything here is safe to update concurrently.
+ */
+public final class PipelineReport {
+
+    /*
+     * The stages of the pipeline, in the order a location passes through them. These are used
+     * as indices, so they must stay contiguous and start at 0.
+     */
+    public static final int STAGE_FETCH = 0;
+    public static final int STAGE_PARSE = 1;
+    public static final int STAGE_WRITE = 2;
+
+    public static final int STAGE_COUNT = 3;
+
+    private static final String[] STAGE_NAMES = {
+            "fetch",
+            "parse",
+            "write"
+    };
+
+    private final int[] mWorkers = new int[STAGE_COUNT];
+
+    private final AtomicLongArray mBusyNanos = new AtomicLongArray(STAGE_COUNT);
+    private final AtomicLongArray mBlockedNanos = new AtomicLongArray(STAGE_COUNT);
+
+    private final int mLocationCount;
+
+    private final AtomicLong mLocationsSynced = new AtomicLong();
+    private final AtomicLong mLocationsFailed = new AtomicLong();
+    private final AtomicLong mLocationsSkipped = new AtomicLong();
+    private final AtomicLong mBytesFetched = new AtomicLong();
+    private final AtomicLong mRowsWritten = new AtomicLong();
+    private final AtomicLong mTransactions = new AtomicLong();
+
+    private volatile long mWallNanos;
+    private volatile boolean mCanceled;
+
+    /**
+     * @param locationCount Number of locations the pipeline was asked to sync
+     * @param fetchWorkers  Number of fetcher threads
+     * @param parseWorkers  Number of parser threads
+     * @param writeWorkers  Number of writer threads
+     */
+    PipelineReport(int locationCount, int fetchWorkers, int parseWorkers, int writeWorkers) {
+        mLocationCount = locationCount;
+        mWorkers[STAGE_FETCH] = fetchWorkers;
+        mWorkers[STAGE_PARSE] = parseWorkers;
+        mWorkers[STAGE_WRITE] = writeWorkers;
+    }
+
+    void addBusyNanos(int stage, long nanos) {
+        mBusyNanos.addAndGet(stage, nanos);
+    }
+
+    void addBlockedNanos(int stage, long nanos) {
+        mBlockedNanos.addAndGet(stage, nanos);
+    }
+
+    void addLocationsSynced(int locations, int rows) {
+        mLocationsSynced.addAndGet(locations);
+        mRowsWritten.addAndGet(rows);
+        mTransactions.incrementAndGet();
+    }
+
+    void addLocationsFailed(int locations) {
+        mLocationsFailed.addAndGet(locations);
+    }
+
+    void addLocationsSkipped(int locations) {
+        mLocationsSkipped.addAndGet(locations);
+    }
+
+    void addBytesFetched(long bytes) {
+        mBytesFetched.addAndGet(bytes);
+    }
+
+    void setWallNanos(long wallNanos) {
+        mWallNanos = wallNanos;
+    }
+
+    void setCanceled() {
+        mCanceled = true;
+    }
+
+    public static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    public int getWorkers(int stage) {
+        return mWorkers[stage];
+    }
+
+    /**
+     * @param stage One of the STAGE_* constants
+     * @return The time the stage's workers spent working, summed over the workers, in
+     * nanoseconds
+     */
+    public long getBusyNanos(int stage) {
+        return mBusyNanos.get(stage);
+    }
+
+    /**
+     * @param stage One of the STAGE_* constants
+     * @return The time the stage's workers spent waiting for room in the next stage's queue,
+     * summed over the workers, in nanoseconds
+     */
+    public long getBlockedNanos(int stage) {
+        return mBlockedNanos.get(stage);
+    }
+
+    /**
+     * @param stage One of the STAGE_* constants
+     * @return The share of the run the stage's workers spent working, from 0 to 1. The rest they
+     * spent blocked or waiting for input.
+     */
+    public double getUtilization(int stage) {
+        long capacity = mWallNanos * mWorkers[stage];
+        return capacity == 0 ? 0 : Math.min(1.0, (double) mBusyNanos.get(stage) / capacity);
+    }
+
+    /**
+     * @return The time from the first fetch starting to the last write committing, in
+     * nanoseconds
+     */
+    public long getWallNanos() {
+        return mWallNanos;
+    }
+
+    /**
+     * @return Locations written per second over the whole run
+     */
+    public double getThroughput() {
+        return mWallNanos == 0 ? 0
+                : mLocationsSynced.get() * (double) TimeUnit.SECONDS.toNanos(1) / mWallNanos;
+    }
+
+    public int getLocationCount() {
+        return mLocationCount;
+    }
+
+    public long getLocationsSynced() {
+        return mLocationsSynced.get();
+    }
+
+    public long getLocationsFailed() {
+        return mLocationsFailed.get();
+    }
+
+    /**
+     * @return Locations fetched but not written, because they were no longer parked by the time
+     * their transaction ran
+     */
+    public long getLocationsSkipped() {
+        return mLocationsSkipped.get();
+    }
+
+    public long getBytesFetched() {
+        return mBytesFetched.get();
+    }
+
+    public long getRowsWritten() {
+        return mRowsWritten.get();
+    }
+
+    public long getTransactions() {
+        return mTransactions.get();
+    }
+
+    /**
+     * @return Whether the run stopped early because it was cancelled. Locations already written
+     * stay written.
+     */
+    public boolean isCanceled() {
+        return mCanceled;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder summary = new StringBuilder(String.format(Locale.US,
+                "%d/%d locations in %.1f ms (%.1f/s), %d failed, %d skipped, "
+                        + "%d rows in %d transactions%s",
+                mLocationsSynced.get(), mLocationCount, mWallNanos / 1e6, getThroughput(),
+                mLocationsFailed.get(), mLocationsSkipped.get(), mRowsWritten.get(),
+                mTransactions.get(),
+                mCanceled ? ", canceled" : ""));
+        for (int stage = 0; stage < STAGE_COUNT; stage++) {
+            summary.append(String.format(Locale.US, "; %s x%d: %.0f%% busy, %.1f ms blocked",
+                    STAGE_NAMES[stage], mWorkers[stage], getUtilization(stage) * 100,
+                    mBlockedNanos.get(stage) / 1e6));
+        }
+        return summary.toString();
+    }
+}
@@ -15,10 +15,7 @@
  */
 package com.example.android.sunshine.sync;
 
-import android.content.Context;
-import android.os.AsyncTask;
-import android.util.Log;
-
+import com.example.android.sunshine.data.WeatherContract;
 import com.firebase.jobdispatcher.Job;
 import com.firebase.jobdispatcher.JobParameters;
 import com.firebase.jobdispatcher.JobService;
@@ -27,7 +24,7 @@ import com.firebase.jobdispatcher.RetryStrategy;
 
 public class SunshineFirebaseJobService extends JobService {
 
-    private AsyncTask<Void, Void, Void> mFetchWeatherTask;
+    private SyncExecutor.SyncHandle mSyncHandle;
 
     /**
      * The entry point to your Job. Implementations should offload work to another thread of
@@ -42,22 +39,27 @@ public class SunshineFirebaseJobService extends JobService {
     @Override
     public boolean onStartJob(final JobParameters jobParameters) {
 
-        mFetchWeatherTask = new AsyncTask<Void, Void, Void>(){
-            @Override
-            protected Void doInBackground(Void... voids) {
-                Context context = getApplicationContext();
-                SunshineSyncTask.syncWeather(context);
-                jobFinished(jobParameters, false);
-                return null;
-            }
-
-            @Override
-            protected void onPostExecute(Void aVoid) {
-                jobFinished(jobParameters, false);
-            }
-        };
+        /*
+         * The callback is only called if the sync finishes before onStopJob, so jobFinished is
+         * called exactly once per job. A failed sync asks to be rescheduled so the retry strategy
+         * of the job kicks in. A successful one finishes the job and schedules the next sync,
+         * whose window the adaptive policy computes from what this sync found.
+         */
+        mSyncHandle = SyncExecutor.getInstance().execute(
+                getApplicationContext(),
+                WeatherContract.SyncMetricsEntry.TRIGGER_SCHEDULED,
+                new SyncExecutor.Callback() {
+                    @Override
+                    public void onSyncFinished(SyncReport report) {
+                        boolean needsReschedule = !report.isSuccessful();
+                        jobFinished(jobParameters, needsReschedule);
+                        if (!needsReschedule) {
+                            SunshineSyncUtils.scheduleFirebaseJobDispatcherSync(
+                                    getApplicationContext());
+                        }
+                    }
+                });
 
-        mFetchWeatherTask.execute();
         return true;
     }
 
@@ -65,15 +67,17 @@ public class SunshineFirebaseJobService extends JobService {
      * Called when the scheduling engine has decided to interrupt the execution of a running job,
      * most likely because the runtime constraints associated with the job are no longer satisfied.
      *
+     * The sync is cancelled, which aborts an in-flight request straight away. If it hadn't
+     * finished, we ask for the job to be retried: either nothing was stored yet, or the new
+     * forecast was stored but the notification and wearable steps never ran.
+     *
      * @return whether the job should be retried
      * @see Job.Builder#setRetryStrategy(RetryStrategy)
      * @see RetryStrategy
      */
     @Override
     public boolean onStopJob(JobParameters jobParameters) {
-        if (mFetchWeatherTask != null) {
-            mFetchWeatherTask.cancel(true);
-        }
-        return true;
+        if (mSyncHandle == null) return false;
+        return mSyncHandle.cancel();
     }
-}
\ No newline at end of file
+}
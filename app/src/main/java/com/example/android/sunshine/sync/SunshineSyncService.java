@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.IBinder;
+
+import com.example.android.sunshine.data.WeatherContract;
+
+/**
+ * A started {@link Service} for immediate syncs and revalidations. The sync itself runs in the
+ * user sync lane of the SunshineScheduler; the service only exists so that the process is kept
+ * alive until the sync finishes, even if the user leaves the app in the meantime.
+ * <p>
+ * A revalidation is dropped if a sync is already queued or running, since that sync refreshes
+ * the same data.
+ */
+public class SunshineSyncService extends Service {
+
+    /* What started the sync, one of the SyncMetricsEntry TRIGGER_* values; immediate if absent */
+    static final String EXTRA_TRIGGER = "trigger";
+
+    /*
+     * Guards the two fields below. A request and a finished sync each update both under it, so
+     * a finishing sync never sees the count of one request with the start id of another.
+     */
+    private final Object mLock = new Object();
+
+    /* Syncs started by this service that haven't finished yet */
+    private int mPendingSyncs;
+
+    /* Start id of the most recent request; stopSelf(int) ignores anything older */
+    private int mLastStartId;
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        String trigger = intent.getStringExtra(EXTRA_TRIGGER);
+        if (trigger == null) {
+            trigger = WeatherContract.SyncMetricsEntry.TRIGGER_IMMEDIATE;
+        }
+
+        SyncExecutor executor = SyncExecutor.getInstance();
+        synchronized (mLock) {
+            mLastStartId = startId;
+            if (WeatherContract.SyncMetricsEntry.TRIGGER_REVALIDATE.equals(trigger)
+                    && executor.isSyncInFlight()) {
+                if (mPendingSyncs == 0) {
+                    stopSelf(startId);
+                }
+                return START_NOT_STICKY;
+            }
+            mPendingSyncs++;
+        }
+
+        executor.execute(
+                this,
+                trigger,
+                new SyncExecutor.Callback() {
+                    @Override
+                    public void onSyncFinished(SyncReport report) {
+                        /*
+                         * Any request counted in mPendingSyncs also set mLastStartId, so if the
+                         * count drops to 0 here, the id is that of the latest request this
+                         * service has seen. One the system delivers later makes the id
+                         * outdated, and stopSelf then leaves the service running for it.
+                         */
+                        synchronized (mLock) {
+                            if (--mPendingSyncs == 0) {
+                                stopSelf(mLastStartId);
+                            }
+                        }
+                    }
+                });
+
+        /* Like an IntentService, don't restart a sync that was lost when the process died */
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+}
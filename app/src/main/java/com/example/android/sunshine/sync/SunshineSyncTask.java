@@ -18,18 +18,45 @@ package com.example.android.sunshine.sync;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.annotation.Nullable;
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
 import android.text.format.DateUtils;
+import android.util.Log;
 
+import com.example.android.sunshine.data.ForecastSnapshot;
+import com.example.android.sunshine.data.StatementCacheStats;
 import com.example.android.sunshine.data.SunshinePreferences;
 import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.data.WeatherContract.SyncMetricsEntry;
 import com.example.android.sunshine.utilities.NetworkUtils;
 import com.example.android.sunshine.utilities.NotificationUtils;
 import com.example.android.sunshine.utilities.OpenWeatherJsonUtils;
 
+import java.io.IOException;
 import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
 
 public class SunshineSyncTask {
 
+    private static final String TAG = SunshineSyncTask.class.getSimpleName();
+
+    /*
+     * A day counts as changed if its condition changed or either temperature moved by at least
+     * this many degrees. Smaller moves don't change what the user sees after rounding.
+     */
+    private static final double CHANGED_TEMPERATURE_DELTA = 1.0;
+
+    private static final String[] DIFF_PROJECTION = {
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP
+    };
+
     /**
      * Performs the network request for updated weather, parses the JSON from that request, and
      * inserts the new weather information into our ContentProvider. Will notify the user that new
@@ -37,21 +64,62 @@ public class SunshineSyncTask {
      * AND they haven't disabled notifications in the preferences screen.
      *
      * @param context Used to access utility methods and the ContentResolver
+     * @return A report of how long each stage of the sync took and whether the sync failed
+     */
+    public static SyncReport syncWeather(Context context) {
+        return syncWeather(context, SyncMetricsEntry.TRIGGER_UNSPECIFIED);
+    }
+
+    /**
+     * Same as {@link #syncWeather(Context)}, but records what started the sync. Every sync is
+     * recorded in the sync metrics table, whether it succeeds or not.
+     *
+     * @param context Used to access utility methods and the ContentResolver
+     * @param trigger What started the sync, one of the SyncMetricsEntry TRIGGER_* values
+     * @return A report of how long each stage of the sync took and whether the sync failed
+     */
+    public static SyncReport syncWeather(Context context, String trigger) {
+        return syncWeather(context, trigger, null);
+    }
+
+    /**
+     * Same as {@link #syncWeather(Context, String)}, but the sync can be cancelled. Cancellation
+     * is checked between stages, and cancelling during the fetch aborts the network request.
+     * Once the old weather has been deleted, the new weather is always inserted before the
+     * cancellation is honoured, so a cancelled sync never leaves the forecast empty.
+     *
+     * @param context Used to access utility methods and the ContentResolver
+     * @param trigger What started the sync, one of the SyncMetricsEntry TRIGGER_* values
+     * @param signal  Signal used to cancel the sync, or null if it can't be cancelled
+     * @return A report of the sync; {@link SyncReport#isCanceled()} tells whether it was cut short
      */
-    synchronized public static void syncWeather(Context context) {
+    synchronized public static SyncReport syncWeather(Context context, String trigger,
+            @Nullable CancellationSignal signal) {
+
+        SyncReport report = new SyncReport(trigger);
 
         try {
+            throwIfCanceled(signal);
+
             /*
              * The getUrl method will return the URL that we need to get the forecast JSON for the
              * weather. It will decide whether to create a URL based off of the latitude and
              * longitude or off of a simple location as a String.
              */
+            report.beginStage(SyncReport.STAGE_URL_BUILD);
+            String locationSetting = SunshinePreferences.getPreferredWeatherLocation(context);
             URL weatherRequestUrl = NetworkUtils.getUrl(context);
 
             /* Use the URL to retrieve the JSON */
-            String jsonWeatherResponse = NetworkUtils.getResponseFromHttpUrl(weatherRequestUrl);
+            throwIfCanceled(signal);
+            report.beginStage(SyncReport.STAGE_FETCH);
+            String jsonWeatherResponse = NetworkUtils
+                    .getResponseFromHttpUrl(weatherRequestUrl, signal);
+            report.setResponse(jsonWeatherResponse);
 
             /* Parse the JSON into a list of weather values */
+            throwIfCanceled(signal);
+            report.beginStage(SyncReport.STAGE_PARSE);
             ContentValues[] weatherValues = OpenWeatherJsonUtils
                     .getWeatherContentValuesFromJson(context, jsonWeatherResponse);
 
@@ -61,56 +129,304 @@ public class SunshineSyncTask {
              * NullPointerExceptions being thrown. We also have no reason to insert fresh data if
              * there isn't any to insert.
              */
-            if (weatherValues != null && weatherValues.length != 0) {
-                /* Get a handle on the ContentResolver to delete and insert data */
-                ContentResolver sunshineContentResolver = context.getContentResolver();
+            if (weatherValues == null || weatherValues.length == 0) {
+                throw new IOException("Forecast response did not contain any weather data");
+            }
 
-                /* Delete old weather data because we don't need to keep multiple days' data */
-                sunshineContentResolver.delete(
-                        WeatherContract.WeatherEntry.CONTENT_URI,
-                        null,
-                        null);
+            /* This is the last point at which a cancelled sync leaves the database untouched */
+            throwIfCanceled(signal);
+
+            /* Get a handle on the ContentResolver to delete and insert data */
+            ContentResolver sunshineContentResolver = context.getContentResolver();
+
+            /*
+             * The weather table holds the forecast of the active location, so make sure that is
+             * the location this forecast was fetched for. If the user picked another location
+             * while we were fetching, this forecast is no longer wanted; the switch to the new
+             * location takes care of syncing it.
+             */
+            if (!locationSetting.equals(SunshinePreferences.getPreferredWeatherLocation(context))) {
+                throw new OperationCanceledException("The location changed during the sync");
+            }
+            Uri locationUri = activateLocation(sunshineContentResolver, locationSetting);
+
+            /*
+             * Before the old weather is deleted, compare it with the new forecast. How much of it
+             * changed drives how soon the next periodic sync is scheduled. This is a read of the
+             * rows the delete is about to remove, so it is timed as part of the delete stage.
+             */
+            report.beginStage(SyncReport.STAGE_DELETE);
+            diffAgainstStoredForecast(sunshineContentResolver, weatherValues, report);
+
+            /*
+             * Delete the old forecast before inserting the new one. In archive mode, the
+             * provider moves the days that have passed into the history table first. Both are
+             * one change to the forecast, so they are announced together once the new forecast
+             * is in, and the list and everything else watching the forecast reload once.
+             */
+            WeatherContract.ChangeNotification.beginBatch(sunshineContentResolver);
+            try {
+                int rowsDeleted = deleteForecast(context, sunshineContentResolver);
+                report.setRowsDeleted(rowsDeleted);
 
                 /* Insert our new weather data into Sunshine's ContentProvider */
-                sunshineContentResolver.bulkInsert(
+                report.beginStage(SyncReport.STAGE_INSERT);
+                int rowsInserted = sunshineContentResolver.bulkInsert(
                         WeatherContract.WeatherEntry.CONTENT_URI,
                         weatherValues);
+                report.setRowsInserted(rowsInserted);
+            } finally {
+                WeatherContract.ChangeNotification.endBatch(sunshineContentResolver);
+            }
 
-                /*
-                 * Finally, after we insert data into the ContentProvider, determine whether or not
-                 * we should notify the user that the weather has been refreshed.
-                 */
-                boolean notificationsEnabled = SunshinePreferences.areNotificationsEnabled(context);
+            /*
+             * Keep the snapshot MainActivity draws its first frame from in step with the
+             * database. It describes the rows just inserted, so it is timed with the insert.
+             */
+            ForecastSnapshot.write(context, weatherValues);
 
-                /*
-                 * If the last notification was shown was more than 1 day ago, we want to send
-                 * another notification to the user that the weather has been updated. Remember,
-                 * it's important that you shouldn't spam your users with notifications.
-                 */
-                long timeSinceLastNotification = SunshinePreferences
-                        .getEllapsedTimeSinceLastNotification(context);
+            /* Then the hourly forecast, timed with the insert. It never fails the sync */
+            if (SunshinePreferences.isHourlyForecastEnabled(context)) {
+                throwIfCanceled(signal);
+                syncHourlyForecast(context, sunshineContentResolver, signal);
+            }
 
-                boolean oneDayPassedSinceLastNotification = false;
+            /*
+             * Finally, after we insert data into the ContentProvider, determine whether or not
+             * we should notify the user that the weather has been refreshed.
+             */
+            throwIfCanceled(signal);
+            report.beginStage(SyncReport.STAGE_NOTIFY);
+            boolean notificationsEnabled = SunshinePreferences.areNotificationsEnabled(context);
 
-                if (timeSinceLastNotification >= DateUtils.DAY_IN_MILLIS) {
-                    oneDayPassedSinceLastNotification = true;
-                }
+            /*
+             * If the last notification was shown was more than 1 day ago, we want to send
+             * another notification to the user that the weather has been updated. Remember,
+             * it's important that you shouldn't spam your users with notifications.
+             */
+            long timeSinceLastNotification = SunshinePreferences
+                    .getEllapsedTimeSinceLastNotification(context);
 
-                /*
-                 * We only want to show the notification if the user wants them shown and we
-                 * haven't shown a notification in the past day.
-                 */
-                if (notificationsEnabled && oneDayPassedSinceLastNotification) {
-                    NotificationUtils.notifyUserOfNewWeather(context);
-                }
+            boolean oneDayPassedSinceLastNotification = false;
 
-            /* If the code reaches this point, we have successfully performed our sync */
+            if (timeSinceLastNotification >= DateUtils.DAY_IN_MILLIS) {
+                oneDayPassedSinceLastNotification = true;
+            }
 
+            /*
+             * We only want to show the notification if the user wants them shown and we
+             * haven't shown a notification in the past day.
+             */
+            if (notificationsEnabled && oneDayPassedSinceLastNotification) {
+                NotificationUtils.notifyUserOfNewWeather(context);
             }
 
+            /*
+             * Store today's summary for the watch face. The first row of the parsed forecast is
+             * always today, so there is no need to go back to the ContentProvider for it.
+             */
+            throwIfCanceled(signal);
+            report.beginStage(SyncReport.STAGE_WEAR);
+            ContentValues todayValues = weatherValues[0];
+            SunshinePreferences.setTodayDataForWearables(context,
+                    todayValues.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID),
+                    Math.round(todayValues.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP)),
+                    Math.round(todayValues.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP)));
+
+            /*
+             * If the code reaches this point, we have successfully performed our sync. Fold what
+             * changed since the last successful sync into the change rate the adaptive sync
+             * schedule works from, and record what the stored forecast covers so the next cold
+             * start can tell whether it is still usable without querying the database.
+             */
+            long lastSyncTime = SunshinePreferences.getLastSyncTime(context);
+            double changeRate = AdaptiveSyncPolicy.updateChangeRate(
+                    SunshinePreferences.getSyncChangeRate(context,
+                            AdaptiveSyncPolicy.DEFAULT_CHANGE_RATE),
+                    report.getRowsChanged(),
+                    report.getRowsCompared(),
+                    lastSyncTime == 0 ? 0 : report.getStartedAtMillis() - lastSyncTime);
+            SunshinePreferences.setSyncChangeRate(context, changeRate);
+            long lastCoveredDate = weatherValues[weatherValues.length - 1]
+                    .getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+            SunshinePreferences.setSyncFreshness(context, report.getStartedAtMillis(),
+                    lastCoveredDate, locationSetting);
+            recordLocationFreshness(sunshineContentResolver, locationUri,
+                    report.getStartedAtMillis(), lastCoveredDate);
+
+        } catch (OperationCanceledException e) {
+            /* Cancelled by the caller; the database is never left half-written */
+            report.setFailure(e);
         } catch (Exception e) {
             /* Server probably invalid */
             e.printStackTrace();
+            report.setFailure(e);
+        } finally {
+            report.endStage();
+        }
+
+        /* Provider reads since the last sync, including the loaders of the forecast list */
+        long[] cacheCounts = StatementCacheStats.getInstance().takeCounts();
+        report.setStatementCacheCounts(cacheCounts[StatementCacheStats.INDEX_HITS],
+                cacheCounts[StatementCacheStats.INDEX_MISSES]);
+
+        /* Screens that found the weather stale since the last sync, and how long they waited */
+        long[] freshnessCounts = FreshnessPolicy.getInstance().takeCounts(report.isSuccessful());
+        report.setFreshnessCounts(freshnessCounts[FreshnessPolicy.INDEX_STALE_READS],
+                freshnessCounts[FreshnessPolicy.INDEX_REVALIDATION_NANOS]);
+
+        recordSyncMetrics(context, report);
+
+        return report;
+    }
+
+    /**
+     * Counts how many days of the new forecast differ from the stored forecast for the same day,
+     * and stores the counts in the report.
+     *
+     * @param resolver      Used to read the stored forecast
+     * @param weatherValues The new forecast
+     * @param report        Receives the number of compared and changed days
+     */
+    private static void diffAgainstStoredForecast(ContentResolver resolver,
+            ContentValues[] weatherValues, SyncReport report) {
+        Cursor cursor = resolver.query(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                DIFF_PROJECTION,
+                null,
+                null,
+                null);
+        if (cursor == null) return;
+
+        Map<Long, double[]> stored = new HashMap<>(cursor.getCount());
+        try {
+            while (cursor.moveToNext()) {
+                stored.put(cursor.getLong(0), new double[]{
+                        cursor.getInt(1), cursor.getDouble(2), cursor.getDouble(3)});
+            }
+        } finally {
+            cursor.close();
+        }
+
+        int compared = 0;
+        int changed = 0;
+        for (ContentValues values : weatherValues) {
+            double[] previous = stored.get(values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE));
+            if (previous == null) continue;
+
+            compared++;
+            int weatherId = values.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID);
+            double max = values.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP);
+            double min = values.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP);
+            if (weatherId != (int) previous[0]
+                    || Math.abs(max - previous[1]) >= CHANGED_TEMPERATURE_DELTA
+                    || Math.abs(min - previous[2]) >= CHANGED_TEMPERATURE_DELTA) {
+                changed++;
+            }
+        }
+
+        report.setRowsCompared(compared);
+        report.setRowsChanged(changed);
+    }
+
+    /**
+     * Fetches the hourly forecast of the preferred location and stores it. The response is
+     * streamed into the parser as it arrives, and the provider writes all of its hours in one
+     * transaction, so a few hundred hours cost about as much as the daily forecast does. Any
+     * problem is only logged; the daily forecast has already been stored. Cancelling the signal
+     * aborts the request, and keeps the hours already stored.
+     *
+     * @param context  Used to build the request
+     * @param resolver Used to reach the provider
+     * @param signal   Signal used to abort the request, or null if it can't be cancelled
+     */
+    private static void syncHourlyForecast(Context context, ContentResolver resolver,
+                                           @Nullable CancellationSignal signal) {
+        try {
+            URL hourlyRequestUrl = NetworkUtils.getHourlyUrl(context);
+            if (hourlyRequestUrl == null) return;
+
+            ContentValues[] hourlyValues = OpenWeatherJsonUtils.readHourlyContentValues(
+                    NetworkUtils.openResponseReader(hourlyRequestUrl, signal));
+            if (hourlyValues == null || hourlyValues.length == 0) {
+                Log.w(TAG, "Hourly forecast response did not contain any hours");
+                return;
+            }
+
+            resolver.bulkInsert(WeatherContract.HourlyEntry.CONTENT_URI, hourlyValues);
+        } catch (OperationCanceledException e) {
+            Log.d(TAG, "Hourly forecast sync cancelled");
+        } catch (Exception e) {
+            Log.w(TAG, "Couldn't sync the hourly forecast", e);
+        }
+    }
+
+    private static void throwIfCanceled(@Nullable CancellationSignal signal) {
+        if (signal != null) signal.throwIfCanceled();
+    }
+
+    /**
+     * Makes a location the active one, so that the forecast about to be stored is filed under it.
+     *
+     * @param resolver        Used to reach the provider
+     * @param locationSetting The location setting the forecast was fetched for
+     * @return The URI of the location
+     */
+    private static Uri activateLocation(ContentResolver resolver, String locationSetting) {
+        ContentValues location = new ContentValues();
+        location.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        return resolver.insert(WeatherContract.LocationEntry.CONTENT_URI, location);
+    }
+
+    /**
+     * Deletes the stored forecast, along with the freshness record that describes it. Until the
+     * sync writes a new record, a cold start sees the forecast as unusable, which is right if
+     * the sync fails before storing its own.
+     *
+     * @param context  Used to access SharedPreferences
+     * @param resolver Used to reach the provider
+     * @return The number of rows deleted
+     */
+    static int deleteForecast(Context context, ContentResolver resolver) {
+        int rowsDeleted = resolver.delete(WeatherContract.WeatherEntry.CONTENT_URI, null, null);
+        if (rowsDeleted != 0) {
+            SunshinePreferences.clearSyncFreshness(context);
+        }
+        return rowsDeleted;
+    }
+
+    /**
+     * Stores the freshness record of a location alongside it, so that it can be restored when
+     * the user switches back to the location later.
+     *
+     * @param resolver        Used to reach the provider
+     * @param locationUri     The URI of the location
+     * @param lastSyncTime    When the sync started (in UNIX time)
+     * @param lastCoveredDate Normalized date of the last day of the stored forecast
+     */
+    private static void recordLocationFreshness(ContentResolver resolver, Uri locationUri,
+            long lastSyncTime, long lastCoveredDate) {
+        ContentValues freshness = new ContentValues();
+        freshness.put(WeatherContract.LocationEntry.COLUMN_LAST_SYNC_TIME, lastSyncTime);
+        freshness.put(WeatherContract.LocationEntry.COLUMN_LAST_COVERED_DATE, lastCoveredDate);
+        freshness.put(WeatherContract.LocationEntry.COLUMN_LAST_USED, System.currentTimeMillis());
+        resolver.update(locationUri, freshness, null, null);
+    }
+
+    /**
+     * Stores the report in the sync metrics table. Failing to record metrics must never fail the
+     * sync itself, so any problem here is only logged.
+     *
+     * @param context Used to access the ContentResolver
+     * @param report  The report of the sync that just finished
+     */
+    private static void recordSyncMetrics(Context context, SyncReport report) {
+        try {
+            context.getContentResolver().insert(
+                    SyncMetricsEntry.CONTENT_URI,
+                    report.toContentValues());
+        } catch (Exception e) {
+            e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+}
@@ -15,13 +15,21 @@
  */
 package com.example.android.sunshine.sync;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
-import android.net.Uri;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
 import android.support.annotation.NonNull;
+import android.support.v4.net.ConnectivityManagerCompat;
+import android.util.Log;
 
+import com.example.android.sunshine.data.SunshinePreferences;
 import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.utilities.SunshineScheduler;
 import com.firebase.jobdispatcher.Constraint;
 import com.firebase.jobdispatcher.Driver;
 import com.firebase.jobdispatcher.FirebaseJobDispatcher;
@@ -30,28 +38,48 @@ import com.firebase.jobdispatcher.Job;
 import com.firebase.jobdispatcher.Lifetime;
 import com.firebase.jobdispatcher.Trigger;
 
+import java.util.Calendar;
+import java.util.TimeZone;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
 public class SunshineSyncUtils {
 
-    /*
-     * Interval at which to sync with the weather. Use TimeUnit for convenience, rather than
-     * writing out a bunch of multiplication ourselves and risk making a silly mistake.
-     */
-    private static final int SYNC_INTERVAL_HOURS = 3;
-    private static final int SYNC_INTERVAL_SECONDS = (int) TimeUnit.HOURS.toSeconds(SYNC_INTERVAL_HOURS);
-    private static final int SYNC_FLEXTIME_SECONDS = SYNC_INTERVAL_SECONDS / 3;
+    private static final String TAG = SunshineSyncUtils.class.getSimpleName();
 
     private static boolean sInitialized;
 
     private static final String SUNSHINE_SYNC_TAG = "sunshine-sync";
 
     /**
-     * Schedules a repeating sync of Sunshine's weather data using FirebaseJobDispatcher.
+     * Schedules the next periodic sync of Sunshine's weather data using FirebaseJobDispatcher.
+     * The sync is a one-off job; when it completes, SunshineFirebaseJobService schedules the one
+     * after it. That way every sync gets a window computed by the {@link AdaptiveSyncPolicy} from
+     * the latest inputs, instead of one fixed interval for the lifetime of the install.
+     *
      * @param context Context used to create the GooglePlayDriver that powers the
      *                FirebaseJobDispatcher
      */
     static void scheduleFirebaseJobDispatcherSync(@NonNull final Context context) {
+        scheduleFirebaseJobDispatcherSync(context, true);
+    }
+
+    /**
+     * Same as {@link #scheduleFirebaseJobDispatcherSync(Context)}, but can leave an already
+     * scheduled sync in place.
+     *
+     * @param context        Context used to create the GooglePlayDriver that powers the
+     *                       FirebaseJobDispatcher
+     * @param replaceCurrent Whether to replace a sync that is already scheduled
+     */
+    private static void scheduleFirebaseJobDispatcherSync(@NonNull final Context context,
+                                                          boolean replaceCurrent) {
+
+        AdaptiveSyncPolicy.Window window = AdaptiveSyncPolicy.computeWindow(
+                collectPolicyInputs(context),
+                System.currentTimeMillis(),
+                TimeZone.getDefault());
+        Log.d(TAG, "Next sync window: " + window);
 
         Driver driver = new GooglePlayDriver(context);
         FirebaseJobDispatcher dispatcher = new FirebaseJobDispatcher(driver);
@@ -75,38 +103,73 @@ public class SunshineSyncUtils {
                  */
                 .setLifetime(Lifetime.FOREVER)
                 /*
-                 * We want Sunshine's weather data to stay up to date, so we tell this Job to recur.
+                 * The Job does not recur on its own. Each sync schedules the next one, with a
+                 * window that reflects how fast the forecast is changing.
                  */
-                .setRecurring(true)
+                .setRecurring(false)
                 /*
-                 * We want the weather data to be synced every 3 to 4 hours. The first argument for
-                 * Trigger's static executionWindow method is the start of the time frame when the
-                 * sync should be performed. The second argument is the latest point in time at
-                 * which the data should be synced. Please note that this end time is not
-                 * guaranteed, but is more of a guideline for FirebaseJobDispatcher to go off of.
+                 * The first argument for Trigger's static executionWindow method is the start of
+                 * the time frame when the sync should be performed. The second argument is the
+                 * latest point in time at which the data should be synced. Please note that this
+                 * end time is not guaranteed, but is more of a guideline for
+                 * FirebaseJobDispatcher to go off of.
                  */
                 .setTrigger(Trigger.executionWindow(
-                        SYNC_INTERVAL_SECONDS,
-                        SYNC_INTERVAL_SECONDS + SYNC_FLEXTIME_SECONDS))
+                        (int) TimeUnit.MILLISECONDS.toSeconds(window.startDelayMillis),
+                        (int) TimeUnit.MILLISECONDS.toSeconds(window.endDelayMillis)))
                 /*
                  * If a Job with the tag with provided already exists, this new job will replace
-                 * the old one.
+                 * the old one, unless we were asked to keep it.
                  */
-                .setReplaceCurrent(true)
+                .setReplaceCurrent(replaceCurrent)
                 /* Once the Job is ready, call the builder's build method to return the Job */
                 .build();
 
         /* Schedule the Job with the dispatcher */
         dispatcher.schedule(syncSunshineJob);
+    }
 
+    /**
+     * Gathers the inputs of the adaptive sync policy: the stored change rate and open times, and
+     * whether the device is charging on an unmetered network right now.
+     */
+    static AdaptiveSyncPolicy.Inputs collectPolicyInputs(@NonNull Context context) {
+        AdaptiveSyncPolicy.Inputs inputs = new AdaptiveSyncPolicy.Inputs();
+        inputs.changeRate = SunshinePreferences.getSyncChangeRate(context,
+                AdaptiveSyncPolicy.DEFAULT_CHANGE_RATE);
+        inputs.openHistogram = SunshinePreferences.getAppOpenHistogram(context);
+
+        /* ACTION_BATTERY_CHANGED is sticky, so this returns the last broadcast immediately */
+        Intent battery = context.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        inputs.charging = battery != null
+                && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo activeNetwork = connectivityManager.getActiveNetworkInfo();
+        inputs.unmetered = activeNetwork != null && activeNetwork.isConnected()
+                && !ConnectivityManagerCompat.isActiveNetworkMetered(connectivityManager);
 
+        return inputs;
     }
+
+    /**
+     * Records that the user opened the app, for the adaptive sync policy to learn their habits.
+     *
+     * @param context Used to access SharedPreferences
+     */
+    public static void recordAppOpen(@NonNull Context context) {
+        SunshinePreferences.recordAppOpen(context,
+                Calendar.getInstance().get(Calendar.HOUR_OF_DAY));
+    }
+
     /**
      * Creates periodic sync tasks and checks to see if an immediate sync is required. If an
      * immediate sync is required, this method will take care of making sure that sync occurs.
      *
-     * @param context Context that will be passed to other methods and used to access the
-     *                ContentResolver
+     * @param context Context that will be passed to other methods and used to access
+     *                SharedPreferences
      */
     synchronized public static void initialize(@NonNull final Context context) {
 
@@ -120,75 +183,98 @@ public class SunshineSyncUtils {
 
         /*
          * This method call triggers Sunshine to create its task to synchronize weather data
-         * periodically.
+         * periodically. If a sync is already scheduled, it is left alone: its window was computed
+         * when the previous sync finished, and restarting it on every launch would push it back
+         * indefinitely for a user who opens the app often.
          */
-        scheduleFirebaseJobDispatcherSync(context);
+        scheduleFirebaseJobDispatcherSync(context, false);
 
         /*
-         * We need to check to see if our ContentProvider has data to display in our forecast
-         * list. However, performing a query on the main thread is a bad idea as this may
-         * cause our UI to lag. Therefore, we create a thread in which we will run the query
-         * to check the contents of our ContentProvider.
+         * We need to check to see if we have weather to display in our forecast list. The
+         * freshness record kept by the sync answers that from SharedPreferences, which are
+         * already loaded in memory by now, so the check runs right here without opening the
+         * database or queueing work.
          */
-        Thread checkForEmpty = new Thread(new Runnable() {
-            @Override
-            public void run() {
+        if (isSyncNeeded(context)) {
+            startImmediateSync(context);
+        }
+    }
 
-                /* URI for every row of weather data in our weather table*/
-                Uri forecastQueryUri = WeatherContract.WeatherEntry.CONTENT_URI;
+    /**
+     * Decides from the freshness record whether the stored forecast is unusable. It is when no
+     * sync has completed yet, when the last day it covers is already in the past, or when it was
+     * fetched for a location other than the one currently preferred.
+     *
+     * @param context Used to access SharedPreferences
+     * @return true if the weather should be synced right away
+     */
+    public static boolean isSyncNeeded(@NonNull Context context) {
+        if (SunshinePreferences.getLastSyncTime(context) == 0) return true;
 
-                /*
-                 * Since this query is going to be used only as a check to see if we have any
-                 * data (rather than to display data), we just need to PROJECT the ID of each
-                 * row. In our queries where we display data, we need to PROJECT more columns
-                 * to determine what weather details need to be displayed.
-                 */
-                String[] projectionColumns = {WeatherContract.WeatherEntry._ID};
-                String selectionStatement = WeatherContract.WeatherEntry
-                        .getSqlSelectForTodayOnwards();
-
-                /* Here, we perform the query to check to see if we have any weather data */
-                Cursor cursor = context.getContentResolver().query(
-                        forecastQueryUri,
-                        projectionColumns,
-                        selectionStatement,
-                        null,
-                        null);
-                /*
-                 * A Cursor object can be null for various different reasons. A few are
-                 * listed below.
-                 *
-                 *   1) Invalid URI
-                 *   2) A certain ContentProvider's query method returns null
-                 *   3) A RemoteException was thrown.
-                 *
-                 * Bottom line, it is generally a good idea to check if a Cursor returned
-                 * from a ContentResolver is null.
-                 *
-                 * If the Cursor was null OR if it was empty, we need to sync immediately to
-                 * be able to display data to the user.
-                 */
-                if (null == cursor || cursor.getCount() == 0) {
-                    startImmediateSync(context);
-                }
+        long lastCoveredDate = SunshinePreferences.getLastCoveredDate(context);
+        if (lastCoveredDate < SunshineDateUtils.normalizeDate(System.currentTimeMillis())) {
+            return true;
+        }
+
+        String syncedLocation = SunshinePreferences.getSyncedLocationSetting(context);
+        return !SunshinePreferences.getPreferredWeatherLocation(context).equals(syncedLocation);
+    }
 
-                /* Make sure to close the Cursor to avoid memory leaks! */
-                cursor.close();
-            }
-        });
+    /**
+     * Switches the forecast to the location the user just picked. A location that was used
+     * before gets its stored forecast back straight away, and is only synced if that forecast is
+     * no longer usable; a new location is synced right away. The switch itself runs in the user
+     * sync lane, off the main thread, and ahead of any sync queued behind it.
+     *
+     * @param context Used to reach the provider and start the sync, if one is needed
+     */
+    public static void switchLocation(@NonNull Context context) {
+        final Context appContext = context.getApplicationContext();
+        try {
+            SunshineScheduler.getInstance().submit(SunshineScheduler.LANE_USER_SYNC,
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            ContentValues location = new ContentValues();
+                            location.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+                                    SunshinePreferences.getPreferredWeatherLocation(appContext));
+                            appContext.getContentResolver().insert(
+                                    WeatherContract.LocationEntry.CONTENT_URI, location);
 
-        /* Finally, once the thread is prepared, fire it off to perform our checks. */
-        checkForEmpty.start();
+                            if (isSyncNeeded(appContext)) {
+                                startImmediateSync(appContext);
+                            }
+                        }
+                    });
+        } catch (RejectedExecutionException e) {
+            /* The sync switches to the location itself before storing its forecast */
+            Log.w(TAG, "Could not queue the location switch", e);
+            startImmediateSync(appContext);
+        }
     }
 
     /**
-     * Helper method to perform a sync immediately using an IntentService for asynchronous
-     * execution.
+     * Helper method to perform a sync immediately. The sync runs in the user sync lane of the
+     * SunshineScheduler, ahead of (and preempting) any periodic sync, while SunshineSyncService
+     * keeps the process alive until it is done.
      *
-     * @param context The Context used to start the IntentService for the sync.
+     * @param context The Context used to start the SunshineSyncService for the sync.
      */
     public static void startImmediateSync(@NonNull final Context context) {
-        Intent intentToSyncImmediately = new Intent(context, SunshineSyncIntentService.class);
+        Intent intentToSyncImmediately = new Intent(context, SunshineSyncService.class);
         context.startService(intentToSyncImmediately);
     }
+
+    /**
+     * Refreshes data a screen found stale, see {@link FreshnessPolicy}. Runs like an immediate
+     * sync, unless a sync is already queued or running, in which case nothing more is done.
+     *
+     * @param context The Context used to start the SunshineSyncService for the sync.
+     */
+    static void startRevalidation(@NonNull Context context) {
+        Intent intentToRevalidate = new Intent(context, SunshineSyncService.class);
+        intentToRevalidate.putExtra(SunshineSyncService.EXTRA_TRIGGER,
+                WeatherContract.SyncMetricsEntry.TRIGGER_REVALIDATE);
+        context.startService(intentToRevalidate);
+    }
 }
\ No newline at end of file
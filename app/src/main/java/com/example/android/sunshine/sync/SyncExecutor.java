@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.support.v4.os.CancellationSignal;
+
+import com.example.android.sunshine.data.WeatherContract.SyncMetricsEntry;
+import com.example.android.sunshine.utilities.SunshineScheduler;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs syncs on the {@link SunshineScheduler}. Syncs the user is waiting on go to the user sync
+ * lane, periodic syncs go to the background sync lane. Unlike an AsyncTask, a sync started here
+ * can actually be stopped: {@link SyncHandle#cancel()} cancels the sync's
+ * {@link CancellationSignal}, which aborts the network request if one is in flight and stops the
+ * sync at the next stage boundary otherwise.
+ * <p>
+ * A background sync that is running when a user sync is submitted is preempted the same way, so
+ * the user sync doesn't have to wait for it. A preempted sync still reports its (cancelled)
+ * result to its callback.
+ * <p>
+ * Every sync reports its result to its {@link Callback} at most once, and never after it has been
+ * cancelled while still running. That is what a JobService needs, since it must call jobFinished
+ * exactly once and not at all for a job it has already answered in onStopJob.
+ */
+public final class SyncExecutor {
+
+    /**
+     * Receives the report of a finished sync. Called on a scheduler worker thread, or on the
+     * calling thread if the sync could not be queued at all.
+     */
+    public interface Callback {
+        void onSyncFinished(SyncReport report);
+    }
+
+    /**
+     * The part of a periodic sync that refreshes the saved locations, see
+     * {@link #setRefreshStep(RefreshStep)}.
+     */
+    @VisibleForTesting
+    interface RefreshStep {
+        void refresh(Context context, CancellationSignal signal);
+    }
+
+    /*
+     * A periodic sync also refreshes the saved locations the user isn't looking at, so that
+     * switching to one shows a recent forecast. They share the sync's signal, so the job being
+     * stopped or a user sync preempting it stops them too.
+     */
+    private static final RefreshStep REFRESH_SAVED_LOCATIONS = new RefreshStep() {
+        @Override
+        public void refresh(Context context, CancellationSignal signal) {
+            List<SyncPipeline.Location> locations =
+                    SyncPipeline.getStaleLocations(context, System.currentTimeMillis());
+            if (locations.isEmpty() || signal.isCanceled()) return;
+            new SyncPipeline(context).run(locations, signal);
+        }
+    };
+
+    private static final Object sLock = new Object();
+    private static SyncExecutor sInstance;
+
+    private static volatile RefreshStep sRefreshStep = REFRESH_SAVED_LOCATIONS;
+
+    private final SunshineScheduler mScheduler;
+
+    /* Syncs queued or running, see isSyncInFlight */
+    private final AtomicInteger mInFlight = new AtomicInteger();
+
+    private SyncExecutor(SunshineScheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    public static SyncExecutor getInstance() {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                sInstance = new SyncExecutor(SunshineScheduler.getInstance());
+            }
+            return sInstance;
+        }
+    }
+
+    /**
+     * Queues a sync. Syncs that started with {@link SyncMetricsEntry#TRIGGER_IMMEDIATE} or
+     * {@link SyncMetricsEntry#TRIGGER_REVALIDATE} run in the user sync lane and preempt background
+     * syncs; all others run in the background sync lane. If the lane is full, the sync fails
+     * straight away with a RejectedExecutionException.
+     *
+     * @param context  Used to access utility methods and the ContentResolver
+     * @param trigger  What started the sync, one of the SyncMetricsEntry TRIGGER_* values
+     * @param callback Told about the result unless the sync is cancelled first, may be null
+     * @return A handle used to cancel or wait for the sync
+     */
+    public SyncHandle execute(@NonNull Context context, String trigger,
+            @Nullable Callback callback) {
+        SyncHandle handle = new SyncHandle(context.getApplicationContext(), trigger, callback,
+                mInFlight);
+        mInFlight.incrementAndGet();
+
+        int lane = SyncMetricsEntry.TRIGGER_IMMEDIATE.equals(trigger)
+                || SyncMetricsEntry.TRIGGER_REVALIDATE.equals(trigger)
+                ? SunshineScheduler.LANE_USER_SYNC
+                : SunshineScheduler.LANE_BACKGROUND_SYNC;
+
+        try {
+            mScheduler.submit(lane, handle);
+        } catch (RejectedExecutionException e) {
+            handle.reject(e);
+        }
+        return handle;
+    }
+
+    /**
+     * Replaces the saved location refresh of periodic syncs. This is used by the tests to make
+     * the refresh fail.
+     *
+     * @param step The refresh to run instead, or null to restore the default
+     */
+    @VisibleForTesting
+    static void setRefreshStep(@Nullable RefreshStep step) {
+        sRefreshStep = step == null ? REFRESH_SAVED_LOCATIONS : step;
+    }
+
+    /**
+     * @return true if a sync has been queued and not stopped running yet, whatever its lane
+     */
+    public boolean isSyncInFlight() {
+        return mInFlight.get() > 0;
+    }
+
+    /**
+     * A single queued or running sync.
+     */
+    public static final class SyncHandle implements Runnable, SunshineScheduler.Preemptible {
+
+        private final Context mContext;
+        private final String mTrigger;
+        private final Callback mCallback;
+        private final AtomicInteger mInFlight;
+
+        private final CancellationSignal mSignal = new CancellationSignal();
+        private final CountDownLatch mDone = new CountDownLatch(1);
+
+        /* Set by whichever comes first: the sync finishing or the sync being cancelled */
+        private final AtomicBoolean mSettled = new AtomicBoolean();
+
+        private volatile SyncReport mReport;
+
+        private SyncHandle(Context context, String trigger, Callback callback,
+                AtomicInteger inFlight) {
+            mContext = context;
+            mTrigger = trigger;
+            mCallback = callback;
+            mInFlight = inFlight;
+        }
+
+        /**
+         * Runs the sync. Whatever happens, including a stage throwing, the sync stops counting
+         * as in flight and reports to its callback unless it was cancelled, so that a JobService
+         * waiting on it always gets to call jobFinished.
+         */
+        @Override
+        public void run() {
+            try {
+                mReport = SunshineSyncTask.syncWeather(mContext, mTrigger, mSignal);
+                if (SyncMetricsEntry.TRIGGER_SCHEDULED.equals(mTrigger)
+                        && mReport.isSuccessful()) {
+                    sRefreshStep.refresh(mContext, mSignal);
+                }
+            } catch (RuntimeException e) {
+                SyncReport report = new SyncReport(mTrigger);
+                report.setFailure(e);
+                mReport = report;
+            } finally {
+                stopped();
+                settle();
+            }
+        }
+
+        /**
+         * Stops the sync to make room for a user sync. Unlike {@link #cancel()}, the callback
+         * still gets the (cancelled) report.
+         */
+        @Override
+        public void preempt() {
+            mSignal.cancel();
+        }
+
+        /**
+         * Called instead of {@link #run()} when the sync could not be queued.
+         */
+        void reject(RejectedExecutionException e) {
+            SyncReport report = new SyncReport(mTrigger);
+            report.setFailure(e);
+            mReport = report;
+            stopped();
+            settle();
+        }
+
+        private void stopped() {
+            mInFlight.decrementAndGet();
+            mDone.countDown();
+        }
+
+        private void settle() {
+            if (mSettled.compareAndSet(false, true) && mCallback != null) {
+                mCallback.onSyncFinished(mReport);
+            }
+        }
+
+        /**
+         * Cancels the sync. The sync thread is released as soon as the current stage notices,
+         * which for a network request is immediately.
+         *
+         * @return true if the sync had not finished yet, in which case its callback will not be
+         * called; false if it had already finished and reported its result
+         */
+        public boolean cancel() {
+            boolean wasRunning = mSettled.compareAndSet(false, true);
+            mSignal.cancel();
+            return wasRunning;
+        }
+
+        public boolean isDone() {
+            return mDone.getCount() == 0;
+        }
+
+        /**
+         * Blocks until the sync has stopped running, whether it finished or was cancelled.
+         *
+         * @return The report of the sync, or null if it did not stop within the timeout
+         */
+        public SyncReport await(long timeout, TimeUnit unit) throws InterruptedException {
+            return mDone.await(timeout, unit) ? mReport : null;
+        }
+    }
+}
@@ -0,0 +1,550 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.utilities.NetworkUtils;
+import com.example.android.sunshine.utilities.OpenWeatherJsonUtils;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.utilities.SunshineScheduler;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Refreshes the parked forecasts of many saved locations at once. Synced one after the other,
+ * as {@link SunshineSyncTask} syncs the active location, the locations would take one round trip
+ * each; here they flow through three stages that run at the same time:
+ * <ol>
+ * <li>A fixed number of fetchers, each with a request in flight.</li>
+ * <li>Parsers, which stream each response into rows without building its JSON tree.</li>
+ * <li>A single writer, which replaces the parked forecasts of several locations per
+ * transaction through {@link android.content.ContentProvider#applyBatch}.</li>
+ * </ol>
+ * The fetchers and parsers are forked onto the {@link SunshineScheduler} as parts of the
+ * background sync lane task that runs the pipeline. The stages hand their work to each other
+ * through bounded queues. A stage that gets ahead of the next one blocks until there is room, so
+ * however many locations are synced, only a few responses are ever held in memory at once. How
+ * busy and how blocked each stage was is recorded in a {@link PipelineReport}.
+ * <p>
+ * Only parked locations are written. The active location's forecast is the weather table, which
+ * {@link SunshineSyncTask} keeps up to date along with everything derived from it. A location
+ * that becomes active, or is forgotten, while the pipeline runs is checked for inside the
+ * transaction that writes it: the provider drops its days and its freshness record is left
+ * alone, while the other locations of the transaction are written as usual.
+ */
+public final class SyncPipeline {
+
+    private static final String TAG = SyncPipeline.class.getSimpleName();
+
+    /* Parked forecasts synced longer ago than this are refreshed by a bulk location sync */
+    public static final long REFRESH_INTERVAL_MILLIS = 6 * DateUtils.HOUR_IN_MILLIS;
+
+    public static final int DEFAULT_FETCHERS = 4;
+    public static final int DEFAULT_PARSERS = 1;
+    public static final int DEFAULT_QUEUE_CAPACITY = 4;
+    public static final int DEFAULT_LOCATIONS_PER_TRANSACTION = 4;
+
+    /* The lane the stages run in; bulk location syncs are part of the periodic sync */
+    private static final int LANE = SunshineScheduler.LANE_BACKGROUND_SYNC;
+
+    private static final String[] LOCATION_PROJECTION = {
+            LocationEntry._ID,
+            LocationEntry.COLUMN_LOCATION_SETTING
+    };
+
+    /**
+     * A saved location to sync.
+     */
+    public static final class Location {
+
+        final long mId;
+        final String mLocationSetting;
+
+        public Location(long id, @NonNull String locationSetting) {
+            mId = id;
+            mLocationSetting = locationSetting;
+        }
+    }
+
+    /* A location whose response has been fetched, on its way to a parser */
+    private static final class Fetched {
+
+        final Location mLocation;
+        final long mFetchedAtMillis;
+        final String mResponse;
+
+        Fetched(Location location, long fetchedAtMillis, String response) {
+            mLocation = location;
+            mFetchedAtMillis = fetchedAtMillis;
+            mResponse = response;
+        }
+    }
+
+    /* A location whose response has been parsed, on its way to the writer */
+    private static final class Parsed {
+
+        final Location mLocation;
+        final long mFetchedAtMillis;
+        final ContentValues[] mWeatherValues;
+
+        Parsed(Location location, long fetchedAtMillis, ContentValues[] weatherValues) {
+            mLocation = location;
+            mFetchedAtMillis = fetchedAtMillis;
+            mWeatherValues = weatherValues;
+        }
+    }
+
+    /* Put in a queue once nothing more will follow, one per worker taking from it */
+    private static final Fetched END_OF_FETCHED = new Fetched(null, 0, null);
+    private static final Parsed END_OF_PARSED = new Parsed(null, 0, null);
+
+    private final Context mContext;
+    private final SunshineScheduler mScheduler;
+    private final int mFetchers;
+    private final int mParsers;
+    private final int mQueueCapacity;
+    private final int mLocationsPerTransaction;
+
+    /**
+     * Creates a pipeline with the default number of workers and queue sizes.
+     *
+     * @param context Used to reach the provider
+     */
+    public SyncPipeline(@NonNull Context context) {
+        this(context, DEFAULT_FETCHERS, DEFAULT_PARSERS, DEFAULT_QUEUE_CAPACITY,
+                DEFAULT_LOCATIONS_PER_TRANSACTION);
+    }
+
+    /**
+     * @param context                 Used to reach the provider
+     * @param fetchers                Number of requests in flight at once
+     * @param parsers                 Number of parsers running at once
+     * @param queueCapacity           Number of locations each queue between stages holds
+     * @param locationsPerTransaction Most locations the writer commits in one transaction
+     */
+    public SyncPipeline(@NonNull Context context, int fetchers, int parsers, int queueCapacity,
+                        int locationsPerTransaction) {
+        if (fetchers < 1 || parsers < 1 || queueCapacity < 1 || locationsPerTransaction < 1) {
+            throw new IllegalArgumentException("Every stage needs a worker and room to work");
+        }
+        mContext = context.getApplicationContext();
+        mScheduler = SunshineScheduler.getInstance();
+        mFetchers = fetchers;
+        mParsers = parsers;
+        mQueueCapacity = queueCapacity;
+        mLocationsPerTransaction = locationsPerTransaction;
+    }
+
+    /**
+     * Finds the parked locations whose forecast is due for a refresh: those never synced, synced
+     * more than {@link #REFRESH_INTERVAL_MILLIS} ago, or whose forecast has run out.
+     *
+     * @param context Used to reach the provider
+     * @param now     The current time (in UNIX time)
+     * @return The locations, most recently used first
+     */
+    public static List<Location> getStaleLocations(@NonNull Context context, long now) {
+        Cursor cursor = context.getContentResolver().query(
+                LocationEntry.CONTENT_URI,
+                LOCATION_PROJECTION,
+                LocationEntry.COLUMN_ACTIVE + " = 0 AND ("
+                        + LocationEntry.COLUMN_LAST_SYNC_TIME + " < ? OR "
+                        + LocationEntry.COLUMN_LAST_COVERED_DATE + " < ?)",
+                new String[]{
+                        Long.toString(now - REFRESH_INTERVAL_MILLIS),
+                        Long.toString(SunshineDateUtils.normalizeDate(now))},
+                LocationEntry.COLUMN_LAST_USED + " DESC");
+
+        List<Location> locations = new ArrayList<>();
+        if (cursor == null) return locations;
+        try {
+            while (cursor.moveToNext()) {
+                locations.add(new Location(cursor.getLong(0), cursor.getString(1)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return locations;
+    }
+
+    /**
+     * Syncs the locations, returning once every one of them has been written or has failed. A
+     * location that fails, because its request or its response is bad, doesn't hold up the
+     * others. The calling thread is the writer.
+     * <p>
+     * Cancelling the signal aborts the requests in flight and stops the writer after the
+     * transaction it is in, so a location is always written entirely or not at all.
+     *
+     * @param locations The locations to sync
+     * @param signal    Signal used to cancel the run, or null if it can't be cancelled
+     * @return A report of the run
+     * @throws RejectedExecutionException If the scheduler has been shut down
+     */
+    public PipelineReport run(@NonNull List<Location> locations,
+                              @Nullable CancellationSignal signal) {
+        final PipelineReport report = new PipelineReport(locations.size(), mFetchers, mParsers, 1);
+        final long startNanos = System.nanoTime();
+
+        final BlockingQueue<Location> pending = new ArrayBlockingQueue<>(
+                Math.max(1, locations.size()), false, locations);
+        final BlockingQueue<Fetched> fetched = new ArrayBlockingQueue<>(mQueueCapacity);
+        final BlockingQueue<Parsed> parsed = new ArrayBlockingQueue<>(mQueueCapacity);
+
+        final AtomicBoolean canceled = new AtomicBoolean();
+
+        /*
+         * A CancellationSignal has room for a single listener, and every request in flight needs
+         * one to abort its connection, so each fetcher gets a signal of its own. Cancelling them
+         * runs their listeners, so it is done on the teardown thread rather than the cancelling
+         * one, which is often the main thread.
+         */
+        final CancellationSignal[] fetcherSignals = new CancellationSignal[mFetchers];
+        for (int i = 0; i < mFetchers; i++) {
+            fetcherSignals[i] = new CancellationSignal();
+        }
+        if (signal != null) {
+            signal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    canceled.set(true);
+                    mScheduler.runTeardown(new Runnable() {
+                        @Override
+                        public void run() {
+                            for (CancellationSignal fetcherSignal : fetcherSignals) {
+                                fetcherSignal.cancel();
+                            }
+                        }
+                    });
+                }
+            });
+        }
+
+        /* Counts down as each stage that was started stops */
+        final CountDownLatch stopped = new CountDownLatch(mFetchers + mParsers);
+
+        /*
+         * The parsers go first: a fetcher that can't hand its response to a parser blocks, so
+         * there must be at least one before any fetcher starts.
+         */
+        final AtomicInteger runningParsers = new AtomicInteger(mParsers);
+        int parsers = 0;
+        for (int i = 0; i < mParsers; i++) {
+            try {
+                mScheduler.fork(LANE, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            parse(fetched, parsed, report);
+                        } finally {
+                            if (runningParsers.decrementAndGet() == 0) {
+                                putUninterruptibly(parsed, END_OF_PARSED);
+                            }
+                            stopped.countDown();
+                        }
+                    }
+                });
+                parsers++;
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "Could only start " + parsers + " of " + mParsers + " parsers", e);
+                break;
+            }
+        }
+        if (parsers == 0) {
+            if (signal != null) signal.setOnCancelListener(null);
+            throw new RejectedExecutionException("Could not start a parser");
+        }
+        /* Parsers only stop once told to, so none can have stopped yet */
+        runningParsers.addAndGet(parsers - mParsers);
+        for (int i = parsers; i < mParsers; i++) {
+            stopped.countDown();
+        }
+
+        final int parsersToStop = parsers;
+        final AtomicInteger runningFetchers = new AtomicInteger(mFetchers);
+        final Runnable fetcherStopped = new Runnable() {
+            @Override
+            public void run() {
+                /* The last fetcher out tells every parser there is nothing more */
+                if (runningFetchers.decrementAndGet() == 0) {
+                    for (int parser = 0; parser < parsersToStop; parser++) {
+                        putUninterruptibly(fetched, END_OF_FETCHED);
+                    }
+                }
+                stopped.countDown();
+            }
+        };
+        for (int i = 0; i < mFetchers; i++) {
+            final CancellationSignal fetcherSignal = fetcherSignals[i];
+            try {
+                mScheduler.fork(LANE, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            fetch(pending, fetched, fetcherSignal, canceled, report);
+                        } finally {
+                            fetcherStopped.run();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                /* One fetcher less; the others, if any started, fetch its share */
+                Log.w(TAG, "Could not start fetcher " + i, e);
+                fetcherStopped.run();
+            }
+        }
+
+        boolean interrupted = write(parsed, canceled, report);
+
+        /* The writer only stops once the parsers have, and they only once the fetchers have */
+        while (true) {
+            try {
+                stopped.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (signal != null) signal.setOnCancelListener(null);
+        if (canceled.get()) report.setCanceled();
+        report.setWallNanos(System.nanoTime() - startNanos);
+        if (interrupted) Thread.currentThread().interrupt();
+
+        Log.d(TAG, report.toString());
+        return report;
+    }
+
+    /**
+     * Fetches locations until there are none left or the run is cancelled.
+     */
+    private static void fetch(BlockingQueue<Location> pending, BlockingQueue<Fetched> fetched,
+            CancellationSignal signal, AtomicBoolean canceled, PipelineReport report) {
+        Location location;
+        while (!canceled.get() && (location = pending.poll()) != null) {
+            long startNanos = System.nanoTime();
+            long fetchedAtMillis = System.currentTimeMillis();
+            String response;
+            try {
+                response = NetworkUtils.getResponseFromHttpUrl(
+                        NetworkUtils.getUrl(location.mLocationSetting), signal);
+            } catch (OperationCanceledException e) {
+                report.addLocationsFailed(1);
+                continue;
+            } catch (Exception e) {
+                Log.w(TAG, "Could not fetch " + location.mLocationSetting, e);
+                report.addLocationsFailed(1);
+                continue;
+            } finally {
+                report.addBusyNanos(PipelineReport.STAGE_FETCH, System.nanoTime() - startNanos);
+            }
+
+            if (response == null) {
+                report.addLocationsFailed(1);
+                continue;
+            }
+            /* The weather server only sends ASCII, so this is the size on the wire */
+            report.addBytesFetched(response.length());
+
+            long blockedStartNanos = System.nanoTime();
+            putUninterruptibly(fetched, new Fetched(location, fetchedAtMillis, response));
+            report.addBlockedNanos(PipelineReport.STAGE_FETCH,
+                    System.nanoTime() - blockedStartNanos);
+        }
+    }
+
+    /**
+     * Parses fetched responses until the fetchers are done.
+     */
+    private static void parse(BlockingQueue<Fetched> fetched, BlockingQueue<Parsed> parsed,
+            PipelineReport report) {
+        while (true) {
+            Fetched response = takeUninterruptibly(fetched);
+            if (response == END_OF_FETCHED) return;
+
+            long startNanos = System.nanoTime();
+            ContentValues[] weatherValues;
+            try {
+                weatherValues = OpenWeatherJsonUtils.readWeatherContentValues(
+                        new StringReader(response.mResponse));
+            } catch (Exception e) {
+                Log.w(TAG, "Could not parse " + response.mLocation.mLocationSetting, e);
+                weatherValues = null;
+            } finally {
+                report.addBusyNanos(PipelineReport.STAGE_PARSE, System.nanoTime() - startNanos);
+            }
+
+            if (weatherValues == null || weatherValues.length == 0) {
+                report.addLocationsFailed(1);
+                continue;
+            }
+
+            long blockedStartNanos = System.nanoTime();
+            putUninterruptibly(parsed,
+                    new Parsed(response.mLocation, response.mFetchedAtMillis, weatherValues));
+            report.addBlockedNanos(PipelineReport.STAGE_PARSE,
+                    System.nanoTime() - blockedStartNanos);
+        }
+    }
+
+    /**
+     * Writes parsed locations until the parsers are done, grouping whatever is waiting, up to
+     * mLocationsPerTransaction, into each transaction. Once the run is cancelled, what is still
+     * waiting is dropped, but the queue is drained to the end so no worker stays blocked on it.
+     *
+     * @return Whether the writing thread was interrupted along the way
+     */
+    private boolean write(BlockingQueue<Parsed> parsed, AtomicBoolean canceled,
+            PipelineReport report) {
+        boolean interrupted = false;
+        List<Parsed> batch = new ArrayList<>(mLocationsPerTransaction);
+        boolean done = false;
+        while (!done) {
+            Parsed first;
+            try {
+                first = parsed.take();
+            } catch (InterruptedException e) {
+                /* Treated as a cancellation, but the other stages still need to wind down */
+                interrupted = true;
+                canceled.set(true);
+                continue;
+            }
+
+            batch.clear();
+            batch.add(first);
+            parsed.drainTo(batch, mLocationsPerTransaction - 1);
+
+            int last = batch.size() - 1;
+            if (batch.get(last) == END_OF_PARSED) {
+                batch.remove(last);
+                done = true;
+            }
+            if (batch.isEmpty()) continue;
+
+            if (canceled.get()) {
+                report.addLocationsFailed(batch.size());
+                continue;
+            }
+
+            long startNanos = System.nanoTime();
+            writeBatch(batch, report);
+            report.addBusyNanos(PipelineReport.STAGE_WRITE, System.nanoTime() - startNanos);
+        }
+        return interrupted;
+    }
+
+    /**
+     * Replaces the parked forecast and freshness record of every location in the batch, in a
+     * single transaction. Locations that are no longer parked by then are left out by the
+     * provider, which the update of their freshness record, matching no row, tells.
+     */
+    private void writeBatch(List<Parsed> batch, PipelineReport report) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        int[] updates = new int[batch.size()];
+        int[] rowCounts = new int[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            Parsed location = batch.get(i);
+            Uri locationUri = LocationEntry.buildLocationUri(location.mLocation.mId);
+            Uri weatherUri = LocationEntry.buildLocationWeatherUri(location.mLocation.mId);
+
+            operations.add(ContentProviderOperation.newDelete(weatherUri).build());
+            for (ContentValues day : location.mWeatherValues) {
+                operations.add(ContentProviderOperation.newInsert(weatherUri)
+                        .withValues(day)
+                        .build());
+            }
+            rowCounts[i] = location.mWeatherValues.length;
+
+            /* Refreshing a parked location isn't using it, so last_used is left alone */
+            ContentValues freshness = new ContentValues();
+            freshness.put(LocationEntry.COLUMN_LAST_SYNC_TIME, location.mFetchedAtMillis);
+            freshness.put(LocationEntry.COLUMN_LAST_COVERED_DATE,
+                    location.mWeatherValues[location.mWeatherValues.length - 1]
+                            .getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE));
+            updates[i] = operations.size();
+            operations.add(ContentProviderOperation.newUpdate(locationUri)
+                    .withValues(freshness)
+                    .withSelection(LocationEntry.COLUMN_ACTIVE + " = 0", null)
+                    .build());
+        }
+
+        try {
+            ContentProviderResult[] results = mContext.getContentResolver().applyBatch(
+                    WeatherContract.CONTENT_AUTHORITY, operations);
+            int synced = 0;
+            int rows = 0;
+            for (int i = 0; i < updates.length; i++) {
+                if (results[updates[i]].count == 0) continue;
+                synced++;
+                rows += rowCounts[i];
+            }
+            report.addLocationsSynced(synced, rows);
+            report.addLocationsSkipped(batch.size() - synced);
+        } catch (Exception e) {
+            Log.w(TAG, "Could not write " + batch.size() + " locations", e);
+            report.addLocationsFailed(batch.size());
+        }
+    }
+
+    private static <T> void putUninterruptibly(BlockingQueue<T> queue, T item) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(item);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    private static <T> T takeUninterruptibly(BlockingQueue<T> queue) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return queue.take();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.ContentValues;
+import android.support.v4.os.OperationCanceledException;
+
+import com.example.android.sunshine.data.WeatherContract.SyncMetricsEntry;
+
+/**
+ * Describes a single run of {@link SunshineSyncTask#syncWeather}. Every stage of the sync is
+ * timed separately so that we can tell whether a slow sync was slow because of the network, the
+ * JSON parsing or the database.
+ */
+public final class SyncReport {
+
+    /*
+     * The stages of a sync, in the order they are performed. These are used as indices into
+     * the array of stage timings, so they must stay contiguous and start at 0.
+     */
+    public static final int STAGE_URL_BUILD = 0;
+    public static final int STAGE_FETCH = 1;
+    public static final int STAGE_PARSE = 2;
+    public static final int STAGE_DELETE = 3;
+    public static final int STAGE_INSERT = 4;
+    public static final int STAGE_NOTIFY = 5;
+    public static final int STAGE_WEAR = 6;
+
+    public static final int STAGE_COUNT = 7;
+
+    private static final String[] STAGE_NAMES = {
+            "url_build",
+            "fetch",
+            "parse",
+            "delete",
+            "insert",
+            "notify",
+            "wear"
+    };
+
+    /* The sync metrics column for each stage, in stage order */
+    private static final String[] STAGE_COLUMNS = {
+            SyncMetricsEntry.COLUMN_URL_BUILD_NANOS,
+            SyncMetricsEntry.COLUMN_FETCH_NANOS,
+            SyncMetricsEntry.COLUMN_PARSE_NANOS,
+            SyncMetricsEntry.COLUMN_DELETE_NANOS,
+            SyncMetricsEntry.COLUMN_INSERT_NANOS,
+            SyncMetricsEntry.COLUMN_NOTIFY_NANOS,
+            SyncMetricsEntry.COLUMN_WEAR_NANOS
+    };
+
+    /* Failure descriptions longer than this are cut off before being stored */
+    private static final int MAX_FAILURE_LENGTH = 256;
+
+    private final String mTrigger;
+    private final long mStartedAtMillis;
+
+    private final long[] mStageNanos = new long[STAGE_COUNT];
+
+    private int mCurrentStage = -1;
+    private long mCurrentStageStartNanos;
+
+    private long mBytesFetched;
+    private int mRowsDeleted;
+    private int mRowsInserted;
+
+    /* Days present in both the stored and the new forecast, and how many of them changed */
+    private int mRowsCompared;
+    private int mRowsChanged;
+
+    /* Provider reads since the previous sync that did and didn't reuse a compiled statement */
+    private long mStatementCacheHits;
+    private long mStatementCacheMisses;
+
+    /* Stale screens since the previous sync, and how long the revalidation this sync ended took */
+    private long mStaleReads;
+    private long mRevalidationNanos;
+
+    private Exception mFailure;
+
+    /**
+     * @param trigger What started the sync, one of the SyncMetricsEntry TRIGGER_* values
+     */
+    SyncReport(String trigger) {
+        mTrigger = trigger;
+        mStartedAtMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Marks the beginning of a stage. If another stage is still running, it is ended first.
+     *
+     * @param stage One of the STAGE_* constants
+     */
+    void beginStage(int stage) {
+        endStage();
+        mCurrentStage = stage;
+        mCurrentStageStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Marks the end of the stage that is currently running, if any.
+     */
+    void endStage() {
+        if (mCurrentStage < 0) return;
+        mStageNanos[mCurrentStage] += System.nanoTime() - mCurrentStageStartNanos;
+        mCurrentStage = -1;
+    }
+
+    /**
+     * Records the size of the forecast response. The response has already been decoded into a
+     * String by the time we see it, so its UTF-8 length is computed rather than counted off the
+     * wire; for the ASCII JSON the weather server sends, the two are the same.
+     *
+     * @param response The decoded response body
+     */
+    void setResponse(String response) {
+        if (response == null) {
+            mBytesFetched = 0;
+            return;
+        }
+
+        long bytes = 0;
+        for (int i = 0; i < response.length(); i++) {
+            char c = response.charAt(i);
+            if (c < 0x80) {
+                bytes += 1;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        mBytesFetched = bytes;
+    }
+
+    void setRowsDeleted(int rowsDeleted) {
+        mRowsDeleted = rowsDeleted;
+    }
+
+    void setRowsInserted(int rowsInserted) {
+        mRowsInserted = rowsInserted;
+    }
+
+    void setRowsCompared(int rowsCompared) {
+        mRowsCompared = rowsCompared;
+    }
+
+    void setRowsChanged(int rowsChanged) {
+        mRowsChanged = rowsChanged;
+    }
+
+    void setStatementCacheCounts(long hits, long misses) {
+        mStatementCacheHits = hits;
+        mStatementCacheMisses = misses;
+    }
+
+    void setFreshnessCounts(long staleReads, long revalidationNanos) {
+        mStaleReads = staleReads;
+        mRevalidationNanos = revalidationNanos;
+    }
+
+    void setFailure(Exception failure) {
+        mFailure = failure;
+    }
+
+    /**
+     * @param stage One of the STAGE_* constants
+     * @return The time spent in that stage, in nanoseconds
+     */
+    public long getStageNanos(int stage) {
+        return mStageNanos[stage];
+    }
+
+    /**
+     * @return The time spent across all stages, in nanoseconds
+     */
+    public long getTotalNanos() {
+        long total = 0;
+        for (long stageNanos : mStageNanos) {
+            total += stageNanos;
+        }
+        return total;
+    }
+
+    public static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    public String getTrigger() {
+        return mTrigger;
+    }
+
+    public long getStartedAtMillis() {
+        return mStartedAtMillis;
+    }
+
+    public long getBytesFetched() {
+        return mBytesFetched;
+    }
+
+    public int getRowsDeleted() {
+        return mRowsDeleted;
+    }
+
+    public int getRowsInserted() {
+        return mRowsInserted;
+    }
+
+    public int getRowsCompared() {
+        return mRowsCompared;
+    }
+
+    public int getRowsChanged() {
+        return mRowsChanged;
+    }
+
+    public long getStatementCacheHits() {
+        return mStatementCacheHits;
+    }
+
+    public long getStatementCacheMisses() {
+        return mStatementCacheMisses;
+    }
+
+    public long getStaleReads() {
+        return mStaleReads;
+    }
+
+    /**
+     * @return The time from the first stale read to the end of this sync, in nanoseconds, or 0
+     * if this sync didn't refresh data a screen found stale
+     */
+    public long getRevalidationNanos() {
+        return mRevalidationNanos;
+    }
+
+    /**
+     * @return The share of provider reads since the previous sync that reused a compiled
+     * statement, or 0 if there were none
+     */
+    public double getStatementCacheHitRate() {
+        long reads = mStatementCacheHits + mStatementCacheMisses;
+        return reads == 0 ? 0 : (double) mStatementCacheHits / reads;
+    }
+
+    /**
+     * @return The exception that ended the sync, or null if the sync did not fail
+     */
+    public Exception getFailure() {
+        return mFailure;
+    }
+
+    public boolean isSuccessful() {
+        return mFailure == null;
+    }
+
+    /**
+     * @return Whether the sync stopped early because it was cancelled
+     */
+    public boolean isCanceled() {
+        return mFailure instanceof OperationCanceledException;
+    }
+
+    /**
+     * @return This report as a row for the sync metrics table
+     */
+    public ContentValues toContentValues() {
+        ContentValues values = new ContentValues();
+        values.put(SyncMetricsEntry.COLUMN_STARTED_AT, mStartedAtMillis);
+        values.put(SyncMetricsEntry.COLUMN_TRIGGER, mTrigger);
+        for (int stage = 0; stage < STAGE_COUNT; stage++) {
+            values.put(STAGE_COLUMNS[stage], mStageNanos[stage]);
+        }
+        values.put(SyncMetricsEntry.COLUMN_TOTAL_NANOS, getTotalNanos());
+        values.put(SyncMetricsEntry.COLUMN_BYTES_FETCHED, mBytesFetched);
+        values.put(SyncMetricsEntry.COLUMN_ROWS_DELETED, mRowsDeleted);
+        values.put(SyncMetricsEntry.COLUMN_ROWS_INSERTED, mRowsInserted);
+        values.put(SyncMetricsEntry.COLUMN_STATEMENT_CACHE_HITS, mStatementCacheHits);
+        values.put(SyncMetricsEntry.COLUMN_STATEMENT_CACHE_MISSES, mStatementCacheMisses);
+        values.put(SyncMetricsEntry.COLUMN_STALE_READS, mStaleReads);
+        values.put(SyncMetricsEntry.COLUMN_REVALIDATION_NANOS, mRevalidationNanos);
+
+        if (mFailure == null) {
+            values.putNull(SyncMetricsEntry.COLUMN_FAILURE);
+        } else {
+            String failure = mFailure.getClass().getName() + ": " + mFailure.getMessage();
+            if (failure.length() > MAX_FAILURE_LENGTH) {
+                failure = failure.substring(0, MAX_FAILURE_LENGTH);
+            }
+            values.put(SyncMetricsEntry.COLUMN_FAILURE, failure);
+        }
+
+        return values;
+    }
+}
@@ -17,15 +17,22 @@ package com.example.android.sunshine.utilities;
 
 import android.content.Context;
 import android.net.Uri;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
 import android.util.Log;
 
 import com.example.android.sunshine.data.SunshinePreferences;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.Charset;
 import java.util.Scanner;
 
 /**
@@ -56,6 +63,12 @@ public final class NetworkUtils {
 
     private static final String FORECAST_BASE_URL = DYNAMIC_WEATHER_URL;
 
+    /*
+     * The base URL that is actually used to build requests. This is FORECAST_BASE_URL unless a
+     * test has pointed us at a local stand-in for the weather server.
+     */
+    private static String sForecastBaseUrl = FORECAST_BASE_URL;
+
     /*
      * NOTE: These values only effect responses from OpenWeatherMap, NOT from the fake weather
      * server. They are simply here to allow us to teach you how to build a URL if you were to use
@@ -83,6 +96,22 @@ public final class NetworkUtils {
     /* The days parameter allows us to designate how many days of weather data we want */
     private static final String DAYS_PARAM = "cnt";
 
+    /* Appended to the base URL to ask for the hourly forecast rather than the daily one */
+    private static final String HOURLY_PATH = "hourly";
+    /* The number of hours we want our API to return; the hourly API also counts them with cnt */
+    private static final int numHours = 96;
+
+    /**
+     * Points every URL built by this class at a different weather server. This is used by the
+     * sync benchmarks to talk to a local fake server instead of andfun-weather.
+     *
+     * @param baseUrl The base URL of the server to use, or null to restore the default
+     */
+    @VisibleForTesting
+    public static void setForecastBaseUrl(String baseUrl) {
+        sForecastBaseUrl = baseUrl == null ? FORECAST_BASE_URL : baseUrl;
+    }
+
     /**
      * Retrieves the proper URL to query for the weather data. The reason for both this method as
      * well as {@link #buildUrlWithLocationQuery(String)} is two fold.
@@ -109,6 +138,52 @@ public final class NetworkUtils {
         }
     }
 
+    /**
+     * Retrieves the URL to query for the weather of a saved location, rather than the preferred
+     * one. Saved locations are only known by their location setting, so this always queries by
+     * location String.
+     *
+     * @param locationQuery The location setting of the saved location
+     * @return URL to query weather service
+     */
+    public static URL getUrl(String locationQuery) {
+        return buildUrlWithLocationQuery(locationQuery);
+    }
+
+    /**
+     * Retrieves the URL to query for the hourly forecast of the preferred location. Like
+     * {@link #getUrl(Context)}, it asks by coordinates when they are known.
+     *
+     * @param context used to access other Utility methods
+     * @return URL to query the hourly forecast
+     */
+    public static URL getHourlyUrl(Context context) {
+        Uri.Builder builder = Uri.parse(sForecastBaseUrl).buildUpon()
+                .appendPath(HOURLY_PATH);
+        if (SunshinePreferences.isLocationLatLonAvailable(context)) {
+            double[] preferredCoordinates = SunshinePreferences.getLocationCoordinates(context);
+            builder.appendQueryParameter(LAT_PARAM, String.valueOf(preferredCoordinates[0]))
+                    .appendQueryParameter(LON_PARAM, String.valueOf(preferredCoordinates[1]));
+        } else {
+            builder.appendQueryParameter(QUERY_PARAM,
+                    SunshinePreferences.getPreferredWeatherLocation(context));
+        }
+        Uri hourlyQueryUri = builder
+                .appendQueryParameter(FORMAT_PARAM, format)
+                .appendQueryParameter(UNITS_PARAM, units)
+                .appendQueryParameter(DAYS_PARAM, Integer.toString(numHours))
+                .build();
+
+        try {
+            URL hourlyQueryUrl = new URL(hourlyQueryUri.toString());
+            Log.v(TAG, "URL: " + hourlyQueryUrl);
+            return hourlyQueryUrl;
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
     /**
      * Builds the URL used to talk to the weather server using latitude and longitude of a
      * location.
@@ -118,7 +193,7 @@ public final class NetworkUtils {
      * @return The Url to use to query the weather server.
      */
     private static URL buildUrlWithLatitudeLongitude(Double latitude, Double longitude) {
-        Uri weatherQueryUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
+        Uri weatherQueryUri = Uri.parse(sForecastBaseUrl).buildUpon()
                 .appendQueryParameter(LAT_PARAM, String.valueOf(latitude))
                 .appendQueryParameter(LON_PARAM, String.valueOf(longitude))
                 .appendQueryParameter(FORMAT_PARAM, format)
@@ -144,7 +219,7 @@ public final class NetworkUtils {
      * @return The URL to use to query the weather server.
      */
     private static URL buildUrlWithLocationQuery(String locationQuery) {
-        Uri weatherQueryUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
+        Uri weatherQueryUri = Uri.parse(sForecastBaseUrl).buildUpon()
                 .appendQueryParameter(QUERY_PARAM, locationQuery)
                 .appendQueryParameter(FORMAT_PARAM, format)
                 .appendQueryParameter(UNITS_PARAM, units)
@@ -161,6 +236,20 @@ public final class NetworkUtils {
         }
     }
 
+    /**
+     * Disconnects a connection on the SunshineScheduler's teardown thread.
+     *
+     * @param urlConnection The connection to disconnect
+     */
+    private static void disconnectAsync(final HttpURLConnection urlConnection) {
+        SunshineScheduler.getInstance().runTeardown(new Runnable() {
+            @Override
+            public void run() {
+                urlConnection.disconnect();
+            }
+        });
+    }
+
     /**
      * This method returns the entire result from the HTTP response.
      *
@@ -169,7 +258,36 @@ public final class NetworkUtils {
      * @throws IOException Related to network and stream reading
      */
     public static String getResponseFromHttpUrl(URL url) throws IOException {
-        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        return getResponseFromHttpUrl(url, null);
+    }
+
+    /**
+     * Same as {@link #getResponseFromHttpUrl(URL)}, but the request can be aborted. A blocking
+     * read can't be interrupted, so cancelling the signal disconnects the connection instead,
+     * which makes the pending connect or read fail straight away. Tearing down the socket can
+     * block, so the disconnect runs on the SunshineScheduler's teardown thread rather than the
+     * thread that cancelled, which is often the main thread.
+     *
+     * @param url    The URL to fetch the HTTP response from.
+     * @param signal Signal used to abort the request, or null if it can't be cancelled
+     * @return The contents of the HTTP response, null if no response
+     * @throws IOException                Related to network and stream reading
+     * @throws OperationCanceledException If the signal was cancelled before or during the request
+     */
+    public static String getResponseFromHttpUrl(URL url, @Nullable CancellationSignal signal)
+            throws IOException {
+        if (signal != null) signal.throwIfCanceled();
+
+        final HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        if (signal != null) {
+            signal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    disconnectAsync(urlConnection);
+                }
+            });
+        }
+
         try {
             InputStream in = urlConnection.getInputStream();
 
@@ -182,9 +300,98 @@ public final class NetworkUtils {
                 response = scanner.next();
             }
             scanner.close();
+
+            /*
+             * Scanner swallows the IOException a disconnect causes and hands back whatever it
+             * read so far, so a cancelled read has to be caught here rather than below.
+             */
+            if (signal != null) signal.throwIfCanceled();
             return response;
+        } catch (IOException e) {
+            /* The connection was torn down because we were cancelled, so report that instead */
+            if (signal != null) signal.throwIfCanceled();
+            throw e;
         } finally {
+            if (signal != null) signal.setOnCancelListener(null);
+            urlConnection.disconnect();
+        }
+    }
+
+    /**
+     * Opens the HTTP response for reading as it arrives, rather than reading all of it into a
+     * String first as {@link #getResponseFromHttpUrl(URL)} does. Large responses, such as an
+     * hourly forecast, are meant to be handed straight to a streaming parser. Closing the
+     * reader disconnects the connection.
+     *
+     * @param url The URL to fetch the HTTP response from.
+     * @return A reader of the response body, which the caller must close
+     * @throws IOException Related to network and stream reading
+     */
+    public static Reader openResponseReader(URL url) throws IOException {
+        return openResponseReader(url, null);
+    }
+
+    /**
+     * Same as {@link #openResponseReader(URL)}, but the request can be aborted, the way
+     * {@link #getResponseFromHttpUrl(URL, CancellationSignal)} aborts it. The signal stays
+     * registered until the reader is closed, so cancelling it while the body is being parsed
+     * makes the next read throw an {@link OperationCanceledException}.
+     *
+     * @param url    The URL to fetch the HTTP response from.
+     * @param signal Signal used to abort the request, or null if it can't be cancelled
+     * @return A reader of the response body, which the caller must close
+     * @throws IOException                Related to network and stream reading
+     * @throws OperationCanceledException If the signal was cancelled before or during the request
+     */
+    public static Reader openResponseReader(URL url, @Nullable final CancellationSignal signal)
+            throws IOException {
+        if (signal != null) signal.throwIfCanceled();
+
+        final HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        if (signal != null) {
+            signal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    disconnectAsync(urlConnection);
+                }
+            });
+        }
+
+        InputStream in;
+        try {
+            in = urlConnection.getInputStream();
+        } catch (IOException e) {
+            if (signal != null) signal.setOnCancelListener(null);
             urlConnection.disconnect();
+            /* The connection was torn down because we were cancelled, so report that instead */
+            if (signal != null) signal.throwIfCanceled();
+            throw e;
         }
+
+        return new InputStreamReader(in, Charset.forName("UTF-8")) {
+            @Override
+            public int read(char[] buffer, int offset, int length) throws IOException {
+                int read;
+                try {
+                    read = super.read(buffer, offset, length);
+                } catch (IOException e) {
+                    if (signal != null) signal.throwIfCanceled();
+                    throw e;
+                }
+                /* A disconnect can also look like the end of the body */
+                if (read == -1 && signal != null) signal.throwIfCanceled();
+                return read;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (signal != null) signal.setOnCancelListener(null);
+                try {
+                    super.close();
+                } finally {
+                    urlConnection.disconnect();
+                }
+            }
+        };
     }
-}
\ No newline at end of file
+}
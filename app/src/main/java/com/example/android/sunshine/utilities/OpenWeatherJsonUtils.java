@@ -17,6 +17,8 @@ package com.example.android.sunshine.utilities;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.util.JsonReader;
+import android.util.Log;
 
 import com.example.android.sunshine.data.SunshinePreferences;
 import com.example.android.sunshine.data.WeatherContract;
@@ -25,13 +27,19 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Utility functions to handle OpenWeatherMap JSON data.
  */
 public final class OpenWeatherJsonUtils {
 
+    private static final String TAG = OpenWeatherJsonUtils.class.getSimpleName();
+
     /* Location information */
     private static final String OWM_CITY = "city";
     private static final String OWM_COORD = "coord";
@@ -60,6 +68,27 @@ public final class OpenWeatherJsonUtils {
 
     private static final String OWM_MESSAGE_CODE = "cod";
 
+    /*
+     * Hourly forecast information. Each hour is an element of the "list" array, stamped with its
+     * own time in seconds, and groups its values in the "main" and "wind" objects.
+     */
+    private static final String OWM_TIME = "dt";
+    private static final String OWM_MAIN = "main";
+    private static final String OWM_WIND = "wind";
+
+    /* An hour without any of these is of no use, and is left out of the forecast */
+    private static final String[] REQUIRED_HOUR_COLUMNS = {
+            WeatherContract.HourlyEntry.COLUMN_TIME,
+            WeatherContract.HourlyEntry.COLUMN_WEATHER_ID,
+            WeatherContract.HourlyEntry.COLUMN_TEMP,
+            WeatherContract.HourlyEntry.COLUMN_HUMIDITY,
+            WeatherContract.HourlyEntry.COLUMN_PRESSURE
+    };
+
+    /* An hour without wind is taken to be calm */
+    private static final double CALM_WIND_SPEED = 0;
+    private static final double CALM_WIND_DEGREES = 0;
+
     /**
      * This method parses JSON from a web response and returns an array of Strings
      * describing the weather over various days from the forecast.
@@ -181,4 +210,265 @@ public final class OpenWeatherJsonUtils {
 
         return weatherContentValues;
     }
-}
\ No newline at end of file
+
+    /**
+     * Reads the same forecast as {@link #getWeatherContentValuesFromJson}, but streams it rather
+     * than building the whole JSON tree first, and leaves the preferred location alone. This is
+     * what syncing saved locations other than the preferred one uses: each day is read straight
+     * into its row, and the city's coordinates, which would overwrite the preferred location's,
+     * are skipped.
+     *
+     * @param in The forecast JSON, which is closed once read
+     * @return The weather values, one per day, or null if the server reported an error
+     * @throws IOException If the JSON is malformed or a day is missing a value
+     */
+    public static ContentValues[] readWeatherContentValues(Reader in) throws IOException {
+        long normalizedUtcStartDay = SunshineDateUtils.getNormalizedUtcDateForToday();
+
+        int code = HttpURLConnection.HTTP_OK;
+        List<ContentValues> days = null;
+
+        JsonReader reader = new JsonReader(in);
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_MESSAGE_CODE.equals(name)) {
+                    code = reader.nextInt();
+                } else if (OWM_LIST.equals(name)) {
+                    days = readDays(reader, normalizedUtcStartDay);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            /* JsonReader reports a value of the wrong type this way */
+            throw new IOException("Unexpected forecast JSON", e);
+        } finally {
+            reader.close();
+        }
+
+        if (code != HttpURLConnection.HTTP_OK || days == null) {
+            return null;
+        }
+        return days.toArray(new ContentValues[days.size()]);
+    }
+
+    private static List<ContentValues> readDays(JsonReader reader, long normalizedUtcStartDay)
+            throws IOException {
+        List<ContentValues> days = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            /* As above, days are assumed to be in order, starting today */
+            long dateTimeMillis = normalizedUtcStartDay
+                    + SunshineDateUtils.DAY_IN_MILLIS * days.size();
+            days.add(readDay(reader, dateTimeMillis));
+        }
+        reader.endArray();
+        return days;
+    }
+
+    private static ContentValues readDay(JsonReader reader, long dateTimeMillis)
+            throws IOException {
+        ContentValues weatherValues = new ContentValues();
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTimeMillis);
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_PRESSURE.equals(name)) {
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+                        reader.nextDouble());
+            } else if (OWM_HUMIDITY.equals(name)) {
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+                        reader.nextInt());
+            } else if (OWM_WINDSPEED.equals(name)) {
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+                        reader.nextDouble());
+            } else if (OWM_WIND_DIRECTION.equals(name)) {
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES,
+                        reader.nextDouble());
+            } else if (OWM_WEATHER.equals(name)) {
+                readWeatherId(reader, weatherValues,
+                        WeatherContract.WeatherEntry.COLUMN_WEATHER_ID);
+            } else if (OWM_TEMPERATURE.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String temperatureName = reader.nextName();
+                    if (OWM_MAX.equals(temperatureName)) {
+                        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+                                reader.nextDouble());
+                    } else if (OWM_MIN.equals(temperatureName)) {
+                        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+                                reader.nextDouble());
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        /* The date and the seven values read above */
+        if (weatherValues.size() != 8) {
+            throw new IOException("Forecast day is missing values: " + weatherValues);
+        }
+        return weatherValues;
+    }
+
+    /**
+     * Reads an hourly forecast, such as OpenWeatherMap's forecast/hourly returns, streaming it
+     * the way {@link #readWeatherContentValues(Reader)} streams the daily one. A sync can bring
+     * hundreds of hours per location, so each hour is read straight into its row. Unlike days,
+     * hours carry their own time, which is normalized to the start of the hour it falls in.
+     * <p>
+     * One bad hour shouldn't cost all the others, so an hour missing any of the
+     * {@link #REQUIRED_HOUR_COLUMNS} is left out, and one missing its wind is taken to be calm.
+     *
+     * @param in The hourly forecast JSON, which is closed once read
+     * @return The hourly values, one per usable hour, or null if the server reported an error
+     * @throws IOException If the JSON is malformed
+     */
+    public static ContentValues[] readHourlyContentValues(Reader in) throws IOException {
+        int code = HttpURLConnection.HTTP_OK;
+        List<ContentValues> hours = null;
+
+        JsonReader reader = new JsonReader(in);
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_MESSAGE_CODE.equals(name)) {
+                    /* The hourly API reports its code as a string, which nextInt also reads */
+                    code = reader.nextInt();
+                } else if (OWM_LIST.equals(name)) {
+                    hours = new ArrayList<>();
+                    int skipped = 0;
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        ContentValues hour = readHour(reader);
+                        if (hour != null) {
+                            hours.add(hour);
+                        } else {
+                            skipped++;
+                        }
+                    }
+                    reader.endArray();
+                    if (skipped > 0) {
+                        Log.w(TAG, "Left out " + skipped + " forecast hours missing values");
+                    }
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Unexpected hourly forecast JSON", e);
+        } finally {
+            reader.close();
+        }
+
+        if (code != HttpURLConnection.HTTP_OK || hours == null) {
+            return null;
+        }
+        return hours.toArray(new ContentValues[hours.size()]);
+    }
+
+    /**
+     * Reads one element of the hourly "list" array.
+     *
+     * @return The hour's values, or null if it is missing a required value
+     */
+    private static ContentValues readHour(JsonReader reader) throws IOException {
+        ContentValues hourValues = new ContentValues();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_TIME.equals(name)) {
+                hourValues.put(WeatherContract.HourlyEntry.COLUMN_TIME,
+                        SunshineDateUtils.normalizeHour(reader.nextLong() * 1000));
+            } else if (OWM_MAIN.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String mainName = reader.nextName();
+                    if (OWM_TEMPERATURE.equals(mainName)) {
+                        hourValues.put(WeatherContract.HourlyEntry.COLUMN_TEMP,
+                                reader.nextDouble());
+                    } else if (OWM_PRESSURE.equals(mainName)) {
+                        hourValues.put(WeatherContract.HourlyEntry.COLUMN_PRESSURE,
+                                reader.nextDouble());
+                    } else if (OWM_HUMIDITY.equals(mainName)) {
+                        hourValues.put(WeatherContract.HourlyEntry.COLUMN_HUMIDITY,
+                                reader.nextInt());
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WIND.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String windName = reader.nextName();
+                    if (OWM_WINDSPEED.equals(windName)) {
+                        hourValues.put(WeatherContract.HourlyEntry.COLUMN_WIND_SPEED,
+                                reader.nextDouble());
+                    } else if (OWM_WIND_DIRECTION.equals(windName)) {
+                        hourValues.put(WeatherContract.HourlyEntry.COLUMN_DEGREES,
+                                reader.nextDouble());
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name)) {
+                readWeatherId(reader, hourValues, WeatherContract.HourlyEntry.COLUMN_WEATHER_ID);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        for (String column : REQUIRED_HOUR_COLUMNS) {
+            if (!hourValues.containsKey(column)) return null;
+        }
+        if (!hourValues.containsKey(WeatherContract.HourlyEntry.COLUMN_WIND_SPEED)) {
+            hourValues.put(WeatherContract.HourlyEntry.COLUMN_WIND_SPEED, CALM_WIND_SPEED);
+        }
+        if (!hourValues.containsKey(WeatherContract.HourlyEntry.COLUMN_DEGREES)) {
+            hourValues.put(WeatherContract.HourlyEntry.COLUMN_DEGREES, CALM_WIND_DEGREES);
+        }
+        return hourValues;
+    }
+
+    /**
+     * Reads a "weather" array. Only the first, and only, element carries the weather code we use.
+     *
+     * @param reader The reader, positioned at the array
+     * @param values Receives the weather code
+     * @param column The column to put the weather code in
+     */
+    private static void readWeatherId(JsonReader reader, ContentValues values, String column)
+            throws IOException {
+        reader.beginArray();
+        if (reader.hasNext()) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (OWM_WEATHER_ID.equals(reader.nextName())) {
+                    values.put(column, reader.nextInt());
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        while (reader.hasNext()) {
+            reader.skipValue();
+        }
+        reader.endArray();
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.os.TraceCompat;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Instruments the startup of MainActivity, and opening a day in DetailActivity.
+ * <p>
+ * Every init step is wrapped in a trace section, so it shows up by name in systrace. On top of
+ * that, three moments of the latest start are recorded: when it began, when its first frame was
+ * drawn and when the first forecast row was drawn. For DetailActivity, the click on a day and the
+ * first frame showing its weather are recorded. The benchmarks read them back; in the app they
+ * are only logged.
+ * <p>
+ * Everything but the getters must be called on the main thread.
+ */
+public final class StartupTracer {
+
+    private static final String TAG = StartupTracer.class.getSimpleName();
+
+    /* Trace section names, as they appear in systrace */
+    public static final String SECTION_CONTENT_VIEW = "Sunshine.setContentView";
+    public static final String SECTION_FORECAST_LIST = "Sunshine.setUpForecastList";
+    public static final String SECTION_READ_SNAPSHOT = "Sunshine.readForecastSnapshot";
+    public static final String SECTION_INIT_LOADER = "Sunshine.initLoader";
+    public static final String SECTION_SYNC_INITIALIZE = "Sunshine.initializeSync";
+    public static final String SECTION_BIND_FORECAST = "Sunshine.bindForecast";
+    public static final String SECTION_WEARABLE_CLIENT = "Sunshine.createWearableClient";
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    /* System.nanoTime() of each moment of the latest start, or 0 if it hasn't happened yet */
+    private static volatile long sStartNanos;
+    private static volatile long sFirstFrameNanos;
+    private static volatile long sFirstForecastRowNanos;
+
+    /* System.nanoTime() of the latest click on a day, and of the first frame showing its weather */
+    private static volatile long sDetailRequestNanos;
+    private static volatile long sDetailFrameNanos;
+
+    private StartupTracer() {
+    }
+
+    public static void beginSection(String sectionName) {
+        TraceCompat.beginSection(sectionName);
+    }
+
+    public static void endSection() {
+        TraceCompat.endSection();
+    }
+
+    /**
+     * Marks the beginning of a start, either a cold one from onCreate or a warm one from
+     * onRestart. Forgets the moments recorded for the previous start.
+     */
+    public static void onStartupBegin() {
+        sStartNanos = System.nanoTime();
+        sFirstFrameNanos = 0;
+        sFirstForecastRowNanos = 0;
+    }
+
+    /**
+     * Records that the first frame of the current start has been drawn. Only the first call after
+     * {@link #onStartupBegin()} counts.
+     */
+    public static void markFirstFrame() {
+        if (sFirstFrameNanos != 0) return;
+        sFirstFrameNanos = System.nanoTime();
+        Log.d(TAG, "first frame after " + millisSinceStart(sFirstFrameNanos) + "ms");
+    }
+
+    /**
+     * Records that the first forecast row of the current start has been drawn. Only the first
+     * call after {@link #onStartupBegin()} counts.
+     */
+    public static void markFirstForecastRow() {
+        if (sFirstForecastRowNanos != 0) return;
+        sFirstForecastRowNanos = System.nanoTime();
+        Log.d(TAG, "first forecast row after " + millisSinceStart(sFirstForecastRowNanos) + "ms");
+    }
+
+    /**
+     * Records that the user asked for the details of a day.
+     */
+    public static void onDetailRequested() {
+        sDetailRequestNanos = System.nanoTime();
+        sDetailFrameNanos = 0;
+    }
+
+    /**
+     * Records that DetailActivity drew its first frame with the weather of the requested day.
+     * Only the first call after {@link #onDetailRequested()} counts.
+     */
+    public static void markDetailFrame() {
+        if (sDetailFrameNanos != 0 || sDetailRequestNanos == 0) return;
+        sDetailFrameNanos = System.nanoTime();
+        Log.d(TAG, "detail frame after "
+                + TimeUnit.NANOSECONDS.toMillis(sDetailFrameNanos - sDetailRequestNanos) + "ms");
+    }
+
+    /**
+     * @return System.nanoTime() of the latest click on a day, or 0 if there was none
+     */
+    public static long getDetailRequestNanos() {
+        return sDetailRequestNanos;
+    }
+
+    /**
+     * @return System.nanoTime() when the day clicked last was first drawn in detail, or 0
+     */
+    public static long getDetailFrameNanos() {
+        return sDetailFrameNanos;
+    }
+
+    /**
+     * @return System.nanoTime() when the current start began, or 0 if none has
+     */
+    public static long getStartNanos() {
+        return sStartNanos;
+    }
+
+    /**
+     * @return System.nanoTime() when the first frame of the current start was drawn, or 0
+     */
+    public static long getFirstFrameNanos() {
+        return sFirstFrameNanos;
+    }
+
+    /**
+     * @return System.nanoTime() when the first forecast row of the current start was drawn, or 0
+     */
+    public static long getFirstForecastRowNanos() {
+        return sFirstForecastRowNanos;
+    }
+
+    /**
+     * Runs an action once the next frame of a view's window has been drawn.
+     * <p>
+     * The pre-draw callback fires right before the frame is drawn. Posting the action from there
+     * queues it behind the traversal that is drawing the frame, so it runs as soon as the frame
+     * is out, and never delays it.
+     *
+     * @param view   Any view attached, or about to be attached, to the window
+     * @param action What to run after the frame
+     */
+    public static void runAfterNextDraw(final View view, final Runnable action) {
+        view.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                /*
+                 * Ask the view for its observer again: if it was registered before the view was
+                 * attached, the listener has since moved to the window's observer.
+                 */
+                view.getViewTreeObserver().removeOnPreDrawListener(this);
+                sMainHandler.post(action);
+                return true;
+            }
+        });
+    }
+
+    private static long millisSinceStart(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos - sStartNanos);
+    }
+}
@@ -31,6 +31,7 @@ public final class SunshineDateUtils {
 
     /* Milliseconds in a day */
     public static final long DAY_IN_MILLIS = TimeUnit.DAYS.toMillis(1);
+    public static final long HOUR_IN_MILLIS = TimeUnit.HOURS.toMillis(1);
 
     /**
      * This method returns the number of milliseconds (UTC time) for today's date at midnight in
@@ -141,6 +142,20 @@ public final class SunshineDateUtils {
         return millisFromEpochToTodayAtMidnightUtc;
     }
 
+    /**
+     * Returns the Monday starting the week a normalized date falls in. Weeks are counted in UTC,
+     * like normalized dates, and day 0 of the epoch was a Thursday.
+     *
+     * @param normalizedUtcDate A normalized date
+     *
+     * @return The normalized date of the Monday on or before it
+     */
+    public static long getWeekStart(long normalizedUtcDate) {
+        long daysSinceEpoch = normalizedUtcDate / DAY_IN_MILLIS;
+        long daysSinceMonday = (daysSinceEpoch + 3) % 7;
+        return (daysSinceEpoch - daysSinceMonday) * DAY_IN_MILLIS;
+    }
+
     /**
      * In order to ensure consistent inserts into WeatherProvider, we check that dates have been
      * normalized before they are inserted. If they are not normalized, we don't want to accept
@@ -159,6 +174,27 @@ public final class SunshineDateUtils {
         return isDateNormalized;
     }
 
+    /**
+     * Normalizes a time to the start of its hour, the way {@link #normalizeDate(long)} normalizes
+     * it to the start of its day. Hourly forecasts are stored with normalized hours.
+     *
+     * @param time The time (in milliseconds) to normalize
+     *
+     * @return The start of the hour the time falls in
+     */
+    public static long normalizeHour(long time) {
+        return time - time % HOUR_IN_MILLIS;
+    }
+
+    /**
+     * @param millisSinceEpoch Milliseconds since January 1, 1970 at midnight
+     *
+     * @return true if the time is the start of an hour, false otherwise
+     */
+    public static boolean isHourNormalized(long millisSinceEpoch) {
+        return millisSinceEpoch % HOUR_IN_MILLIS == 0;
+    }
+
     /**
      * This method will return the local time midnight for the provided normalized UTC date.
      *
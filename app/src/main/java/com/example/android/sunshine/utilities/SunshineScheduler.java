@@ -0,0 +1,484 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The one place Sunshine runs background work. Work is submitted to one of four lanes, and idle
+ * workers always take the oldest task of the most important non-empty lane:
+ * <ol>
+ *     <li>{@link #LANE_USER_SYNC}: syncs the user asked for, or is waiting on</li>
+ *     <li>{@link #LANE_UI_PRECOMPUTE}: work whose result is about to be shown</li>
+ *     <li>{@link #LANE_BACKGROUND_SYNC}: periodic syncs from the job dispatcher</li>
+ *     <li>{@link #LANE_MAINTENANCE}: anything that can wait, like pruning old data</li>
+ * </ol>
+ * Each lane has a bounded queue; submitting to a full lane throws a
+ * {@link RejectedExecutionException} instead of letting work pile up.
+ * <p>
+ * User-visible work preempts background work: when a task is submitted to a user-visible lane,
+ * every running task of a lane it preempts that implements {@link Preemptible} is asked to stop.
+ * That matters most for syncs, since only one sync can run at a time and a user-initiated sync
+ * would otherwise wait for a periodic sync to finish.
+ * <p>
+ * The scheduler is what keeps syncs to one at a time: a worker never takes a task from
+ * {@link #LANE_USER_SYNC} or {@link #LANE_BACKGROUND_SYNC} while a task of either lane is
+ * running. A second sync waits in its queue instead of holding a worker, so the other lanes
+ * still have one to run on.
+ * <p>
+ * Stopping a task can itself block, eg disconnecting the socket a sync is reading from. That
+ * kind of teardown goes to {@link #runTeardown(Runnable)}, which runs it on a thread of its own:
+ * neither the caller, often the main thread, nor a lane, where it could wait behind the very task
+ * it is meant to stop. Preempting tasks goes through it too.
+ * <p>
+ * A task that has to do several blocking things at once, like a sync with several requests in
+ * flight, {@link #fork(int, Runnable) forks} the parts onto helper threads rather than starting
+ * threads of its own.
+ * <p>
+ * For every lane we keep track of how long tasks waited in the queue and how long they ran, see
+ * {@link #getLaneStats(int)}.
+ */
+public final class SunshineScheduler {
+
+    private static final String TAG = SunshineScheduler.class.getSimpleName();
+
+    /*
+     * The lanes, in the order workers serve them. These are used as indices into the per-lane
+     * arrays below, so they must stay contiguous and start at 0.
+     */
+    public static final int LANE_USER_SYNC = 0;
+    public static final int LANE_UI_PRECOMPUTE = 1;
+    public static final int LANE_BACKGROUND_SYNC = 2;
+    public static final int LANE_MAINTENANCE = 3;
+
+    public static final int LANE_COUNT = 4;
+
+    private static final String[] LANE_NAMES = {
+            "user_sync",
+            "ui_precompute",
+            "background_sync",
+            "maintenance"
+    };
+
+    /* Maximum number of queued (not yet running) tasks per lane */
+    private static final int[] LANE_CAPACITY = {4, 16, 4, 16};
+
+    /* Thread priority a worker takes on while it runs a task of each lane */
+    private static final int[] LANE_THREAD_PRIORITY = {
+            Process.THREAD_PRIORITY_DEFAULT,
+            Process.THREAD_PRIORITY_DEFAULT,
+            Process.THREAD_PRIORITY_BACKGROUND,
+            Process.THREAD_PRIORITY_LOWEST
+    };
+
+    /* Bit mask of the lanes whose running tasks each lane preempts */
+    private static final int[] LANE_PREEMPTS = {
+            (1 << LANE_BACKGROUND_SYNC) | (1 << LANE_MAINTENANCE),
+            1 << LANE_MAINTENANCE,
+            0,
+            0
+    };
+
+    /* Bit mask of the lanes of which at most one task runs at a time, see pollHighestPriority */
+    private static final int SYNC_LANES = (1 << LANE_USER_SYNC) | (1 << LANE_BACKGROUND_SYNC);
+
+    /*
+     * Two workers are enough for Sunshine: one sync and one piece of UI or maintenance work can
+     * run side by side. Since only one of them ever runs a sync, the other is always free for
+     * UI and maintenance work.
+     */
+    private static final int DEFAULT_WORKER_COUNT = 2;
+
+    /* Most parts that can be forked at once, and how long an idle helper is kept around */
+    private static final int MAX_HELPER_COUNT = 16;
+    private static final long HELPER_KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * Implemented by tasks that can stop early when more important work arrives. A preempted
+     * task is expected to wind down promptly on its own; it is not interrupted.
+     */
+    public interface Preemptible {
+        void preempt();
+    }
+
+    private static final Object sLock = new Object();
+    private static SunshineScheduler sInstance;
+
+    private final Object mLock = new Object();
+
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<QueuedTask>[] mQueues = new ArrayDeque[LANE_COUNT];
+
+    /* The task each worker is currently running, or null if it is idle */
+    private final QueuedTask[] mRunning;
+
+    private final LaneStats[] mStats = new LaneStats[LANE_COUNT];
+
+    /* Runs teardown work, see runTeardown */
+    private final HandlerThread mTeardownThread;
+    private final Handler mTeardownHandler;
+
+    /* Runs forked parts, see fork */
+    private final ThreadPoolExecutor mHelpers;
+
+    private volatile boolean mShutdown;
+
+    public static SunshineScheduler getInstance() {
+        synchronized (sLock) {
+            if (sInstance == null) {
+                sInstance = new SunshineScheduler(DEFAULT_WORKER_COUNT);
+            }
+            return sInstance;
+        }
+    }
+
+    /**
+     * Only tests should create their own scheduler; the app uses {@link #getInstance()}.
+     *
+     * @param workerCount Number of worker threads
+     */
+    @VisibleForTesting
+    public SunshineScheduler(int workerCount) {
+        for (int lane = 0; lane < LANE_COUNT; lane++) {
+            mQueues[lane] = new ArrayDeque<>(LANE_CAPACITY[lane]);
+            mStats[lane] = new LaneStats(LANE_NAMES[lane]);
+        }
+
+        mTeardownThread = new HandlerThread("SunshineTeardown");
+        mTeardownThread.start();
+        mTeardownHandler = new Handler(mTeardownThread.getLooper());
+
+        mHelpers = new ThreadPoolExecutor(0, MAX_HELPER_COUNT,
+                HELPER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        return new Thread(runnable, "SunshineHelper-" + mCount.getAndIncrement());
+                    }
+                });
+
+        mRunning = new QueuedTask[workerCount];
+        for (int worker = 0; worker < workerCount; worker++) {
+            final int workerIndex = worker;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    workerLoop(workerIndex);
+                }
+            }, "SunshineWorker-" + worker);
+            thread.start();
+        }
+    }
+
+    /**
+     * Queues a task.
+     *
+     * @param lane One of the LANE_* constants
+     * @param task The work to run. If it implements {@link Preemptible}, it may be asked to stop
+     *             early when more important work is submitted.
+     * @throws RejectedExecutionException If the lane's queue is full or the scheduler was shut down
+     */
+    public void submit(int lane, Runnable task) {
+        final List<Preemptible> preempted = new ArrayList<>();
+        synchronized (mLock) {
+            if (mShutdown) {
+                throw new RejectedExecutionException("Scheduler has been shut down");
+            }
+
+            ArrayDeque<QueuedTask> queue = mQueues[lane];
+            if (queue.size() >= LANE_CAPACITY[lane]) {
+                mStats[lane].mRejected++;
+                throw new RejectedExecutionException(
+                        "The " + LANE_NAMES[lane] + " lane already has " + queue.size() + " tasks");
+            }
+
+            queue.addLast(new QueuedTask(lane, task));
+
+            int preempts = LANE_PREEMPTS[lane];
+            for (QueuedTask running : mRunning) {
+                if (running == null || (preempts & (1 << running.mLane)) == 0) continue;
+                if (running.mTask instanceof Preemptible && !running.mPreempted) {
+                    running.mPreempted = true;
+                    mStats[running.mLane].mPreempted++;
+                    preempted.add((Preemptible) running.mTask);
+                }
+            }
+
+            mLock.notify();
+        }
+
+        /* Outside the lock, and off the submitting thread, since stopping a task may block */
+        if (!preempted.isEmpty()) {
+            runTeardown(new Runnable() {
+                @Override
+                public void run() {
+                    for (Preemptible task : preempted) {
+                        task.preempt();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Runs work that stops or releases other work, like disconnecting the socket a task is
+     * blocked on, on the scheduler's teardown thread. Teardown runs in order and should be
+     * short. Unlike tasks, it is never rejected for want of room; once the scheduler has been
+     * {@link #shutdown() shut down}, it is dropped.
+     *
+     * @param teardown The work to run
+     */
+    public void runTeardown(Runnable teardown) {
+        mTeardownHandler.post(teardown);
+    }
+
+    /**
+     * Runs part of a running task on a helper thread, at the priority of the task's lane. The
+     * part starts right away rather than being queued: the task forking it holds a worker while
+     * it waits for its parts, and a part queued behind that very task would never run. The task
+     * is responsible for waiting for its parts, and for stopping them when it is preempted.
+     *
+     * @param lane The lane of the task the part belongs to, one of the LANE_* constants
+     * @param part The work to run
+     * @throws RejectedExecutionException If too many parts are running or the scheduler was shut
+     *                                    down
+     */
+    public void fork(final int lane, final Runnable part) {
+        if (mShutdown) {
+            throw new RejectedExecutionException("Scheduler has been shut down");
+        }
+        mHelpers.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(LANE_THREAD_PRIORITY[lane]);
+                try {
+                    part.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Part of a task in the " + LANE_NAMES[lane] + " lane failed", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param lane One of the LANE_* constants
+     * @return A snapshot of the lane's counters
+     */
+    public LaneStats getLaneStats(int lane) {
+        synchronized (mLock) {
+            return new LaneStats(mStats[lane]);
+        }
+    }
+
+    public static String getLaneName(int lane) {
+        return LANE_NAMES[lane];
+    }
+
+    /**
+     * @param lane One of the LANE_* constants
+     * @return How many tasks can wait in the lane's queue before submissions are rejected
+     */
+    public static int getLaneCapacity(int lane) {
+        return LANE_CAPACITY[lane];
+    }
+
+    /**
+     * Stops the workers once they finish their current task, and the teardown thread. Queued
+     * tasks and teardown are dropped; forked parts run to the end, but no new ones start.
+     */
+    @VisibleForTesting
+    public void shutdown() {
+        synchronized (mLock) {
+            mShutdown = true;
+            for (ArrayDeque<QueuedTask> queue : mQueues) {
+                queue.clear();
+            }
+            mLock.notifyAll();
+        }
+        mTeardownThread.quit();
+        mHelpers.shutdown();
+    }
+
+    private void workerLoop(int workerIndex) {
+        while (true) {
+            QueuedTask next;
+            synchronized (mLock) {
+                next = pollHighestPriority();
+                while (next == null) {
+                    if (mShutdown) return;
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        /* Workers are only ever stopped through shutdown */
+                    }
+                    next = pollHighestPriority();
+                }
+                mRunning[workerIndex] = next;
+            }
+
+            long startNanos = System.nanoTime();
+            Process.setThreadPriority(LANE_THREAD_PRIORITY[next.mLane]);
+            try {
+                next.mTask.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Task in the " + LANE_NAMES[next.mLane] + " lane failed", e);
+            }
+            long endNanos = System.nanoTime();
+
+            synchronized (mLock) {
+                mRunning[workerIndex] = null;
+                mStats[next.mLane].record(startNanos - next.mQueuedAtNanos, endNanos - startNanos);
+
+                /* Another worker may have skipped a queued sync because this one was running */
+                if ((SYNC_LANES & (1 << next.mLane)) != 0) mLock.notifyAll();
+            }
+        }
+    }
+
+    /*
+     * Must be called with mLock held. Skips the sync lanes while a sync is running, so that a
+     * second sync never takes a worker only to wait for the first one.
+     */
+    private QueuedTask pollHighestPriority() {
+        boolean syncRunning = false;
+        for (QueuedTask running : mRunning) {
+            if (running != null && (SYNC_LANES & (1 << running.mLane)) != 0) {
+                syncRunning = true;
+                break;
+            }
+        }
+
+        for (int lane = 0; lane < LANE_COUNT; lane++) {
+            if (syncRunning && (SYNC_LANES & (1 << lane)) != 0) continue;
+            QueuedTask task = mQueues[lane].pollFirst();
+            if (task != null) return task;
+        }
+        return null;
+    }
+
+    private static final class QueuedTask {
+        final int mLane;
+        final Runnable mTask;
+        final long mQueuedAtNanos = System.nanoTime();
+
+        /* Guarded by the scheduler's lock */
+        boolean mPreempted;
+
+        QueuedTask(int lane, Runnable task) {
+            mLane = lane;
+            mTask = task;
+        }
+    }
+
+    /**
+     * Counters for one lane. Instances returned by {@link #getLaneStats(int)} are snapshots and
+     * do not change afterwards.
+     */
+    public static final class LaneStats {
+
+        private final String mName;
+
+        private int mCompleted;
+        private int mRejected;
+        private int mPreempted;
+
+        private long mTotalWaitNanos;
+        private long mMaxWaitNanos;
+        private long mTotalRunNanos;
+        private long mMaxRunNanos;
+
+        LaneStats(String name) {
+            mName = name;
+        }
+
+        LaneStats(LaneStats other) {
+            mName = other.mName;
+            mCompleted = other.mCompleted;
+            mRejected = other.mRejected;
+            mPreempted = other.mPreempted;
+            mTotalWaitNanos = other.mTotalWaitNanos;
+            mMaxWaitNanos = other.mMaxWaitNanos;
+            mTotalRunNanos = other.mTotalRunNanos;
+            mMaxRunNanos = other.mMaxRunNanos;
+        }
+
+        void record(long waitNanos, long runNanos) {
+            mCompleted++;
+            mTotalWaitNanos += waitNanos;
+            mMaxWaitNanos = Math.max(mMaxWaitNanos, waitNanos);
+            mTotalRunNanos += runNanos;
+            mMaxRunNanos = Math.max(mMaxRunNanos, runNanos);
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public int getCompleted() {
+            return mCompleted;
+        }
+
+        public int getRejected() {
+            return mRejected;
+        }
+
+        public int getPreempted() {
+            return mPreempted;
+        }
+
+        public long getMeanWaitNanos() {
+            return mCompleted == 0 ? 0 : mTotalWaitNanos / mCompleted;
+        }
+
+        public long getMaxWaitNanos() {
+            return mMaxWaitNanos;
+        }
+
+        public long getMeanRunNanos() {
+            return mCompleted == 0 ? 0 : mTotalRunNanos / mCompleted;
+        }
+
+        public long getMaxRunNanos() {
+            return mMaxRunNanos;
+        }
+
+        @Override
+        public String toString() {
+            return mName + ": completed=" + mCompleted
+                    + " rejected=" + mRejected
+                    + " preempted=" + mPreempted
+                    + " wait(mean/max)=" + getMeanWaitNanos() / 1000 + "/" + mMaxWaitNanos / 1000 + "us"
+                    + " run(mean/max)=" + getMeanRunNanos() / 1000 + "/" + mMaxRunNanos / 1000 + "us";
+        }
+    }
+}